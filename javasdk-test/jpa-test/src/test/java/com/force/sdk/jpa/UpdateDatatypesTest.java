@@ -33,8 +33,6 @@ import java.math.BigInteger;
 import java.net.MalformedURLException;
 import java.net.URL;
 
-import javax.persistence.PersistenceException;
-
 import org.testng.Assert;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
@@ -108,19 +106,17 @@ public class UpdateDatatypesTest extends DatatypesBaseTest {
     @Test
     /**
      * Basic bulk UPDATE JPQL query test.
-     * Bulk update is currently not supported by the javasdk and this test asserts the exception.
+     * Updates a field of every entity of a type and verifies the count and the stored values.
      * @hierarchy javasdk
      * @userStory xyz
      */
     public void testUpdateAll() {
-        String updateBase = "update TestEntity t SET t.boolType='false'";
-        try {
-            em.createQuery(updateBase).executeUpdate();
-            Assert.fail("Bulk update should have caused an exception.");
-        } catch (PersistenceException pe) {
-            Assert.assertTrue(pe.getMessage().contains("Bulk Update is not yet supported"), "Exception message was wrong.");
-        }
+        String updateBase = "update TestEntity t SET t.boolType = :value";
+        int updated = em.createQuery(updateBase).setParameter("value", Boolean.FALSE).executeUpdate();
+        Assert.assertEquals(updated, 10, "Updated wrong number of entities");
         
+        String selectBase = "select t from TestEntity t where t.boolType = false";
+        Assert.assertEquals(em.createQuery(selectBase).getResultList().size(), 10, "Update was not successful");
     }
     
     //Bulk update is not yet supported by the sdk.
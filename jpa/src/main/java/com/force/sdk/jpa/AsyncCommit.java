@@ -0,0 +1,190 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.force.sdk.jpa;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.datanucleus.store.ObjectProvider;
+
+/**
+ * 
+ * Outcome of {@link ForceEntityManager#commitAsync()}: the writes of a flush that were handed to the
+ * {@link AsyncWriter}. It is done once all of them are, and holds the id of the record of each flushed entity.
+ * It fails with the error of the first write that was given up, the other writes are not undone.
+ * <p>
+ * An ExecutionContext is not thread safe, so the ids of new entities are set on them by the thread that owns the
+ * EntityManager: when it reads this result, or at the start of its next EntityManager operation once the writes
+ * are done.
+ *
+ * @author Fiaz Hossain
+ */
+final class AsyncCommit implements Future<Map<Object, String>> {
+
+    private final ForceObjectManagerImpl om;
+    private final Thread owner;
+    private final List<Object> entities = new ArrayList<Object>();
+    // The object provider of each new entity, null for updates and deletes
+    private final List<ObjectProvider> newObjects = new ArrayList<ObjectProvider>();
+    private final List<Future<String>> writes = new ArrayList<Future<String>>();
+    // Only touched by the owner thread
+    private boolean applied;
+    
+    AsyncCommit(ForceObjectManagerImpl om) {
+        this.om = om;
+        this.owner = Thread.currentThread();
+    }
+    
+    /**
+     * Adds a write that was handed to the writer.
+     * 
+     * @param entity the flushed entity
+     * @param newObject the object provider of a new entity, whose id is set once it has been written,
+     *                  {@code null} for an existing entity
+     * @param write the pending write
+     */
+    void add(Object entity, ObjectProvider newObject, Future<String> write) {
+        entities.add(entity);
+        newObjects.add(newObject);
+        writes.add(write);
+    }
+    
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = false;
+        for (Future<String> write : writes) {
+            cancelled |= write.cancel(mayInterruptIfRunning);
+        }
+        return cancelled;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        for (Future<String> write : writes) {
+            if (write.isCancelled()) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        for (Future<String> write : writes) {
+            if (!write.isDone()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Waits for the writes. Called by the thread that owns the EntityManager, it also sets the ids of the new
+     * entities that were written.
+     * 
+     * @return the id of the record of each entity whose write succeeded
+     * @throws InterruptedException if the thread was interrupted while waiting
+     * @throws ExecutionException if a write was given up
+     */
+    @Override
+    public Map<Object, String> get() throws InterruptedException, ExecutionException {
+        for (Future<String> write : writes) {
+            try {
+                write.get();
+            } catch (ExecutionException e) {
+                // Reported below, once all writes are done
+            } catch (CancellationException e) {
+                // A cancelled write holds no id
+            }
+        }
+        return getCompleted();
+    }
+
+    @Override
+    public Map<Object, String> get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Future<String> write : writes) {
+            try {
+                write.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+            } catch (ExecutionException e) {
+                // Reported below, once all writes are done
+            } catch (CancellationException e) {
+                // A cancelled write holds no id
+            }
+        }
+        return getCompleted();
+    }
+    
+    /**
+     * Sets the ids of the new entities that were written, once all writes are done. Only called by the thread
+     * that owns the EntityManager.
+     * 
+     * @return {@code true} once the ids have been set, {@code false} if writes are still pending
+     */
+    boolean applyIds() {
+        if (applied) return true;
+        if (!isDone()) return false;
+        applied = true;
+        if (om.isClosed()) return true;
+        for (int i = 0; i < writes.size(); i++) {
+            String id = getId(writes.get(i));
+            if (newObjects.get(i) != null && id != null) {
+                newObjects.get(i).setPostStoreNewObjectId(id);
+            }
+        }
+        return true;
+    }
+    
+    // Called once all writes are done
+    private Map<Object, String> getCompleted() throws InterruptedException, ExecutionException {
+        if (Thread.currentThread() == owner) {
+            om.applyAsyncCommit(this);
+        }
+        Map<Object, String> ids = new IdentityHashMap<Object, String>();
+        ExecutionException failure = null;
+        for (int i = 0; i < writes.size(); i++) {
+            if (writes.get(i).isCancelled()) continue;
+            try {
+                ids.put(entities.get(i), writes.get(i).get());
+            } catch (ExecutionException e) {
+                if (failure == null) failure = e;
+            }
+        }
+        if (failure != null) throw failure;
+        return ids;
+    }
+    
+    private static String getId(Future<String> write) {
+        try {
+            return write.isCancelled() ? null : write.get();
+        } catch (InterruptedException e) {
+            // The write is done, this does not wait
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.force.sdk.jpa;
+
+import javax.persistence.PersistenceException;
+
+/**
+ * 
+ * Decides what happens to an entity whose asynchronous write failed (see
+ * {@link ForceEntityManager#persistAsync(Object)} and {@link ForceEntityManager#commitAsync()}). The entity of a
+ * failed update or delete is the one that was changed or removed before the commit. Register a handler with the
+ * {@code force.asyncWriteHandler} property. Without a handler, failed writes are logged and not retried.
+ * <p>
+ * Handlers are called on the background writer thread. They must be thread safe, and a handler that waits
+ * before returning holds up every other asynchronous write of the persistence unit.
+ *
+ * @author Fiaz Hossain
+ */
+public interface AsyncWriteHandler {
+
+    /**
+     * Called when a write failed, to decide whether it is sent again. A retried write waits
+     * {@code force.asyncWriteRetryBackoffMillis}, doubled on each further attempt, before it is sent.
+     * Not called for entities with an {@code InputStream} field, whose stream has been read by the failed
+     * attempt; they are passed to {@link #deadLetter} right away.
+     * 
+     * @param entity the entity that could not be saved
+     * @param attempts the number of times the write has been sent so far
+     * @param error the cause of the failure
+     * @return {@code true} to retry the write, {@code false} to give up and pass it to {@link #deadLetter}
+     */
+    boolean retry(Object entity, int attempts, PersistenceException error);
+    
+    /**
+     * Called when a write is given up. The future of the write then fails with the same error.
+     * 
+     * @param entity the entity that could not be saved
+     * @param error the cause of the last failure
+     */
+    void deadLetter(Object entity, PersistenceException error);
+}
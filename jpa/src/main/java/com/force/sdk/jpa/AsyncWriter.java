@@ -0,0 +1,411 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.force.sdk.jpa;
+
+import static com.force.sdk.jpa.ForceEntityManager.LOGGER;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.persistence.PersistenceException;
+
+import org.datanucleus.ClassLoaderResolver;
+import org.datanucleus.PersistenceConfiguration;
+import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.datanucleus.exceptions.NucleusException;
+import org.datanucleus.exceptions.NucleusUserException;
+import org.datanucleus.jpa.NucleusJPAHelper;
+
+import com.force.sdk.connector.ForceConnectorConfig;
+import com.force.sdk.connector.ForceServiceConnector;
+import com.sforce.soap.partner.SaveResult;
+import com.sforce.soap.partner.sobject.SObject;
+
+/**
+ * 
+ * Background writer for the entities saved with {@link ForceEntityManager#persistAsync(Object)} and the flushes
+ * of {@link ForceEntityManager#commitAsync()}. The writes of all EntityManagers of a persistence unit go through a
+ * bounded queue to a single writer thread, which sends them in batches of up to 200 records. A batch is sent once
+ * it is full, or once the oldest write in it has waited {@code force.asyncWriteLingerMillis}.
+ * <p>
+ * Each write is sent with the connector config of the thread that submitted it, writes of different configs
+ * are never sent in the same call. The writes of a batch are sent in the order of a flush: upserts, creates,
+ * updates and then deletes. Failed writes are passed to the {@link AsyncWriteHandler} of the
+ * persistence unit, which either retries them or gives them up. A retried write waits
+ * {@code force.asyncWriteRetryBackoffMillis}, doubled on each further attempt, before it is sent again.
+ *
+ * @author Fiaz Hossain
+ */
+final class AsyncWriter {
+
+    static final int DEFAULT_QUEUE_SIZE = 1000;
+    static final long DEFAULT_LINGER_MILLIS = 50;
+    static final long DEFAULT_RETRY_BACKOFF_MILLIS = 100;
+    private static final long IDLE_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    // The backoff stops doubling after this many retries
+    private static final int MAX_BACKOFF_SHIFT = 6;
+    // The order in which the writes of a batch are sent, as a flush sends them
+    private static final SoapFlush.Operation[] SEND_ORDER = {
+        SoapFlush.Operation.UPSERT, SoapFlush.Operation.CREATE, SoapFlush.Operation.UPDATE, SoapFlush.Operation.DELETE,
+    };
+    
+    /**
+     * A queued write, completed by the writer thread.
+     */
+    private static final class Write extends FutureTask<String> {
+        
+        private static final Callable<String> NOT_RUN = new Callable<String>() {
+            @Override
+            public String call() {
+                throw new IllegalStateException("Asynchronous writes are completed by the writer");
+            }
+        };
+        
+        private final SoapFlush.Operation operation;
+        private final Object entity;
+        private final SObject record;
+        private final Calendar version;
+        private final String externalIdField;
+        private final ForceConnectorConfig config;
+        private int attempts;
+        private long retryAt;
+        
+        Write(SoapFlush.Operation operation, Object entity, SObject record, Calendar version, String externalIdField,
+                ForceConnectorConfig config) {
+            super(NOT_RUN);
+            this.operation = operation;
+            this.entity = entity;
+            this.record = record;
+            this.version = version;
+            this.externalIdField = externalIdField;
+            this.config = config;
+        }
+        
+        @Override
+        public void run() {
+            // Never run, the writer completes the write once it has been sent
+        }
+        
+        void succeeded(String id) {
+            set(id);
+        }
+        
+        void failed(Throwable error) {
+            setException(error);
+        }
+    }
+    
+    // Queued by close() to wake the writer up, never sent
+    private static final Write WAKE_UP = new Write(null, null, null, null, null, null);
+    
+    private final SoapFlush soapFlush;
+    private final AsyncWriteHandler handler;
+    private final long lingerNanos;
+    private final long retryBackoffNanos;
+    private final BlockingQueue<Write> queue;
+    // Only touched by the writer thread
+    private final List<Write> retries = new ArrayList<Write>();
+    private final Thread thread;
+    private volatile boolean closed;
+    
+    AsyncWriter(ForceStoreManager storeManager, AsyncWriteHandler handler, int queueSize, long lingerMillis,
+            long retryBackoffMillis) {
+        this.soapFlush = new SoapFlush(storeManager, false);
+        this.handler = handler;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        this.retryBackoffNanos = TimeUnit.MILLISECONDS.toNanos(retryBackoffMillis);
+        this.queue = new LinkedBlockingQueue<Write>(queueSize);
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "force-jpa-async-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+    
+    /**
+     * Reads the asynchronous write properties of a persistence unit and starts the writer.
+     * 
+     * @param storeManager the store manager of the persistence unit
+     * @param conf the persistence unit configuration
+     * @param clr the class loader resolver used to load the handler
+     * @return the started writer
+     */
+    static AsyncWriter forConfiguration(ForceStoreManager storeManager, PersistenceConfiguration conf,
+            ClassLoaderResolver clr) {
+        int queueSize = conf.getIntProperty("force.asyncWriteQueueSize");
+        Object linger = conf.getProperty("force.asyncWriteLingerMillis");
+        long lingerMillis = linger != null ? Long.parseLong(linger.toString().trim()) : DEFAULT_LINGER_MILLIS;
+        Object backoff = conf.getProperty("force.asyncWriteRetryBackoffMillis");
+        long retryBackoffMillis = backoff != null ? Long.parseLong(backoff.toString().trim()) : DEFAULT_RETRY_BACKOFF_MILLIS;
+        String handlerClass = conf.getStringProperty("force.asyncWriteHandler");
+        AsyncWriteHandler handler = null;
+        if (handlerClass != null && handlerClass.trim().length() > 0) {
+            try {
+                Class<?> type = clr.classForName(handlerClass.trim());
+                handler = (AsyncWriteHandler) type.getDeclaredConstructor().newInstance();
+            } catch (InvocationTargetException e) {
+                throw new NucleusUserException("Unable to create asynchronous write handler: " + handlerClass, e.getCause());
+            } catch (Exception e) {
+                throw new NucleusUserException("Unable to create asynchronous write handler: " + handlerClass, e);
+            }
+        }
+        return new AsyncWriter(storeManager, handler, queueSize > 0 ? queueSize : DEFAULT_QUEUE_SIZE, lingerMillis,
+                                retryBackoffMillis);
+    }
+    
+    /**
+     * Queues a record to be created, waiting for room in the queue if it is full.
+     * 
+     * @param entity the entity the record was built from, passed to the handler if the write fails
+     * @param record the record to create
+     * @return the pending write, which holds the id of the created record. Cancelling it before it is
+     *         sent drops the write
+     */
+    Future<String> submit(Object entity, SObject record) {
+        return submit(SoapFlush.Operation.CREATE, entity, record, null, null);
+    }
+    
+    /**
+     * Queues a write of a flush, waiting for room in the queue if it is full.
+     * 
+     * @param operation the operation to run
+     * @param entity the entity the record was built from, passed to the handler if the write fails
+     * @param record the record, which holds its type, and its id for updates and deletes
+     * @param version the if-modified-before time of an update of a versioned entity, {@code null} for no check
+     * @param externalIdField the Force.com API name of the external id field of an upsert
+     * @return the pending write, which holds the id of the record. Cancelling it before it is sent drops the write
+     */
+    Future<String> submit(SoapFlush.Operation operation, Object entity, SObject record, Calendar version,
+            String externalIdField) {
+        if (closed) {
+            throw new NucleusUserException("Asynchronous writer has been closed");
+        }
+        Write write = new Write(operation, entity, record, version, externalIdField,
+                                ForceServiceConnector.getThreadLocalConnectorConfig());
+        try {
+            queue.put(write);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NucleusDataStoreException("Interrupted while queuing an asynchronous write", e);
+        }
+        return write;
+    }
+    
+    /**
+     * Sends the queued writes and stops the writer thread, waiting up to the given time.
+     * 
+     * @param timeoutMillis the longest time to wait for the queued writes to be sent
+     */
+    void close(long timeoutMillis) {
+        closed = true;
+        // A full queue is sent without waiting anyway
+        queue.offer(WAKE_UP);
+        try {
+            thread.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            thread.interrupt();
+        }
+        List<Write> dropped = new ArrayList<Write>();
+        queue.drainTo(dropped);
+        dropped.remove(WAKE_UP);
+        if (!dropped.isEmpty()) {
+            LOGGER.error("Asynchronous writer closed, " + dropped.size() + " queued writes were not sent");
+            for (Write write : dropped) {
+                write.failed(new PersistenceException("Asynchronous writer closed before the write was sent"));
+            }
+        }
+    }
+    
+    private void write() {
+        List<Write> batch = new ArrayList<Write>(SoapFlush.MAX_BATCH_SIZE);
+        while (!closed || !queue.isEmpty() || !retries.isEmpty()) {
+            try {
+                long retryWait = takeDueRetries(batch);
+                // A batch waits for more writes from the time its first write is taken
+                long deadline = System.nanoTime() + lingerNanos;
+                while (batch.size() < SoapFlush.MAX_BATCH_SIZE) {
+                    Write write;
+                    if (batch.isEmpty()) {
+                        // Wake up now and then to notice when the writer is closed or a retry is due
+                        write = queue.poll(Math.min(IDLE_WAIT_NANOS, retryWait), TimeUnit.NANOSECONDS);
+                        if (write == WAKE_UP) write = null;
+                        if (write == null && (closed || !retries.isEmpty())) break;
+                        deadline = System.nanoTime() + lingerNanos;
+                    } else {
+                        // Once closed, the batch is sent without waiting for more writes
+                        long left = deadline - System.nanoTime();
+                        write = left > 0 && !closed ? queue.poll(left, TimeUnit.NANOSECONDS) : queue.poll();
+                        if (write == null) break;
+                    }
+                    if (write != null && write != WAKE_UP && !write.isCancelled()) {
+                        batch.add(write);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Closing did not wait for the writer, the writes in hand are failed below
+                for (Write write : batch) {
+                    write.failed(new PersistenceException("Asynchronous writer closed before the write was sent"));
+                }
+                return;
+            }
+            if (!batch.isEmpty()) {
+                send(batch);
+                batch.clear();
+            }
+        }
+    }
+    
+    /**
+     * Moves the retries whose backoff has passed to the batch, all of them once the writer is closed.
+     * 
+     * @return the nanoseconds until the next retry is due, {@code Long.MAX_VALUE} if there is none
+     */
+    private long takeDueRetries(List<Write> batch) {
+        long now = System.nanoTime();
+        long wait = Long.MAX_VALUE;
+        for (Iterator<Write> it = retries.iterator(); it.hasNext() && batch.size() < SoapFlush.MAX_BATCH_SIZE;) {
+            Write write = it.next();
+            long left = write.retryAt - now;
+            if (closed || left <= 0) {
+                batch.add(write);
+                it.remove();
+            } else {
+                wait = Math.min(wait, left);
+            }
+        }
+        return wait;
+    }
+    
+    private void send(List<Write> batch) {
+        // One call per connector config, so that each write goes to the organization it was made for
+        Map<ForceConnectorConfig, List<Write>> groups = new LinkedHashMap<ForceConnectorConfig, List<Write>>();
+        for (Write write : batch) {
+            List<Write> group = groups.get(write.config);
+            if (group == null) {
+                group = new ArrayList<Write>();
+                groups.put(write.config, group);
+            }
+            group.add(write);
+        }
+        for (Map.Entry<ForceConnectorConfig, List<Write>> group : groups.entrySet()) {
+            ForceServiceConnector.setThreadLocalConnectorConfig(group.getKey());
+            try {
+                for (SoapFlush.Operation operation : SEND_ORDER) {
+                    List<Write> writes = new ArrayList<Write>();
+                    Set<String> ids = new HashSet<String>();
+                    for (Write write : group.getValue()) {
+                        if (write.operation != operation) continue;
+                        if (write.record.getId() != null && !ids.add(write.record.getId())) {
+                            // A call cannot write the same record twice, the later write goes with the next batch
+                            write.retryAt = System.nanoTime();
+                            retries.add(write);
+                        } else {
+                            writes.add(write);
+                        }
+                    }
+                    if (!writes.isEmpty()) {
+                        send(operation, writes);
+                    }
+                }
+            } finally {
+                ForceServiceConnector.setThreadLocalConnectorConfig(null);
+            }
+        }
+    }
+    
+    private void send(SoapFlush.Operation operation, List<Write> writes) {
+        SObject[] records = new SObject[writes.size()];
+        Calendar[] versions = new Calendar[writes.size()];
+        Map<String, String> externalIdFields = new HashMap<String, String>();
+        boolean versioned = false;
+        for (int i = 0; i < records.length; i++) {
+            Write write = writes.get(i);
+            records[i] = write.record;
+            versions[i] = write.version;
+            versioned |= write.version != null;
+            if (write.externalIdField != null) {
+                externalIdFields.put(write.record.getType(), write.externalIdField);
+            }
+            write.attempts++;
+        }
+        if (versioned) {
+            // The records without a version are written whatever their last modified time
+            Calendar unversioned = ForcePersistenceHandler.getVersionForUnversioned();
+            for (int i = 0; i < versions.length; i++) {
+                if (versions[i] == null) versions[i] = unversioned;
+            }
+        }
+        try {
+            SaveResult[] results = operation == SoapFlush.Operation.UPSERT
+                    ? soapFlush.upsert(records, externalIdFields, new boolean[records.length], false)
+                    : soapFlush.execute(operation, records, versioned ? versions : null, false);
+            for (int i = 0; i < results.length; i++) {
+                if (results[i].isSuccess()) {
+                    writes.get(i).succeeded(results[i].getId());
+                } else {
+                    failed(writes.get(i), new NucleusDataStoreException(results[i].getErrors()[0].getMessage(),
+                                                                        writes.get(i).entity));
+                }
+            }
+        } catch (RuntimeException e) {
+            NucleusException error = e instanceof NucleusException ? (NucleusException) e
+                                            : new NucleusDataStoreException(e.getMessage(), e);
+            for (Write write : writes) {
+                failed(write, error);
+            }
+        }
+    }
+    
+    private void failed(Write write, NucleusException cause) {
+        PersistenceException error = NucleusJPAHelper.getJPAExceptionForNucleusException(cause);
+        try {
+            // A streamed field was read by the failed attempt and cannot be sent again
+            if (handler != null && !closed && !Base64StreamField.holdsStream(write.record)
+                    && handler.retry(write.entity, write.attempts, error)) {
+                write.retryAt = System.nanoTime() + (retryBackoffNanos << Math.min(write.attempts - 1, MAX_BACKOFF_SHIFT));
+                retries.add(write);
+                return;
+            }
+            if (handler != null) {
+                handler.deadLetter(write.entity, error);
+            } else {
+                LOGGER.error("Asynchronous write failed: " + write.record.getType(), error);
+            }
+        } catch (RuntimeException e) {
+            LOGGER.error("Asynchronous write handler failed", e);
+        }
+        write.failed(error);
+    }
+}
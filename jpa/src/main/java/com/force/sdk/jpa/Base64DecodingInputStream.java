@@ -0,0 +1,132 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.force.sdk.jpa;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Decodes base64 text as it is read. The encoded value of a base64 field is already held as text
+ * in the response, so decoding it on demand avoids a second encoded copy and the fully decoded
+ * byte array for large binary fields.
+ *
+ * @author Fiaz Hossain
+ */
+final class Base64DecodingInputStream extends InputStream {
+
+    private static final byte[] DECODE = new byte[128];
+    
+    static {
+        Arrays.fill(DECODE, (byte) -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            DECODE[alphabet.charAt(i)] = (byte) i;
+        }
+    }
+    
+    private final CharSequence encoded;
+    private int position;
+    // Decoded bytes of the current 4 character group
+    private final byte[] group = new byte[3];
+    private int groupLength;
+    private int groupPosition;
+    
+    Base64DecodingInputStream(CharSequence encoded) {
+        this.encoded = encoded;
+    }
+    
+    @Override
+    public int read() throws IOException {
+        if (groupPosition == groupLength && !nextGroup()) {
+            return -1;
+        }
+        return group[groupPosition++] & 0xff;
+    }
+    
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) return 0;
+        int count = 0;
+        while (count < len) {
+            if (groupPosition == groupLength && !nextGroup()) {
+                break;
+            }
+            int n = Math.min(len - count, groupLength - groupPosition);
+            System.arraycopy(group, groupPosition, b, off + count, n);
+            groupPosition += n;
+            count += n;
+        }
+        return count == 0 ? -1 : count;
+    }
+    
+    @Override
+    public int available() {
+        return groupLength - groupPosition + (encoded.length() - position) / 4 * 3;
+    }
+    
+    /**
+     * Decodes the next group of 4 characters, skipping any whitespace.
+     *
+     * @return false at the end of the encoded text
+     */
+    private boolean nextGroup() throws IOException {
+        int bits = 0;
+        int chars = 0;
+        int padding = 0;
+        while (chars < 4 && position < encoded.length()) {
+            char c = encoded.charAt(position++);
+            if (Character.isWhitespace(c)) continue;
+            if (c == '=') {
+                padding++;
+            } else if (padding > 0 || c >= 128 || DECODE[c] < 0) {
+                throw new IOException("Invalid base64 character at position " + (position - 1));
+            } else {
+                bits |= DECODE[c] << (18 - chars * 6);
+            }
+            chars++;
+        }
+        if (chars == 0) {
+            groupLength = 0;
+            groupPosition = 0;
+            return false;
+        }
+        if (chars < 4 || padding > 2) {
+            throw new IOException("Truncated base64 value");
+        }
+        group[0] = (byte) (bits >> 16);
+        group[1] = (byte) (bits >> 8);
+        group[2] = (byte) bits;
+        groupLength = 3 - padding;
+        groupPosition = 0;
+        return groupLength > 0;
+    }
+}
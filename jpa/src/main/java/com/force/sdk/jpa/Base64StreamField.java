@@ -0,0 +1,124 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.force.sdk.jpa;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+import javax.xml.namespace.QName;
+
+import com.sforce.soap.partner.sobject.SObject;
+import com.sforce.ws.bind.TypeMapper;
+import com.sforce.ws.bind.XmlObject;
+import com.sforce.ws.parser.XmlOutputStream;
+import com.sforce.ws.util.Base64;
+
+/**
+ * SObject field whose value is base64 encoded from an {@link InputStream} while the request is written,
+ * so a large binary value never has to be held in memory as a whole.
+ * <p>
+ * The stream is read once, when the request containing the field is sent, and is closed afterwards. It cannot
+ * be rewound, so a request holding the field is never resent: writing a stream a second time, for instance when
+ * the SOAP connection resends a request after renewing its session, fails with an {@code IOException} instead of
+ * sending an empty value, and asynchronous writes of such records are not retried (see {@link #holdsStream}).
+ *
+ * @author Fiaz Hossain
+ */
+final class Base64StreamField extends XmlObject {
+
+    private static final String XSD_NS = "http://www.w3.org/2001/XMLSchema";
+    // A multiple of 3 so that only the last chunk can need padding
+    static final int CHUNK_SIZE = 3 * 4096;
+    
+    // The streams that have been sent, by identity since a stream is only ever read once
+    private static final Map<InputStream, Boolean> SENT_STREAMS =
+        Collections.synchronizedMap(new WeakHashMap<InputStream, Boolean>());
+    
+    private final InputStream in;
+    
+    Base64StreamField(InputStream in) {
+        this.in = in;
+        setValue(in);
+    }
+    
+    /**
+     * Checks whether a stream has already been sent as the value of a field.
+     * 
+     * @param in the stream
+     * @return {@code true} if the stream has been read by an earlier request
+     */
+    static boolean isSent(InputStream in) {
+        return SENT_STREAMS.containsKey(in);
+    }
+    
+    /**
+     * Checks whether a record holds a streamed field, which makes the request that sends it impossible to resend.
+     * 
+     * @param record the record
+     * @return {@code true} if a field of the record is streamed
+     */
+    static boolean holdsStream(SObject record) {
+        for (Iterator<XmlObject> fields = record.getChildren(); fields.hasNext();) {
+            if (fields.next() instanceof Base64StreamField) return true;
+        }
+        return false;
+    }
+    
+    @Override
+    public void write(QName element, XmlOutputStream out, TypeMapper typeMapper) throws IOException {
+        if (SENT_STREAMS.put(in, Boolean.TRUE) != null) {
+            throw new IOException("The stream of field " + element.getLocalPart() + " has already been sent,"
+                                    + " a request holding a streamed field cannot be resent");
+        }
+        out.writeStartTag(element.getNamespaceURI(), element.getLocalPart());
+        if (typeMapper.writeFieldXsiType) {
+            typeMapper.writeXsiType(out, XSD_NS, "base64Binary");
+        }
+        try {
+            writeEncoded(in, out);
+        } finally {
+            in.close();
+        }
+        out.writeEndTag(element.getNamespaceURI(), element.getLocalPart());
+    }
+    
+    static void writeEncoded(InputStream in, XmlOutputStream out) throws IOException {
+        byte[] buf = new byte[CHUNK_SIZE];
+        while (true) {
+            int len = 0;
+            int n;
+            while (len < buf.length && (n = in.read(buf, len, buf.length - len)) != -1) {
+                len += n;
+            }
+            if (len == 0) break;
+            out.writeText(new String(Base64.encode(len == buf.length ? buf : Arrays.copyOf(buf, len)), "US-ASCII"));
+            if (len < buf.length) break;
+        }
+    }
+}
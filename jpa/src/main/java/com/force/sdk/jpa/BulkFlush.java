@@ -0,0 +1,267 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.force.sdk.jpa;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.util.*;
+
+import org.datanucleus.PersistenceConfiguration;
+import org.datanucleus.exceptions.NucleusUserException;
+
+import com.sforce.async.*;
+import com.sforce.soap.partner.sobject.SObject;
+import com.sforce.ws.bind.CalendarCodec;
+import com.sforce.ws.bind.XmlObject;
+import com.sforce.ws.util.Base64;
+
+/**
+ * 
+ * Sends large sets of queued creates, updates and deletes as Bulk API jobs instead of SOAP calls. Enabled
+ * with the {@code force.bulkFlushThreshold} property: a flush that queued at least that many records for an
+ * operation sends them with the Bulk API.
+ * <p>
+ * There is one job per object type, split into batches of {@code force.bulkBatchSize} records that the server
+ * processes in parallel or one after the other ({@code force.bulkConcurrencyMode}). Inserts are sent level by
+ * level (see {@link FlushOrder}), so children that refer to their parent are only sent once the parent
+ * exists, with the id of the parent in place of the reference. The results come back in the order of the
+ * records, with the generated ids and the errors of the rows that failed. Bulk API jobs are not atomic: the
+ * rows that succeeded stay saved when others fail.
+ *
+ * @author Fiaz Hossain
+ */
+final class BulkFlush {
+
+    static final int MAX_BATCH_SIZE = 10000;
+    
+    private static final CalendarCodec CALENDAR_CODEC = new CalendarCodec();
+    
+    private final int threshold;
+    private final int batchSize;
+    private final ConcurrencyMode concurrencyMode;
+    
+    BulkFlush(int threshold, int batchSize, ConcurrencyMode concurrencyMode) {
+        this.threshold = threshold;
+        this.batchSize = batchSize;
+        this.concurrencyMode = concurrencyMode;
+    }
+    
+    /**
+     * Reads the Bulk API flush properties of a persistence unit.
+     * 
+     * @param conf the persistence unit configuration
+     * @return the bulk flush or {@code null} if it is not enabled
+     */
+    static BulkFlush forConfiguration(PersistenceConfiguration conf) {
+        int threshold = conf.getIntProperty("force.bulkFlushThreshold");
+        if (threshold <= 0) return null;
+        int batchSize = conf.getIntProperty("force.bulkBatchSize");
+        if (batchSize <= 0) {
+            batchSize = MAX_BATCH_SIZE;
+        } else if (batchSize > MAX_BATCH_SIZE) {
+            throw new NucleusUserException("force.bulkBatchSize cannot exceed " + MAX_BATCH_SIZE + ": " + batchSize);
+        }
+        String mode = conf.getStringProperty("force.bulkConcurrencyMode");
+        ConcurrencyMode concurrencyMode = ConcurrencyMode.Parallel;
+        if (mode != null) {
+            if ("serial".equalsIgnoreCase(mode.trim())) {
+                concurrencyMode = ConcurrencyMode.Serial;
+            } else if (!"parallel".equalsIgnoreCase(mode.trim())) {
+                throw new NucleusUserException("force.bulkConcurrencyMode must be Parallel or Serial: " + mode);
+            }
+        }
+        return new BulkFlush(threshold, batchSize, concurrencyMode);
+    }
+    
+    /**
+     * Whether a set of queued records is large enough to be sent with the Bulk API.
+     * 
+     * @param count the number of queued records for one operation
+     * @return {@code true} to use the Bulk API
+     */
+    boolean appliesTo(int count) {
+        return count >= threshold;
+    }
+    
+    int getBatchSize() {
+        return batchSize;
+    }
+    
+    /**
+     * Runs an operation on the records and waits for all of the jobs.
+     * 
+     * @param bulk the Bulk API connection
+     * @param operation insert, update or delete
+     * @param records the records, which hold their type, and their id for updates and deletes
+     * @return the result of each record, in the order of the records
+     * @throws AsyncApiException if a Bulk API call fails
+     * @throws IOException if a streamed binary value cannot be read
+     */
+    Result[] execute(BulkConnection bulk, OperationEnum operation, List<SObject> records)
+        throws AsyncApiException, IOException {
+        // Updates and deletes hold no references by external id, they end up on a single level
+        List<Map<String, List<Integer>>> levels = FlushOrder.groupByLevel(records);
+        Result[] results = new Result[records.size()];
+        for (Map<String, List<Integer>> level : levels) {
+            for (int index : FlushOrder.resolveLevel(level, records)) {
+                results[index] = failure("Not sent, the parent record was not created");
+            }
+            // The jobs of a level are independent, the server runs them at the same time
+            List<JobInfo> jobs = new ArrayList<JobInfo>(level.size());
+            List<Map<String, List<Integer>>> batches = new ArrayList<Map<String, List<Integer>>>(level.size());
+            boolean completed = false;
+            try {
+                for (Map.Entry<String, List<Integer>> group : level.entrySet()) {
+                    JobInfo job = new JobInfo();
+                    job.setObject(group.getKey());
+                    job.setOperation(operation);
+                    job.setContentType(ContentType.XML);
+                    job.setConcurrencyMode(concurrencyMode);
+                    job = bulk.createJob(job);
+                    jobs.add(job);
+                    batches.add(submit(bulk, job, records, group.getValue(),
+                                        operation == OperationEnum.delete || operation == OperationEnum.hardDelete));
+                    bulk.closeJob(job.getId());
+                }
+                for (int i = 0; i < jobs.size(); i++) {
+                    String jobId = jobs.get(i).getId();
+                    for (BatchInfo batch : BulkJobs.awaitBatches(bulk, jobId)) {
+                        List<Integer> indexes = batches.get(i).get(batch.getId());
+                        Result[] batchResults = bulk.getBatchResult(jobId, batch.getId()).getResult();
+                        for (int j = 0; j < batchResults.length && j < indexes.size(); j++) {
+                            results[indexes.get(j)] = batchResults[j];
+                            if (operation == OperationEnum.insert && batchResults[j].isSuccess()) {
+                                // Children on the next levels refer to the record by this id
+                                records.get(indexes.get(j)).setId(batchResults[j].getId());
+                            }
+                        }
+                    }
+                }
+                completed = true;
+            } finally {
+                if (!completed) {
+                    for (JobInfo job : jobs) {
+                        BulkJobs.abort(bulk, job.getId());
+                    }
+                }
+            }
+        }
+        return results;
+    }
+    
+    private static Result failure(String message) {
+        com.sforce.async.Error error = new com.sforce.async.Error();
+        error.setStatusCode(StatusCode.INVALID_CROSS_REFERENCE_KEY);
+        error.setMessage(message);
+        Result result = new Result();
+        result.setErrors(new com.sforce.async.Error[] {error});
+        return result;
+    }
+    
+    /**
+     * Sends the records of one job in batches.
+     * 
+     * @return the indexes of the records of each batch, by batch id
+     */
+    private Map<String, List<Integer>> submit(BulkConnection bulk, JobInfo job, List<SObject> records,
+            List<Integer> indexes, boolean idOnly) throws AsyncApiException, IOException {
+        Map<String, List<Integer>> batches = new HashMap<String, List<Integer>>();
+        for (int start = 0; start < indexes.size(); start += batchSize) {
+            List<Integer> batchIndexes = indexes.subList(start, Math.min(start + batchSize, indexes.size()));
+            com.sforce.async.SObject[] batchRecords = new com.sforce.async.SObject[batchIndexes.size()];
+            for (int i = 0; i < batchRecords.length; i++) {
+                SObject record = records.get(batchIndexes.get(i));
+                if (idOnly) {
+                    batchRecords[i] = new com.sforce.async.SObject();
+                    batchRecords[i].setField("Id", record.getId());
+                } else {
+                    batchRecords[i] = toBulkRecord(record);
+                }
+            }
+            BatchRequest request = bulk.createBatch(job);
+            request.addSObjects(batchRecords);
+            batches.put(request.completeRequest().getId(), batchIndexes);
+        }
+        return batches;
+    }
+    
+    /**
+     * Converts a record built for the SOAP API. References by external id become field references.
+     */
+    static com.sforce.async.SObject toBulkRecord(SObject record) throws IOException {
+        com.sforce.async.SObject bulkRecord = new com.sforce.async.SObject();
+        for (Iterator<XmlObject> children = record.getChildren(); children.hasNext();) {
+            XmlObject child = children.next();
+            String name = child.getName().getLocalPart();
+            if ("type".equals(name)) continue;
+            if ("fieldsToNull".equals(name)) {
+                // Jobs clear a field that is sent without a value
+                bulkRecord.setField((String) child.getValue(), null);
+                continue;
+            }
+            if (child instanceof SObject) {
+                bulkRecord.setFieldReference(name, toBulkRecord((SObject) child));
+            } else {
+                bulkRecord.setField(name, toBulkValue(child.getValue()));
+            }
+        }
+        return bulkRecord;
+    }
+    
+    static String toBulkValue(Object value) throws IOException {
+        if (value == null || value instanceof String) return (String) value;
+        if (value instanceof Calendar) return CALENDAR_CODEC.getValueAsString(value);
+        if (value instanceof Date) {
+            Calendar cal = Calendar.getInstance();
+            cal.setTime((Date) value);
+            return CALENDAR_CODEC.getValueAsString(cal);
+        }
+        if (value instanceof Double || value instanceof Float) {
+            return BigDecimal.valueOf(((Number) value).doubleValue()).toPlainString();
+        }
+        if (value instanceof BigDecimal) return ((BigDecimal) value).toPlainString();
+        if (value instanceof byte[]) return new String(Base64.encode((byte[]) value), "US-ASCII");
+        if (value instanceof InputStream) {
+            InputStream in = (InputStream) value;
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buf = new byte[Base64StreamField.CHUNK_SIZE];
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    out.write(buf, 0, n);
+                }
+                return new String(Base64.encode(out.toByteArray()), "US-ASCII");
+            } finally {
+                in.close();
+            }
+        }
+        return value.toString();
+    }
+}
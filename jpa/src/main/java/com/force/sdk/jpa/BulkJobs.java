@@ -0,0 +1,127 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.force.sdk.jpa;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.datanucleus.exceptions.NucleusDataStoreException;
+
+import com.sforce.async.AsyncApiException;
+import com.sforce.async.BatchInfo;
+import com.sforce.async.BulkConnection;
+
+/**
+ * 
+ * Helpers shared by the queries and writes that run as Bulk API jobs.
+ *
+ * @author Fiaz Hossain
+ */
+public final class BulkJobs {
+
+    private static final long MIN_POLL_MILLIS = 500;
+    private static final long MAX_POLL_MILLIS = 10000;
+    
+    private BulkJobs() {  }
+    
+    /**
+     * Polls the batches of a job, with an increasing delay, until none of them is queued or in progress.
+     * Batches that were not processed, such as the original batch of a PK chunked query, are skipped.
+     * 
+     * @param bulk the Bulk API connection
+     * @param jobId the id of the job
+     * @return the completed batches, in the order they were created
+     * @throws AsyncApiException if the batches cannot be read
+     */
+    public static List<BatchInfo> awaitBatches(BulkConnection bulk, String jobId) throws AsyncApiException {
+        return awaitBatches(bulk, jobId, null);
+    }
+    
+    /**
+     * Polls the batches of a job as {@link #awaitBatches(BulkConnection, String)} does, and lets the caller stop
+     * waiting. The checkpoint runs before each poll and at least every {@value #MIN_POLL_MILLIS} ms of the delay
+     * in between, and stops the wait by throwing. The job is left as it is, the caller aborts it.
+     * 
+     * @param bulk the Bulk API connection
+     * @param jobId the id of the job
+     * @param checkpoint throws if the wait should stop, such as when a query was cancelled or ran out of time,
+     *                   may be {@code null}
+     * @return the completed batches, in the order they were created
+     * @throws AsyncApiException if the batches cannot be read
+     */
+    public static List<BatchInfo> awaitBatches(BulkConnection bulk, String jobId, Runnable checkpoint)
+        throws AsyncApiException {
+        long delay = MIN_POLL_MILLIS;
+        while (true) {
+            try {
+                for (long slept = 0; slept < delay; slept += MIN_POLL_MILLIS) {
+                    if (checkpoint != null) checkpoint.run();
+                    Thread.sleep(Math.min(MIN_POLL_MILLIS, delay - slept));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (checkpoint != null) checkpoint.run();
+                throw new NucleusDataStoreException("Interrupted while waiting for bulk job " + jobId, e);
+            }
+            if (checkpoint != null) checkpoint.run();
+            BatchInfo[] batches = bulk.getBatchInfoList(jobId).getBatchInfo();
+            List<BatchInfo> completed = new ArrayList<BatchInfo>(batches.length);
+            boolean done = batches.length > 0;
+            for (BatchInfo batch : batches) {
+                switch (batch.getState()) {
+                case Completed:
+                    completed.add(batch);
+                    break;
+                case Failed:
+                    throw new NucleusDataStoreException("Bulk batch " + batch.getId() + " failed: " + batch.getStateMessage());
+                case NotProcessed:
+                    break;
+                default:
+                    done = false;
+                }
+            }
+            if (done) return completed;
+            delay = Math.min(delay * 2, MAX_POLL_MILLIS);
+        }
+    }
+    
+    /**
+     * Aborts a job, ignoring jobs that have already finished.
+     * 
+     * @param bulk the Bulk API connection
+     * @param jobId the id of the job
+     */
+    public static void abort(BulkConnection bulk, String jobId) {
+        try {
+            bulk.abortJob(jobId);
+        } catch (AsyncApiException e) {
+            // A job that already finished cannot be aborted
+            ForceEntityManager.LOGGER.debug("Unable to abort bulk job " + jobId + ": " + e.getMessage());
+        }
+    }
+}
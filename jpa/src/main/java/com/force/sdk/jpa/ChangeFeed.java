@@ -0,0 +1,182 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.force.sdk.jpa;
+
+import java.util.*;
+
+import javax.jdo.identity.StringIdentity;
+
+import org.datanucleus.FetchPlan;
+import org.datanucleus.cache.Level2Cache;
+import org.datanucleus.metadata.AbstractClassMetaData;
+import org.datanucleus.store.*;
+
+import com.force.sdk.jpa.ForceTaskExecutor.ConnectionTask;
+import com.force.sdk.jpa.query.ForceQueryUtils;
+import com.force.sdk.jpa.table.TableImpl;
+import com.sforce.soap.partner.*;
+import com.sforce.soap.partner.sobject.SObject;
+import com.sforce.ws.ConnectionException;
+
+/**
+ * 
+ * Reads the records of an entity that changed over a period of time with the {@code getUpdated} and
+ * {@code getDeleted} calls. The updated records are then retrieved by id in batches that run concurrently,
+ * and the changed ids are evicted from the level 2 cache so that it is refreshed with the new values.
+ * <p>
+ * Only the execution context that reads the changes sees them in its level 1 cache. Entities managed by
+ * other execution contexts keep the values they were read with, and entities of deleted records stay
+ * managed, until they are refreshed or the context is cleared.
+ *
+ * @author Fiaz Hossain
+ */
+final class ChangeFeed {
+
+    // Ids retrieved by a single query
+    static final int RETRIEVE_BATCH_SIZE = 200;
+    
+    private ChangeFeed() {  }
+    
+    /**
+     * Reads the changes from the start of the period up to the current server time.
+     * 
+     * @param <T> the entity type
+     * @param ec the execution context that manages the updated entities
+     * @param mconn the managed connection of the execution context
+     * @param acmd the class metadata of the entity
+     * @param since the start of the period
+     * @return the changes in the period
+     * @throws ConnectionException if a call to Force.com fails
+     */
+    @SuppressWarnings("unchecked")
+    static <T> ChangeSet<T> read(ExecutionContext ec, ForceManagedConnection mconn, AbstractClassMetaData acmd,
+            Calendar since) throws ConnectionException {
+        ForceStoreManager storeManager = (ForceStoreManager) ec.getStoreManager();
+        TableImpl table = storeManager.getTable(acmd);
+        String objectName = table.getTableName().getForceApiName();
+        PartnerConnection service = (PartnerConnection) mconn.getConnection();
+        
+        Calendar end = service.getServerTimestamp().getTimestamp();
+        GetUpdatedResult updatedResult = service.getUpdated(objectName, since, end);
+        GetDeletedResult deletedResult = service.getDeleted(objectName, since, end);
+        Calendar covered = updatedResult.getLatestDateCovered();
+        if (deletedResult.getLatestDateCovered() != null && deletedResult.getLatestDateCovered().before(covered)) {
+            covered = deletedResult.getLatestDateCovered();
+        }
+        
+        List<String> updatedIds = updatedResult.getIds() != null ? Arrays.asList(updatedResult.getIds())
+                                                                  : Collections.<String>emptyList();
+        List<String> deletedIds = new ArrayList<String>();
+        if (deletedResult.getDeletedRecords() != null) {
+            for (DeletedRecord record : deletedResult.getDeletedRecords()) {
+                deletedIds.add(record.getId());
+            }
+        }
+        Class<?> entityClass = ec.getClassLoaderResolver().classForName(acmd.getFullClassName());
+        evictFromLevel2Cache(ec, entityClass, updatedIds);
+        evictFromLevel2Cache(ec, entityClass, deletedIds);
+        
+        List<T> updated = new ArrayList<T>(updatedIds.size());
+        int[] fieldsToLoad = acmd.getDFGMemberPositions();
+        for (SObject[] records : retrieve(ec, mconn, table, acmd, fieldsToLoad, updatedIds)) {
+            for (SObject record : records) {
+                updated.add((T) ec.findObject(new StringIdentity(entityClass, record.getId()),
+                        refreshingFieldValues(ForceQueryUtils.getFieldValues2(acmd, fieldsToLoad, mconn, storeManager,
+                                                                                record, null)), entityClass, false));
+            }
+        }
+        return new ChangeSet<T>(updated, deletedIds, covered);
+    }
+    
+    private static void evictFromLevel2Cache(ExecutionContext ec, Class<?> entityClass, List<String> ids) {
+        if (ids.isEmpty() || !ec.getOMFContext().hasLevel2Cache()) return;
+        Level2Cache cache = ec.getOMFContext().getLevel2Cache();
+        for (String id : ids) {
+            cache.evict(new StringIdentity(entityClass, id));
+        }
+    }
+    
+    /**
+     * Queries the records by id, one batch of ids per query. The queries run on the worker threads,
+     * each with a connection of its own.
+     */
+    private static List<SObject[]> retrieve(ExecutionContext ec, ForceManagedConnection mconn, TableImpl table,
+            AbstractClassMetaData acmd, int[] fieldsToLoad, List<String> ids) {
+        if (ids.isEmpty()) return Collections.emptyList();
+        ForceQueryUtils utils = new ForceQueryUtils(ec, mconn, null, null, null, null);
+        List<ConnectionTask<SObject[]>> tasks =
+            new ArrayList<ConnectionTask<SObject[]>>(ids.size() / RETRIEVE_BATCH_SIZE + 1);
+        for (int i = 0; i < ids.size(); i += RETRIEVE_BATCH_SIZE) {
+            final String soqlQuery = utils.buildQueryWithPKs(table, acmd, fieldsToLoad,
+                                        ids.subList(i, Math.min(i + RETRIEVE_BATCH_SIZE, ids.size())), 0);
+            tasks.add(new ConnectionTask<SObject[]>() {
+                @Override
+                public SObject[] call(ForceManagedConnection taskConn) throws ConnectionException {
+                    PartnerConnection service = (PartnerConnection) taskConn.getConnection();
+                    QueryResult qr = service.query(soqlQuery);
+                    List<SObject> records = new ArrayList<SObject>(qr.getSize());
+                    Collections.addAll(records, qr.getRecords());
+                    while (!qr.getDone() && qr.getQueryLocator() != null) {
+                        qr = service.queryMore(qr.getQueryLocator());
+                        Collections.addAll(records, qr.getRecords());
+                    }
+                    return records.toArray(new SObject[records.size()]);
+                }
+            });
+        }
+        return ((ForceStoreManager) ec.getStoreManager()).getTaskExecutor().invokeAll(tasks);
+    }
+    
+    /**
+     * Entities that are already managed get all of the fetched fields replaced, not just the ones
+     * that were not loaded yet. Entities with changes that were not flushed keep them, only their
+     * fields that were not loaded yet are filled in.
+     */
+    private static FieldValues2 refreshingFieldValues(final FieldValues2 values) {
+        return new FieldValues2() {
+            @Override
+            public void fetchFields(ObjectProvider op) {
+                values.fetchFields(op);
+            }
+            
+            @Override
+            public void fetchNonLoadedFields(ObjectProvider op) {
+                if (op.getLifecycleState().isDirty()) {
+                    values.fetchNonLoadedFields(op);
+                } else {
+                    values.fetchFields(op);
+                }
+            }
+            
+            @Override
+            public FetchPlan getFetchPlanForLoading() {
+                return null;
+            }
+        };
+    }
+}
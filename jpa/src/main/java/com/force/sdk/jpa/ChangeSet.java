@@ -0,0 +1,82 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.force.sdk.jpa;
+
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 
+ * Changes made to the records of an entity over a period of time, as returned by
+ * {@link ForceEntityManager#getChangesSince(Class, Calendar)}. Pass {@link #getLatestDateCovered()} as
+ * the start of the next call to continue the feed without missing or repeating changes.
+ *
+ * @param <T> the entity type
+ * @author Fiaz Hossain
+ */
+public final class ChangeSet<T> {
+
+    private final List<T> updated;
+    private final List<String> deletedIds;
+    private final Calendar latestDateCovered;
+    
+    ChangeSet(List<T> updated, List<String> deletedIds, Calendar latestDateCovered) {
+        this.updated = Collections.unmodifiableList(updated);
+        this.deletedIds = Collections.unmodifiableList(deletedIds);
+        this.latestDateCovered = latestDateCovered;
+    }
+    
+    /**
+     * Returns the entities that were created or updated in the period, with their current values.
+     * 
+     * @return the updated entities, managed by the EntityManager that read the changes
+     */
+    public List<T> getUpdated() {
+        return updated;
+    }
+    
+    /**
+     * Returns the ids of the records that were deleted in the period.
+     * 
+     * @return the deleted ids
+     */
+    public List<String> getDeletedIds() {
+        return deletedIds;
+    }
+    
+    /**
+     * Returns the end of the period covered by these changes. Changes are only reported once the
+     * period they fall in is complete, so this can be earlier than the time of the call.
+     * 
+     * @return the watermark to read the next changes from
+     */
+    public Calendar getLatestDateCovered() {
+        return (Calendar) latestDateCovered.clone();
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.force.sdk.jpa;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+import javax.jdo.identity.SingleFieldIdentity;
+import javax.jdo.spi.PersistenceCapable;
+
+import org.datanucleus.StateManager;
+import org.datanucleus.state.ObjectProviderImpl;
+import org.datanucleus.store.ObjectProvider;
+
+/**
+ * 
+ * The field values of a managed entity as they were last read from Force.com, so that an update only sends the
+ * fields whose value really changed. DataNucleus marks a field dirty whenever it is set, even to the value it
+ * already had, and when a detached entity is merged.
+ * <p>
+ * Only immutable values are kept: strings, numbers, booleans, characters and enums, and the id of a related
+ * entity. Other fields are always sent when dirty. A value is forgotten once it has been sent, until the field
+ * is read again. Turned off with the {@code force.skipUnchangedFields} property.
+ *
+ * @author Fiaz Hossain
+ */
+final class FieldSnapshot {
+
+    private static final String KEY = "force.fieldSnapshot";
+    
+    private final Object[] values;
+    
+    private FieldSnapshot(int fieldCount) {
+        this.values = new Object[fieldCount];
+    }
+    
+    /**
+     * Keeps the value read for a field of a managed entity.
+     * 
+     * @param op the object provider of the entity
+     * @param fieldNumber the absolute number of the field
+     * @param value the value read, ignored unless it is immutable or a related entity
+     */
+    static void remember(ObjectProvider op, int fieldNumber, Object value) {
+        Object kept = toComparable(value);
+        FieldSnapshot snapshot = get(op);
+        if (snapshot == null) {
+            if (kept == null) return;
+            snapshot = new FieldSnapshot(op.getClassMetaData().getAllMemberPositions().length);
+            getStateManager(op).setAssociatedValue(KEY, snapshot);
+        }
+        if (fieldNumber < snapshot.values.length) {
+            snapshot.values[fieldNumber] = kept;
+        }
+    }
+    
+    /**
+     * Checks whether a field still has the value it had when it was read.
+     * 
+     * @param op the object provider of the entity
+     * @param fieldNumber the absolute number of the field
+     * @param value the current value of the field, or the id of the related entity for a relationship
+     * @return {@code true} only if the value is known to be unchanged
+     */
+    static boolean isUnchanged(ObjectProvider op, int fieldNumber, Object value) {
+        FieldSnapshot snapshot = get(op);
+        if (snapshot == null || value == null || fieldNumber >= snapshot.values.length) return false;
+        Object kept = snapshot.values[fieldNumber];
+        return kept != null && kept.equals(toComparable(value));
+    }
+    
+    /**
+     * Forgets the value of a field, which is about to be sent.
+     * 
+     * @param op the object provider of the entity
+     * @param fieldNumber the absolute number of the field
+     */
+    static void forget(ObjectProvider op, int fieldNumber) {
+        FieldSnapshot snapshot = get(op);
+        if (snapshot != null && fieldNumber < snapshot.values.length) {
+            snapshot.values[fieldNumber] = null;
+        }
+    }
+    
+    private static FieldSnapshot get(ObjectProvider op) {
+        return (FieldSnapshot) getStateManager(op).getAssociatedValue(KEY);
+    }
+    
+    private static StateManager getStateManager(ObjectProvider op) {
+        // ObjectProvider can store a value under any key but only reads it back by mapping, both go through the StateManager
+        return ((ObjectProviderImpl) op).getStateManager();
+    }
+    
+    private static Object toComparable(Object value) {
+        if (value instanceof String || value instanceof Boolean || value instanceof Character || value instanceof Enum
+                || value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte
+                || value instanceof Double || value instanceof Float || value instanceof BigDecimal
+                || value instanceof BigInteger) {
+            return value;
+        }
+        if (value instanceof PersistenceCapable) {
+            // A related entity is compared by id
+            Object id = ((PersistenceCapable) value).jdoGetObjectId();
+            return id instanceof SingleFieldIdentity ? ((SingleFieldIdentity) id).getKeyAsObject() : null;
+        }
+        return null;
+    }
+}
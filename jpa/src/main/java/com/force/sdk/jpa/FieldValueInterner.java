@@ -0,0 +1,106 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.force.sdk.jpa;
+
+import com.sforce.soap.partner.FieldType;
+
+/**
+ * Bounded cache that makes repeated field values share one String instance. Query results repeat the
+ * same picklist values and lookup ids on every row, and the XML parser creates a new String for each
+ * of them, so sharing them cuts the heap retained by large or cached result sets.
+ * <p>
+ * The cache is a fixed array of slots indexed by hash, a colliding value simply replaces the previous
+ * one. Slots are read and written without locking: Strings are immutable, so a racing thread can at
+ * worst miss a shared instance.
+ *
+ * @author Fiaz Hossain
+ */
+final class FieldValueInterner {
+
+    /**
+     * Default number of slots for each persistence unit.
+     */
+    static final int DEFAULT_SIZE = 4096;
+    // Longer values are unlikely to repeat and are not worth holding on to
+    static final int MAX_VALUE_LENGTH = 255;
+    
+    private final String[] slots;
+    private final int mask;
+    
+    /**
+     * Creates an interner with at least the given number of slots, rounded up to a power of two.
+     */
+    FieldValueInterner(int size) {
+        int capacity = Integer.highestOneBit(Math.max(size, 1));
+        if (capacity < size) capacity <<= 1;
+        this.slots = new String[capacity];
+        this.mask = capacity - 1;
+    }
+    
+    /**
+     * Column types whose values are shared unless a query asks otherwise.
+     */
+    static boolean isInternedByDefault(FieldType type) {
+        return type == FieldType.picklist || type == FieldType.multipicklist || type == FieldType.reference;
+    }
+    
+    /**
+     * Column types whose values are shared when a query asks for every text value to be shared.
+     */
+    static boolean isText(FieldType type) {
+        if (type == null) return false;
+        switch (type) {
+        case string:
+        case picklist:
+        case multipicklist:
+        case combobox:
+        case reference:
+        case email:
+        case phone:
+        case textarea:
+            return true;
+        default:
+            return false;
+        }
+    }
+    
+    /**
+     * Returns an equal String that was seen before, or the value itself.
+     */
+    String intern(String value) {
+        if (value == null || value.length() > MAX_VALUE_LENGTH) return value;
+        int h = value.hashCode();
+        int index = (h ^ (h >>> 16)) & mask;
+        String shared = slots[index];
+        if (shared != null && shared.equals(value)) {
+            return shared;
+        }
+        slots[index] = value;
+        return value;
+    }
+}
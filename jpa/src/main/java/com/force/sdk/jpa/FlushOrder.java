@@ -0,0 +1,233 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.force.sdk.jpa;
+
+import java.util.*;
+
+import com.sforce.soap.partner.sobject.SObject;
+import com.sforce.ws.bind.XmlObject;
+
+/**
+ * 
+ * Orders queued inserts so that a record is only sent once the records it refers to exist.
+ * <p>
+ * Children that are created together with their parent refer to it either by the parent's external id, in a
+ * single all or nothing call, or with a {@link ParentReference} that is replaced by the id of the parent once
+ * it has been created (see {@link ForceInsertFieldManager}). Each record is given a level: records without
+ * such a reference are on level 0, and a record is one level above the highest of the queued records it
+ * refers to. Records on the same level are independent of each other and can be sent in any order, or at
+ * the same time.
+ *
+ * @author Fiaz Hossain
+ */
+final class FlushOrder {
+
+    private FlushOrder() {  }
+    
+    /**
+     * The value of a reference field to a parent that is created in the same flush. It is replaced with the id
+     * of the parent once the level of the parent has been sent, so the parent needs no external id.
+     */
+    static final class ParentReference {
+        
+        private final SObject parent;
+        
+        ParentReference(SObject parent) {
+            this.parent = parent;
+        }
+        
+        SObject getParent() {
+            return parent;
+        }
+    }
+    
+    /**
+     * Checks whether any record refers to a parent that is created in the same flush with a {@link ParentReference}.
+     * 
+     * @param records the queued inserts
+     * @return {@code true} if the records must be sent level by level
+     */
+    static boolean hasParentReferences(SObject[] records) {
+        for (SObject record : records) {
+            for (Iterator<XmlObject> children = record.getChildren(); children.hasNext();) {
+                if (children.next().getValue() instanceof ParentReference) return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Replaces the parent references of a record with the ids of the parents, which are set on them once they
+     * have been created.
+     * 
+     * @param record a queued insert whose parents have been sent
+     * @return {@code false} if a parent has no id, because it failed or was not sent
+     */
+    static boolean resolveParentReferences(SObject record) {
+        for (Iterator<XmlObject> children = record.getChildren(); children.hasNext();) {
+            XmlObject child = children.next();
+            if (child.getValue() instanceof ParentReference) {
+                String id = ((ParentReference) child.getValue()).getParent().getId();
+                if (id == null) return false;
+                child.setValue(id);
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Resolves the parent references of the records of a level, before it is sent. The records whose parent
+     * has no id are taken out of the level.
+     * 
+     * @param level the indexes of the records of a level, by object type, as returned by {@link #groupByLevel}
+     * @param records the queued inserts
+     * @return the indexes of the records taken out of the level
+     */
+    static List<Integer> resolveLevel(Map<String, List<Integer>> level, List<SObject> records) {
+        List<Integer> unresolved = Collections.emptyList();
+        for (Iterator<List<Integer>> groups = level.values().iterator(); groups.hasNext();) {
+            List<Integer> group = groups.next();
+            for (Iterator<Integer> indexes = group.iterator(); indexes.hasNext();) {
+                Integer index = indexes.next();
+                if (!resolveParentReferences(records.get(index))) {
+                    if (unresolved.isEmpty()) {
+                        unresolved = new ArrayList<Integer>();
+                    }
+                    unresolved.add(index);
+                    indexes.remove();
+                }
+            }
+            if (group.isEmpty()) {
+                groups.remove();
+            }
+        }
+        return unresolved;
+    }
+    
+    /**
+     * Computes the level of each record. Parents are queued before their children, so a single pass is enough.
+     * A parent that is not queued, because it was sent with an earlier list, does not raise the level.
+     * 
+     * @param records the queued inserts, in the order they were queued
+     * @return the level of each record
+     */
+    static int[] levels(List<SObject> records) {
+        int[] levels = new int[records.size()];
+        // External id values of the queued records, mapped to the level of the record
+        Map<String, Integer> keyLevels = new HashMap<String, Integer>();
+        // Levels of the queued records, for the parent references
+        Map<SObject, Integer> recordLevels = new IdentityHashMap<SObject, Integer>();
+        for (int i = 0; i < levels.length; i++) {
+            SObject record = records.get(i);
+            int level = 0;
+            List<XmlObject> values = new ArrayList<XmlObject>();
+            for (Iterator<XmlObject> children = record.getChildren(); children.hasNext();) {
+                XmlObject child = children.next();
+                if (child instanceof SObject) {
+                    String key = getReferenceKey((SObject) child);
+                    Integer parentLevel = key != null ? keyLevels.get(key) : null;
+                    if (parentLevel != null) level = Math.max(level, parentLevel + 1);
+                } else if (child.getValue() instanceof ParentReference) {
+                    Integer parentLevel = recordLevels.get(((ParentReference) child.getValue()).getParent());
+                    if (parentLevel != null) level = Math.max(level, parentLevel + 1);
+                } else if (child.getValue() instanceof String) {
+                    values.add(child);
+                }
+            }
+            levels[i] = level;
+            recordLevels.put(record, level);
+            for (XmlObject value : values) {
+                keyLevels.put(key(record.getType(), value.getName().getLocalPart(), (String) value.getValue()), level);
+            }
+        }
+        return levels;
+    }
+    
+    /**
+     * Groups the records by level and, within a level, by object type. The groups of a level can be sent
+     * independently once every group of the levels below has been sent.
+     * 
+     * @param records the queued inserts, in the order they were queued
+     * @return the indexes of the records, by level then by object type, in queue order
+     */
+    static List<Map<String, List<Integer>>> groupByLevel(List<SObject> records) {
+        int[] levels = levels(records);
+        List<Map<String, List<Integer>>> groups = new ArrayList<Map<String, List<Integer>>>();
+        for (int i = 0; i < levels.length; i++) {
+            while (groups.size() <= levels[i]) {
+                groups.add(new LinkedHashMap<String, List<Integer>>());
+            }
+            Map<String, List<Integer>> level = groups.get(levels[i]);
+            List<Integer> group = level.get(records.get(i).getType());
+            if (group == null) {
+                group = new ArrayList<Integer>();
+                level.put(records.get(i).getType(), group);
+            }
+            group.add(i);
+        }
+        return groups;
+    }
+    
+    /**
+     * Splits the groups of a level into chunks that each hold records of a single type.
+     * 
+     * @param level the indexes of the records of a level, by object type
+     * @param size the maximum number of records of a chunk
+     * @return the indexes of the records of each chunk
+     */
+    static List<List<Integer>> chunks(Map<String, List<Integer>> level, int size) {
+        List<List<Integer>> chunks = new ArrayList<List<Integer>>();
+        for (List<Integer> group : level.values()) {
+            for (int start = 0; start < group.size(); start += size) {
+                chunks.add(group.subList(start, Math.min(start + size, group.size())));
+            }
+        }
+        return chunks;
+    }
+    
+    /**
+     * A reference by external id holds the type and a single field with the external id value.
+     */
+    private static String getReferenceKey(SObject reference) {
+        String field = null;
+        Object value = null;
+        for (Iterator<XmlObject> children = reference.getChildren(); children.hasNext();) {
+            XmlObject child = children.next();
+            String name = child.getName().getLocalPart();
+            if ("type".equals(name)) continue;
+            if (field != null) return null;
+            field = name;
+            value = child.getValue();
+        }
+        return field != null && value instanceof String ? key(reference.getType(), field, (String) value) : null;
+    }
+    
+    private static String key(String type, String field, String value) {
+        return type + '\0' + field.toLowerCase() + '\0' + value;
+    }
+}
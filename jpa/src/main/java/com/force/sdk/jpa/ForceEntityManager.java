@@ -27,6 +27,7 @@
 package com.force.sdk.jpa;
 
 import java.util.*;
+import java.util.concurrent.Future;
 
 import javax.jdo.PersistenceManagerFactory;
 import javax.jdo.spi.PersistenceCapable;
@@ -42,8 +43,11 @@ import org.datanucleus.util.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.force.sdk.jpa.query.ForceQueryUtils;
-import com.force.sdk.jpa.query.QueryHints;
+import com.force.sdk.jpa.exception.ForceApiExceptionMap;
+import com.force.sdk.jpa.query.*;
+import com.sforce.soap.partner.fault.ApiFault;
+import com.sforce.soap.partner.sobject.SObject;
+import com.sforce.ws.ConnectionException;
 
 /**
  * 
@@ -180,11 +184,106 @@ public class ForceEntityManager extends EntityManagerImpl {
         }
     }
     
+    /**
+     * Starts executing a JPQL or native SOQL query and returns without waiting for the results, so that
+     * independent queries can run at the same time. Each query runs on the worker threads of the store manager
+     * with a connection of its own (see the {@code force.workerThreads} property).
+     * <p>
+     * The results are managed by this EntityManager. Read them from the thread that owns this EntityManager,
+     * since that is where the returned rows are turned into entities.
+     * 
+     * @param <T> the type of the query results
+     * @param query a query created by this EntityManager, with its parameters and hints already set
+     * @return the pending result list of the query
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Future<List<T>> getResultListAsync(Query query) {
+        assertIsOpen();
+        if (!(query instanceof JPAQuery)) {
+            throw new IllegalArgumentException("Query was not created by a Force.com EntityManager: " + query);
+        }
+        org.datanucleus.store.query.Query internalQuery = ((JPAQuery) query).getInternalQuery();
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("JPA Query async: " + internalQuery);
+        }
+        try {
+            Future<?> results;
+            if (internalQuery instanceof JPQLQuery) {
+                results = ((JPQLQuery) internalQuery).getResultListAsync();
+            } else if (internalQuery instanceof SOQLQuery) {
+                results = ((SOQLQuery) internalQuery).getResultListAsync();
+            } else {
+                throw new IllegalArgumentException("Query language not supported for asynchronous execution: "
+                                                    + internalQuery.getLanguage());
+            }
+            return (Future<List<T>>) results;
+        } catch (NucleusException ne) {
+            throw NucleusJPAHelper.getJPAExceptionForNucleusException(ne);
+        }
+    }
+    
+    /**
+     * Tells whether the upsert of a new entity merged with an external id created its record or updated an
+     * existing one. The outcome is known once the entity has been flushed, until it is detached.
+     * 
+     * @param entity an entity passed to {@code merge()}
+     * @return {@code true} if the record was created, {@code false} if it was updated, {@code null} if the
+     *         entity was not upserted or has not been flushed yet
+     */
+    public Boolean isCreatedByUpsert(Object entity) {
+        assertIsOpen();
+        StateManager sm = om.findStateManager(entity);
+        return sm != null ? (Boolean) sm.getAssociatedValue(ForcePersistenceHandler.UPSERT_CREATED) : null;
+    }
+    
+    /**
+     * Reads the records of an entity that were created, updated or deleted since the given time, so that
+     * local copies can be kept up to date at a cost in proportion to the changes rather than the number
+     * of records. The updated records are retrieved in batches. Entities already managed by this EntityManager
+     * are refreshed with their new values, unless they have changes that were not flushed, and the changed ids
+     * are evicted from the level 2 cache. Entities managed by other EntityManagers are not refreshed, and
+     * entities of deleted records stay managed until they are detached or the EntityManager is cleared.
+     * <p>
+     * Force.com keeps the changes of the last 30 days. Use {@link ChangeSet#getLatestDateCovered()} as the
+     * start of the next call.
+     * 
+     * @param <T> the entity type
+     * @param entityClass the entity class
+     * @param since the start of the period, at least one minute before the current server time
+     * @return the changes since the given time
+     */
+    public <T> ChangeSet<T> getChangesSince(Class<T> entityClass, Calendar since) {
+        assertIsOpen();
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("JPA Changes - entity: " + entityClass.getName() + " since: " + since.getTime());
+        }
+        AbstractClassMetaData acmd = om.getMetaDataManager().getMetaDataForClass(entityClass, om.getClassLoaderResolver());
+        if (acmd == null) {
+            throw new IllegalArgumentException("Class is not an entity: " + entityClass.getName());
+        }
+        ForceStoreManager storeManager = (ForceStoreManager) om.getStoreManager();
+        ForceManagedConnection mconn = (ForceManagedConnection) storeManager.getConnection(om.getExecutionContext());
+        try {
+            return ChangeFeed.read(om.getExecutionContext(), mconn, acmd, since);
+        } catch (ApiFault af) {
+            throw NucleusJPAHelper.getJPAExceptionForNucleusException(
+                    ForceApiExceptionMap.mapToNucleusException(af, true /* isQuery */,
+                                                                storeManager.isEnableOptimisticTransactions()));
+        } catch (ConnectionException x) {
+            throw new PersistenceException(x.getMessage(), x);
+        } catch (NucleusException ne) {
+            throw NucleusJPAHelper.getJPAExceptionForNucleusException(ne);
+        } finally {
+            mconn.release();
+        }
+    }
+    
     @Override
     public void persist(Object entity) {
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug("JPA Persist - entity: " + entity);
         }
+        beforeOperation();
         if (entity instanceof PersistenceCapable) {
             PersistenceCapable pc = (PersistenceCapable) entity;
             if (pc.jdoIsDetached()) {
@@ -222,11 +321,119 @@ public class ForceEntityManager extends EntityManagerImpl {
         super.persist(entity);
     }
     
+    /**
+     * Saves a new entity in the background, for writes that the caller does not need to wait for, such as
+     * audit records. The entity's fields are read right away and its record is queued to the background
+     * writer of the persistence unit, which creates the records of all EntityManagers in batches (see the
+     * {@code force.asyncWrite*} properties). The entity is not managed by this EntityManager and its id is not
+     * set, the returned future holds the id of the created record. Entities that should stay managed are
+     * saved with {@link #commitAsync()} instead.
+     * <p>
+     * The write doesn't take part in any transaction. Failed writes are passed to the
+     * {@link AsyncWriteHandler} of the persistence unit, which can retry them, and the future fails once the
+     * write is given up. If the queue of the writer is full, this method waits for room.
+     * 
+     * @param entity a new entity, whose related entities, if any, have already been saved
+     * @return the pending write, which holds the id of the created record. Cancelling it before the write
+     *         is sent drops the write
+     */
+    public Future<String> persistAsync(Object entity) {
+        assertIsOpen();
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("JPA Persist async - entity: " + entity);
+        }
+        if (!(entity instanceof PersistenceCapable)) {
+            throw new IllegalArgumentException("Object is not an entity: " + entity);
+        }
+        PersistenceCapable pc = (PersistenceCapable) entity;
+        if (pc.jdoIsDetached()) {
+            throw new EntityExistsException("Entity already exists. Use merge to save changes.");
+        }
+        StateManager sm = om.findStateManager(entity);
+        if (sm != null && !(sm instanceof ForceJPAStateManagerImpl)) {
+            throw new IllegalArgumentException("Entity is already managed by this EntityManager: " + entity);
+        }
+        AbstractClassMetaData acmd = om.getMetaDataManager().getMetaDataForClass(entity.getClass(), om.getClassLoaderResolver());
+        if (acmd == null) {
+            throw new IllegalArgumentException("Object is not an entity: " + entity);
+        }
+        ForceStoreManager storeManager = (ForceStoreManager) om.getStoreManager();
+        try {
+            if (!storeManager.managesClass(acmd.getFullClassName())) {
+                storeManager.addClass(acmd.getFullClassName(), om.getClassLoaderResolver());
+            }
+            // The record is read through a state manager of its own, which is dropped again
+            if (sm == null) {
+                sm = new ForceJPAStateManagerImpl(om, acmd);
+                sm.initialiseForHollowPreConstructed(null, pc);
+            } else {
+                om.clearDirty(sm);
+                om.removeStateManager(sm);
+            }
+            SObject record;
+            try {
+                ForceInsertFieldManager fm = new ForceInsertFieldManager(sm.getObjectProvider(), storeManager, null);
+                sm.provideFields(acmd.getAllMemberPositions(), fm);
+                record = fm.getSObject(false);
+            } finally {
+                pc.jdoReplaceStateManager(null);
+            }
+            return storeManager.getAsyncWriter().submit(entity, record);
+        } catch (NucleusException ne) {
+            throw NucleusJPAHelper.getJPAExceptionForNucleusException(ne);
+        }
+    }
+    
+    /**
+     * Commits the active transaction without waiting for its writes, for callers that opted in to asynchronous
+     * commits. The flush reads the records of the new, changed and removed entities on this thread, as a commit
+     * does, and hands them to the background writer of the persistence unit, which sends the writes of all
+     * EntityManagers in batches (see the {@code force.asyncWrite*} properties). The transaction then ends right
+     * away. The writes are not all or nothing, even with {@code force.AllOrNothing}, and each failed write is
+     * passed to the {@link AsyncWriteHandler} of the persistence unit, which can retry it.
+     * <p>
+     * The entities stay managed. The ids of new entities are set once their records have been created, by
+     * this thread: when it reads the returned future, or at the start of its next operation on this
+     * EntityManager. Until then a new entity has no id. If the queue of the writer is full, this method waits
+     * for room.
+     * 
+     * @return the pending writes, which hold the id of the record of each flushed entity. The future fails with
+     *         the error of the first write that was given up, the other writes are not undone
+     * @throws IllegalStateException if no transaction is active
+     * @throws RollbackException if the flush fails, or the transaction is marked for rollback
+     */
+    public Future<Map<Object, String>> commitAsync() {
+        assertIsOpen();
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("JPA Commit async");
+        }
+        EntityTransaction transaction = getTransaction();
+        if (!transaction.isActive()) {
+            throw new IllegalStateException("No transaction is active to commit");
+        }
+        if (transaction.getRollbackOnly()) {
+            // Rolls back and throws the RollbackException of a commit
+            transaction.commit();
+        }
+        beforeOperation();
+        AsyncCommit commit;
+        try {
+            commit = ((ForceObjectManagerImpl) om).flushAsync();
+        } catch (NucleusException ne) {
+            transaction.rollback();
+            throw new RollbackException("Asynchronous commit failed", ForceApiExceptionMap.mapToJPAException(ne));
+        }
+        // Nothing is left to flush, the commit only ends the transaction
+        transaction.commit();
+        return commit;
+    }
+    
     @Override
     public Object merge(Object entity) {
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug("JPA Merge: - entity: " + entity);
         }
+        beforeOperation();
         if (entity instanceof PersistenceCapable) {
             PersistenceCapable pc = (PersistenceCapable) entity;
             if (pc.jdoIsDetached() && pc.jdoGetObjectId() == null) {
@@ -234,12 +441,12 @@ public class ForceEntityManager extends EntityManagerImpl {
             }
             // Read id from entity
             StateManager sm = om.findStateManager(entity);
+            AbstractClassMetaData acmd = om.getMetaDataManager()
+                                                .getMetaDataForClass(entity.getClass(), om.getClassLoaderResolver());
+            Object id = acmd != null ? ForceQueryUtils.getIdFromObject(pc, acmd) : null;
             if (sm != null) {
                 // This path is taken by all merge() calls.
                 // We need to isolate merge() calls that were made to Transient object instead of Detached objects
-                AbstractClassMetaData acmd = om.getMetaDataManager()
-                                                    .getMetaDataForClass(entity.getClass(), om.getClassLoaderResolver());
-                Object id = ForceQueryUtils.getIdFromObject(pc, acmd);
                 if (id != null) {
                     if (sm instanceof ForceJPAStateManagerImpl) {
                             sm.initialiseForDetached(pc, id, sm.getVersion(pc));
@@ -247,6 +454,10 @@ public class ForceEntityManager extends EntityManagerImpl {
                     }
                 }
             }
+            if (id == null && acmd != null && !pc.jdoIsDetached() && om instanceof ForceObjectManagerImpl) {
+                // A new object with an external id is upserted, which updates the record with that external id if any
+                ((ForceObjectManagerImpl) om).markForUpsert(pc, acmd);
+            }
         }
         return super.merge(entity);
     }
@@ -256,6 +467,7 @@ public class ForceEntityManager extends EntityManagerImpl {
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug("JPA Remove - entity: " + entity);
         }
+        beforeOperation();
         
         try {
             super.remove(entity);
@@ -278,6 +490,7 @@ public class ForceEntityManager extends EntityManagerImpl {
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug("JPA Find - entity: " + entityClass.getName() + " id: " + primaryKey + " lock: " + lock);
         }
+        beforeOperation();
         /**
          * TODO - Current DN implementation ignores the properties so we try to to do the best we can now. Once
          * there is full support for properties QueryHints can move elsewhere.
@@ -306,6 +519,7 @@ public class ForceEntityManager extends EntityManagerImpl {
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug("JPA getReference - entity: " + entityClass.getName() + " id: " + primaryKey);
         }
+        beforeOperation();
         return super.getReference(entityClass, primaryKey);
     }
     
@@ -315,6 +529,7 @@ public class ForceEntityManager extends EntityManagerImpl {
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug("JPA Refresh - entity: " + entity + " lock: " + lock);
         }
+        beforeOperation();
         super.refresh(entity, lock, properties);
     }
     
@@ -343,6 +558,7 @@ public class ForceEntityManager extends EntityManagerImpl {
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug("JPA Lock - entity: " + entity + " lock: " + lock);
         }
+        beforeOperation();
         super.lock(entity, lock, properties);
     }
     
@@ -352,9 +568,22 @@ public class ForceEntityManager extends EntityManagerImpl {
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug("JPA Detach - entity: " + entity);
         }
+        beforeOperation();
         super.detach(entity);
     }
     
+    /**
+     * Sends the writes queued in write-behind mode whose longest delay has passed, and sets the ids of the new
+     * entities of asynchronous commits whose writes are done. This runs on the thread that uses this
+     * EntityManager, at the start of its operations.
+     */
+    private void beforeOperation() {
+        if (om instanceof ForceObjectManagerImpl && !om.isClosed()) {
+            ((ForceObjectManagerImpl) om).sendOverdueWrites();
+            ((ForceObjectManagerImpl) om).applyAsyncCommits();
+        }
+    }
+    
     private void assertIsOpen() {
         if (om.isClosed()) {
             throw new IllegalStateException(LOCALISER.msg("EM.IsClosed"));
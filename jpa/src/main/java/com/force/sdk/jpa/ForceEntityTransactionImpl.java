@@ -26,8 +26,17 @@
 
 package com.force.sdk.jpa;
 
+import javax.jdo.JDOException;
+import javax.persistence.PersistenceException;
+import javax.persistence.RollbackException;
+
 import org.datanucleus.ObjectManager;
+import org.datanucleus.exceptions.NucleusException;
 import org.datanucleus.jpa.EntityTransactionImpl;
+import org.datanucleus.jpa.NucleusJPAHelper;
+import org.datanucleus.transaction.NucleusTransactionException;
+
+import com.force.sdk.jpa.exception.ForceApiExceptionMap;
 
 /**
  * 
@@ -38,6 +47,8 @@ import org.datanucleus.jpa.EntityTransactionImpl;
  */
 public class ForceEntityTransactionImpl extends EntityTransactionImpl {
 
+    private final ObjectManager objectManager;
+    
     /**
      * Constructor for a Force.com entity transaction.
      * 
@@ -45,6 +56,32 @@ public class ForceEntityTransactionImpl extends EntityTransactionImpl {
      */
     public ForceEntityTransactionImpl(ObjectManager om) {
         super(om);
+        this.objectManager = om;
+    }
+    
+    /**
+     * Commits the transaction. The conflicts found when flushing versioned updates are reported by a
+     * {@link com.force.sdk.jpa.exception.ForceOptimisticLockException} with one exception per conflicting entity.
+     */
+    @Override
+    public void commit() {
+        if (!isActive() || objectManager.getTransaction().getRollbackOnly()) {
+            super.commit();
+            return;
+        }
+        try {
+            objectManager.getTransaction().commit();
+        } catch (NucleusTransactionException nte) {
+            Throwable cause = nte.getCause();
+            PersistenceException pe = cause instanceof JDOException
+                    ? NucleusJPAHelper.getJPAExceptionForJDOException((JDOException) cause)
+                    : ForceApiExceptionMap.mapToJPAException((NucleusException) cause);
+            throw new RollbackException(LOCALISER.msg("015007"), pe);
+        } catch (NucleusException ne) {
+            throw ForceApiExceptionMap.mapToJPAException(ne);
+        } catch (JDOException je) {
+            throw NucleusJPAHelper.getJPAExceptionForJDOException(je);
+        }
     }
     
     /**
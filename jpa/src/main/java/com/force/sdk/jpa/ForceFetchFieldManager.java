@@ -26,7 +26,9 @@
 
 package com.force.sdk.jpa;
 
+import java.io.InputStream;
 import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
 import java.math.*;
 import java.net.MalformedURLException;
 import java.net.URL;
@@ -48,8 +50,10 @@ import org.datanucleus.store.types.sco.SCOUtils;
 
 import com.force.sdk.jpa.model.PicklistValueEnum;
 import com.force.sdk.jpa.query.ForceQueryUtils;
+import com.force.sdk.jpa.query.QueryHints;
 import com.force.sdk.jpa.table.ColumnImpl;
 import com.force.sdk.jpa.table.TableImpl;
+import com.sforce.soap.partner.FieldType;
 import com.sforce.soap.partner.PartnerConnection;
 import com.sforce.soap.partner.QueryResult;
 import com.sforce.soap.partner.sobject.SObject;
@@ -79,6 +83,9 @@ public class ForceFetchFieldManager extends AbstractFieldManager {
     private final XmlObject sobject;
     private final TableImpl table;
     private final Query query;
+    private final boolean readOnly;
+    private final FieldValueInterner interner;
+    private final boolean internAllText;
     
     /**
      * 
@@ -115,6 +122,9 @@ public class ForceFetchFieldManager extends AbstractFieldManager {
         }
         
         this.query = query;
+        this.readOnly = false;
+        this.interner = getInterner(storeManager, query);
+        this.internAllText = isInternAllText(query);
     }
     
     /**
@@ -136,6 +146,9 @@ public class ForceFetchFieldManager extends AbstractFieldManager {
         this.table = storeManager.getTable(acmd);
         this.sobject = sobject;
         this.query = query;
+        this.readOnly = false;
+        this.interner = getInterner(storeManager, query);
+        this.internAllText = isInternAllText(query);
     }
     
     /**
@@ -159,64 +172,98 @@ public class ForceFetchFieldManager extends AbstractFieldManager {
         this.table = storeManager.getTable(acmd);
         this.sobject = sobject;
         this.query = query;
+        this.readOnly = ForceQueryUtils.isReadOnly(query);
+        this.interner = getInterner(storeManager, query);
+        this.internAllText = isInternAllText(query);
+    }
+    
+    private static FieldValueInterner getInterner(ForceStoreManager storeManager, Query query) {
+        Object hint = query != null ? query.getExtension(QueryHints.INTERN_VALUES) : null;
+        return hint != null && !Boolean.parseBoolean(hint.toString()) ? null : storeManager.getValueInterner();
+    }
+    
+    private static boolean isInternAllText(Query query) {
+        Object hint = query != null ? query.getExtension(QueryHints.INTERN_VALUES) : null;
+        return hint != null && Boolean.parseBoolean(hint.toString());
+    }
+    
+    /**
+     * Shares repeated values of the column, see {@link QueryHints#INTERN_VALUES}.
+     */
+    private String intern(ColumnImpl column, String value) {
+        if (interner == null) return value;
+        FieldType type = column.getType();
+        if (internAllText ? FieldValueInterner.isText(type) : FieldValueInterner.isInternedByDefault(type)) {
+            return interner.intern(value);
+        }
+        return value;
     }
     
     @Override
     public boolean fetchBooleanField(int fieldNumber) {
-        String ret = fetchStringField(fieldNumber);
-        return ret != null ? Boolean.parseBoolean(ret) : false;
+        String ret = readStringField(fieldNumber);
+        if (ret == null) return false;
+        return remember(fieldNumber, Boolean.parseBoolean(ret));
     }
     
     @Override
     public byte fetchByteField(int fieldNumber) {
-        String ret = fetchStringField(fieldNumber);
-        return ret != null ? Byte.parseByte(ret) : 0;
+        String ret = readStringField(fieldNumber);
+        if (ret == null) return 0;
+        return rememberExact(fieldNumber, ret, Byte.parseByte(ret));
     }
     
     @Override
     public char fetchCharField(int fieldNumber) {
-        String ret = fetchStringField(fieldNumber);
-        return ret != null && ret.length() > 0 ? ret.charAt(0) : 0;
+        String ret = readStringField(fieldNumber);
+        if (ret == null || ret.length() == 0) return 0;
+        return ret.length() == 1 ? remember(fieldNumber, ret.charAt(0)) : ret.charAt(0);
     }
     
     @Override
     public double fetchDoubleField(int fieldNumber) {
-        String ret = fetchStringField(fieldNumber);
-        return ret != null ? Double.parseDouble(ret) : 0;
+        String ret = readStringField(fieldNumber);
+        if (ret == null) return 0;
+        return remember(fieldNumber, Double.parseDouble(ret));
     }
     
     @Override
     public float fetchFloatField(int fieldNumber) {
-        String ret = fetchStringField(fieldNumber);
-        return ret != null ? Float.parseFloat(ret) : 0;
+        String ret = readStringField(fieldNumber);
+        if (ret == null) return 0;
+        return rememberExact(fieldNumber, ret, Float.parseFloat(ret));
     }
     
     @Override
     public int fetchIntField(int fieldNumber) {
-        String ret = fetchStringField(fieldNumber);
-        return ret != null ? Double.valueOf(ret).intValue() : 0;
+        String ret = readStringField(fieldNumber);
+        if (ret == null) return 0;
+        return rememberExact(fieldNumber, ret, Double.valueOf(ret).intValue());
     }
     
     @Override
     public long fetchLongField(int fieldNumber) {
-        String ret = fetchStringField(fieldNumber);
+        String ret = readStringField(fieldNumber);
         if (ret == null) return 0L;
+        long value;
         try {
-            return Long.parseLong(ret);
+            value = Long.parseLong(ret);
         } catch (NumberFormatException ne) {
-            return Double.valueOf(ret).longValue();
+            value = Double.valueOf(ret).longValue();
         }
+        return rememberExact(fieldNumber, ret, value);
     }
     
     @Override
     public Object fetchObjectField(int fieldNumber) {
-        return fetchObjectField(acmd.getMetaDataForManagedMemberAtAbsolutePosition(fieldNumber), null);
+        return remember(fieldNumber, fetchObjectField(acmd.getMetaDataForManagedMemberAtAbsolutePosition(fieldNumber), null));
     }
     
     @Override
     public short fetchShortField(int fieldNumber) {
-        String ret = fetchStringField(fieldNumber);
-        return ret != null ? Double.valueOf(ret).shortValue() : 0;
+        String ret = readStringField(fieldNumber);
+        if (ret == null) return 0;
+        return rememberExact(fieldNumber, ret, Double.valueOf(ret).shortValue());
     }
     
     /**
@@ -226,9 +273,30 @@ public class ForceFetchFieldManager extends AbstractFieldManager {
      */
     @Override
     public String fetchStringField(int fieldNumber) {
+        return remember(fieldNumber, readStringField(fieldNumber));
+    }
+    
+    private String readStringField(int fieldNumber) {
         ColumnImpl column = table.getColumnAt(acmd, fieldNumber);
         Object ret = sobject.getField(column.getFieldName());
-        return ret != null ? (String) ret : null;
+        return ret != null ? intern(column, (String) ret) : null;
+    }
+    
+    /**
+     * Keeps the value read for a field of a managed entity, see {@link FieldSnapshot}.
+     */
+    private <T> T remember(int fieldNumber, T value) {
+        if (objectProvider != null && storeManager.isSkipUnchangedFields()) {
+            FieldSnapshot.remember(objectProvider, fieldNumber, value);
+        }
+        return value;
+    }
+    
+    /**
+     * Keeps a number only if it holds the value read exactly, so that a rounded value is never taken as unchanged.
+     */
+    private <T extends Number> T rememberExact(int fieldNumber, String read, T value) {
+        return Double.parseDouble(read) == value.doubleValue() ? remember(fieldNumber, value) : value;
     }
 
     /**
@@ -276,7 +344,10 @@ public class ForceFetchFieldManager extends AbstractFieldManager {
                 try {
                     while (subs.hasNext()) {
                         final XmlObject child = subs.next();
-                        Object value = ec.findObjectUsingAID(new Type(ec.getClassLoaderResolver().
+                        Object value = readOnly
+                            ? new ForceFetchFieldManager(ec, cmd, storeManager, mconn, child, query)
+                                    .fetchReadOnlyObject(fieldsToLoad)
+                            : ec.findObjectUsingAID(new Type(ec.getClassLoaderResolver().
                                 classForName(cmd.getFullClassName())),
                                 ForceQueryUtils.getFieldValues2(cmd, fieldsToLoad, mconn, storeManager, child, query),
                                 query == null ? true : query.getIgnoreCache(), true);
@@ -295,6 +366,9 @@ public class ForceFetchFieldManager extends AbstractFieldManager {
                   Object ret = childrenColl != null ? childrenColl : childrenMap;
                 return SCOUtils.newSCOInstance(objectProvider, ammd, ammd.getType(),
                         (ret != null ? ret.getClass() : null), ret, false, false, false);
+            } else if (readOnly) {
+                // Read only instances hold plain collections that are not tracked
+                return childrenColl != null ? childrenColl : childrenMap;
             } else {
                 // This is for Collection MEMBEROF and Map Key, Value, Entry operation only. The collection will be read only.
                 return childrenColl != null ? Collections.unmodifiableCollection(childrenColl)
@@ -363,6 +437,10 @@ public class ForceFetchFieldManager extends AbstractFieldManager {
                 try {
                     AbstractClassMetaData cmd =
                         ec.getMetaDataManager().getMetaDataForClass(ammd.getTypeName(), ec.getClassLoaderResolver());
+                    if (readOnly) {
+                        return new ForceFetchFieldManager(ec, cmd, storeManager, mconn, (XmlObject) o, query)
+                                    .fetchReadOnlyObject(cmd.getDFGMemberPositions());
+                    }
                     // We use the same sobject but with relationship name prefix
                     return ec.findObjectUsingAID(new Type(ec.getClassLoaderResolver().
                             classForName(cmd.getFullClassName())),
@@ -372,9 +450,17 @@ public class ForceFetchFieldManager extends AbstractFieldManager {
                 } catch (Exception e) {
                     throw new NucleusUserException(e.getMessage(), e);
                 }
+            } else if (readOnly) {
+                // Read only instances cannot lazy load, return an instance with just the ID populated
+                AbstractClassMetaData cmd =
+                    ec.getMetaDataManager().getMetaDataForClass(ammd.getTypeName(), ec.getClassLoaderResolver());
+                Object related = newInstance(cmd);
+                setReadOnlyField(cmd, cmd.getPKMemberPositions()[0], related, intern(column, (String) o));
+                return related;
             } else {
                 // We return just a hollow object with ID that will have its fields fetched later
-                return ec.findObject(new StringIdentity(ammd.getType(), (String) o), false, false, ammd.getTypeName());
+                return ec.findObject(new StringIdentity(ammd.getType(), intern(column, (String) o)),
+                                        false, false, ammd.getTypeName());
 
             }
         case picklist:
@@ -405,6 +491,9 @@ public class ForceFetchFieldManager extends AbstractFieldManager {
                 }
                 return enumObjects;
             } else {
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = intern(column, values[i]);
+                }
                 return values;
             }
         case url:
@@ -430,16 +519,90 @@ public class ForceFetchFieldManager extends AbstractFieldManager {
         case base64:
             if (ammd.getType() == byte[].class || ammd.getType() == Byte[].class) {
                 return Base64.decode(((String) o).getBytes());
+            } else if (ammd.getType() == InputStream.class) {
+                // Decoded as it is read instead of all at once
+                return new Base64DecodingInputStream((String) o);
             } else {
                 throw new NucleusUserException("Bad datatype for base64 encoding: " + ammd.getTypeName());
             }
         default:
         }
-        return o;
+        return o instanceof String ? intern(column, (String) o) : o;
+    }
+    
+    /**
+     * Builds a plain instance of the entity directly from the sObject. The instance has no state manager,
+     * is not added to the persistence context and no lifecycle callbacks are invoked for it. Relationships
+     * are materialized the same way, so fields that were not selected are left unset.
+     *
+     * @param fieldsToLoad the fields selected by the query, in addition to the primary key
+     * @return an untracked instance of the entity
+     */
+    public Object fetchReadOnlyObject(int[] fieldsToLoad) {
+        Object entity = newInstance(acmd);
+        for (int position : acmd.getPKMemberPositions()) {
+            setReadOnlyField(acmd, position, entity, fetchField(position));
+        }
+        if (fieldsToLoad != null) {
+            for (int position : fieldsToLoad) {
+                setReadOnlyField(acmd, position, entity, fetchField(position));
+            }
+        }
+        return entity;
+    }
+    
+    /**
+     * Fetches a field the same way a state manager would, by dispatching on the member type.
+     */
+    private Object fetchField(int position) {
+        Class<?> type = acmd.getMetaDataForManagedMemberAtAbsolutePosition(position).getType();
+        if (type == boolean.class) {
+            return fetchBooleanField(position);
+        } else if (type == byte.class) {
+            return fetchByteField(position);
+        } else if (type == char.class) {
+            return fetchCharField(position);
+        } else if (type == double.class) {
+            return fetchDoubleField(position);
+        } else if (type == float.class) {
+            return fetchFloatField(position);
+        } else if (type == int.class) {
+            return fetchIntField(position);
+        } else if (type == long.class) {
+            return fetchLongField(position);
+        } else if (type == short.class) {
+            return fetchShortField(position);
+        } else if (type == String.class) {
+            return fetchStringField(position);
+        }
+        return fetchObjectField(position);
+    }
+    
+    private Object newInstance(AbstractClassMetaData cmd) {
+        try {
+            Class<?> entityClass = ec.getClassLoaderResolver().classForName(cmd.getFullClassName());
+            Constructor<?> ctor = entityClass.getDeclaredConstructor();
+            ctor.setAccessible(true);
+            return ctor.newInstance();
+        } catch (Exception e) {
+            throw new NucleusUserException("Unable to instantiate " + cmd.getFullClassName() + " for a read only query", e);
+        }
+    }
+    
+    private void setReadOnlyField(AbstractClassMetaData cmd, int position, Object entity, Object value) {
+        if (value == null) return;
+        AbstractMemberMetaData ammd = cmd.getMetaDataForManagedMemberAtAbsolutePosition(position);
+        try {
+            // Set the field on the class that declares it so that inherited fields are found
+            PersistenceUtils.setFieldValue(ec.getClassLoaderResolver().classForName(ammd.getClassName()),
+                                            cmd, position, entity, value);
+        } catch (Exception e) {
+            throw new NucleusUserException("Unable to set " + ammd.getFullFieldName() + " for a read only query", e);
+        }
     }
     
     private Object fetchEmbeddedObject(AbstractMemberMetaData ammd) {
-        if (objectProvider == null) return null;
+        if (objectProvider == null && !readOnly) return null;
         AbstractClassMetaData cmd =
             storeManager.getMetaDataManager().getMetaDataForClass(ammd.getType(), ec.getClassLoaderResolver());
         Object obj = null;
@@ -449,7 +612,9 @@ public class ForceFetchFieldManager extends AbstractFieldManager {
                 PersistenceUtils.setFieldValue(ammd.getType(), cmd, cmd.getAbsolutePositionOfMember(eammd.getName()),
                                                 obj, fetchObjectField(eammd, null));
             }
-            ec.findObjectProviderForEmbedded(obj, objectProvider, ammd);
+            if (objectProvider != null) {
+                ec.findObjectProviderForEmbedded(obj, objectProvider, ammd);
+            }
         } catch (Exception e) {
             throw new NucleusUserException(e.getMessage(), e);
         }
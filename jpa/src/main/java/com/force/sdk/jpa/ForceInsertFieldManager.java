@@ -29,6 +29,7 @@ package com.force.sdk.jpa;
 import com.force.sdk.jpa.model.PicklistValueEnum;
 import com.force.sdk.jpa.table.ColumnImpl;
 import com.force.sdk.jpa.table.TableImpl;
+import com.sforce.soap.partner.FieldType;
 import com.sforce.soap.partner.sobject.SObject;
 import com.sforce.ws.types.Time;
 import org.datanucleus.ObjectManager;
@@ -42,6 +43,7 @@ import org.datanucleus.state.ObjectProviderImpl;
 import org.datanucleus.store.ObjectProvider;
 import org.datanucleus.store.fieldmanager.AbstractFieldManager;
 
+import java.io.InputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.math.BigInteger;
 import java.util.Calendar;
@@ -65,6 +67,7 @@ public class ForceInsertFieldManager extends AbstractFieldManager {
     private final TableImpl table;
     private final int pkIndexToSkip;
     private final int versionIndexToSkip;
+    private final boolean skipUnchanged;
     private boolean dirty;
     
     /**
@@ -93,6 +96,8 @@ public class ForceInsertFieldManager extends AbstractFieldManager {
         // During insert this field index should not be added as it is the "id" field which should be null.
         // During update it has already been added above so it needs to be skipped too to avoid duplicate fields in statement
         pkIndexToSkip = acmd.getPKMemberPositions()[0];
+        // During update a field whose value is the one last read is not sent again
+        skipUnchanged = pkValue != null && storeManager.isSkipUnchangedFields();
         if (acmd.getVersionMetaData() != null && pkValue != null) {
             versionIndexToSkip = acmd.getAbsolutePositionOfMember(acmd.getVersionMetaData().getFieldName());
             Object version = objectProvider.provideField(versionIndexToSkip);
@@ -156,51 +161,47 @@ public class ForceInsertFieldManager extends AbstractFieldManager {
         String actualFieldName = column.getFieldName();
         try {
             switch (column.getType()) {
-            case datetime:
-                if (value instanceof Date) {
-                    ColumnMetaData[] cmds = ammd.getColumnMetaData();
-                    Calendar cal = Calendar.getInstance();
-                    cal.setTime((Date) value);
-                    if (cmds != null && cmds.length > 0 && "TIME".equals(cmds[0].getJdbcType())) {
-                        actualValue = new Time(cal);
-                    } else {
-                        actualValue = cal;
-                    }
-                } else if (value instanceof Time) {
-                    actualValue = value;
-                }
-                break;
-            case currency:
-                actualValue = value.toString();
-                break;
             case reference:
                 AbstractClassMetaData acmd =
                     storeManager.getMetaDataManager().getMetaDataForClass(ammd.getType(),
                                                         objectProvider.getExecutionContext().getClassLoaderResolver());
                 if (acmd != null) {
                     actualValue = PersistenceUtils.getMemberValue(acmd, acmd.getPKMemberPositions()[0], value);
+                    ObjectManager om = ((ObjectProviderImpl) objectProvider).getStateManager().getObjectManager();
+                    ForceObjectManagerImpl fom = (ForceObjectManagerImpl) om;
+                    if (actualValue == null && !fom.isQueuingWrites() && fom.isQueuedForCreate(value)) {
+                        // A parent queued for upsert is sent before a child that is saved right away.
+                        fom.flushQueuedWrites();
+                        actualValue = PersistenceUtils.getMemberValue(acmd, acmd.getPKMemberPositions()[0], value);
+                    }
                     if (actualValue == null) {
-                        ObjectManager om = ((ObjectProviderImpl) objectProvider).getStateManager().getObjectManager();
-                        if (((ForceObjectManagerImpl) om).isInAllOrNothingMode()) {
+                        if (fom.isQueuingWrites()) {
                             /**
-                             * This is instance of AllOrNothing transaction
-                             * Since the parent object has not been saved to the db yet
-                             * we do not have an id yet so we link objects by extId
+                             * This is instance of AllOrNothing transaction, Bulk API flush or write-behind
+                             * Since the parent object has not been saved to the db yet we do not have an id yet
                              */
-                            SObject parentRef = new SObject();
                             TableImpl parent = storeManager.getTable(acmd);
-                            if (parent.getExternalIdColumn() == null) {
+                            SObject parentSObject = fom.getParentSObject(value);
+                            if (fom.isInAllOrNothingMode() && parent.getExternalIdColumn() != null) {
+                                // A single all or nothing call links the objects by extId
+                                SObject parentRef = new SObject();
+                                parentRef.setType(parent.getTableName().getForceApiName());
+                                parentRef.setField(parent.getExternalIdColumn().getFieldName(),
+                                                    parentSObject.getField(parent.getExternalIdColumn().getFieldName()));
+                                actualValue = parentRef;
+                                actualFieldName = column.getForceApiRelationshipName();
+                            } else if (fom.isInAllOrNothingMode() && !storeManager.getOMFContext().getPersistenceConfiguration()
+                                            .getBooleanProperty("force.allOrNothingCompensation")) {
+                                // Without an extId the child goes in a later call, which only compensation can undo
                                 throw new NucleusUserException("EntityManager in persistence.xml has 'force.AllOrNothing'"
-                                                               + " set to true. In this mode all top parent Entities must"
-                                                               + " have an externalId field. Offending entity: "
-                                                               + parent.getTableName().getName());
+                                                               + " set to true. In this mode a parent created together with its"
+                                                               + " children must have an externalId field, unless"
+                                                               + " 'force.allOrNothingCompensation' is set to true."
+                                                               + " Offending entity: " + parent.getTableName().getName());
+                            } else {
+                                // The parent is sent on a level below and its id replaces the reference
+                                actualValue = new FlushOrder.ParentReference(parentSObject);
                             }
-                            parentRef.setType(parent.getTableName().getForceApiName());
-                            SObject parentSObject = ((ForceObjectManagerImpl) om).getParentSObject(value);
-                            parentRef.setField(parent.getExternalIdColumn().getFieldName(),
-                                                parentSObject.getField(parent.getExternalIdColumn().getFieldName()));
-                            actualValue = parentRef;
-                            actualFieldName = column.getForceApiRelationshipName();
                         } else {
                             throw new NucleusUserException("Child entity cannot be saved before parent entity.");
                         }
@@ -214,75 +215,126 @@ public class ForceInsertFieldManager extends AbstractFieldManager {
                     }
                 }
                 break;
-            case multipicklist:
-                if (value.getClass().isArray()) {
-                    if (ammd.getType().getComponentType().isEnum()) {
-                        Enum<?>[] enums = (Enum<?>[]) value;
-                        boolean isOrdinal = PersistenceUtils.isOrdinalEnum(ammd);
-                        boolean isPicklistValue = PicklistValueEnum[].class.isAssignableFrom(enums.getClass());
-                        
-                        StringBuilder sb = new StringBuilder(enums.length * 20);
-                        for (Enum<?> e : enums) {
-                            if (sb.length() > 0) sb.append(";");
-                            if (isOrdinal) {
-                                sb.append(e.ordinal());
-                            } else if (isPicklistValue) {
-                                sb.append(((PicklistValueEnum) e).value());
-                            } else {
-                                sb.append(e.name());
-                            }
-                        }
-                        actualValue = sb.toString();
-                    } else {
-                        // else treat it like a non-strict picklist value
-                        String[] values = (String[]) value;
-                        StringBuilder sb = new StringBuilder(values.length * 20);
-                        for (String v : values) {
-                            if (sb.length() > 0) sb.append(";");
-                            sb.append(v);
-                        }
-                        actualValue = sb.toString();
-                    }
-                    break;
-                }
-                // else treat it like a single picklist value
-            case picklist:
-                if (value.getClass().isEnum()) {
-                    Enum e = (Enum) value;
-                    if (PersistenceUtils.isOrdinalEnum(ammd)) {
-                        actualValue = "" + e.ordinal();
-                    } else if (e instanceof PicklistValueEnum) {
-                        actualValue = ((PicklistValueEnum) e).value();
-                    } else {
-                        actualValue = e.name();
-                    }
-                }
-                break;
-            case url:
-                actualValue = value.toString();
-                break;
-            case base64:
-                if (ammd.getType() == byte[].class || ammd.getType() == Byte[].class) {
-                    /**
-                     * Odd that I did not have to encode this, yet when reading I have to decode it.
-                     */
-                    //actualValue = Base64.encode((byte[]) value);
-                    actualValue = value;
-                } else {
-                    throw new NucleusUserException("Bad datatype for base64 encoding: " + ammd.getTypeName());
-                }
-                break;
             default:
+                actualValue = toFieldValue(ammd, column, value);
             }
         } catch (InvocationTargetException x) {
             throw new NucleusException(x.getMessage(), x);
         } catch (IllegalAccessException x) {
             throw new NucleusException(x.getMessage(), x);
         }
+        if (skipUnchanged) {
+            // References are compared by the id of the related entity
+            Object current = column.getType() == FieldType.reference ? actualValue : value;
+            if (FieldSnapshot.isUnchanged(objectProvider, fieldNumber, current)) {
+                // A versioned entity is still updated, with its id only, so that its version is checked
+                if (versionIndexToSkip >= 0) dirty = true;
+                return;
+            }
+            FieldSnapshot.forget(objectProvider, fieldNumber);
+        }
         sobject.addField(actualFieldName, actualValue);
         dirty = true;
     }
     
+    /**
+     * Converts a field value to what the API expects for the field's type. References are not handled here.
+     * 
+     * @param ammd the metadata of the field
+     * @param column the column of the field
+     * @param value the non-null value of the field
+     * @return the value to send
+     */
+    static Object toFieldValue(AbstractMemberMetaData ammd, ColumnImpl column, Object value) {
+        Object actualValue = value;
+        switch (column.getType()) {
+        case datetime:
+            if (value instanceof Date) {
+                ColumnMetaData[] cmds = ammd.getColumnMetaData();
+                Calendar cal = Calendar.getInstance();
+                cal.setTime((Date) value);
+                if (cmds != null && cmds.length > 0 && "TIME".equals(cmds[0].getJdbcType())) {
+                    actualValue = new Time(cal);
+                } else {
+                    actualValue = cal;
+                }
+            } else if (value instanceof Time) {
+                actualValue = value;
+            }
+            break;
+        case currency:
+            actualValue = value.toString();
+            break;
+        case multipicklist:
+            if (value.getClass().isArray()) {
+                if (ammd.getType().getComponentType().isEnum()) {
+                    Enum<?>[] enums = (Enum<?>[]) value;
+                    boolean isOrdinal = PersistenceUtils.isOrdinalEnum(ammd);
+                    boolean isPicklistValue = PicklistValueEnum[].class.isAssignableFrom(enums.getClass());
+                    
+                    StringBuilder sb = new StringBuilder(enums.length * 20);
+                    for (Enum<?> e : enums) {
+                        if (sb.length() > 0) sb.append(";");
+                        if (isOrdinal) {
+                            sb.append(e.ordinal());
+                        } else if (isPicklistValue) {
+                            sb.append(((PicklistValueEnum) e).value());
+                        } else {
+                            sb.append(e.name());
+                        }
+                    }
+                    actualValue = sb.toString();
+                } else {
+                    // else treat it like a non-strict picklist value
+                    String[] values = (String[]) value;
+                    StringBuilder sb = new StringBuilder(values.length * 20);
+                    for (String v : values) {
+                        if (sb.length() > 0) sb.append(";");
+                        sb.append(v);
+                    }
+                    actualValue = sb.toString();
+                }
+                break;
+            }
+            // else treat it like a single picklist value
+        case picklist:
+            if (value.getClass().isEnum()) {
+                Enum e = (Enum) value;
+                if (PersistenceUtils.isOrdinalEnum(ammd)) {
+                    actualValue = "" + e.ordinal();
+                } else if (e instanceof PicklistValueEnum) {
+                    actualValue = ((PicklistValueEnum) e).value();
+                } else {
+                    actualValue = e.name();
+                }
+            }
+            break;
+        case url:
+            actualValue = value.toString();
+            break;
+        case base64:
+            if (ammd.getType() == byte[].class || ammd.getType() == Byte[].class) {
+                /**
+                 * Odd that I did not have to encode this, yet when reading I have to decode it.
+                 */
+                //actualValue = Base64.encode((byte[]) value);
+                actualValue = value;
+            } else if (value instanceof InputStream) {
+                if (Base64StreamField.isSent((InputStream) value)) {
+                    throw new NucleusUserException("The stream of field " + ammd.getFullFieldName()
+                                                    + " has already been sent and cannot be read again");
+                }
+                // Encoded while the request is written instead of all at once
+                actualValue = new Base64StreamField((InputStream) value);
+            } else {
+                throw new NucleusUserException("Bad datatype for base64 encoding: " + ammd.getTypeName());
+            }
+            break;
+        default:
+        }
+        return actualValue;
+    }
+    
     private void storeEmbeddedFields(AbstractMemberMetaData ammd, Object value) {
         AbstractClassMetaData cmd = objectProvider.getClassMetaData();
         for (AbstractMemberMetaData eammd : ammd.getEmbeddedMetaData().getMemberMetaData()) {
@@ -26,39 +26,62 @@
 
 package com.force.sdk.jpa;
 
-import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.IdentityHashMap;
-import java.util.LinkedHashMap;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
 
+import org.datanucleus.ExecutionContextImpl;
 import org.datanucleus.ObjectManagerFactoryImpl;
 import org.datanucleus.ObjectManagerImpl;
 import org.datanucleus.StateManager;
 import org.datanucleus.exceptions.NucleusDataStoreException;
 import org.datanucleus.exceptions.NucleusObjectNotFoundException;
 import org.datanucleus.exceptions.NucleusOptimisticException;
+import org.datanucleus.metadata.AbstractClassMetaData;
 import org.datanucleus.state.FetchPlanState;
+import org.datanucleus.store.ExecutionContext;
 import org.datanucleus.store.ObjectProvider;
 
+import com.force.sdk.jpa.table.ColumnImpl;
+import com.force.sdk.jpa.table.TableImpl;
 import com.sforce.soap.partner.sobject.SObject;
 
 /**
  * 
  * Object manager for the objects being created, updated, or deleted.
- * Special handling for all-or-nothing operations.
+ * Special handling for all-or-nothing operations, for flushes sent with the Bulk API and for write-behind mode,
+ * which queues creates and updates until a flush, until enough of them are queued or until the entity manager is
+ * used again after the first of them has waited {@code force.writeBehindMaxDelayMillis}. Queued writes are only
+ * ever sent from the thread that uses the entity manager. An asynchronous commit hands the writes of its flush to the
+ * {@link AsyncWriter} instead of sending them. New objects merged with an external id are queued during
+ * a flush and upserted together at its end.
  *
  * @author Fiaz Hossain
  */
 public class ForceObjectManagerImpl extends ObjectManagerImpl {
 
+    static final long DEFAULT_WRITE_BEHIND_MAX_DELAY_MILLIS = 1000;
+    
     private final boolean allOrNothingEnabled;
-    private boolean inAllOrNothingMode;
+    private final BulkFlush bulkFlush;
+    private final int writeBehindSize;
+    private final long writeBehindMaxDelayMillis;
+    // System.nanoTime() when the first of the writes queued in write-behind mode was queued
+    private long writeBehindQueuedAt;
+    private boolean queuingWrites;
+    private boolean flushing;
+    private Set<Object> upsertCandidates;
     private LinkedHashMap<ObjectProvider, SObject> createObjectList;
+    private LinkedHashMap<ObjectProvider, SObject> upsertObjectList;
     private IdentityHashMap<Object, SObject> pcToSObject;
-    private List<SObject> updateObjectList;
-    private List<Calendar> versionList;
+    private LinkedHashMap<ObjectProvider, SObject> updateObjectList;
+    private Set<String> updateIds;
     private List<String> deleteObjectList;
+    private List<String> deleteTypeList;
+    private List<Object> deleteEntityList;
+    // The asynchronous commit whose flush is running
+    private AsyncCommit asyncCommit;
+    // The asynchronous commits whose new objects have not been given their ids yet
+    private List<AsyncCommit> asyncCommits;
     
     /**
      * Creates an object manager with datastore credentials.
@@ -71,15 +94,73 @@ public class ForceObjectManagerImpl extends ObjectManagerImpl {
     public ForceObjectManagerImpl(ObjectManagerFactoryImpl omf, Object owner, String userName, String password) {
         super(omf, owner, userName, password);
         this.allOrNothingEnabled = omf.getOMFContext().getPersistenceConfiguration().getBooleanProperty("force.AllOrNothing");
+        this.bulkFlush = ((ForceStoreManager) getStoreManager()).getBulkFlush();
+        this.writeBehindSize = omf.getOMFContext().getPersistenceConfiguration().getIntProperty("force.writeBehindSize");
+        Object maxDelay = omf.getOMFContext().getPersistenceConfiguration().getProperty("force.writeBehindMaxDelayMillis");
+        this.writeBehindMaxDelayMillis =
+            maxDelay != null ? Long.parseLong(maxDelay.toString().trim()) : DEFAULT_WRITE_BEHIND_MAX_DELAY_MILLIS;
     }
     
     /**
      * Checks whether an active transaction is currently flushing data to the datastore in all or nothing mode.
      * 
-     * @return {@code true} if all or nothing mode is enabled and we are currently flushing data in this mode
+     * @return {@code true} if all or nothing mode is enabled and we are currently flushing data in this mode.
+     *         The flush of an asynchronous commit is never all or nothing
      */
     public boolean isInAllOrNothingMode() {
-        return allOrNothingEnabled && this.inAllOrNothingMode;
+        return allOrNothingEnabled && this.queuingWrites && asyncCommit == null;
+    }
+    
+    /**
+     * Checks whether creates and updates are currently queued to be sent together later on. This is the case
+     * during an all or nothing flush, during any flush when the Bulk API flush mode is enabled, and at any time
+     * in write-behind mode.
+     * 
+     * @return {@code true} if creates and updates are queued instead of being sent one at a time
+     */
+    public boolean isQueuingWrites() {
+        return this.queuingWrites || writeBehindSize > 0;
+    }
+    
+    /**
+     * Checks whether deletes are currently queued to be sent at the end of a flush.
+     * 
+     * @return {@code true} during an all or nothing or Bulk API flush
+     */
+    public boolean isQueuingDeletes() {
+        return this.queuingWrites;
+    }
+    
+    /**
+     * Checks whether creates and updates are queued in write-behind mode outside of a flush, where
+     * they can be sent early whenever needed.
+     * 
+     * @return {@code true} if queued writes may be sent now
+     */
+    public boolean isWritingBehind() {
+        return writeBehindSize > 0 && !this.queuingWrites;
+    }
+    
+    /**
+     * Checks whether upserts are currently queued to be sent together later on. This is the case during any
+     * flush, and whenever creates and updates are queued.
+     * 
+     * @return {@code true} if upserts are queued instead of being sent one at a time
+     */
+    public boolean isQueuingUpserts() {
+        return this.flushing || isQueuingWrites();
+    }
+    
+    /**
+     * Checks whether updates of versioned objects are currently queued to be sent together later on. With
+     * optimistic transactions this is the case during any flush, so that all their versions are checked in
+     * one call, and whenever creates and updates are queued.
+     * 
+     * @return {@code true} if updates of versioned objects are queued instead of being sent one at a time
+     */
+    public boolean isQueuingVersionedUpdates() {
+        return this.flushing && ((ForceStoreManager) getStoreManager()).isEnableOptimisticTransactions()
+                || isQueuingWrites();
     }
     
     /**
@@ -98,36 +179,194 @@ public class ForceObjectManagerImpl extends ObjectManagerImpl {
      */
     @Override
     public synchronized void flushInternal(boolean flushToDatastore) {
-        if (flushToDatastore && allOrNothingEnabled) {
-            inAllOrNothingMode = true;
+        if (flushToDatastore && (allOrNothingEnabled || bulkFlush != null || writeBehindSize > 0 || asyncCommit != null)) {
+            queuingWrites = true;
+            flushing = true;
             try {
                 super.flushInternal(flushToDatastore);
-                if (createObjectList != null) {
-                    ((ForcePersistenceHandler) getStoreManager().getPersistenceHandler()).createObjects(createObjectList.values(),
-                            createObjectList.keySet(), getExecutionContext());
-                }
-                if (updateObjectList != null) {
-                    ((ForcePersistenceHandler) getStoreManager().getPersistenceHandler())
-                        .updateObjects(updateObjectList.toArray(new SObject[updateObjectList.size()]),
-                            versionList.toArray(new Calendar[versionList.size()]), getExecutionContext());
-                }
-                if (deleteObjectList != null) {
-                    ((ForcePersistenceHandler) getStoreManager().getPersistenceHandler())
-                        .deleteObjects(deleteObjectList.toArray(new String[deleteObjectList.size()]), getExecutionContext());
+                if (asyncCommit != null) {
+                    submitQueuedWrites();
+                } else {
+                    sendQueuedWrites();
                 }
             } catch (NucleusOptimisticException noe) {
+                if (noe.getNestedExceptions() != null) {
+                    // Chunked flushes report each failed object as a nested exception
+                    throw new NucleusOptimisticException(LOCALISER.msg("010031"), noe.getNestedExceptions());
+                }
                 throw new NucleusOptimisticException(LOCALISER.msg("010031"), noe.getFailedObject());
             } finally {
-                inAllOrNothingMode = false;
-                createObjectList = null;
-                updateObjectList = null;
-                versionList = null;
-                deleteObjectList = null;
+                queuingWrites = false;
+                flushing = false;
+                clearQueuedWrites();
+            }
+        } else if (flushToDatastore) {
+            flushing = true;
+            try {
+                super.flushInternal(flushToDatastore);
+                flushQueuedWrites();
+            } finally {
+                flushing = false;
+                clearQueuedWrites();
             }
         } else {
             super.flushInternal(flushToDatastore);
         }
     }
+    
+    /**
+     * Sends the creates, updates and upserts queued in write-behind mode, or the upserts queued during a flush
+     * that sends everything else one at a time. Generated ids are set on the new objects before this method
+     * returns. It has no effect during a flush that queues all writes, which sends them itself.
+     */
+    public synchronized void flushQueuedWrites() {
+        if (queuingWrites || createObjectList == null && updateObjectList == null && upsertObjectList == null) return;
+        try {
+            sendQueuedWrites();
+        } finally {
+            clearQueuedWrites();
+        }
+    }
+    
+    /**
+     * Sends the creates and updates queued in write-behind mode for the object manager of an execution context.
+     * 
+     * @param ec the execution context
+     */
+    public static void flushQueuedWrites(ExecutionContext ec) {
+        if (ec instanceof ExecutionContextImpl
+                && ((ExecutionContextImpl) ec).getObjectManager() instanceof ForceObjectManagerImpl) {
+            ((ForceObjectManagerImpl) ((ExecutionContextImpl) ec).getObjectManager()).flushQueuedWrites();
+        }
+    }
+    
+    private void sendQueuedWrites() {
+        ForcePersistenceHandler handler = (ForcePersistenceHandler) getStoreManager().getPersistenceHandler();
+        // Upserted objects may be the parents of queued creates, which refer to them by external id
+        if (upsertObjectList != null) {
+            handler.upsertObjects(upsertObjectList.values(), upsertObjectList.keySet(), allOrNothingEnabled,
+                    getExecutionContext());
+        }
+        if (createObjectList != null) {
+            handler.createObjects(createObjectList.values(), createObjectList.keySet(), allOrNothingEnabled,
+                    getExecutionContext());
+        }
+        if (updateObjectList != null) {
+            handler.updateObjects(updateObjectList.values(), updateObjectList.keySet(), allOrNothingEnabled,
+                    getExecutionContext());
+        }
+        if (deleteObjectList != null) {
+            handler.deleteObjects(deleteObjectList.toArray(new String[deleteObjectList.size()]),
+                    deleteTypeList.toArray(new String[deleteTypeList.size()]), allOrNothingEnabled, getExecutionContext());
+        }
+    }
+    
+    /**
+     * Flushes the active transaction for an asynchronous commit. The records are read from the objects on this
+     * thread, as in any flush, and handed to the {@link AsyncWriter} of the persistence unit instead of being sent.
+     * The ids of the new objects are set once their writes are done, see {@link #applyAsyncCommits()}.
+     * 
+     * @return the writes of the flush
+     */
+    synchronized AsyncCommit flushAsync() {
+        AsyncCommit commit = new AsyncCommit(this);
+        asyncCommit = commit;
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            // Writes handed to the writer before the failure are dropped if they have not been sent yet
+            commit.cancel(false);
+            throw e;
+        } finally {
+            asyncCommit = null;
+        }
+        if (asyncCommits == null) {
+            asyncCommits = new ArrayList<AsyncCommit>();
+        }
+        asyncCommits.add(commit);
+        return commit;
+    }
+    
+    /**
+     * Sets the ids of the new objects of the asynchronous commits whose writes are done. The entity manager
+     * calls this at the start of its operations, on the thread that uses it.
+     */
+    public synchronized void applyAsyncCommits() {
+        if (asyncCommits == null) return;
+        for (Iterator<AsyncCommit> it = asyncCommits.iterator(); it.hasNext();) {
+            if (it.next().applyIds()) it.remove();
+        }
+    }
+    
+    /**
+     * Sets the ids of the new objects of an asynchronous commit whose writes are done.
+     * 
+     * @param commit the asynchronous commit
+     */
+    synchronized void applyAsyncCommit(AsyncCommit commit) {
+        if (commit.applyIds() && asyncCommits != null) {
+            asyncCommits.remove(commit);
+        }
+    }
+    
+    private void submitQueuedWrites() {
+        ForceStoreManager storeManager = (ForceStoreManager) getStoreManager();
+        AsyncWriter writer = storeManager.getAsyncWriter();
+        // Queued in the order a flush sends them, upserted parents first and parents before their children
+        if (upsertObjectList != null) {
+            for (Map.Entry<ObjectProvider, SObject> upsert : upsertObjectList.entrySet()) {
+                ObjectProvider op = upsert.getKey();
+                String externalIdField = storeManager.getTable(op.getClassMetaData()).getExternalIdColumn().getFieldName();
+                asyncCommit.add(op.getObject(), op, writer.submit(SoapFlush.Operation.UPSERT, op.getObject(),
+                        upsert.getValue(), null, externalIdField));
+            }
+        }
+        if (createObjectList != null) {
+            for (Map.Entry<ObjectProvider, SObject> create : createObjectList.entrySet()) {
+                ObjectProvider op = create.getKey();
+                asyncCommit.add(op.getObject(), op, writer.submit(SoapFlush.Operation.CREATE, op.getObject(),
+                        create.getValue(), null, null));
+            }
+        }
+        if (updateObjectList != null) {
+            for (Map.Entry<ObjectProvider, SObject> update : updateObjectList.entrySet()) {
+                ObjectProvider op = update.getKey();
+                Calendar version = storeManager.isEnableOptimisticTransactions() ? (Calendar) op.getVersion() : null;
+                asyncCommit.add(op.getObject(), null, writer.submit(SoapFlush.Operation.UPDATE, op.getObject(),
+                        update.getValue(), version, null));
+            }
+        }
+        if (deleteObjectList != null) {
+            for (int i = 0; i < deleteObjectList.size(); i++) {
+                SObject record = new SObject();
+                record.setType(deleteTypeList.get(i));
+                record.setId(deleteObjectList.get(i));
+                asyncCommit.add(deleteEntityList.get(i), null, writer.submit(SoapFlush.Operation.DELETE,
+                        deleteEntityList.get(i), record, null, null));
+            }
+        }
+    }
+    
+    private void clearQueuedWrites() {
+        createObjectList = null;
+        upsertObjectList = null;
+        pcToSObject = null;
+        updateObjectList = null;
+        updateIds = null;
+        deleteObjectList = null;
+        deleteTypeList = null;
+        deleteEntityList = null;
+    }
+    
+    /**
+     * Checks whether an object is queued to be created or upserted.
+     * 
+     * @param pc the persistable object
+     * @return {@code true} if the object has been queued and not yet been saved
+     */
+    public synchronized boolean isQueuedForCreate(Object pc) {
+        return pcToSObject != null && pcToSObject.containsKey(pc);
+    }
 
     /**
      * Retrieves the Force.com object (SObject) for the given parent.
@@ -152,27 +391,126 @@ public class ForceObjectManagerImpl extends ObjectManagerImpl {
     public synchronized void addToCreateList(SObject object, ObjectProvider op) {
         if (createObjectList == null) {
             createObjectList = new LinkedHashMap<ObjectProvider, SObject>();
+        }
+        if (pcToSObject == null) {
             pcToSObject = new IdentityHashMap<Object, SObject>();
         }
         createObjectList.put(op, object);
         pcToSObject.put(op.getObject(), object);
+        writeBehind();
     }
     
     /**
-     * Adds an object to the current list of entities to be updated.
+     * Marks a new object being merged to be upserted instead of created, if its entity has an external id
+     * field and the object has a value for it. The record with that external id is then updated, or created
+     * if there is none, without reading it first.
+     * 
+     * @param pc the persistable object
+     * @param acmd the class metadata of the object
+     * @return {@code true} if the object will be upserted
+     */
+    public synchronized boolean markForUpsert(Object pc, AbstractClassMetaData acmd) {
+        TableImpl table = ((ForceStoreManager) getStoreManager()).getTable(acmd);
+        ColumnImpl externalId = table != null ? table.getExternalIdColumn() : null;
+        if (externalId == null) return false;
+        for (int position : acmd.getAllMemberPositions()) {
+            if (table.getColumnAt(acmd, position) == externalId) {
+                try {
+                    if (PersistenceUtils.getMemberValue(acmd, position, pc) == null) return false;
+                } catch (Exception e) {
+                    throw new NucleusDataStoreException(e.getMessage(), e);
+                }
+                if (upsertCandidates == null) {
+                    upsertCandidates = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+                }
+                upsertCandidates.add(pc);
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Checks whether a new object has been marked to be upserted, and clears the mark.
+     * 
+     * @param pc the persistable object
+     * @return {@code true} if the object is to be upserted rather than created
+     */
+    public synchronized boolean takeUpsertMark(Object pc) {
+        return upsertCandidates != null && upsertCandidates.remove(pc);
+    }
+    
+    /**
+     * Adds an object to the current list of entities to be upserted by external id.
+     * 
+     * @param object  the object to be upserted
+     * @param op  the object provider
+     */
+    public synchronized void addToUpsertList(SObject object, ObjectProvider op) {
+        if (upsertObjectList == null) {
+            upsertObjectList = new LinkedHashMap<ObjectProvider, SObject>();
+        }
+        if (pcToSObject == null) {
+            pcToSObject = new IdentityHashMap<Object, SObject>();
+        }
+        upsertObjectList.put(op, object);
+        pcToSObject.put(op.getObject(), object);
+        writeBehind();
+    }
+    
+    /**
+     * Adds an object to the current list of entities to be updated. The version of the object, if any, is
+     * checked with an if-modified-before header when optimistic transactions are enabled.
      * 
      * @param object  the object to update (complete with updated fields) 
-     * @param version  this should be the time of modification. Pass in a version if we're checking
-     *                  if-modified-before headers for optimistic transactions
+     * @param op  the object provider
      */
-    public synchronized void addToUpdateList(SObject object, Calendar version) {
+    public synchronized void addToUpdateList(SObject object, ObjectProvider op) {
+        if (isWritingBehind() && updateIds != null && updateIds.contains(object.getId())) {
+            // A call cannot update the same record twice, send the earlier update first
+            flushQueuedWrites();
+        }
         if (updateObjectList == null) {
-            updateObjectList = new ArrayList<SObject>();
-            versionList = new ArrayList<Calendar>();
+            updateObjectList = new LinkedHashMap<ObjectProvider, SObject>();
+            updateIds = new HashSet<String>();
+        }
+        updateObjectList.put(op, object);
+        updateIds.add(object.getId());
+        writeBehind();
+    }
+    
+    /**
+     * Sends the writes queued in write-behind mode once there are enough of them, or once the first of them
+     * is overdue. Remembers when the first write of a new queue was queued.
+     */
+    private void writeBehind() {
+        if (!isWritingBehind()) return;
+        int queued = (createObjectList != null ? createObjectList.size() : 0)
+                + (upsertObjectList != null ? upsertObjectList.size() : 0)
+                + (updateObjectList != null ? updateObjectList.size() : 0);
+        if (queued >= writeBehindSize) {
+            flushQueuedWrites();
+        } else if (queued == 1) {
+            writeBehindQueuedAt = System.nanoTime();
+        } else {
+            sendOverdueWrites();
         }
-        updateObjectList.add(object);
-        if (version != null) {
-            versionList.add(version);
+    }
+    
+    /**
+     * Sends the writes queued in write-behind mode if the first of them has waited
+     * {@code force.writeBehindMaxDelayMillis}. The entity manager calls this at the start of its operations, so
+     * that an entity manager that is kept open without being flushed doesn't hold its writes for long. Nothing
+     * is sent while a transaction is active, whose commit sends the writes.
+     */
+    public synchronized void sendOverdueWrites() {
+        if (!isWritingBehind() || writeBehindMaxDelayMillis <= 0
+                || createObjectList == null && updateObjectList == null && upsertObjectList == null
+                || getTransaction().isActive()) {
+            return;
+        }
+        if (TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - writeBehindQueuedAt) >= writeBehindMaxDelayMillis) {
+            flushQueuedWrites();
         }
     }
     
@@ -182,10 +520,35 @@ public class ForceObjectManagerImpl extends ObjectManagerImpl {
      * @param id the id of the entity to delete
      */
     public synchronized void addToDeleteList(String id) {
+        addToDeleteList(id, null);
+    }
+    
+    /**
+     * Adds an entity to the current list of entities to be deleted.
+     * 
+     * @param id the id of the entity to delete
+     * @param type the Force.com API name of the entity's object, needed to delete it with the Bulk API
+     */
+    public synchronized void addToDeleteList(String id, String type) {
+        addToDeleteList(id, type, null);
+    }
+    
+    /**
+     * Adds an entity to the current list of entities to be deleted.
+     * 
+     * @param id the id of the entity to delete
+     * @param type the Force.com API name of the entity's object, needed to delete it with the Bulk API
+     * @param pc the persistable object, passed to the {@link AsyncWriteHandler} if an asynchronous delete fails
+     */
+    public synchronized void addToDeleteList(String id, String type, Object pc) {
         if (deleteObjectList == null) {
             deleteObjectList = new ArrayList<String>();
+            deleteTypeList = new ArrayList<String>();
+            deleteEntityList = new ArrayList<Object>();
         }
         deleteObjectList.add(id);
+        deleteTypeList.add(type);
+        deleteEntityList.add(pc);
     }
     
     /**
@@ -207,6 +570,9 @@ public class ForceObjectManagerImpl extends ObjectManagerImpl {
      */
     @Override
     public synchronized void postRollback() {
+        // Writes queued in write-behind mode during the transaction are dropped
+        clearQueuedWrites();
+        upsertCandidates = null;
         try {
             super.postRollback();
         } catch (NucleusObjectNotFoundException ne) {
@@ -214,6 +580,18 @@ public class ForceObjectManagerImpl extends ObjectManagerImpl {
         }
     }
     
+    /**
+     * Sends any writes still queued in write-behind mode before closing.
+     */
+    @Override
+    public synchronized void close() {
+        try {
+            flushQueuedWrites();
+        } finally {
+            super.close();
+        }
+    }
+    
     /**
      * Added this method so that we can support detachment of a newly created
      * persistent object that has never been saved to the database.
@@ -28,16 +28,24 @@ package com.force.sdk.jpa;
 
 import static com.force.sdk.jpa.ForceEntityManager.LOGGER;
 
+import java.io.InputStream;
+import java.math.BigInteger;
 import java.util.*;
 
 import org.datanucleus.ObjectManager;
 import org.datanucleus.exceptions.*;
 import org.datanucleus.metadata.AbstractClassMetaData;
+import org.datanucleus.metadata.AbstractMemberMetaData;
 import org.datanucleus.state.ObjectProviderImpl;
 import org.datanucleus.store.*;
 
 import com.force.sdk.jpa.exception.ForceApiExceptionMap;
+import com.force.sdk.jpa.query.ForceQueryUtils;
+import com.force.sdk.jpa.table.ColumnImpl;
 import com.force.sdk.jpa.table.TableImpl;
+import com.sforce.async.ConcurrencyMode;
+import com.sforce.async.OperationEnum;
+import com.sforce.async.Result;
 import com.sforce.soap.partner.*;
 import com.sforce.soap.partner.Error;
 import com.sforce.soap.partner.fault.ApiFault;
@@ -55,7 +63,17 @@ import com.sforce.ws.bind.XmlObject;
  */
 public class ForcePersistenceHandler extends AbstractPersistenceHandler {
 
+    // Maximum number of objects whose lazy fields are loaded by a single query
+    static final int LAZY_LOAD_BATCH_SIZE = 100;
+    
+    /**
+     * Key of the value associated with the state manager of an upserted object: {@code Boolean.TRUE} if the
+     * upsert created the record, {@code Boolean.FALSE} if it updated an existing one.
+     */
+    public static final String UPSERT_CREATED = "force.upsertCreated";
+    
     protected final ForceStoreManager storeManager;
+    private final SoapFlush soapFlush;
 
     /**
      * Creates the persistence handler that will be used for all API operations.
@@ -64,6 +82,8 @@ public class ForcePersistenceHandler extends AbstractPersistenceHandler {
      */
     public ForcePersistenceHandler(StoreManager storeManager) {
         this.storeManager = (ForceStoreManager) storeManager;
+        this.soapFlush = new SoapFlush(this.storeManager, storeManager.getOMFContext().getPersistenceConfiguration()
+                .getBooleanProperty("force.allOrNothingCompensation"));
     }
 
     @Override
@@ -83,10 +103,14 @@ public class ForcePersistenceHandler extends AbstractPersistenceHandler {
 
         ForceManagedConnection mconn = (ForceManagedConnection) storeManager.getConnection(op.getExecutionContext());
         ObjectManager om = ((ObjectProviderImpl) op).getStateManager().getObjectManager();
-        boolean isAllOrNothingMode = om instanceof ForceObjectManagerImpl && ((ForceObjectManagerImpl) om).isInAllOrNothingMode();
+        boolean isQueuingDeletes = om instanceof ForceObjectManagerImpl && ((ForceObjectManagerImpl) om).isQueuingDeletes();
         try {
             Object pkValue = op.provideField(op.getClassMetaData().getPKMemberPositions()[0]);
-            if (!isAllOrNothingMode) {
+            if (!isQueuingDeletes) {
+                if (om instanceof ForceObjectManagerImpl) {
+                    // Writes queued in write-behind mode go first
+                    ((ForceObjectManagerImpl) om).flushQueuedWrites();
+                }
                 if (LOGGER.isDebugEnabled()) {
                     LOGGER.debug("Deleting object: " + pkValue);
                 }
@@ -94,9 +118,10 @@ public class ForcePersistenceHandler extends AbstractPersistenceHandler {
                 checkForErrors(results);
             } else {
                 if (LOGGER.isDebugEnabled()) {
-                    LOGGER.debug("Queuing for A-O-N delete object: " + pkValue);
+                    LOGGER.debug("Queuing for delete object: " + pkValue);
                 }
-                ((ForceObjectManagerImpl) om).addToDeleteList((String) pkValue);
+                ((ForceObjectManagerImpl) om).addToDeleteList((String) pkValue,
+                        storeManager.getTable(op.getClassMetaData()).getTableName().getForceApiName(), op.getObject());
             }
         } catch (ApiFault af) {
             throw ForceApiExceptionMap.mapToNucleusException(af, false /* isQuery */,
@@ -130,6 +155,11 @@ public class ForcePersistenceHandler extends AbstractPersistenceHandler {
                 sObject.addField("Id", op.provideField(pkPosition));
                 fm = new ForceFetchFieldManager(op, storeManager, mconn, sObject, null);
             } else {
+                List<ObjectProvider> batch = getLazyLoadBatch(op, fieldNumbers);
+                if (batch.size() > 1) {
+                    fetchObjects(batch, fieldNumbers, mconn);
+                    return;
+                }
                 fm = new ForceFetchFieldManager(op, storeManager, mconn,
                     op.provideField(pkPosition), fieldNumbers, null);
             }
@@ -146,6 +176,66 @@ public class ForcePersistenceHandler extends AbstractPersistenceHandler {
         }
     }
 
+    /**
+     * Collects the objects materialized by the same query that are also waiting for the requested lazy fields
+     * to be loaded (see {@link LazyLoadGroup}). Loading them together turns one query per object into one
+     * query per batch when the lazy fields of a list of results are read. Fields of the default fetch group,
+     * which are loaded again by a refresh for instance, are loaded for the one object only.
+     * 
+     * @return the objects to load, starting with the one that was asked for
+     */
+    private List<ObjectProvider> getLazyLoadBatch(ObjectProvider op, int[] fieldNumbers) {
+        AbstractClassMetaData acmd = op.getClassMetaData();
+        for (int fieldNumber : fieldNumbers) {
+            if (acmd.getMetaDataForManagedMemberAtAbsolutePosition(fieldNumber).isDefaultFetchGroup()) {
+                return Collections.singletonList(op);
+            }
+        }
+        return LazyLoadGroup.nextBatch(op, fieldNumbers, LAZY_LOAD_BATCH_SIZE);
+    }
+    
+    /**
+     * Loads the same fields of several objects with one query.
+     */
+    private void fetchObjects(List<ObjectProvider> batch, int[] fieldNumbers, ForceManagedConnection mconn)
+        throws ConnectionException {
+        ObjectProvider op = batch.get(0);
+        AbstractClassMetaData acmd = op.getClassMetaData();
+        int pkPosition = acmd.getPKMemberPositions()[0];
+        // Match on the case sensitive 15 character id, queries return the 18 character form
+        Map<String, ObjectProvider> byId = new HashMap<String, ObjectProvider>(batch.size() * 2);
+        for (ObjectProvider member : batch) {
+            byId.put(toShortId((String) member.provideField(pkPosition)), member);
+        }
+        List<String> ids = new ArrayList<String>(batch.size());
+        for (ObjectProvider member : batch) {
+            ids.add((String) member.provideField(pkPosition));
+        }
+        Collections.sort(ids);
+        
+        PartnerConnection connection = (PartnerConnection) mconn.getConnection();
+        QueryResult qr = connection.query(new ForceQueryUtils(op.getExecutionContext(), mconn, null, null, null, null)
+                                            .buildQueryWithPKs(storeManager.getTable(acmd), acmd, fieldNumbers, ids, 0));
+        boolean found = false;
+        while (true) {
+            for (SObject record : qr.getRecords()) {
+                ObjectProvider member = byId.get(toShortId(record.getId()));
+                if (member == null) continue;
+                member.replaceFields(fieldNumbers, new ForceFetchFieldManager(member, storeManager, mconn, record, null));
+                found |= member == op;
+            }
+            if (qr.isDone() || qr.getQueryLocator() == null) break;
+            qr = connection.queryMore(qr.getQueryLocator());
+        }
+        if (!found) {
+            throw new NucleusObjectNotFoundException();
+        }
+    }
+    
+    private static String toShortId(String id) {
+        return id != null && id.length() == 18 ? id.substring(0, 15) : id;
+    }
+    
     @Override
     public Object findObject(ExecutionContext ectx, Object id) {
         // We are not an ODBMS so we do not provide any objects here
@@ -206,12 +296,53 @@ public class ForcePersistenceHandler extends AbstractPersistenceHandler {
      * @param ec the execution context for this transaction
      */
     public void createObjects(Collection<SObject> objects, Collection<ObjectProvider> objectProviders, ExecutionContext ec) {
+        createObjects(objects, objectProviders, true, ec);
+    }
+
+    /**
+     * Creates the objects queued during a flush. Without all or nothing, large sets are sent with the Bulk API
+     * when it is enabled. Other sets of more than 200 objects, and any set without all or nothing, are sent in
+     * chunks (see {@link SoapFlush}), parents before the children that refer to them.
+     *
+     * @param objects the objects to be created
+     * @param objectProviders the object providers for each object
+     * @param allOrNone whether the objects must be created all or nothing
+     * @param ec the execution context for this transaction
+     */
+    public void createObjects(Collection<SObject> objects, Collection<ObjectProvider> objectProviders, boolean allOrNone,
+            ExecutionContext ec) {
         ForceManagedConnection mconn = (ForceManagedConnection) storeManager.getConnection(ec);
         try {
             SObject[] toSave = objects.toArray(new SObject[objects.size()]);
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("Creating objects: " + toString(toSave, false, null));
             }
+            if (!allOrNone || toSave.length > SoapFlush.MAX_BATCH_SIZE || FlushOrder.hasParentReferences(toSave)) {
+                ObjectProvider[] ops = objectProviders.toArray(new ObjectProvider[objectProviders.size()]);
+                Object[] pcs = new Object[ops.length];
+                for (int i = 0; i < ops.length; i++) {
+                    pcs[i] = ops[i].getObject();
+                }
+                BulkFlush bulkFlush = allOrNone ? null : storeManager.getBulkFlush();
+                if (bulkFlush != null && bulkFlush.appliesTo(toSave.length)) {
+                    Result[] results = bulkFlush.execute(mconn.getBulkConnection(), OperationEnum.insert, Arrays.asList(toSave));
+                    for (int i = 0; i < results.length; i++) {
+                        if (results[i] != null && results[i].isSuccess()) {
+                            ops[i].setPostStoreNewObjectId(results[i].getId());
+                        }
+                    }
+                    checkForErrors(results, pcs, "create");
+                } else {
+                    SaveResult[] results = soapFlush.execute(SoapFlush.Operation.CREATE, toSave, null, allOrNone);
+                    for (int i = 0; i < results.length; i++) {
+                        if (results[i].isSuccess()) {
+                            ops[i].setPostStoreNewObjectId(results[i].getId());
+                        }
+                    }
+                    checkForErrors(results, pcs);
+                }
+                return;
+            }
             PartnerConnection connection = (PartnerConnection) mconn.getConnection();
             connection.setAllOrNoneHeader(true);
             try {
@@ -220,6 +351,8 @@ public class ForcePersistenceHandler extends AbstractPersistenceHandler {
                 checkForErrors(results);
                 int i = 0;
                 for (ObjectProvider op : objectProviders) {
+                    // Queued updates may refer to the new object by its id
+                    toSave[i].setId(results[i].getId());
                     op.setPostStoreNewObjectId(results[i++].getId());
                 }
                 if (LOGGER.isDebugEnabled()) {
@@ -239,6 +372,48 @@ public class ForcePersistenceHandler extends AbstractPersistenceHandler {
         }
     }
 
+    /**
+     * Upserts new objects by external id, as queued for objects merged with an external id. The records that
+     * match an existing external id are updated, the others are created. The ids of the records are set on the
+     * objects and whether each was created on their state managers (see {@link #UPSERT_CREATED}). The objects
+     * are sent in chunks of 200 (see {@link SoapFlush}), parents before the children that refer to them.
+     *
+     * @param objects the objects to be upserted, each with its external id
+     * @param objectProviders the object providers for each object
+     * @param allOrNone whether each chunk must be upserted all or nothing
+     * @param ec the execution context for this transaction
+     */
+    public void upsertObjects(Collection<SObject> objects, Collection<ObjectProvider> objectProviders, boolean allOrNone,
+            ExecutionContext ec) {
+        SObject[] toSave = objects.toArray(new SObject[objects.size()]);
+        ObjectProvider[] ops = objectProviders.toArray(new ObjectProvider[objectProviders.size()]);
+        Map<String, String> externalIdFields = new HashMap<String, String>();
+        Object[] pcs = new Object[ops.length];
+        for (int i = 0; i < ops.length; i++) {
+            pcs[i] = ops[i].getObject();
+            externalIdFields.put(toSave[i].getType(),
+                    storeManager.getTable(ops[i].getClassMetaData()).getExternalIdColumn().getFieldName());
+        }
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Upserting objects: " + toString(toSave, false, null));
+        }
+        try {
+            boolean[] created = new boolean[toSave.length];
+            SaveResult[] results = soapFlush.upsert(toSave, externalIdFields, created, allOrNone);
+            for (int i = 0; i < results.length; i++) {
+                if (results[i].isSuccess()) {
+                    ops[i].setPostStoreNewObjectId(results[i].getId());
+                    ops[i].setAssociatedValue(UPSERT_CREATED, created[i]);
+                }
+            }
+            checkForErrors(results, pcs);
+        } catch (NucleusException ne) {
+            throw ne;
+        } catch (Exception x) {
+            throw new NucleusDataStoreException(x.getMessage(), x);
+        }
+    }
+
     /**
      * Updates objects for AllOrNothing operations.
      *
@@ -247,16 +422,83 @@ public class ForcePersistenceHandler extends AbstractPersistenceHandler {
      * @param ec the execution context of this transaction
      */
     public void updateObjects(SObject[] objects, Calendar[] versions, ExecutionContext ec) {
+        updateObjects(objects, versions, true, ec);
+    }
+
+    /**
+     * Updates the objects queued during a flush. Without all or nothing, large sets are sent with the Bulk API
+     * when it is enabled. Other sets of more than 200 objects, and any set without all or nothing, are sent in
+     * chunks (see {@link SoapFlush}). The Bulk API has no if-modified-before check, so sets with versions to
+     * check are always sent with the SOAP API.
+     *
+     * @param objects  the objects to be updated
+     * @param versions the versions corresponding with each object for if-modified-before checks for optimistic transactions
+     * @param allOrNone whether the objects must be updated all or nothing
+     * @param ec the execution context of this transaction
+     */
+    public void updateObjects(SObject[] objects, Calendar[] versions, boolean allOrNone, ExecutionContext ec) {
+        updateObjects(objects, versions, null, allOrNone, ec);
+    }
+
+    /**
+     * Updates the objects queued during a flush, as {@link #updateObjects(SObject[], Calendar[], boolean, ExecutionContext)}
+     * does. With optimistic transactions the versions of all the objects are checked in the same calls as their
+     * updates, without reading the records first. Each object whose record was modified since it was read is reported
+     * as a nested {@code NucleusOptimisticException} that holds the object.
+     *
+     * @param objects the objects to be updated
+     * @param objectProviders the object providers for each object
+     * @param allOrNone whether the objects must be updated all or nothing
+     * @param ec the execution context of this transaction
+     */
+    public void updateObjects(Collection<SObject> objects, Collection<ObjectProvider> objectProviders, boolean allOrNone,
+            ExecutionContext ec) {
+        SObject[] toSave = objects.toArray(new SObject[objects.size()]);
+        ObjectProvider[] ops = objectProviders.toArray(new ObjectProvider[objectProviders.size()]);
+        Object[] pcs = new Object[ops.length];
+        Calendar[] versions = new Calendar[ops.length];
+        boolean versioned = false;
+        //When we do all-or-nothing with optimistic transactions, per jpa spec we need to save properly
+        // even if some objects are missing @Version,
+        // so if op.getVersion is null, we give a Calendar set to System.currentTimeMilis + 1 HOUR so
+        // the if-modified-before check for the object without @Version will always succeed
+        Calendar unversioned = getVersionForUnversioned();
+        for (int i = 0; i < ops.length; i++) {
+            pcs[i] = ops[i].getObject();
+            versioned |= ops[i].getVersion() != null;
+            versions[i] = ops[i].getVersion() != null ? (Calendar) ops[i].getVersion() : unversioned;
+        }
+        updateObjects(toSave, versioned ? versions : new Calendar[0], pcs, allOrNone, ec);
+    }
+
+    private void updateObjects(SObject[] objects, Calendar[] versions, Object[] pcs, boolean allOrNone, ExecutionContext ec) {
         ForceManagedConnection mconn = (ForceManagedConnection) storeManager.getConnection(ec);
         try {
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("Updating objects: " + toString(objects, true, null));
             }
+            if (!allOrNone || objects.length > SoapFlush.MAX_BATCH_SIZE || FlushOrder.hasParentReferences(objects)) {
+                BulkFlush bulkFlush = allOrNone ? null : storeManager.getBulkFlush();
+                boolean checkVersions = versions.length == objects.length && storeManager.isEnableOptimisticTransactions();
+                if (bulkFlush != null && bulkFlush.appliesTo(objects.length) && !checkVersions) {
+                    Result[] results = bulkFlush.execute(mconn.getBulkConnection(), OperationEnum.update, Arrays.asList(objects));
+                    checkForErrors(results, pcs != null ? pcs : getIds(objects), "update");
+                } else {
+                    checkForErrors(soapFlush.execute(SoapFlush.Operation.UPDATE, objects,
+                            versions.length == objects.length ? versions : null, allOrNone),
+                            pcs != null ? pcs : getIds(objects));
+                }
+                return;
+            }
             PartnerConnection connection = getPartnerConnection(mconn, versions);
             connection.setAllOrNoneHeader(true);
             try {
                 SaveResult[] results = connection.update(objects);
-                checkForErrors(results);
+                if (pcs != null) {
+                    checkForErrors(results, pcs);
+                } else {
+                    checkForErrors(results);
+                }
             } finally {
                 try {
                     connection.setAllOrNoneHeader(false);
@@ -285,11 +527,42 @@ public class ForcePersistenceHandler extends AbstractPersistenceHandler {
      * @param ec the execution context for this transaction
      */
     public void deleteObjects(String[] objects, ExecutionContext ec) {
+        deleteObjects(objects, null, true, ec);
+    }
+
+    /**
+     * Deletes the objects queued during a flush. Without all or nothing, large sets are sent with the Bulk API
+     * when it is enabled. Other sets of more than 200 objects, and any set without all or nothing, are sent in
+     * chunks (see {@link SoapFlush}).
+     *
+     * @param objects the ids of the objects to be deleted
+     * @param types the Force.com API name of the object of each id, {@code null} if not known
+     * @param allOrNone whether the objects must be deleted all or nothing
+     * @param ec the execution context for this transaction
+     */
+    public void deleteObjects(String[] objects, String[] types, boolean allOrNone, ExecutionContext ec) {
         ForceManagedConnection mconn = (ForceManagedConnection) storeManager.getConnection(ec);
         try {
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("Deleting objects: " + Arrays.toString(objects));
             }
+            if (!allOrNone || objects.length > SoapFlush.MAX_BATCH_SIZE) {
+                SObject[] records = new SObject[objects.length];
+                for (int i = 0; i < objects.length; i++) {
+                    records[i] = new SObject();
+                    records[i].setType(types != null ? types[i] : null);
+                    records[i].setId(objects[i]);
+                }
+                BulkFlush bulkFlush = allOrNone ? null : storeManager.getBulkFlush();
+                if (bulkFlush != null && bulkFlush.appliesTo(objects.length) && types != null
+                        && !Arrays.asList(types).contains(null)) {
+                    checkForErrors(bulkFlush.execute(mconn.getBulkConnection(), OperationEnum.delete, Arrays.asList(records)),
+                            objects, "delete");
+                } else {
+                    checkForErrors(soapFlush.execute(SoapFlush.Operation.DELETE, records, null, allOrNone), objects);
+                }
+                return;
+            }
             PartnerConnection connection = (PartnerConnection) mconn.getConnection();
             connection.setAllOrNoneHeader(true);
             try {
@@ -312,6 +585,145 @@ public class ForcePersistenceHandler extends AbstractPersistenceHandler {
         }
     }
 
+    /**
+     * Checks whether a set of writes of the given size is sent with the Bulk API outside of all or nothing.
+     * 
+     * @param count the number of records
+     * @return {@code true} if the Bulk API flush mode is enabled and applies to that many records
+     */
+    public boolean isBulkWrite(int count) {
+        return storeManager.getBulkFlush() != null && storeManager.getBulkFlush().appliesTo(count);
+    }
+
+    /**
+     * Checks whether a bulk delete query that matched the given number of records uses the Bulk API.
+     * 
+     * @param count the number of matching records
+     * @return {@code true} if {@code force.bulkDeleteThreshold} is set and reached
+     */
+    public boolean isBulkDelete(int count) {
+        return storeManager.getBulkDeleteThreshold() > 0 && count >= storeManager.getBulkDeleteThreshold();
+    }
+    
+    /**
+     * Deletes a set of records of one type with a Bulk API job, as done by a bulk delete query above
+     * {@code force.bulkDeleteThreshold}. Rows that failed are reported together once the job is done,
+     * the others stay deleted.
+     * 
+     * @param type the Force.com API name of the object type
+     * @param ids the ids of the records
+     * @param hardDelete {@code true} to delete the records without moving them to the recycle bin, which
+     *                   requires the Bulk API Hard Delete permission
+     * @param ec the execution context
+     */
+    public void bulkDelete(String type, String[] ids, boolean hardDelete, ExecutionContext ec) {
+        if (ids.length == 0) return;
+        BulkFlush bulkFlush = storeManager.getBulkFlush();
+        if (bulkFlush == null) {
+            bulkFlush = new BulkFlush(1, BulkFlush.MAX_BATCH_SIZE, ConcurrencyMode.Parallel);
+        }
+        List<SObject> records = new ArrayList<SObject>(ids.length);
+        for (String id : ids) {
+            SObject record = new SObject();
+            record.setType(type);
+            record.setId(id);
+            records.add(record);
+        }
+        ForceManagedConnection mconn = (ForceManagedConnection) storeManager.getConnection(ec);
+        try {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug((hardDelete ? "Hard deleting " : "Deleting ") + ids.length + " " + type
+                                + " records with the Bulk API");
+            }
+            checkForErrors(bulkFlush.execute(mconn.getBulkConnection(),
+                                hardDelete ? OperationEnum.hardDelete : OperationEnum.delete, records),
+                            ids, hardDelete ? "hardDelete" : "delete");
+        } catch (NucleusException ne) {
+            throw ne;
+        } catch (Exception x) {
+            throw new NucleusDataStoreException(x.getMessage(), x);
+        } finally {
+            mconn.release();
+        }
+    }
+
+    /**
+     * Sets the same field values on a set of records, as done by a bulk update query. The records are sent in
+     * chunks, or with the Bulk API when enabled and the set is large enough, without all or nothing.
+     * 
+     * @param acmd the class metadata of the entity of the records
+     * @param ids the ids of the records
+     * @param values the new value of each field, {@code null} clears the field. A relationship takes the
+     *               related entity or its id
+     * @param ec the execution context
+     */
+    public void updateFields(AbstractClassMetaData acmd, String[] ids, Map<AbstractMemberMetaData, Object> values,
+            ExecutionContext ec) {
+        TableImpl table = storeManager.getTable(acmd);
+        Map<String, Object> fieldValues = new LinkedHashMap<String, Object>();
+        List<String> fieldsToNull = new ArrayList<String>();
+        for (Map.Entry<AbstractMemberMetaData, Object> entry : values.entrySet()) {
+            AbstractMemberMetaData ammd = entry.getKey();
+            ColumnImpl column = table.getColumnFor(acmd, ammd);
+            if (column == null || column.getField() == null || !column.getField().isUpdateable()) {
+                throw new NucleusUserException("Field cannot be updated: " + ammd.getFullFieldName());
+            }
+            Object value = entry.getValue();
+            if (value == null) {
+                fieldsToNull.add(column.getFieldName());
+            } else if (value instanceof InputStream) {
+                throw new NucleusUserException("Streams cannot be set by a bulk update: " + ammd.getFullFieldName());
+            } else if (column.getType() == FieldType.reference) {
+                AbstractClassMetaData related =
+                    storeManager.getMetaDataManager().getMetaDataForClass(value.getClass(), ec.getClassLoaderResolver());
+                try {
+                    fieldValues.put(column.getFieldName(), related != null
+                            ? PersistenceUtils.getMemberValue(related, related.getPKMemberPositions()[0], value) : value);
+                } catch (Exception e) {
+                    throw new NucleusUserException(e.getMessage(), e);
+                }
+            } else {
+                fieldValues.put(column.getFieldName(), ForceInsertFieldManager.toFieldValue(ammd, column, toApiType(value)));
+            }
+        }
+        SObject[] records = new SObject[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            records[i] = new SObject();
+            // The schema puts fieldsToNull before Id and the fields
+            records[i].setType(table.getTableName().getForceApiName());
+            if (!fieldsToNull.isEmpty()) {
+                records[i].setFieldsToNull(fieldsToNull.toArray(new String[fieldsToNull.size()]));
+            }
+            records[i].setId(ids[i]);
+            for (Map.Entry<String, Object> fieldValue : fieldValues.entrySet()) {
+                records[i].setField(fieldValue.getKey(), fieldValue.getValue());
+            }
+        }
+        updateObjects(records, new Calendar[0], false, ec);
+    }
+
+    /**
+     * Converts numbers and characters the way {@link ForceInsertFieldManager} stores them.
+     */
+    private static Object toApiType(Object value) {
+        if (value instanceof Long || value instanceof BigInteger || value instanceof Byte || value instanceof Character) {
+            return value.toString();
+        } else if (value instanceof Float) {
+            return ((Float) value).doubleValue();
+        } else if (value instanceof Short) {
+            return ((Short) value).intValue();
+        }
+        return value;
+    }
+
+    private static String[] getIds(SObject[] objects) {
+        String[] ids = new String[objects.length];
+        for (int i = 0; i < objects.length; i++) {
+            ids[i] = objects[i].getId();
+        }
+        return ids;
+    }
+
     private void upsert(ObjectProvider op, int[] fieldNumbers) {
         if (op.getClassMetaData().isEmbeddedOnly()) {
             // Embedded entities will be saved by the parent
@@ -324,6 +736,12 @@ public class ForcePersistenceHandler extends AbstractPersistenceHandler {
             storeManager.addClass(op.getClassMetaData().getFullClassName(), op.getExecutionContext().getClassLoaderResolver());
         }
 
+        ObjectManager om = ((ObjectProviderImpl) op).getStateManager().getObjectManager();
+        if (fieldNumbers != null && om instanceof ForceObjectManagerImpl
+                && ((ForceObjectManagerImpl) om).isQueuedForCreate(op.getObject())) {
+            // Updating an object whose create or upsert is still queued, it needs its id first
+            ((ForceObjectManagerImpl) om).flushQueuedWrites();
+        }
         ForceManagedConnection mconn = (ForceManagedConnection) storeManager.getConnection(op.getExecutionContext());
         try {
             ForceInsertFieldManager fm = new ForceInsertFieldManager(op, storeManager,
@@ -334,11 +752,30 @@ public class ForcePersistenceHandler extends AbstractPersistenceHandler {
              * the current object will not be dirty and we have nothing else to do.
              */
             if (!fm.isDirty()) return;
-            ObjectManager om = ((ObjectProviderImpl) op).getStateManager().getObjectManager();
-            boolean isAllOrNothingMode =
-                om instanceof ForceObjectManagerImpl && ((ForceObjectManagerImpl) om).isInAllOrNothingMode();
+            if (fieldNumbers == null && om instanceof ForceObjectManagerImpl
+                    && ((ForceObjectManagerImpl) om).takeUpsertMark(op.getObject())) {
+                // A new object merged with an external id, upserted instead of created
+                SObject toSave = fm.getSObject(false);
+                if (((ForceObjectManagerImpl) om).isQueuingUpserts()) {
+                    ((ForceObjectManagerImpl) om).addToUpsertList(toSave, op);
+                    if (LOGGER.isDebugEnabled()) {
+                        LOGGER.debug("Queuing for upsert object: " + toSave.getType());
+                    }
+                } else {
+                    upsertObjects(Collections.singletonList(toSave), Collections.singletonList(op), true,
+                            op.getExecutionContext());
+                }
+                return;
+            }
+            boolean isQueuingWrites =
+                om instanceof ForceObjectManagerImpl && ((ForceObjectManagerImpl) om).isQueuingWrites();
+            if (fieldNumbers != null && op.getVersion() != null && om instanceof ForceObjectManagerImpl
+                    && ((ForceObjectManagerImpl) om).isQueuingVersionedUpdates()) {
+                // Versioned updates of a flush are sent together, their versions are checked in the same calls
+                isQueuingWrites = true;
+            }
             SObject toSave;
-            if (!isAllOrNothingMode) {
+            if (!isQueuingWrites) {
                 PartnerConnection connection = getPartnerConnection(mconn, op);
                 try {
                     toSave = fm.getSObject(false);
@@ -363,22 +800,18 @@ public class ForcePersistenceHandler extends AbstractPersistenceHandler {
                 }
             } else {
                 if (fieldNumbers != null) {
-                    //When we do all-or-nothing with optimistic transactions, per jpa spec we need to save properly
-                    // even if some objects are missing @Version,
-                    // so if op.getVersion is null, we give a Calendar set to System.currentTimeMilis + 1 HOUR so
-                    // the if-modified-before check for the object without @Version will always succeed
                     toSave = fm.getSObject(false);
-                    ((ForceObjectManagerImpl) om).addToUpdateList(toSave,
-                            op.getVersion() != null ? (Calendar) op.getVersion() : getVersionForUnversioned());
+                    ((ForceObjectManagerImpl) om).addToUpdateList(toSave, op);
                 } else {
-                    toSave = fm.getSObject(true);
+                    // Children link to a new object by external id only in a single all or nothing call
+                    toSave = fm.getSObject(((ForceObjectManagerImpl) om).isInAllOrNothingMode());
                     ((ForceObjectManagerImpl) om).addToCreateList(toSave, op);
                 }
                 if (LOGGER.isDebugEnabled()) {
                     if (fieldNumbers != null) {
-                        LOGGER.debug("Queuing for A-O-N update object: " + toSave.getType() + " id: " + toSave.getId());
+                        LOGGER.debug("Queuing for update object: " + toSave.getType() + " id: " + toSave.getId());
                     } else {
-                        LOGGER.debug("Queuing for A-O-N create object: " + toSave.getType());
+                        LOGGER.debug("Queuing for create object: " + toSave.getType());
                     }
                 }
             }
@@ -394,7 +827,7 @@ public class ForcePersistenceHandler extends AbstractPersistenceHandler {
         }
     }
 
-    private static Calendar getVersionForUnversioned() {
+    static Calendar getVersionForUnversioned() {
         long time = System.currentTimeMillis() + (60 * 60 * 1000);
         Calendar cal = Calendar.getInstance();
         cal.setTimeInMillis(time);
@@ -465,6 +898,69 @@ public class ForcePersistenceHandler extends AbstractPersistenceHandler {
         }
     }
 
+    /**
+     * Checks for errors in the results of chunked calls. Each failed object is reported as a nested exception
+     * that holds it. Objects that were only rolled back are not reported when others failed.
+     */
+    private static void checkForErrors(SaveResult[] results, Object[] objects) {
+        List<NucleusException> failures = null;
+        List<NucleusException> rolledBack = null;
+        boolean optimisticFailure = false;
+        for (int i = 0; i < results.length; i++) {
+            if (results[i].isSuccess()) continue;
+            Error error = results[i].getErrors()[0];
+            if (error.getStatusCode() == StatusCode.ALL_OR_NONE_OPERATION_ROLLED_BACK) {
+                if (rolledBack == null) {
+                    rolledBack = new ArrayList<NucleusException>();
+                }
+                rolledBack.add(new NucleusDataStoreException(error.getMessage(), objects[i]));
+                continue;
+            }
+            if (failures == null) {
+                failures = new ArrayList<NucleusException>();
+            }
+            if (error.getStatusCode() == StatusCode.ENTITY_FAILED_IFLASTMODIFIED_ON_UPDATE) {
+                optimisticFailure = true;
+                failures.add(new NucleusOptimisticException(error.getMessage(), objects[i]));
+            } else {
+                failures.add(new NucleusDataStoreException(error.getMessage(), objects[i]));
+            }
+        }
+        if (failures == null) failures = rolledBack;
+        if (failures != null) {
+            String message = failures.size() + " of " + results.length + " records failed, first failure: "
+                    + failures.get(0).getMessage();
+            Throwable[] nested = failures.toArray(new Throwable[failures.size()]);
+            if (optimisticFailure) {
+                throw new NucleusOptimisticException(message, nested);
+            }
+            throw new NucleusUserException(message, nested);
+        }
+    }
+
+    /**
+     * Checks for errors in the results of Bulk API jobs. Each failed row is reported as a nested exception
+     * that holds the failed object.
+     */
+    private static void checkForErrors(Result[] results, Object[] objects, String operation) {
+        List<Throwable> failures = null;
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] == null || !results[i].isSuccess()) {
+                if (failures == null) {
+                    failures = new ArrayList<Throwable>();
+                }
+                String message = results[i] == null || results[i].getErrors().length == 0 ? "No result for the record"
+                        : results[i].getErrors()[0].getStatusCode() + ": " + results[i].getErrors()[0].getMessage();
+                failures.add(new NucleusDataStoreException(message, objects[i]));
+            }
+        }
+        if (failures != null) {
+            throw new NucleusUserException("Bulk API " + operation + " failed for " + failures.size() + " of "
+                    + results.length + " records, first failure: " + failures.get(0).getMessage(),
+                    failures.toArray(new Throwable[failures.size()]));
+        }
+    }
+
     /**
      * Checks for errors in a {@code delete()} call and handles the results properly.
      * 
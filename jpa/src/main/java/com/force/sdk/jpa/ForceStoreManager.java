@@ -27,9 +27,12 @@
 package com.force.sdk.jpa;
 
 import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.datanucleus.*;
+import org.datanucleus.exceptions.NucleusUserException;
 import org.datanucleus.metadata.AbstractClassMetaData;
 import org.datanucleus.plugin.PluginManager;
 import org.datanucleus.plugin.PluginRegistry;
@@ -37,6 +40,8 @@ import org.datanucleus.store.*;
 
 import com.force.sdk.connector.ForceConnectorConfig;
 import com.force.sdk.connector.ForceConnectorUtils;
+import com.force.sdk.jpa.query.QueryExecutionListener;
+import com.force.sdk.jpa.query.SlowQueryLogger;
 import com.force.sdk.jpa.schema.*;
 import com.force.sdk.jpa.table.TableImpl;
 
@@ -55,6 +60,9 @@ public class ForceStoreManager extends AbstractStoreManager {
     
     private static final String FORCE_PREFIX = FORCE_KEY + "://";
     
+    // Longest wait for queued asynchronous writes when the persistence unit is closed
+    private static final long ASYNC_WRITER_CLOSE_TIMEOUT_MILLIS = 30 * 1000;
+    
     // Connection information for the persistence layer to
     // get a connection to the Force.com service
     private ForceConnectorConfig config;
@@ -69,6 +77,13 @@ public class ForceStoreManager extends AbstractStoreManager {
     private final boolean enableOptimisticTransactions;
     private ForceSchemaWriter schemaWriter;
     private final boolean forDelete;
+    private final ForceTaskExecutor taskExecutor;
+    private final FieldValueInterner valueInterner;
+    private final BulkFlush bulkFlush;
+    private final int bulkDeleteThreshold;
+    private final boolean skipUnchangedFields;
+    private AsyncWriter asyncWriter;
+    private final List<QueryExecutionListener> queryExecutionListeners = new CopyOnWriteArrayList<QueryExecutionListener>();
 
     /**
      * Looks into system variable and environment variables if url is in ${...} format.
@@ -162,6 +177,29 @@ public class ForceStoreManager extends AbstractStoreManager {
             poolMinEvictableIdleTimeMillis = 30 * 1000; // default, 30 secs
         }
         
+        // worker threads for concurrent Force.com API calls
+        int workerThreads = conf.getIntProperty("force.workerThreads");
+        if (workerThreads <= 0) {
+            workerThreads = 8; // default
+        }
+        taskExecutor = new ForceTaskExecutor(this, workerThreads);
+        
+        // slots for sharing repeated field values across query results, 0 turns sharing off
+        Object internerSize = conf.getProperty("force.valueInternerSize");
+        int valueInternerSize = internerSize != null ? Integer.parseInt(internerSize.toString().trim())
+                                                        : FieldValueInterner.DEFAULT_SIZE;
+        valueInterner = valueInternerSize > 0 ? new FieldValueInterner(valueInternerSize) : null;
+        
+        // large flushes go to the Bulk API, off unless a threshold is set
+        bulkFlush = BulkFlush.forConfiguration(conf);
+        // bulk delete queries that match this many records use the Bulk API, off by default
+        bulkDeleteThreshold = conf.getIntProperty("force.bulkDeleteThreshold");
+        // updates leave out dirty fields whose value is still the one read, on by default
+        skipUnchangedFields = conf.getBooleanProperty("force.skipUnchangedFields", true /* resultIfNotSet */);
+        
+        // listeners for query timings and row counts
+        initQueryExecutionListeners(conf);
+        
         // setup optimistic enabled
         Object isEnabled = omfContext.getPersistenceConfiguration().getProperty("datanucleus.Optimistic");
         enableOptimisticTransactions = isEnabled != null && (isEnabled instanceof Boolean && isEnabled.equals(Boolean.TRUE)
@@ -170,6 +208,28 @@ public class ForceStoreManager extends AbstractStoreManager {
         logConfiguration();
     }
     
+    private void initQueryExecutionListeners(PersistenceConfiguration conf) {
+        String listenerClasses = conf.getStringProperty("force.queryExecutionListeners");
+        if (listenerClasses != null) {
+            ClassLoaderResolver clr = omfContext.getClassLoaderResolver(null);
+            for (String listenerClass : listenerClasses.split(",")) {
+                if (listenerClass.trim().length() == 0) continue;
+                try {
+                    Class<?> type = clr.classForName(listenerClass.trim());
+                    queryExecutionListeners.add((QueryExecutionListener) type.getDeclaredConstructor().newInstance());
+                } catch (InvocationTargetException e) {
+                    throw new NucleusUserException("Unable to create query execution listener: " + listenerClass, e.getCause());
+                } catch (Exception e) {
+                    throw new NucleusUserException("Unable to create query execution listener: " + listenerClass, e);
+                }
+            }
+        }
+        Object slowQueryThreshold = conf.getProperty("force.slowQueryThresholdMillis");
+        if (slowQueryThreshold != null) {
+            queryExecutionListeners.add(new SlowQueryLogger(Long.parseLong(slowQueryThreshold.toString().trim())));
+        }
+    }
+    
     private void setCustomPluginManager() throws NoSuchFieldException, IllegalAccessException {
         PluginManager pluginMgr = omfContext.getPluginManager();
         Field registryField = PluginManager.class.getDeclaredField("registry");
@@ -193,6 +253,16 @@ public class ForceStoreManager extends AbstractStoreManager {
     @Override
     public void close() {
         omfContext.getMetaDataManager().deregisterListener(metadataListener);
+        AsyncWriter writer;
+        synchronized (this) {
+            writer = asyncWriter;
+            asyncWriter = null;
+        }
+        // Draining the writer may take a while, it must not hold up the threads that use this store manager
+        if (writer != null) {
+            writer.close(ASYNC_WRITER_CLOSE_TIMEOUT_MILLIS);
+        }
+        taskExecutor.shutdown();
         super.close();
     }
 
@@ -295,6 +365,93 @@ public class ForceStoreManager extends AbstractStoreManager {
         return enableOptimisticTransactions;
     }
     
+    /**
+     * Returns the executor that runs Force.com API calls concurrently, each on its own connection.
+     * The number of threads is set with the {@code force.workerThreads} property.
+     * 
+     * @return the task executor of this store manager
+     */
+    public ForceTaskExecutor getTaskExecutor() {
+        return taskExecutor;
+    }
+    
+    /**
+     * Returns the interner that shares repeated field values across the query results of this persistence unit.
+     * The number of slots is set with the {@code force.valueInternerSize} property.
+     * 
+     * @return the value interner, or {@code null} if sharing is turned off
+     */
+    FieldValueInterner getValueInterner() {
+        return valueInterner;
+    }
+    
+    /**
+     * Returns the Bulk API flush settings of this persistence unit.
+     * 
+     * @return the bulk flush, or {@code null} if all writes use the SOAP API
+     */
+    BulkFlush getBulkFlush() {
+        return bulkFlush;
+    }
+    
+    /**
+     * Returns the number of matching records from which a bulk delete query uses the Bulk API.
+     * 
+     * @return the threshold, 0 or less if bulk delete queries always use the SOAP API
+     */
+    int getBulkDeleteThreshold() {
+        return bulkDeleteThreshold;
+    }
+    
+    /**
+     * Returns whether updates leave out the fields that still have the value last read from Force.com.
+     * 
+     * @return {@code true} if unchanged fields are not sent on update
+     */
+    boolean isSkipUnchangedFields() {
+        return skipUnchangedFields;
+    }
+    
+    /**
+     * Returns the background writer of the entities persisted asynchronously, starting it on first use.
+     * 
+     * @return the asynchronous writer of this persistence unit
+     */
+    synchronized AsyncWriter getAsyncWriter() {
+        if (asyncWriter == null) {
+            asyncWriter = AsyncWriter.forConfiguration(this, omfContext.getPersistenceConfiguration(),
+                                                        omfContext.getClassLoaderResolver(null));
+        }
+        return asyncWriter;
+    }
+    
+    /**
+     * Returns the listeners that receive the timings and row counts of every query of this persistence unit.
+     * 
+     * @return the query execution listeners
+     */
+    public List<QueryExecutionListener> getQueryExecutionListeners() {
+        return queryExecutionListeners;
+    }
+    
+    /**
+     * Adds a listener that receives the timings and row counts of every query of this persistence unit.
+     * 
+     * @param listener the listener to add
+     */
+    public void addQueryExecutionListener(QueryExecutionListener listener) {
+        queryExecutionListeners.add(listener);
+    }
+    
+    /**
+     * Removes a query execution listener.
+     * 
+     * @param listener the listener to remove
+     */
+    public void removeQueryExecutionListener(QueryExecutionListener listener) {
+        queryExecutionListeners.remove(listener);
+    }
+    
     public ForceMetaDataListener getMetaDataListener() {
         return metadataListener;
     }
@@ -0,0 +1,220 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.force.sdk.jpa;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.datanucleus.exceptions.NucleusException;
+
+/**
+ * 
+ * Bounded pool of worker threads used to run independent Force.com API calls concurrently.
+ * <p>
+ * Every task gets its own {@code ForceManagedConnection}. The connection is created on the submitting
+ * thread, so that any thread local connector config is honored, and it is released on the worker once
+ * the task finishes. Tasks must not touch the ExecutionContext; they only talk to Force.com and
+ * hand their results back to the submitting thread.
+ *
+ * @author Fiaz Hossain
+ */
+public class ForceTaskExecutor {
+
+    /**
+     * A unit of work that runs on its own Force.com connection.
+     *
+     * @param <T> the result type of the task
+     * @author Fiaz Hossain
+     */
+    public interface ConnectionTask<T> {
+        /**
+         * Runs the task.
+         * 
+         * @param mconn the managed connection dedicated to this task
+         * @return the result of the task
+         * @throws Exception any error raised while talking to Force.com
+         */
+        T call(ForceManagedConnection mconn) throws Exception;
+    }
+    
+    private static final ThreadLocal<Boolean> IS_WORKER = new ThreadLocal<Boolean>();
+    
+    private final ForceStoreManager storeManager;
+    private final int threads;
+    private ExecutorService executor;
+    
+    /**
+     * Creates a task executor. Threads are only started once the first task is submitted.
+     * 
+     * @param storeManager the store manager used to create connections
+     * @param threads the maximum number of worker threads
+     */
+    ForceTaskExecutor(ForceStoreManager storeManager, int threads) {
+        this.storeManager = storeManager;
+        this.threads = threads;
+    }
+    
+    /**
+     * Whether the current thread is one of the worker threads. Work submitted from a worker runs inline.
+     * 
+     * @return {@code true} on a worker thread
+     */
+    public static boolean isWorkerThread() {
+        return Boolean.TRUE.equals(IS_WORKER.get());
+    }
+    
+    public int getThreads() {
+        return threads;
+    }
+    
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            final AtomicInteger count = new AtomicInteger();
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(final Runnable r) {
+                            Thread t = new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    IS_WORKER.set(Boolean.TRUE);
+                                    r.run();
+                                }
+                            }, "force-jpa-worker-" + count.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+        }
+        return executor;
+    }
+    
+    /**
+     * Submits a task to run on a worker thread with its own connection.
+     * 
+     * @param <T> the result type of the task
+     * @param task the task to run
+     * @return a future holding the result of the task
+     */
+    public <T> Future<T> submit(final ConnectionTask<T> task) {
+        final ForceManagedConnection mconn = storeManager.createConnection();
+        try {
+            return getExecutor().submit(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    try {
+                        return task.call(mconn);
+                    } finally {
+                        // A cancelled call may have left the connection mid request, never reuse it
+                        if (Thread.currentThread().isInterrupted()) mconn.close();
+                        mconn.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            mconn.release();
+            throw new NucleusDataStoreException("Task rejected, the executor has been shut down", e);
+        }
+    }
+    
+    /**
+     * Runs the given tasks concurrently and waits for all of them. If any task fails the others are
+     * cancelled and the failure is rethrown. When called from a worker thread the tasks run one after
+     * the other on the calling thread, so that nested work cannot exhaust the pool.
+     * 
+     * @param <T> the result type of the tasks
+     * @param tasks the tasks to run
+     * @return the results in the same order as the tasks
+     */
+    public <T> List<T> invokeAll(List<? extends ConnectionTask<T>> tasks) {
+        List<T> results = new ArrayList<T>(tasks.size());
+        if (isWorkerThread() || tasks.size() == 1) {
+            for (ConnectionTask<T> task : tasks) {
+                ForceManagedConnection mconn = storeManager.createConnection();
+                try {
+                    results.add(task.call(mconn));
+                } catch (NucleusException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new NucleusDataStoreException(e.getMessage(), e);
+                } finally {
+                    mconn.release();
+                }
+            }
+            return results;
+        }
+        List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+        try {
+            for (ConnectionTask<T> task : tasks) {
+                futures.add(submit(task));
+            }
+            for (Future<T> future : futures) {
+                results.add(getResult(future));
+            }
+            return results;
+        } finally {
+            for (Future<T> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+    
+    /**
+     * Waits for a task and unwraps its failure.
+     * 
+     * @param <T> the result type of the task
+     * @param future the future of the task
+     * @return the result of the task
+     */
+    public static <T> T getResult(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NucleusDataStoreException("Interrupted while waiting for Force.com", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof NucleusException) throw (NucleusException) cause;
+            throw new NucleusDataStoreException(cause.getMessage(), cause);
+        }
+    }
+    
+    /**
+     * Stops the worker threads. Tasks that are already running are allowed to finish.
+     */
+    synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+}
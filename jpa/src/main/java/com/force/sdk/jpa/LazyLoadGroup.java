@@ -0,0 +1,125 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.force.sdk.jpa;
+
+import java.util.*;
+
+import org.datanucleus.state.LifeCycleState;
+import org.datanucleus.state.ObjectProviderImpl;
+import org.datanucleus.store.ExecutionContext;
+import org.datanucleus.store.ObjectProvider;
+
+/**
+ * 
+ * The entities materialized together by a query, whose lazy fields are loaded together when they are first
+ * accessed (see {@link ForcePersistenceHandler#fetchObject(ObjectProvider, int[])}). Each entity of the group
+ * holds it as an associated value of its state manager, so that a lazy load only looks at the entities of the
+ * same result rather than at every entity of the object manager.
+ * <p>
+ * The group keeps how far it has been searched for each set of fields. A member that was passed over is not
+ * looked at again for the same fields, so loading a field of every entity of a result takes one pass over it.
+ *
+ * @author Fiaz Hossain
+ */
+public final class LazyLoadGroup {
+
+    private static final String KEY = "force.lazyLoadGroup";
+    
+    private final List<ObjectProvider> members;
+    // The index of the next member to search, by set of fields
+    private final Map<String, Integer> cursors = new HashMap<String, Integer>();
+    
+    private LazyLoadGroup(List<ObjectProvider> members) {
+        this.members = members;
+    }
+    
+    /**
+     * Groups the entities returned by a query so that their lazy fields are loaded together.
+     * 
+     * @param ec the execution context that manages the entities
+     * @param entities the materialized entities
+     */
+    public static void track(ExecutionContext ec, Collection<?> entities) {
+        if (entities.size() < 2) return;
+        List<ObjectProvider> members = new ArrayList<ObjectProvider>(entities.size());
+        for (Object entity : entities) {
+            ObjectProvider op = ec.findObjectProvider(entity);
+            if (op != null) members.add(op);
+        }
+        LazyLoadGroup group = new LazyLoadGroup(members);
+        for (ObjectProvider op : members) {
+            op.setAssociatedValue(KEY, group);
+        }
+    }
+    
+    /**
+     * Collects the members of the group of an entity that are also waiting for the given fields to be loaded.
+     * 
+     * @param op the entity whose fields are accessed
+     * @param fieldNumbers the fields to load
+     * @param size the largest number of entities to return
+     * @return the entities to load, starting with the one that was asked for
+     */
+    static List<ObjectProvider> nextBatch(ObjectProvider op, int[] fieldNumbers, int size) {
+        List<ObjectProvider> batch = new ArrayList<ObjectProvider>();
+        batch.add(op);
+        if (!(op instanceof ObjectProviderImpl)) return batch;
+        Object group = ((ObjectProviderImpl) op).getStateManager().getAssociatedValue(KEY);
+        if (group instanceof LazyLoadGroup) {
+            ((LazyLoadGroup) group).addAwaiting(batch, fieldNumbers, size);
+        }
+        return batch;
+    }
+    
+    private synchronized void addAwaiting(List<ObjectProvider> batch, int[] fieldNumbers, int size) {
+        String key = Arrays.toString(fieldNumbers);
+        Integer cursor = cursors.get(key);
+        int next = cursor != null ? cursor : 0;
+        ObjectProvider op = batch.get(0);
+        for (; next < members.size() && batch.size() < size; next++) {
+            ObjectProvider member = members.get(next);
+            // A query over a class with subclasses returns entities that are loaded with different queries
+            if (member != op && member.getObject().getClass() == op.getObject().getClass()
+                    && isAwaitingFields(member, fieldNumbers)) {
+                batch.add(member);
+            }
+        }
+        cursors.put(key, next);
+    }
+    
+    private static boolean isAwaitingFields(ObjectProvider op, int[] fieldNumbers) {
+        LifeCycleState state = op.getLifecycleState();
+        if (state == null || !state.isPersistent() || state.isNew() || state.isDeleted()) return false;
+        if (op.provideField(op.getClassMetaData().getPKMemberPositions()[0]) == null) return false;
+        boolean[] loaded = op.getLoadedFields();
+        for (int fieldNumber : fieldNumbers) {
+            if (loaded[fieldNumber]) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,289 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.force.sdk.jpa;
+
+import static com.force.sdk.jpa.ForceEntityManager.LOGGER;
+
+import java.util.*;
+
+import com.force.sdk.jpa.ForceTaskExecutor.ConnectionTask;
+import com.sforce.soap.partner.*;
+import com.sforce.soap.partner.Error;
+import com.sforce.soap.partner.fault.ApiFault;
+import com.sforce.soap.partner.sobject.SObject;
+import com.sforce.ws.ConnectionException;
+
+/**
+ * 
+ * Sends queued creates, updates, upserts and deletes with the SOAP API in chunks of at most 200 records, the
+ * most a single call accepts.
+ * <p>
+ * Records are chunked by level and object type (see {@link FlushOrder}). The chunks of a level are sent at
+ * the same time, each on its own pooled connection, and a level is only sent once the levels below it are
+ * done, so that parents exist before the children that refer to them. The id of each created record is set
+ * on it and replaces the references to it on the next levels (see {@link FlushOrder.ParentReference}).
+ * <p>
+ * With all or nothing, each chunk is atomic and no further level is sent once a chunk fails. A failed
+ * chunk cannot undo the chunks that succeeded. When compensation is turned on, the records created by
+ * those chunks are deleted again and the records they deleted are undeleted. Updates, including upserts
+ * that matched an existing record, are not compensated.
+ *
+ * @author Fiaz Hossain
+ */
+final class SoapFlush {
+
+    static final int MAX_BATCH_SIZE = 200;
+    
+    /**
+     * The write operations that can be chunked.
+     */
+    enum Operation { CREATE, UPDATE, UPSERT, DELETE }
+    
+    private final ForceStoreManager storeManager;
+    private final boolean compensate;
+    
+    SoapFlush(ForceStoreManager storeManager, boolean compensate) {
+        this.storeManager = storeManager;
+        this.compensate = compensate;
+    }
+    
+    /**
+     * Sends the records in chunks and waits for all of them.
+     * 
+     * @param operation the operation to run
+     * @param records the records, which hold their type, and their id for updates and deletes
+     * @param versions the if-modified-before time of each record for updates, {@code null} for no check
+     * @param allOrNone whether each chunk is atomic and a failed chunk stops the following levels
+     * @return the result of each record, in the order of the records. Records that were rolled back or
+     *         not sent fail with {@code ALL_OR_NONE_OPERATION_ROLLED_BACK}
+     */
+    SaveResult[] execute(Operation operation, SObject[] records, Calendar[] versions, boolean allOrNone) {
+        return execute(operation, records, versions, null, null, allOrNone);
+    }
+    
+    /**
+     * Upserts the records in chunks, matching them to existing records by external id, and waits for all of them.
+     * 
+     * @param records the records, which hold their type and their external id
+     * @param externalIdFields the Force.com API name of the external id field of each object type
+     * @param created receives whether each record was created rather than updated
+     * @param allOrNone whether each chunk is atomic and a failed chunk stops the following levels
+     * @return the result of each record, in the order of the records, with the id of the created or updated record
+     */
+    SaveResult[] upsert(SObject[] records, Map<String, String> externalIdFields, boolean[] created, boolean allOrNone) {
+        return execute(Operation.UPSERT, records, null, externalIdFields, created, allOrNone);
+    }
+    
+    private SaveResult[] execute(final Operation operation, final SObject[] records, final Calendar[] versions,
+            final Map<String, String> externalIdFields, final boolean[] created, final boolean allOrNone) {
+        SaveResult[] results = new SaveResult[records.length];
+        boolean failed = false;
+        for (Map<String, List<Integer>> level : FlushOrder.groupByLevel(Arrays.asList(records))) {
+            if (failed && allOrNone) {
+                for (List<Integer> group : level.values()) {
+                    for (int index : group) {
+                        results[index] = rolledBack("Not sent, an earlier chunk failed");
+                    }
+                }
+                continue;
+            }
+            for (int index : FlushOrder.resolveLevel(level, Arrays.asList(records))) {
+                results[index] = failure("Not sent, the parent record was not created");
+                failed = true;
+            }
+            List<List<Integer>> chunks = FlushOrder.chunks(level, MAX_BATCH_SIZE);
+            List<ConnectionTask<SaveResult[]>> tasks = new ArrayList<ConnectionTask<SaveResult[]>>(chunks.size());
+            for (final List<Integer> chunk : chunks) {
+                tasks.add(new ConnectionTask<SaveResult[]>() {
+                    @Override
+                    public SaveResult[] call(ForceManagedConnection mconn) throws Exception {
+                        return send((PartnerConnection) mconn.getConnection(), operation, records, versions,
+                                externalIdFields, created, chunk, allOrNone);
+                    }
+                });
+            }
+            List<SaveResult[]> chunkResults = storeManager.getTaskExecutor().invokeAll(tasks);
+            for (int i = 0; i < chunks.size(); i++) {
+                for (int j = 0; j < chunks.get(i).size(); j++) {
+                    SaveResult result = chunkResults.get(i)[j];
+                    results[chunks.get(i).get(j)] = result;
+                    failed |= !result.isSuccess();
+                    if (result.isSuccess() && (operation == Operation.CREATE || operation == Operation.UPSERT)) {
+                        // Children on the next levels refer to the record by this id
+                        records[chunks.get(i).get(j)].setId(result.getId());
+                    }
+                }
+            }
+        }
+        if (failed && allOrNone && compensate) {
+            compensate(operation, records, results, created);
+        }
+        return results;
+    }
+    
+    private SaveResult[] send(PartnerConnection connection, Operation operation, SObject[] records, Calendar[] versions,
+            Map<String, String> externalIdFields, boolean[] created, List<Integer> chunk, boolean allOrNone)
+            throws ConnectionException {
+        SObject[] toSend = new SObject[chunk.size()];
+        for (int i = 0; i < toSend.length; i++) {
+            toSend[i] = records[chunk.get(i)];
+        }
+        if (versions != null && storeManager.isEnableOptimisticTransactions()) {
+            Calendar[] chunkVersions = new Calendar[chunk.size()];
+            for (int i = 0; i < chunkVersions.length; i++) {
+                chunkVersions[i] = versions[chunk.get(i)];
+            }
+            ConditionalRequestHeader_element ch = new ConditionalRequestHeader_element();
+            ch.setIfModifiedBeforeArray(chunkVersions);
+            connection.__setConditionalRequestHeader(ch);
+        }
+        connection.setAllOrNoneHeader(allOrNone);
+        try {
+            switch (operation) {
+            case CREATE:
+                return connection.create(toSend);
+            case UPDATE:
+                return connection.update(toSend);
+            case UPSERT:
+                // A chunk holds records of a single type
+                UpsertResult[] upserted = connection.upsert(externalIdFields.get(toSend[0].getType()), toSend);
+                SaveResult[] saved = new SaveResult[upserted.length];
+                for (int i = 0; i < upserted.length; i++) {
+                    saved[i] = new SaveResult();
+                    saved[i].setId(upserted[i].getId());
+                    saved[i].setSuccess(upserted[i].isSuccess());
+                    saved[i].setErrors(upserted[i].getErrors());
+                    created[chunk.get(i)] = upserted[i].isCreated();
+                }
+                return saved;
+            default:
+                String[] ids = new String[toSend.length];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = toSend[i].getId();
+                }
+                DeleteResult[] deleted = connection.delete(ids);
+                SaveResult[] results = new SaveResult[deleted.length];
+                for (int i = 0; i < deleted.length; i++) {
+                    results[i] = new SaveResult();
+                    results[i].setId(deleted[i].getId());
+                    results[i].setSuccess(deleted[i].isSuccess());
+                    results[i].setErrors(deleted[i].getErrors());
+                }
+                return results;
+            }
+        } catch (ApiFault af) {
+            // Nothing of the chunk was saved, report the fault on each of its records
+            SaveResult[] results = new SaveResult[toSend.length];
+            for (int i = 0; i < results.length; i++) {
+                Error error = new Error();
+                error.setMessage(af.getExceptionCode() + ": " + af.getExceptionMessage());
+                results[i] = new SaveResult();
+                results[i].setErrors(new Error[] {error});
+            }
+            return results;
+        } finally {
+            try {
+                connection.setAllOrNoneHeader(false);
+            } finally {
+                connection.clearConditionalRequestHeader();
+            }
+        }
+    }
+    
+    /**
+     * Undoes the chunks that succeeded. Failures to undo are logged, the records stay as they are.
+     */
+    private void compensate(Operation operation, SObject[] records, SaveResult[] results, boolean[] created) {
+        List<Integer> done = new ArrayList<Integer>();
+        int updated = 0;
+        for (int i = 0; i < results.length; i++) {
+            if (!results[i].isSuccess()) continue;
+            if (operation == Operation.UPDATE || operation == Operation.UPSERT && !created[i]) {
+                updated++;
+            } else {
+                done.add(i);
+            }
+        }
+        if (updated > 0) {
+            LOGGER.warn("All or nothing flush failed, " + updated + " updated records cannot be rolled back");
+        }
+        if (done.isEmpty()) return;
+        ForceManagedConnection mconn = storeManager.createConnection();
+        try {
+            PartnerConnection connection = (PartnerConnection) mconn.getConnection();
+            for (int start = 0; start < done.size(); start += MAX_BATCH_SIZE) {
+                List<Integer> chunk = done.subList(start, Math.min(start + MAX_BATCH_SIZE, done.size()));
+                String[] ids = new String[chunk.size()];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = operation != Operation.DELETE ? results[chunk.get(i)].getId() : records[chunk.get(i)].getId();
+                }
+                boolean[] undone = new boolean[ids.length];
+                if (operation != Operation.DELETE) {
+                    DeleteResult[] deleted = connection.delete(ids);
+                    for (int i = 0; i < deleted.length; i++) {
+                        undone[i] = deleted[i].isSuccess();
+                    }
+                } else {
+                    UndeleteResult[] undeleted = connection.undelete(ids);
+                    for (int i = 0; i < undeleted.length; i++) {
+                        undone[i] = undeleted[i].isSuccess();
+                    }
+                }
+                for (int i = 0; i < ids.length; i++) {
+                    if (undone[i]) {
+                        results[chunk.get(i)] = rolledBack("Rolled back, another chunk failed");
+                    } else {
+                        LOGGER.error("All or nothing flush failed and record could not be rolled back: " + ids[i]);
+                    }
+                }
+            }
+        } catch (ConnectionException e) {
+            LOGGER.error("All or nothing flush failed and could not be rolled back", e);
+        } finally {
+            mconn.release();
+        }
+    }
+    
+    private static SaveResult failure(String message) {
+        Error error = new Error();
+        error.setStatusCode(StatusCode.INVALID_CROSS_REFERENCE_KEY);
+        error.setMessage(message);
+        SaveResult result = new SaveResult();
+        result.setErrors(new Error[] {error});
+        return result;
+    }
+    
+    private static SaveResult rolledBack(String message) {
+        Error error = new Error();
+        error.setStatusCode(StatusCode.ALL_OR_NONE_OPERATION_ROLLED_BACK);
+        error.setMessage(message);
+        SaveResult result = new SaveResult();
+        result.setErrors(new Error[] {error});
+        return result;
+    }
+}
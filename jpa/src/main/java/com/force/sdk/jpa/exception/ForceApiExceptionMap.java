@@ -26,7 +26,14 @@
 
 package com.force.sdk.jpa.exception;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.persistence.OptimisticLockException;
+import javax.persistence.PersistenceException;
+
 import org.datanucleus.exceptions.*;
+import org.datanucleus.jpa.NucleusJPAHelper;
 import org.datanucleus.store.query.NoQueryResultsException;
 
 import com.sforce.soap.partner.fault.ApiFault;
@@ -77,4 +84,31 @@ public final class ForceApiExceptionMap {
             return new NucleusDataStoreException(af.toString(), af);
         }
     }
+    
+    /**
+     * Maps a DataNucleus exception to the proper JPA exception. An {@code OptimisticLockException} holds
+     * the conflicting entity. The conflicts found in a flush of optimistic transactions are mapped to a
+     * {@link ForceOptimisticLockException} that reports each conflicting entity.
+     * 
+     * @param ne the DataNucleus exception to map
+     * @return the properly mapped JPA exception
+     */
+    public static PersistenceException mapToJPAException(NucleusException ne) {
+        if (ne instanceof NucleusOptimisticException && ne.getNestedExceptions() == null) {
+            return new OptimisticLockException(ne.getMessage(), ne, ne.getFailedObject());
+        }
+        if (ne instanceof NucleusOptimisticException) {
+            List<OptimisticLockException> conflicts = new ArrayList<OptimisticLockException>();
+            for (Throwable nested : ne.getNestedExceptions()) {
+                if (nested instanceof NucleusOptimisticException) {
+                    conflicts.add(new OptimisticLockException(nested.getMessage(), nested,
+                            ((NucleusOptimisticException) nested).getFailedObject()));
+                }
+            }
+            if (!conflicts.isEmpty()) {
+                return new ForceOptimisticLockException(ne.getMessage(), conflicts);
+            }
+        }
+        return NucleusJPAHelper.getJPAExceptionForNucleusException(ne);
+    }
 }
@@ -0,0 +1,69 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.force.sdk.jpa.exception;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.persistence.OptimisticLockException;
+
+/**
+ * 
+ * Reports the entities of a flush whose records were modified since they were read. Versioned updates are
+ * sent together and checked by Force.com in the same calls, so a single flush can find several conflicts.
+ * Each conflict is an {@code OptimisticLockException} that holds its entity. This exception holds the entity
+ * of the first one.
+ *
+ * @author Fiaz Hossain
+ */
+public class ForceOptimisticLockException extends OptimisticLockException {
+
+    private static final long serialVersionUID = 1L;
+    
+    private final List<OptimisticLockException> conflicts;
+    
+    /**
+     * Creates an exception for the conflicts of a flush.
+     * 
+     * @param message the message
+     * @param conflicts one exception per conflicting entity, at least one
+     */
+    public ForceOptimisticLockException(String message, List<OptimisticLockException> conflicts) {
+        super(message, conflicts.get(0), conflicts.get(0).getEntity());
+        this.conflicts = Collections.unmodifiableList(conflicts);
+    }
+    
+    /**
+     * Returns the conflicts found by the flush.
+     * 
+     * @return one exception per entity whose record was modified since it was read
+     */
+    public List<OptimisticLockException> getConflicts() {
+        return conflicts;
+    }
+}
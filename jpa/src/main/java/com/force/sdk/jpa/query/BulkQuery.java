@@ -0,0 +1,300 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.force.sdk.jpa.query;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+import javax.xml.namespace.QName;
+
+import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.datanucleus.exceptions.NucleusUserException;
+
+import com.force.sdk.jpa.BulkJobs;
+import com.force.sdk.jpa.ForceManagedConnection;
+import com.sforce.async.*;
+import com.sforce.soap.partner.QueryResult;
+import com.sforce.soap.partner.sobject.SObject;
+import com.sforce.ws.ConnectionException;
+import com.sforce.ws.bind.XmlObject;
+
+/**
+ * 
+ * Runs a SOQL query as a Bulk API query job (see {@link QueryHints#BULK_QUERY}). The job status is polled
+ * with an increasing delay, and the CSV results are read row by row into sObjects shaped like the
+ * records of a SOAP query, so they are materialized by the same column mapping. The result files are
+ * read one at a time, as the records are materialized.
+ * <p>
+ * With {@link QueryHints#BULK_PK_CHUNK_SIZE} the server splits the query into batches over ranges of ids.
+ * The original batch is then left unprocessed and the results are read from the chunk batches.
+ *
+ * @author Fiaz Hossain
+ */
+final class BulkQuery {
+
+    static final String PK_CHUNKING_HEADER = "Sforce-Enable-PKChunking";
+    // Body of the single result of a query that matched no rows
+    static final String NO_RECORDS = "Records not found for this query";
+    
+    private final int pkChunkSize;
+    
+    private BulkQuery(int pkChunkSize) {
+        this.pkChunkSize = pkChunkSize;
+    }
+    
+    /**
+     * Reads the Bulk API hints of a query.
+     * 
+     * @param utils the query utils holding the hints
+     * @return the bulk query runner or {@code null} if the query should use the SOAP API
+     */
+    static BulkQuery forQuery(ForceQueryUtils utils) {
+        Object bulkHint = utils.getHints(QueryHints.BULK_QUERY);
+        if (bulkHint == null || !Boolean.parseBoolean(bulkHint.toString())) return null;
+        Object chunkHint = utils.getHints(QueryHints.BULK_PK_CHUNK_SIZE);
+        int pkChunkSize = 0;
+        if (chunkHint != null) {
+            try {
+                pkChunkSize = Integer.parseInt(chunkHint.toString().trim());
+            } catch (NumberFormatException e) {
+                throw new NucleusUserException("Invalid value for " + QueryHints.BULK_PK_CHUNK_SIZE + ": " + chunkHint);
+            }
+        }
+        return new BulkQuery(pkChunkSize);
+    }
+    
+    /**
+     * Runs the query as a Bulk API job and waits for it to complete. The result files are not read here,
+     * each one is downloaded when the returned iterator reaches it. The wait checks the execution of the query
+     * on each poll, the job is aborted if the query is cancelled or runs out of time.
+     * 
+     * @param mconn the managed connection to Force.com
+     * @param soqlQuery the query to run
+     * @param execution the execution of the query
+     * @return the records of the job, one query result per result file
+     * @throws ConnectionException if the Bulk API connection cannot be created
+     * @throws AsyncApiException if a Bulk API call fails
+     * @throws IOException if the query cannot be sent
+     */
+    Iterator<QueryResult> execute(ForceManagedConnection mconn, String soqlQuery, final QueryExecution execution)
+        throws ConnectionException, AsyncApiException, IOException {
+        String objectName = getObjectName(soqlQuery);
+        BulkConnection bulk = mconn.getBulkConnection();
+        if (pkChunkSize > 0) {
+            // Headers stay on a connection, keep this one to the chunked job
+            bulk = new BulkConnection(bulk.getConfig());
+            bulk.addHeader(PK_CHUNKING_HEADER, "chunkSize=" + pkChunkSize);
+        }
+        JobInfo job = new JobInfo();
+        job.setObject(objectName);
+        job.setOperation(OperationEnum.query);
+        job.setContentType(ContentType.CSV);
+        job.setConcurrencyMode(ConcurrencyMode.Parallel);
+        job = bulk.createJob(job);
+        boolean completed = false;
+        try {
+            bulk.createBatchFromStream(job, new ByteArrayInputStream(soqlQuery.getBytes("UTF-8")));
+            bulk.closeJob(job.getId());
+            
+            List<String[]> resultFiles = new ArrayList<String[]>();
+            List<BatchInfo> batches = BulkJobs.awaitBatches(bulk, job.getId(), new Runnable() {
+                @Override
+                public void run() {
+                    execution.checkpoint();
+                }
+            });
+            for (BatchInfo batch : batches) {
+                for (String resultId : bulk.getQueryResultList(job.getId(), batch.getId()).getResult()) {
+                    resultFiles.add(new String[] {batch.getId(), resultId});
+                }
+            }
+            completed = true;
+            return new ResultFiles(bulk, job.getId(), objectName, resultFiles);
+        } finally {
+            if (!completed) {
+                BulkJobs.abort(bulk, job.getId());
+            }
+        }
+    }
+    
+    /**
+     * Reads the rows of a CSV result file. Columns of related objects, such as {@code Owner.Name}, become
+     * nested objects the way they are returned by a SOAP query. A related object whose columns are all
+     * empty is set to {@code null}.
+     */
+    static void readRecords(InputStream in, String objectName, List<SObject> records) throws IOException {
+        CSVReader reader = new CSVReader(in, "UTF-8");
+        List<String> header = reader.nextRecord();
+        if (header == null || header.size() == 1 && NO_RECORDS.equals(header.get(0))) return;
+        String[][] paths = new String[header.size()][];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = header.get(i).split("\\.");
+        }
+        
+        List<String> row;
+        Set<String> presentPrefixes = new HashSet<String>();
+        while ((row = reader.nextRecord()) != null) {
+            presentPrefixes.clear();
+            for (int i = 0; i < paths.length; i++) {
+                if (getValue(row, i) == null) continue;
+                String prefix = "";
+                for (int p = 0; p < paths[i].length - 1; p++) {
+                    prefix += paths[i][p] + ".";
+                    presentPrefixes.add(prefix);
+                }
+            }
+            
+            SObject sobject = new SObject();
+            sobject.setType(objectName);
+            for (int i = 0; i < paths.length; i++) {
+                String value = getValue(row, i);
+                XmlObject parent = sobject;
+                String prefix = "";
+                String[] path = paths[i];
+                int p = 0;
+                for (; p < path.length - 1; p++) {
+                    prefix += path[p] + ".";
+                    XmlObject child = parent.getChild(path[p]);
+                    if (!presentPrefixes.contains(prefix)) {
+                        if (child == null) parent.setField(path[p], null);
+                        break;
+                    }
+                    if (child == null) {
+                        child = new XmlObject(new QName(path[p]));
+                        parent.addField(path[p], child);
+                    }
+                    parent = child;
+                }
+                if (p < path.length - 1) continue;
+                
+                String name = path[path.length - 1];
+                if (parent == sobject && "Id".equalsIgnoreCase(name)) {
+                    sobject.setId(value);
+                } else {
+                    parent.setField("Id".equalsIgnoreCase(name) ? "Id" : name, value);
+                }
+            }
+            records.add(sobject);
+        }
+    }
+    
+    /**
+     * The result files of a completed query job. Each file is downloaded and read when the iterator reaches it,
+     * so only the rows of one file are held at a time.
+     *
+     * @author Fiaz Hossain
+     */
+    private static final class ResultFiles implements Iterator<QueryResult> {
+        private final BulkConnection bulk;
+        private final String jobId;
+        private final String objectName;
+        private final Iterator<String[]> files;
+        
+        private ResultFiles(BulkConnection bulk, String jobId, String objectName, List<String[]> files) {
+            this.bulk = bulk;
+            this.jobId = jobId;
+            this.objectName = objectName;
+            this.files = files.iterator();
+        }
+        
+        @Override
+        public boolean hasNext() {
+            return files.hasNext();
+        }
+        
+        @Override
+        public QueryResult next() {
+            String[] file = files.next();
+            List<SObject> records = new ArrayList<SObject>();
+            try {
+                InputStream in = bulk.getQueryResultStream(jobId, file[0], file[1]);
+                try {
+                    readRecords(in, objectName, records);
+                } finally {
+                    in.close();
+                }
+            } catch (AsyncApiException e) {
+                throw new NucleusDataStoreException(e.getMessage(), e);
+            } catch (IOException e) {
+                throw new NucleusDataStoreException(e.getMessage(), e);
+            }
+            QueryResult qr = new QueryResult();
+            qr.setRecords(records.toArray(new SObject[records.size()]));
+            qr.setSize(records.size());
+            qr.setDone(!files.hasNext());
+            return qr;
+        }
+        
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+    
+    // Null values are written as empty cells
+    private static String getValue(List<String> row, int index) {
+        String value = index < row.size() ? row.get(index) : null;
+        return value != null && value.length() > 0 ? value : null;
+    }
+    
+    /**
+     * Finds the object queried by the outermost FROM clause.
+     */
+    static String getObjectName(String soqlQuery) {
+        int depth = 0;
+        String lower = soqlQuery.toLowerCase();
+        for (int i = 0; i < lower.length(); i++) {
+            char c = lower.charAt(i);
+            if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == '\'') {
+                // Skip string literals, they may contain the keyword
+                for (i++; i < lower.length() && lower.charAt(i) != '\''; i++) {
+                    if (lower.charAt(i) == '\\') i++;
+                }
+            } else if (depth == 0 && lower.startsWith("from", i) && isBoundary(lower, i - 1) && isBoundary(lower, i + 4)) {
+                int start = i + 4;
+                while (start < lower.length() && Character.isWhitespace(lower.charAt(start))) start++;
+                int end = start;
+                while (end < lower.length() && (Character.isLetterOrDigit(lower.charAt(end)) || lower.charAt(end) == '_')) {
+                    end++;
+                }
+                if (end > start) return soqlQuery.substring(start, end);
+            }
+        }
+        throw new NucleusUserException("Unable to find the object queried by: " + soqlQuery);
+    }
+    
+    private static boolean isBoundary(String s, int index) {
+        return index < 0 || index >= s.length() || Character.isWhitespace(s.charAt(index));
+    }
+}
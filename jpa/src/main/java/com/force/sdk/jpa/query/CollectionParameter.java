@@ -33,9 +33,9 @@ import java.util.*;
  * return a properly serialized String representation of the collection, appropriate for SOQL
  * queries.
  * 
- * String collections get all members wrapped. So [AAA,BBB] -->  ('AAA', 'BBB')
+ * String collections get all members quoted and escaped. So [AAA,B'B] -->  ('AAA','B\'B')
  * Date/Calendar collections get serialized according to SOQLDateFormatUtil formatting methods.
- * All other collection types rely on their respective toString() methods. So [1,2,3] --> (1,2,3)
+ * Members are written by {@link SOQLLiteralWriter}. So [1,2,3] --> (1,2,3)
  * 
  * @author Saptarshi Roy
  *
@@ -60,47 +60,54 @@ public class CollectionParameter {
      * Empty arrays return the value {@code NULL}, resulting in queries like '... WHERE Id IN (NULL). This works in SOQL
      * independent of type.
      * 
-     * Strings are wrapped in single quotes.
+     * Strings are wrapped in single quotes and escaped.
      * All other types are returned as simple comma separated lists.
      * 
      * @return A serialized String representation of the collection appropriate for SOQL IN clause queries.
      */
     @Override
     public String toString() {
-
-        if (collection.size() > 0) {
-            StringBuilder sb = new StringBuilder();
-            sb.append("(");
-
-            Iterator<?> paramIter = collection.iterator();
-            
-            boolean pastFirst = false;
-            while (paramIter.hasNext()) {
-                Object paramValue = paramIter.next();
-                
-                if (pastFirst) {
-                    sb.append(",");
-                }
-                
-                if (paramValue instanceof String) {
-                    sb.append("'" + paramValue + "'");
-                } else if (paramValue instanceof Calendar) {
-                    sb.append(SOQLDateFormatUtil.getSOQLFormat((Calendar) paramValue));
-                }  else if (paramValue instanceof Date) {
-                    sb.append(SOQLDateFormatUtil.getSOQLFormat((Date) paramValue));
-                } else {
-                    sb.append(paramValue);
-                }
-                
-                pastFirst = true;
+        return appendTo(new StringBuilder()).toString();
+    }
+    
+    /**
+     * Appends the serialized collection to a query buffer without building an intermediate String.
+     * 
+     * @param sb the query buffer
+     * @return the query buffer
+     */
+    public StringBuilder appendTo(StringBuilder sb) {
+        return SOQLLiteralWriter.appendCollection(sb, collection);
+    }
+    
+    /**
+     * Splits the collection into chunks that each serialize to at most {@code maxLength} characters.
+     * Duplicate values are dropped.
+     * 
+     * @param maxLength the maximum length of a serialized chunk, parentheses included
+     * @return the chunks in iteration order, or {@code null} if a single value does not fit
+     */
+    List<Collection<?>> split(int maxLength) {
+        List<Collection<?>> chunks = new ArrayList<Collection<?>>();
+        List<Object> chunk = new ArrayList<Object>();
+        int length = 2;
+        StringBuilder sb = new StringBuilder();
+        for (Object paramValue : new LinkedHashSet<Object>(collection)) {
+            sb.setLength(0);
+            SOQLLiteralWriter.appendValue(sb, paramValue);
+            if (!chunk.isEmpty() && length + sb.length() + 1 > maxLength) {
+                chunks.add(chunk);
+                chunk = new ArrayList<Object>();
+                length = 2;
             }
-            
-            sb.append(")");
-            return sb.toString();
-        } else {
-            // This is a type neutral syntax for an empty list in SOQL.
-            return "(NULL)";
+            int valueLength = chunk.isEmpty() ? sb.length() : sb.length() + 1;
+            if (length + valueLength > maxLength) return null;
+            chunk.add(paramValue);
+            length += valueLength;
+        }
+        if (!chunk.isEmpty()) {
+            chunks.add(chunk);
         }
+        return chunks;
     }
-    
 }
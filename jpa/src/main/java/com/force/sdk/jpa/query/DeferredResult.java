@@ -0,0 +1,144 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.force.sdk.jpa.query;
+
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * 
+ * Result of a query that was started asynchronously. The Force.com calls run on worker threads while the
+ * final step, which turns the returned rows into objects of the ExecutionContext, runs when the result is
+ * first read. An ExecutionContext is not thread safe, so only the thread that started the query may read
+ * the result first; other threads get an {@code IllegalStateException} until it has done so.
+ *
+ * @param <T> the type of the result
+ * @author Fiaz Hossain
+ */
+abstract class DeferredResult<T> implements Future<T> {
+
+    private final List<? extends Future<?>> sources;
+    private final Thread owner;
+    private T result;
+    private RuntimeException failure;
+    private boolean completed;
+    
+    DeferredResult(List<? extends Future<?>> sources) {
+        this.sources = sources;
+        this.owner = Thread.currentThread();
+    }
+    
+    /**
+     * Builds the result once all sources are done.
+     * 
+     * @return the result
+     * @throws Exception if the result cannot be built
+     */
+    protected abstract T complete() throws Exception;
+    
+    /**
+     * Maps a failure of a source or of {@link #complete()} to the exception reported to the caller.
+     * 
+     * @param t the failure
+     * @return the exception to report
+     */
+    protected abstract RuntimeException mapFailure(Throwable t);
+    
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = false;
+        for (Future<?> source : sources) {
+            cancelled |= source.cancel(mayInterruptIfRunning);
+        }
+        return cancelled;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        for (Future<?> source : sources) {
+            if (source.isCancelled()) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        for (Future<?> source : sources) {
+            if (!source.isDone()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Waits for the sources and builds the result. The sources are waited for by {@link #complete()}, which
+     * applies the time allowed for the query.
+     * 
+     * @return the result
+     * @throws ExecutionException if a source or building the result failed
+     * @throws IllegalStateException if the result has not been built yet and this is not the thread that
+     *         started the query
+     */
+    @Override
+    public T get() throws ExecutionException {
+        checkOwner();
+        return getCompleted();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        checkOwner();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Future<?> source : sources) {
+            try {
+                source.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+            } catch (ExecutionException e) {
+                throw new ExecutionException(e.getCause().getMessage(), mapFailure(e.getCause()));
+            }
+        }
+        return getCompleted();
+    }
+    
+    private synchronized void checkOwner() {
+        if (!completed && Thread.currentThread() != owner) {
+            throw new IllegalStateException("The result of an asynchronous query must first be read by the thread"
+                                            + " that started it, which owns its EntityManager");
+        }
+    }
+    
+    private synchronized T getCompleted() throws ExecutionException {
+        if (!completed) {
+            try {
+                result = complete();
+            } catch (Exception e) {
+                failure = mapFailure(e);
+            }
+            completed = true;
+        }
+        if (failure != null) throw new ExecutionException(failure.getMessage(), failure);
+        return result;
+    }
+}
@@ -28,9 +28,9 @@ package com.force.sdk.jpa.query;
 
 import java.math.BigDecimal;
 import java.math.BigInteger;
-import java.net.URL;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.Future;
 
 import javax.jdo.identity.StringIdentity;
 import javax.jdo.spi.PersistenceCapable;
@@ -47,10 +47,13 @@ import org.datanucleus.query.symbol.Symbol;
 import org.datanucleus.store.*;
 import org.datanucleus.store.query.AbstractJavaQuery;
 import org.datanucleus.store.query.Query;
+import org.datanucleus.store.query.QueryInterruptedException;
+import org.datanucleus.store.query.QueryTimeoutException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.force.sdk.jpa.*;
+import com.force.sdk.jpa.ForceTaskExecutor.ConnectionTask;
 import com.force.sdk.jpa.annotation.JoinFilter;
 import com.force.sdk.jpa.exception.ForceApiExceptionMap;
 import com.force.sdk.jpa.query.formatter.MultiPicklistFormatter;
@@ -74,6 +77,12 @@ public class ForceQueryUtils {
     
     private static final int MAX_EXPRESSION_DEPTH = 100;
     private static final int MAX_DELETE_IDS = 200;
+    /**
+     * Largest row offset the Force.com SOQL OFFSET clause accepts.
+     */
+    static final int MAX_SOQL_OFFSET = 2000;
+    // Maximum length of a SOQL statement
+    static final int MAX_SOQL_LENGTH = 20000;
     private static final Set<String> AGGREGATE_METHODS;
     private static final Set<String> UNSUPPORTED_JOINS;
     
@@ -96,10 +105,17 @@ public class ForceQueryUtils {
 
     /**
      * limit type used for determining how the JPA query is executed.
+     * <ul>
+     *   <li>{@code Soql} - the range is sent as SOQL LIMIT and OFFSET</li>
+     *   <li>{@code Keyset} - the offset is too deep for SOQL OFFSET; the query is ordered by id and
+     *       the start of the range is located by seeking over ids</li>
+     *   <li>{@code Java} - the range is applied in memory after the query has run</li>
+     * </ul>
      */
     enum LimitType {
         None,
         Soql,
+        Keyset,
         Java
     }
     
@@ -110,6 +126,7 @@ public class ForceQueryUtils {
     private Map<String, QueryListener> listeners;
     private Map<String, Object> hints;
     private int currentHint;
+    private QueryExecution execution;
    
     /**
      * Creates the query util for a specific query.
@@ -142,11 +159,40 @@ public class ForceQueryUtils {
     public static LimitType getLimitType(Query query) {
         if (query.getRangeFromIncl() > 0 || (query.getRangeToExcl() > 0 && query.getRangeToExcl() < Long.MAX_VALUE)) {
             if (query.getRangeFromIncl() == 0) return LimitType.Soql;
+            // Native SOQL is sent as is so the offset can only be applied in memory
+            if (query.getCompilation() == null) return LimitType.Java;
+            if (query.getRangeFromIncl() <= MAX_SOQL_OFFSET) return LimitType.Soql;
+            if (isSeekable(query)) return LimitType.Keyset;
             return LimitType.Java;
         }
         return LimitType.None;
     }
     
+    /**
+     * Checks whether the start of a deep range can be found by seeking over ids. This is only possible
+     * for entity queries that are either unordered or ordered by id ascending.
+     */
+    private static boolean isSeekable(Query query) {
+        QueryCompilation compilation = query.getCompilation();
+        if (compilation.getExprResult() != null || compilation.getExprGrouping() != null
+                || query.getCandidateClass() == null) {
+            return false;
+        }
+        Expression[] ordering = compilation.getExprOrdering();
+        if (ordering == null) return true;
+        if (ordering.length != 1 || !(ordering[0] instanceof OrderExpression)) return false;
+        OrderExpression order = (OrderExpression) ordering[0];
+        if (order.getSortOrder() != null && !"ascending".equals(order.getSortOrder())) return false;
+        if (!(order.getLeft() instanceof PrimaryExpression)) return false;
+        List<String> tuples = ((PrimaryExpression) order.getLeft()).getTuples();
+        ExecutionContext ec = query.getObjectManager();
+        AbstractClassMetaData acmd =
+            ec.getMetaDataManager().getMetaDataForClass(query.getCandidateClass(), ec.getClassLoaderResolver());
+        if (acmd == null || acmd.getPKMemberPositions() == null) return false;
+        String pkName = acmd.getMetaDataForManagedMemberAtAbsolutePosition(acmd.getPKMemberPositions()[0]).getName();
+        return pkName.equalsIgnoreCase(tuples.get(tuples.size() - 1));
+    }
+    
     ExecutionContext getExecutionContext() {
         return ec;
     }
@@ -158,10 +204,34 @@ public class ForceQueryUtils {
     Object getHints(String hint) {
         return hints != null ? hints.get(hint) : null;
     }
+    
+    /**
+     * Sets the execution that bounds the Force.com calls of this query and lets it be cancelled.
+     * 
+     * @param queryExecution the execution started by the query
+     * @return this query util
+     */
+    ForceQueryUtils setExecution(QueryExecution queryExecution) {
+        this.execution = queryExecution;
+        return this;
+    }
+    
+    private QueryExecution getExecution() {
+        if (execution == null) {
+            execution = new QueryExecution(QueryExecution.getTimeoutMillis(ec, hints));
+        }
+        return execution;
+    }
     /**
      * 
      * Convenience method to delete all objects of the candidate type from the 
      * specified XML connection.
+     * <p>
+     * The ids are read with queryMore while earlier chunks of 200 are being deleted on the worker threads,
+     * each chunk on its own connection. The recycle bin is emptied of each deleted chunk by a call of its own,
+     * so the purge does not hold up the deletes. When the number of matching objects reaches
+     * {@code force.bulkDeleteThreshold} they are deleted by a Bulk API job instead, a hard delete if the
+     * recycle bin is to be emptied.
      * 
      * @param candidateClass Candidate
      * @return Number of objects deleted
@@ -175,138 +245,697 @@ public class ForceQueryUtils {
                 throw new NucleusUserException("Entity not found: " + candidateClass);
             }
             final ForceStoreManager storeManager = (ForceStoreManager) ec.getStoreManager();
+            ForcePersistenceHandler handler = (ForcePersistenceHandler) storeManager.getPersistenceHandler();
 
             TableImpl table = storeManager.getTable(acmd);
             PartnerConnection service = (PartnerConnection) mconn.getConnection();
+            final boolean emptyRecycleBin = hints != null && Boolean.TRUE.equals(hints.get(QueryHints.EMPTY_RECYCLE_BIN));
+            QueryExecution queryExecution = getExecution();
 
-            long totalDeleted = 0;
-            boolean done = false;
-            while (!done) {
-                QueryResult qr =
-                    service.query(buildQuery(table, acmd, null, query.getCompilation(), false,
-                                                MAX_DELETE_IDS, null, table.getTableName().getForceApiName()));
-                if (qr.getSize() == 0) return totalDeleted;
-                String[] idsToDelete = new String[qr.getSize()];
-                for (int i = 0; i < idsToDelete.length; i++) {
-                    idsToDelete[i] = qr.getRecords()[i].getId();
+            QueryResult qr = service.query(buildQuery(table, acmd, null, query.getCompilation(), false,
+                                                        Long.MAX_VALUE, null, table.getTableName().getForceApiName()));
+            if (handler.isBulkDelete(qr.getSize())) {
+                List<String> ids = new ArrayList<String>(qr.getSize());
+                while (true) {
+                    for (SObject record : qr.getRecords()) {
+                        ids.add(record.getId());
+                    }
+                    if (qr.getDone() || qr.getQueryLocator() == null) break;
+                    queryExecution.checkpoint();
+                    qr = service.queryMore(qr.getQueryLocator());
                 }
-                // Now bulk delete them
-                DeleteResult[] deleteResult = service.delete(idsToDelete);
-                ForcePersistenceHandler.checkForErrors(deleteResult);
-                
-                // If all is well check for "EmptyRecycleBin" hint
-                if (hints != null) {
-                    if (Boolean.TRUE.equals(hints.get(QueryHints.EMPTY_RECYCLE_BIN))) {
-                        EmptyRecycleBinResult[] emptyResult = service.emptyRecycleBin(idsToDelete);
-                        ForcePersistenceHandler.checkForRecycleBinErrors(emptyResult);
+                handler.bulkDelete(table.getTableName().getForceApiName(), ids.toArray(new String[ids.size()]),
+                                    emptyRecycleBin, ec);
+                return (long) ids.size();
+            }
+            
+            ForceTaskExecutor executor = storeManager.getTaskExecutor();
+            // Deletes and purges in flight, oldest first
+            LinkedList<Future<String[]>> deletes = new LinkedList<Future<String[]>>();
+            LinkedList<Future<String[]>> purges = new LinkedList<Future<String[]>>();
+            int window = executor.getThreads() * 2;
+            long totalDeleted = 0;
+            try {
+                while (true) {
+                    SObject[] records = qr.getRecords();
+                    for (int start = 0; start < records.length; start += MAX_DELETE_IDS) {
+                        final String[] ids = new String[Math.min(MAX_DELETE_IDS, records.length - start)];
+                        for (int i = 0; i < ids.length; i++) {
+                            ids[i] = records[start + i].getId();
+                        }
+                        if (ForceTaskExecutor.isWorkerThread()) {
+                            // Nested work runs inline so that it cannot exhaust the pool
+                            totalDeleted += deleteIds(service, ids).length;
+                            if (emptyRecycleBin) purgeIds(service, ids);
+                            continue;
+                        }
+                        deletes.add(queryExecution.submit(executor, new ConnectionTask<String[]>() {
+                            @Override
+                            public String[] call(ForceManagedConnection taskConn) throws Exception {
+                                return deleteIds((PartnerConnection) taskConn.getConnection(), ids);
+                            }
+                        }));
+                        while (deletes.size() + purges.size() > window) {
+                            totalDeleted += awaitDelete(queryExecution, executor, deletes, purges, emptyRecycleBin);
+                        }
                     }
+                    if (qr.getDone() || qr.getQueryLocator() == null) break;
+                    queryExecution.checkpoint();
+                    qr = service.queryMore(qr.getQueryLocator());
+                }
+                while (!deletes.isEmpty()) {
+                    totalDeleted += awaitDelete(queryExecution, executor, deletes, purges, emptyRecycleBin);
+                }
+                while (!purges.isEmpty()) {
+                    queryExecution.await(purges.removeFirst());
+                }
+                return totalDeleted;
+            } finally {
+                for (Future<String[]> future : deletes) {
+                    future.cancel(true);
+                }
+                for (Future<String[]> future : purges) {
+                    future.cancel(true);
+                }
+            }
+        } catch (ApiFault af) {
+            throw new NucleusDataStoreException(af.toString(), af);
+        } catch (NucleusException ne) {
+            throw ne;
+        } catch (Exception e) {
+            throw new NucleusDataStoreException(e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Waits for the oldest delete, or the oldest purge if no delete is in flight, and starts the purge of a
+     * deleted chunk.
+     * 
+     * @return the number of deleted objects
+     */
+    private static int awaitDelete(QueryExecution queryExecution, ForceTaskExecutor executor,
+            LinkedList<Future<String[]>> deletes, LinkedList<Future<String[]>> purges, boolean emptyRecycleBin) {
+        if (deletes.isEmpty()) {
+            queryExecution.await(purges.removeFirst());
+            return 0;
+        }
+        final String[] ids = queryExecution.await(deletes.removeFirst());
+        if (emptyRecycleBin) {
+            purges.add(queryExecution.submit(executor, new ConnectionTask<String[]>() {
+                @Override
+                public String[] call(ForceManagedConnection taskConn) throws Exception {
+                    return purgeIds((PartnerConnection) taskConn.getConnection(), ids);
+                }
+            }));
+        }
+        return ids.length;
+    }
+    
+    private static String[] deleteIds(PartnerConnection service, String[] ids) throws ConnectionException {
+        ForcePersistenceHandler.checkForErrors(service.delete(ids));
+        return ids;
+    }
+    
+    private static String[] purgeIds(PartnerConnection service, String[] ids) throws ConnectionException {
+        ForcePersistenceHandler.checkForRecycleBinErrors(service.emptyRecycleBin(ids));
+        return ids;
+    }
+
+    /**
+     * Updates all objects of the candidate type that match the filter of a bulk update query. The ids are
+     * read batch by batch and each batch is updated as it arrives, sending only the fields of the SET clause.
+     * When the Bulk API flush mode applies to the number of matching objects they are sent as a single
+     * Bulk API job instead.
+     * 
+     * @param candidateClass Candidate
+     * @return Number of objects updated
+     */
+    Long updateObjectsOfCandidateType(Object candidateClass) {
+        try {
+            AbstractClassMetaData acmd =
+                candidateClass instanceof String ? ec.getMetaDataManager().getMetaDataForEntityName((String) candidateClass)
+                : ec.getMetaDataManager().getMetaDataForClass((Class) candidateClass, ec.getClassLoaderResolver());
+            if (acmd == null) {
+                throw new NucleusUserException("Entity not found: " + candidateClass);
+            }
+            Map<AbstractMemberMetaData, Object> values = getUpdateValues(acmd);
+            ForceStoreManager storeManager = (ForceStoreManager) ec.getStoreManager();
+            ForcePersistenceHandler handler = (ForcePersistenceHandler) storeManager.getPersistenceHandler();
+            TableImpl table = storeManager.getTable(acmd);
+            PartnerConnection service = (PartnerConnection) mconn.getConnection();
+            QueryExecution queryExecution = getExecution();
+
+            QueryResult qr = service.query(buildQuery(table, acmd, null, query.getCompilation(), false,
+                                                        Long.MAX_VALUE, null, table.getTableName().getForceApiName()));
+            // Above the Bulk API threshold the ids are collected and sent as one job
+            boolean collect = !qr.getDone() && handler.isBulkWrite(qr.getSize());
+            List<String> ids = new ArrayList<String>();
+            long totalUpdated = 0;
+            while (true) {
+                for (SObject record : qr.getRecords()) {
+                    ids.add(record.getId());
                 }
-                totalDeleted += deleteResult.length;
-                if (deleteResult.length < MAX_DELETE_IDS) {
-                    return totalDeleted;
+                if (!collect && !ids.isEmpty()) {
+                    handler.updateFields(acmd, ids.toArray(new String[ids.size()]), values, ec);
+                    totalUpdated += ids.size();
+                    ids.clear();
                 }
+                if (qr.getDone() || qr.getQueryLocator() == null) break;
+                queryExecution.checkpoint();
+                qr = service.queryMore(qr.getQueryLocator());
             }
-            return totalDeleted;
+            if (!ids.isEmpty()) {
+                handler.updateFields(acmd, ids.toArray(new String[ids.size()]), values, ec);
+                totalUpdated += ids.size();
+            }
+            return totalUpdated;
         } catch (ApiFault af) {
             throw new NucleusDataStoreException(af.toString(), af);
+        } catch (NucleusException ne) {
+            throw ne;
         } catch (Exception e) {
             throw new NucleusDataStoreException(e.getMessage(), e);
         }
     }
 
+    /**
+     * Reads the SET clause of a bulk update query. Each assignment sets a field of the candidate to a
+     * literal or a parameter.
+     */
+    private Map<AbstractMemberMetaData, Object> getUpdateValues(AbstractClassMetaData acmd) {
+        Expression[] assignments = query.getCompilation().getExprUpdate();
+        if (assignments == null || assignments.length == 0) {
+            throw new NucleusUserException("Bulk update without a SET clause: " + query.getSingleStringQuery());
+        }
+        Map<AbstractMemberMetaData, Object> values = new LinkedHashMap<AbstractMemberMetaData, Object>();
+        for (Expression assignment : assignments) {
+            if (!(assignment instanceof DyadicExpression) || assignment.getOperator() != Expression.OP_EQ
+                    || !(assignment.getLeft() instanceof PrimaryExpression)) {
+                throw new NucleusUserException("Unsupported SET clause: " + assignment);
+            }
+            List<String> tuples = ((PrimaryExpression) assignment.getLeft()).getTuples();
+            String alias = query.getCompilation().getCandidateAlias();
+            int start = tuples.size() > 1 && tuples.get(0).equals(alias) ? 1 : 0;
+            if (tuples.size() - start != 1) {
+                throw new NucleusUserException("Only fields of the updated entity can be set: " + assignment.getLeft());
+            }
+            AbstractMemberMetaData ammd = acmd.getMetaDataForMember(tuples.get(start));
+            if (ammd == null) {
+                throw new NucleusUserException("Unknown field in SET clause: " + tuples.get(start));
+            }
+            Expression right = assignment.getRight();
+            Object value;
+            if (right instanceof Literal) {
+                value = ((Literal) right).getLiteral();
+            } else if (right instanceof ParameterExpression) {
+                String id = ((ParameterExpression) right).getId();
+                if (parameters != null && parameters.containsKey(id)) {
+                    value = parameters.get(id);
+                } else if (parameters != null && id.matches("\\d+") && parameters.containsKey(Integer.valueOf(id))) {
+                    value = parameters.get(Integer.valueOf(id));
+                } else {
+                    throw new NucleusUserException("Cannot find parameter expression: " + right);
+                }
+            } else {
+                throw new NucleusUserException("SET values must be literals or parameters: " + right);
+            }
+            values.put(ammd, value);
+        }
+        return values;
+    }
+
     /**
      * Convenience method to get all objects of the candidate type (and optional subclasses) from the 
      * specified XML connection.
      * 
-     * @param ec ObjectManager
-     * @param mconn WSC connection
-     * @param candidateClass Candidate
-     * @param query - parsed query
+     * @param resultExpr the result expressions of the query
      * @return List of objects of the candidate type (or subclass)
      */
     List<Object> getObjectsOfCandidateType(Expression[] resultExpr) {
+        QueryExecution queryExecution = getExecution();
+        QueryPlan plan = null;
+        List<Object> results = null;
+        NucleusException failure = null;
         try {
-            ForceStoreManager storeManager = (ForceStoreManager) ec.getStoreManager();
-
-            ClassLoaderResolver clr = ec.getClassLoaderResolver();
-            AbstractClassMetaData acmd = null;
-            TableImpl table = null;
-            /**
-             * - If there is a candidate class and result class we are in JPQL and give result class the upper hand
-             * - If result class can be mapped to a table use it.
-             *       Otherwise result class must be a non-persistence capable class
-             * - If there is no candidate class but a result class it can be JPQL or NativeQuery.
-             *       Either way, use that class.
-             */
-            if (query.getCandidateClass() != null) {
-                AbstractClassMetaData candidateCmd = ec.getMetaDataManager().getMetaDataForClass(query.getCandidateClass(), clr);
-                if (candidateCmd == null) {
-                    throw new NucleusUserException("Candidate entity not found: " + query.getCandidateClass());
+            PartnerConnection service = (PartnerConnection) mconn.getConnection();
+            plan = planQuery(service, resultExpr);
+            queryExecution.planned();
+            if (plan == null) return results = new ArrayList<Object>();
+            // Partitions and calls with a timeout run on the workers, a single call stays on the connection of the context
+            Iterator<QueryResult> parts =
+                plan.merge(queryExecution.invokeAll(((ForceStoreManager) ec.getStoreManager()).getTaskExecutor(),
+                                                    plan.getTasks(), mconn));
+            queryExecution.fetched();
+            return results = plan.materialize(parts, queryExecution, mconn);
+        } catch (Exception e) {
+            throw failure = mapQueryFailure(e);
+        } finally {
+            notifyListeners(queryExecution, plan, results, failure);
+        }
+    }
+    
+    private void notifyListeners(QueryExecution queryExecution, QueryPlan plan, List<Object> results, Throwable failure) {
+        queryExecution.notify(((ForceStoreManager) ec.getStoreManager()).getQueryExecutionListeners(),
+                                query.getSingleStringQuery(), plan != null ? plan.soqlQueries : null, parameters,
+                                results != null ? results.size() : 0, failure);
+    }
+    
+    /**
+     * Starts the query on the worker threads of the store manager and returns immediately. The SOQL is built
+     * on the calling thread. Only the Force.com calls run on the workers, each on its own connection.
+     * The rows are turned into objects of the calling ExecutionContext when the result is first read, which
+     * the calling thread must do. The execution set on this instance stays registered until then, so that
+     * the query can be cancelled and its timeout applies to the calls on the workers.
+     * 
+     * @param resultExpr the result expressions of the query
+     * @param postProcessor applied to the objects once they are materialized, may be {@code null}
+     * @param executions the executions of the query, the execution is removed once it is over
+     * @return the pending result of the query
+     */
+    Future<List<Object>> getObjectsOfCandidateTypeAsync(Expression[] resultExpr, final ResultPostProcessor postProcessor,
+            final QueryExecution.Registry executions) {
+        final QueryExecution asyncExecution = getExecution();
+        final QueryPlan plan;
+        final List<Future<Iterator<QueryResult>>> futures = new ArrayList<Future<Iterator<QueryResult>>>();
+        try {
+            plan = planQuery((PartnerConnection) mconn.getConnection(), resultExpr);
+            asyncExecution.planned();
+            ForceTaskExecutor executor = ((ForceStoreManager) ec.getStoreManager()).getTaskExecutor();
+            if (plan != null) {
+                for (ConnectionTask<Iterator<QueryResult>> task : plan.getTasks()) {
+                    futures.add(asyncExecution.submit(executor, task));
                 }
-                TableImpl candidateTable = storeManager.getTable(candidateCmd);
-                if (query.getResultClass() != null) {
-                   /**
-                    * Validate that Result class is compatible with the candidate class. This can happen if two entities are
-                    * mapped to the same standard/custom object in Force.com
-                    */
-                    acmd = ec.getMetaDataManager().getMetaDataForClass(query.getResultClass(), clr);
-                    if (acmd != null) {
-                        TableImpl resultTable = storeManager.getTable(acmd);
-                        if (!resultTable.getTableName().getForceApiName()
-                                .equals(candidateTable.getTableName().getForceApiName())) {
-                            // The data is incompatible and cannot be saved to this entity
-                            throw new NucleusUserException(
-                                    String.format("Result class: %s is not compatible with force.com table: %s",
-                                                    query.getResultClass().getName(), candidateTable.getTableName().getName()));
+            }
+        } catch (Exception e) {
+            for (Future<Iterator<QueryResult>> future : futures) {
+                future.cancel(true);
+            }
+            executions.finish(asyncExecution);
+            NucleusException failure = mapQueryFailure(e);
+            notifyListeners(asyncExecution, null, null, failure);
+            throw failure;
+        }
+        return new DeferredResult<List<Object>>(futures) {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                asyncExecution.cancel();
+                executions.finish(asyncExecution);
+                return super.cancel(mayInterruptIfRunning);
+            }
+            
+            @Override
+            protected List<Object> complete() throws Exception {
+                List<Object> results = new ArrayList<Object>();
+                Throwable failure = null;
+                try {
+                    if (plan != null) {
+                        List<Iterator<QueryResult>> parts = new ArrayList<Iterator<QueryResult>>(futures.size());
+                        for (Future<Iterator<QueryResult>> future : futures) {
+                            parts.add(asyncExecution.await(future));
+                        }
+                        asyncExecution.fetched();
+                        // Materialize on the thread that owns the ExecutionContext, with a connection of its own
+                        ForceManagedConnection completeConn =
+                            (ForceManagedConnection) ec.getStoreManager().getConnection(ec);
+                        try {
+                            results = plan.materialize(plan.merge(parts), asyncExecution, completeConn);
+                        } finally {
+                            completeConn.release();
                         }
-                        table = resultTable;
                     }
+                } catch (Exception e) {
+                    failure = e;
+                    throw e;
+                } finally {
+                    executions.finish(asyncExecution);
+                    notifyListeners(asyncExecution, plan, results, failure != null ? mapQueryFailure(failure) : null);
                 }
-                if (acmd == null) {
-                   acmd = candidateCmd;
-                   table = candidateTable;
-                }
-            } else if (query.getResultClass() != null) {
-                acmd = ec.getMetaDataManager().getMetaDataForClass(query.getResultClass(), clr);
+                return postProcessor != null ? postProcessor.process(results) : results;
             }
             
-            PartnerConnection service = (PartnerConnection) mconn.getConnection();
+            @Override
+            protected RuntimeException mapFailure(Throwable t) {
+                return mapQueryFailure(t);
+            }
+        };
+    }
+    
+    /**
+     * Post processing of query results that has to run on the thread that owns the ExecutionContext.
+     *
+     * @author Fiaz Hossain
+     */
+    interface ResultPostProcessor {
+        /**
+         * Processes the materialized results.
+         * 
+         * @param results the objects returned by Force.com
+         * @return the final query result
+         */
+        List<Object> process(List<Object> results);
+    }
+    
+    private NucleusException mapQueryFailure(Throwable t) {
+        // Failures of worker threads arrive wrapped
+        Throwable cause = t instanceof NucleusDataStoreException && t.getCause() instanceof ApiFault ? t.getCause() : t;
+        if (cause instanceof QueryTimeoutException || cause instanceof QueryInterruptedException) {
+            return (NucleusException) cause;
+        }
+        if (cause instanceof ApiFault) {
+            return ForceApiExceptionMap.mapToNucleusException((ApiFault) cause, true /* isQuery */,
+                    ((ForceStoreManager) ec.getStoreManager()).isEnableOptimisticTransactions());
+        }
+        return new NucleusDataStoreException(cause.getMessage(), cause);
+    }
+    
+    /**
+     * Builds the SOQL for the query. Any calls needed to locate the start of the range or the partition
+     * boundaries are made here.
+     * 
+     * @return the query plan or {@code null} if the requested range lies past the end of the results
+     */
+    private QueryPlan planQuery(PartnerConnection service, Expression[] resultExpr) throws ConnectionException {
+        ForceStoreManager storeManager = (ForceStoreManager) ec.getStoreManager();
 
-            QueryResult qr;
-            Set<Integer> fieldsToLoad;
-            int [] fieldsLoaded;
-            if (query.getCompilation() != null && acmd != null) {
-                // This is used for JDOQL and JPQL
-                fieldsToLoad = getFieldsToLoad(acmd, query.getFetchPlan());
-                String soqlQuery =
-                    buildQuery(table, acmd, fieldsToLoad, query.getCompilation(), false,
-                                query.getRangeToExcl(), query.getFetchPlan(), table.getTableName().getForceApiName());
-                if (LOGGER.isDebugEnabled()) {
-                    StringBuilder sb = new StringBuilder(soqlQuery.length() * 2);
-                    sb.append("Executing JPQL: " + query.getSingleStringQuery()).append("\n").append("SOQL: ").append(soqlQuery);
-                    LOGGER.debug(sb.toString());
-                }
-                qr = service.query(soqlQuery);
-                fieldsLoaded = new int[fieldsToLoad.size()];
-                int i = 0;
-                for (int f : fieldsToLoad) {
-                    fieldsLoaded[i++] = f;
+        ClassLoaderResolver clr = ec.getClassLoaderResolver();
+        AbstractClassMetaData acmd = null;
+        TableImpl table = null;
+        /**
+         * - If there is a candidate class and result class we are in JPQL and give result class the upper hand
+         * - If result class can be mapped to a table use it.
+         *       Otherwise result class must be a non-persistence capable class
+         * - If there is no candidate class but a result class it can be JPQL or NativeQuery.
+         *       Either way, use that class.
+         */
+        if (query.getCandidateClass() != null) {
+            AbstractClassMetaData candidateCmd = ec.getMetaDataManager().getMetaDataForClass(query.getCandidateClass(), clr);
+            if (candidateCmd == null) {
+                throw new NucleusUserException("Candidate entity not found: " + query.getCandidateClass());
+            }
+            TableImpl candidateTable = storeManager.getTable(candidateCmd);
+            if (query.getResultClass() != null) {
+               /**
+                * Validate that Result class is compatible with the candidate class. This can happen if two entities are
+                * mapped to the same standard/custom object in Force.com
+                */
+                acmd = ec.getMetaDataManager().getMetaDataForClass(query.getResultClass(), clr);
+                if (acmd != null) {
+                    TableImpl resultTable = storeManager.getTable(acmd);
+                    if (!resultTable.getTableName().getForceApiName()
+                            .equals(candidateTable.getTableName().getForceApiName())) {
+                        // The data is incompatible and cannot be saved to this entity
+                        throw new NucleusUserException(
+                                String.format("Result class: %s is not compatible with force.com table: %s",
+                                                query.getResultClass().getName(), candidateTable.getTableName().getName()));
+                    }
+                    table = resultTable;
                 }
+            }
+            if (acmd == null) {
+               acmd = candidateCmd;
+               table = candidateTable;
+            }
+        } else if (query.getResultClass() != null) {
+            acmd = ec.getMetaDataManager().getMetaDataForClass(query.getResultClass(), clr);
+        }
+        
+        if (query.getCompilation() == null || acmd == null) {
+            // This is used for Native query
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Executing Native SOQL: " + query.getSingleStringQuery());
+            }
+            QueryPlan plan = new QueryPlan(acmd, acmd != null ? acmd.getDFGMemberPositions() : null, resultExpr,
+                                    Collections.singletonList(query.getSingleStringQuery()));
+            plan.bulk = BulkQuery.forQuery(this);
+            return plan;
+        }
+        
+        // This is used for JDOQL and JPQL
+        Set<Integer> fieldsToLoad = getFieldsToLoad(acmd, query.getFetchPlan());
+        long maxLimit = query.getRangeToExcl();
+        LimitType limitType = getLimitType(query);
+        KeysetPagination keyset = KeysetPagination.forQuery(this, table, acmd);
+        RangeClause range = null;
+        if (keyset != null) {
+            if (resultExpr != null || query.getCompilation().getExprOrdering() != null
+                    || query.getRangeFromIncl() > 0) {
+                throw new NucleusUserException("Keyset pagination requires an entity query without ORDER BY"
+                                                + " or first result. The ordering comes from the "
+                                                + QueryHints.KEYSET_ORDERING + " hint");
+            }
+            keyset.addFieldsToLoad(fieldsToLoad);
+            range = new RangeClause(0, keyset.getSeekPredicate(), keyset.getOrdering());
+        } else if (limitType == LimitType.Soql || limitType == LimitType.Keyset) {
+            maxLimit = query.getRangeToExcl() < Long.MAX_VALUE
+                            ? query.getRangeToExcl() - query.getRangeFromIncl() : Long.MAX_VALUE;
+            if (limitType == LimitType.Soql) {
+                range = new RangeClause(query.getRangeFromIncl(), null, null);
             } else {
-                // This is used for Native query
-                if (LOGGER.isDebugEnabled()) {
-                    LOGGER.debug("Executing Native SOQL: " + query.getSingleStringQuery());
+                String lastSkippedId = seekPastOffset(service, table, acmd, query.getRangeFromIncl());
+                if (lastSkippedId == null) return null;
+                range = new RangeClause(0, "id > '" + lastSkippedId + "'", "id");
+            }
+        }
+        
+        List<String> soqlQueries = null;
+        Comparator<SObject> comparator = null;
+        // A bulk query job is split by the server (PK chunking) rather than here
+        BulkQuery bulk = BulkQuery.forQuery(this);
+        QueryPartitioner partitioner = bulk == null && keyset == null && resultExpr == null && query.getRangeFromIncl() == 0
+                                            ? QueryPartitioner.forQuery(this, table, acmd) : null;
+        if (partitioner != null) {
+            comparator = getPartitionComparator(table, acmd, fieldsToLoad);
+            if (comparator != null || query.getCompilation().getExprOrdering() == null) {
+                soqlQueries = buildPartitionQueries(service, partitioner, table, acmd, fieldsToLoad, maxLimit);
+            }
+        }
+        boolean distinct = false;
+        if (soqlQueries == null) {
+            String soqlQuery =
+                buildQuery(table, acmd, fieldsToLoad, query.getCompilation(), false,
+                            maxLimit, query.getFetchPlan(), table.getTableName().getForceApiName(), range);
+            if (soqlQuery.length() > MAX_SOQL_LENGTH && bulk == null && keyset == null && resultExpr == null) {
+                // Merging the chunks may need the ordering fields, keep them apart until the query is split
+                Set<Integer> chunkFieldsToLoad = new LinkedHashSet<Integer>(fieldsToLoad);
+                Comparator<SObject> chunkComparator = getPartitionComparator(table, acmd, chunkFieldsToLoad);
+                if (chunkComparator != null || query.getCompilation().getExprOrdering() == null) {
+                    soqlQueries = buildInListChunkQueries(table, acmd, chunkFieldsToLoad, maxLimit, range);
+                }
+                if (soqlQueries != null) {
+                    fieldsToLoad = chunkFieldsToLoad;
+                    comparator = chunkComparator;
+                    distinct = true;
                 }
-                qr = service.query(query.getSingleStringQuery());
-                fieldsLoaded = acmd != null ? acmd.getDFGMemberPositions() : null;
             }
-            return getResultFromQueryResult(acmd, fieldsLoaded, qr, resultExpr);
-        } catch (ApiFault af) {
-            throw ForceApiExceptionMap.mapToNucleusException(af, true /* isQuery */,
-                    ((ForceStoreManager) ec.getStoreManager()).isEnableOptimisticTransactions());
-        } catch (Exception e) {
-            throw new NucleusDataStoreException(e.getMessage(), e);
+            if (soqlQueries == null) {
+                logQuery(soqlQuery);
+                soqlQueries = Collections.singletonList(soqlQuery);
+            }
+        }
+        int[] fieldsLoaded = new int[fieldsToLoad.size()];
+        int i = 0;
+        for (int f : fieldsToLoad) {
+            fieldsLoaded[i++] = f;
+        }
+        QueryPlan plan = new QueryPlan(acmd, fieldsLoaded, resultExpr, soqlQueries);
+        plan.keyset = keyset;
+        plan.comparator = comparator;
+        plan.maxLimit = maxLimit;
+        plan.distinct = distinct;
+        plan.bulk = bulk;
+        return plan;
+    }
+    
+    private void logQuery(String soqlQuery) {
+        if (LOGGER.isDebugEnabled()) {
+            StringBuilder sb = new StringBuilder(soqlQuery.length() * 2);
+            sb.append("Executing JPQL: " + query.getSingleStringQuery()).append("\n").append("SOQL: ").append(soqlQuery);
+            LOGGER.debug(sb.toString());
+        }
+    }
+    
+    /**
+     * Returns the comparator used to merge sorted partitions.
+     * 
+     * @return the comparator or {@code null} if the query is unordered or its ordering cannot be merged
+     */
+    private Comparator<SObject> getPartitionComparator(TableImpl table, AbstractClassMetaData acmd, Set<Integer> fieldsToLoad) {
+        QueryCompilation compilation = query.getCompilation();
+        if (compilation.getExprOrdering() == null) return null;
+        Comparator<SObject> comparator =
+            QueryPartitioner.createComparator(compilation.getExprOrdering(), compilation.getCandidateAlias(),
+                                                table, acmd, fieldsToLoad);
+        if (comparator == null) {
+            LOGGER.debug("Ordering cannot be merged across partitions. Running query serially");
+        }
+        return comparator;
+    }
+    
+    /**
+     * Builds one query per partition.
+     * 
+     * @return the partition queries or {@code null} if the query cannot be partitioned
+     */
+    private List<String> buildPartitionQueries(PartnerConnection service, QueryPartitioner partitioner, TableImpl table,
+            AbstractClassMetaData acmd, Set<Integer> fieldsToLoad, long maxLimit) throws ConnectionException {
+        QueryCompilation compilation = query.getCompilation();
+        if (compilation.getExprGrouping() != null) return null;
+        List<String> predicates = partitioner.getPredicates(service);
+        if (predicates.size() < 2) return null;
+        
+        List<String> soqlQueries = new ArrayList<String>(predicates.size());
+        for (String predicate : predicates) {
+            String soqlQuery = buildQuery(table, acmd, fieldsToLoad, compilation, false, maxLimit, query.getFetchPlan(),
+                                            table.getTableName().getForceApiName(), new RangeClause(0, predicate, null));
+            logQuery(soqlQuery);
+            soqlQueries.add(soqlQuery);
+        }
+        return soqlQueries;
+    }
+    
+    /**
+     * Splits a query that is too long because of a bound IN list into one query per chunk of the list.
+     * The chunks are sized to keep every query within {@link #MAX_SOQL_LENGTH}. Only a list that is used
+     * once, in a plain IN comparison, can be split because the results of the chunks are combined as a union.
+     * 
+     * @return the chunk queries or {@code null} if the query cannot be split
+     */
+    private List<String> buildInListChunkQueries(TableImpl table, AbstractClassMetaData acmd, Set<Integer> fieldsToLoad,
+            long maxLimit, RangeClause range) {
+        QueryCompilation compilation = query.getCompilation();
+        if (parameters == null || compilation.getExprGrouping() != null || compilation.getSubqueryAliases() != null
+                || query.getRangeFromIncl() > 0) {
+            return null;
+        }
+        Object listKey = null;
+        Collection<?> list = null;
+        for (Map.Entry<Object, Object> param : parameters.entrySet()) {
+            if (param.getValue() instanceof Collection<?>
+                    && (list == null || ((Collection<?>) param.getValue()).size() > list.size())) {
+                listKey = param.getKey();
+                list = (Collection<?>) param.getValue();
+            }
+        }
+        if (list == null || countInListReferences(compilation.getExprFilter(), listKey.toString(), false) != 1) {
+            LOGGER.debug("SOQL query exceeds the maximum length but has no IN list that can be split");
+            return null;
+        }
+        
+        Map<Object, Object> allParameters = parameters;
+        try {
+            // Measure the query with an empty list to find the room left for each chunk
+            String emptyList = new CollectionParameter(Collections.emptyList()).toString();
+            int baseLength =
+                buildChunkQuery(table, acmd, fieldsToLoad, maxLimit, range, allParameters, listKey, Collections.emptyList())
+                    .length() - emptyList.length();
+            List<Collection<?>> chunks = new CollectionParameter(list).split(MAX_SOQL_LENGTH - baseLength);
+            if (chunks == null || chunks.size() < 2) return null;
+            
+            List<String> soqlQueries = new ArrayList<String>(chunks.size());
+            for (Collection<?> chunk : chunks) {
+                String soqlQuery = buildChunkQuery(table, acmd, fieldsToLoad, maxLimit, range, allParameters, listKey, chunk);
+                logQuery(soqlQuery);
+                soqlQueries.add(soqlQuery);
+            }
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Split IN list of " + list.size() + " values into " + chunks.size() + " queries");
+            }
+            return soqlQueries;
+        } finally {
+            parameters = allParameters;
+        }
+    }
+    
+    private String buildChunkQuery(TableImpl table, AbstractClassMetaData acmd, Set<Integer> fieldsToLoad, long maxLimit,
+            RangeClause range, Map<Object, Object> allParameters, Object listKey, Collection<?> chunk) {
+        parameters = new HashMap<Object, Object>(allParameters);
+        parameters.put(listKey, chunk);
+        return buildQuery(table, acmd, fieldsToLoad, query.getCompilation(), false,
+                            maxLimit, query.getFetchPlan(), table.getTableName().getForceApiName(), range);
+    }
+    
+    /**
+     * Counts the references to a parameter that are the right hand side of an IN comparison.
+     * 
+     * @return the number of references or -1 if the parameter is also used in any other way or under a NOT
+     */
+    private static int countInListReferences(Expression expr, String paramId, boolean negated) {
+        if (expr == null) return 0;
+        if (expr instanceof ParameterExpression) {
+            return paramId.equals(((ParameterExpression) expr).getId()) ? -1 : 0;
+        }
+        if (expr instanceof DyadicExpression && expr.getOperator() == Expression.OP_IN
+                && expr.getRight() instanceof ParameterExpression
+                && paramId.equals(((ParameterExpression) expr.getRight()).getId())) {
+            int left = countInListReferences(expr.getLeft(), paramId, negated);
+            return negated || left < 0 ? -1 : left + 1;
+        }
+        boolean not = negated || expr.getOperator() == Expression.OP_NOT;
+        int count = 0;
+        List<Expression> children = new ArrayList<Expression>();
+        children.add(expr.getLeft());
+        children.add(expr.getRight());
+        if (expr instanceof InvokeExpression && ((InvokeExpression) expr).getArguments() != null) {
+            children.addAll(((InvokeExpression) expr).getArguments());
+        }
+        for (Expression child : children) {
+            int references = countInListReferences(child, paramId, not);
+            if (references < 0) return -1;
+            count += references;
+        }
+        return count;
+    }
+    
+    /**
+     * Runs a SOQL query and follows the query locator while the range of the query needs more rows.
+     * Without a range every batch is read, partitions and IN list chunks are only complete once drained.
+     * 
+     * @param rowsNeeded the number of rows the range needs, {@code Long.MAX_VALUE} without a range
+     * @return a single query result holding the records of the batches read
+     */
+    private static QueryResult queryBatches(PartnerConnection service, String soqlQuery, long rowsNeeded,
+            QueryExecution execution) throws ConnectionException {
+        QueryResult qr = service.query(soqlQuery);
+        execution.batchReceived(qr.getRecords(), false);
+        if (qr.getDone() || qr.getQueryLocator() == null || qr.getRecords().length >= rowsNeeded) {
+            return qr;
+        }
+        
+        List<SObject> records = new ArrayList<SObject>((int) Math.min(rowsNeeded, qr.getSize()));
+        Collections.addAll(records, qr.getRecords());
+        QueryResult more = qr;
+        while (records.size() < rowsNeeded && !more.getDone() && more.getQueryLocator() != null) {
+            execution.checkpoint();
+            more = service.queryMore(more.getQueryLocator());
+            execution.batchReceived(more.getRecords(), true);
+            Collections.addAll(records, more.getRecords());
         }
+        qr.setRecords(records.toArray(new SObject[records.size()]));
+        qr.setDone(more.getDone());
+        qr.setQueryLocator(more.getQueryLocator());
+        return qr;
+    }
+    
+    /**
+     * Locates the start of a range that lies deeper than SOQL OFFSET allows. The ids are walked in
+     * ascending order, each hop skipping up to {@code MAX_SOQL_OFFSET + 1} rows while reading a single id.
+     * 
+     * @return the id of the last row before the range, or {@code null} if the range is past the end of the results
+     */
+    private String seekPastOffset(PartnerConnection service, TableImpl table, AbstractClassMetaData acmd, long offset)
+        throws ConnectionException {
+        String lastId = null;
+        long remaining = offset;
+        while (remaining > 0) {
+            long hop = Math.min(remaining, MAX_SOQL_OFFSET + 1);
+            RangeClause range = new RangeClause(hop - 1, lastId != null ? "id > '" + lastId + "'" : null, "id");
+            QueryResult qr = service.query(buildQuery(table, acmd, new HashSet<Integer>(), query.getCompilation(), false,
+                                                        1, query.getFetchPlan(), table.getTableName().getForceApiName(), range));
+            if (qr.getRecords() == null || qr.getRecords().length == 0) return null;
+            lastId = qr.getRecords()[0].getId();
+            remaining -= hop;
+        }
+        return lastId;
     }
     
     private Set<Integer> getFieldsToLoad(AbstractClassMetaData acmd, FetchPlan fetchPlan) {
@@ -345,7 +974,7 @@ public class ForceQueryUtils {
     }
     
     private List<Object> getResultFromQueryResult(final AbstractClassMetaData acmd, final int[] fieldsToLoad,
-            QueryResult qr, Expression[] resultExpr) throws ConnectionException, SQLException {
+            QueryResult qr, Expression[] resultExpr, ForceManagedConnection conn) throws ConnectionException, SQLException {
         List<Object> results = new ArrayList<Object>();
         final ClassLoaderResolver clr = ec.getClassLoaderResolver();
         final ForceStoreManager storeManager = (ForceStoreManager) ec.getStoreManager();
@@ -367,12 +996,15 @@ public class ForceQueryUtils {
          *   or will be a single result class object (when you have specified "unique").
          *   The result class has to abide by the rules of JDO2 result classes (see Result Class specification).
          */
-        if (resultExpr != null || (acmd == null && query.getResultClass() != null)) {
+        if (resultExpr != null && query.getResultClass() == null && !(resultExpr[0] instanceof CreatorExpression)
+                && isTrue(getHints(QueryHints.COLUMNAR_RESULT))) {
+            return readTupleResult(qr, resultExpr, conn);
+        } else if (resultExpr != null || (acmd == null && query.getResultClass() != null)) {
             /**
              * This section is for scalar, aggregate queries, group by, having etc.
              */
             if (qr.getRecords().length > 0) {
-                results.addAll(readNonEntityObjects(qr.getRecords(), resultExpr, query.getResultClass()));
+                results.addAll(readNonEntityObjects(qr.getRecords(), resultExpr, query.getResultClass(), conn));
             } else if (resultExpr.length == 1 && resultExpr[0] instanceof InvokeExpression
                         && "COUNT".equals(((InvokeExpression) resultExpr[0]).getOperation())) {
                 // Typically means select count() or no rows found.
@@ -386,17 +1018,25 @@ public class ForceQueryUtils {
                 // Do resultset processing
                 ResultMetaDataROF rof = new ResultMetaDataROF(((SOQLQuery) query).getResultMetaData());
                 for (final SObject sobject : qr.getRecords()) {
-                    results.add(rof.getObject(ec, mconn, query, sobject));
+                    results.add(rof.getObject(ec, conn, query, sobject));
                 }
             } else {
                 Collections.addAll(results, qr.getRecords());
             }
+        } else if (isReadOnly(query)) {
+            // Reporting mode, build plain instances without state managers or the L1 cache
+            for (final SObject sobject : qr.getRecords()) {
+                results.add(new ForceFetchFieldManager(ec, acmd, storeManager, conn, sobject, query)
+                                .fetchReadOnlyObject(fieldsToLoad));
+            }
         } else {
             for (final SObject sobject : qr.getRecords()) {
                 results.add(ec.findObjectUsingAID(new Type(clr.classForName(acmd.getFullClassName())),
-                                getFieldValues2(acmd, fieldsToLoad, mconn, storeManager, sobject, query),
+                                getFieldValues2(acmd, fieldsToLoad, conn, storeManager, sobject, query),
                                 query.getIgnoreCache(), true));
             }
+            // Their lazy fields are loaded together when first accessed
+            LazyLoadGroup.track(ec, results);
         }
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug("Result raw rows: " + qr.getRecords().length + " processed rows: " + results.size());
@@ -404,6 +1044,20 @@ public class ForceQueryUtils {
         return results;
     }
 
+    /**
+     * Checks whether a query should return untracked, read-only entity instances.
+     *
+     * @param query the query being executed, may be {@code null}
+     * @return {@code true} if the {@link QueryHints#READ_ONLY} hint is set on the query
+     */
+    public static boolean isReadOnly(Query query) {
+        return isTrue(query != null ? query.getExtension(QueryHints.READ_ONLY) : null);
+    }
+    
+    private static boolean isTrue(Object hint) {
+        return hint != null && Boolean.parseBoolean(hint.toString());
+    }
+
     /**
      * Constructs the proper interface for fetching fields on sobjects.
      *
@@ -435,7 +1089,8 @@ public class ForceQueryUtils {
             @Override
             public void fetchNonLoadedFields(ObjectProvider sm) {
                 try {
-                    sm.replaceNonLoadedFields(acmd.getAllMemberPositions(),
+                    // Only the fields that were selected, lazy fields stay unloaded until they are accessed
+                    sm.replaceNonLoadedFields(fieldsToLoad,
                                                 new ForceFetchFieldManager(sm, storeManager, mconn, sobject, query));
                 } catch (Exception e) {
                     throw new NucleusException(e.getMessage(), e);
@@ -467,8 +1122,8 @@ public class ForceQueryUtils {
         }
     }
     
-    private Collection<Object> readExpressionObjects(SObject[] sObjects, Expression[] exprs, List<String> fieldNameList)
-        throws ConnectionException, SQLException {
+    private Collection<Object> readExpressionObjects(SObject[] sObjects, Expression[] exprs, List<String> fieldNameList,
+            ForceManagedConnection conn) throws ConnectionException, SQLException {
         
         List<Object> res = new ArrayList<Object>(sObjects.length);
         Map<String, ForceFetchFieldManager> ffms = new HashMap<String, ForceFetchFieldManager>();
@@ -476,16 +1131,126 @@ public class ForceQueryUtils {
             ffms.clear();
             List<Object> row = new ArrayList<Object>(exprs.length);
             for (int i = 0; i < exprs.length; i++) {
-                row.add(getDataForExpression(ffms, sObject, exprs[i], fieldNameList.get(i), null));
+                row.add(getDataForExpression(ffms, sObject, exprs[i], fieldNameList.get(i), null, conn));
             }
             res.add(row.size() > 1 ? row.toArray() : row.get(0));
         }
         return res;
     }
 
+    /**
+     * Reads projection and aggregate rows column by column. Numeric columns are parsed straight from the
+     * raw sObject values into primitive arrays, other columns go through the regular expression handling.
+     */
+    private TupleResult readTupleResult(QueryResult qr, Expression[] exprs, ForceManagedConnection conn)
+        throws ConnectionException, SQLException {
+        SObject[] sObjects = qr.getRecords();
+        Class<?>[] columnTypes = new Class<?>[exprs.length];
+        for (int i = 0; i < exprs.length; i++) {
+            columnTypes[i] = getTupleColumnType(exprs[i]);
+        }
+        if (sObjects.length == 0) {
+            // A plain count() comes back as the size of the query result
+            if (exprs.length == 1 && exprs[0] instanceof InvokeExpression
+                    && "COUNT".equals(((InvokeExpression) exprs[0]).getOperation())) {
+                TupleResult count = new TupleResult(new String[] {"expr0"}, new Class<?>[] {long.class}, 1);
+                count.setLong(0, 0, qr.getSize());
+                return count;
+            }
+            return new TupleResult(new String[exprs.length], columnTypes, 0);
+        }
+        
+        List<String> fieldNameList = new ArrayList<String>();
+        getFieldNameList(sObjects, false, fieldNameList, null);
+        String[] columnNames = fieldNameList.subList(0, exprs.length).toArray(new String[exprs.length]);
+        TupleResult tuples = new TupleResult(columnNames, columnTypes, sObjects.length);
+        Map<String, ForceFetchFieldManager> ffms = new HashMap<String, ForceFetchFieldManager>();
+        for (int row = 0; row < sObjects.length; row++) {
+            ffms.clear();
+            for (int col = 0; col < exprs.length; col++) {
+                if (TupleResult.isIntegral(columnTypes[col]) || TupleResult.isFloatingPoint(columnTypes[col])) {
+                    Object raw = sObjects[row].getField(columnNames[col]);
+                    if (raw == null) {
+                        tuples.setNull(col, row);
+                    } else if (TupleResult.isIntegral(columnTypes[col])) {
+                        tuples.setLong(col, row, parseLong(raw));
+                    } else {
+                        tuples.setDouble(col, row, raw instanceof Number
+                                                    ? ((Number) raw).doubleValue() : Double.parseDouble(raw.toString()));
+                    }
+                } else {
+                    Object value = getDataForExpression(ffms, sObjects[row], exprs[col], columnNames[col], null, conn);
+                    if (value == null) {
+                        tuples.setNull(col, row);
+                    } else {
+                        tuples.setObject(col, row, value);
+                    }
+                }
+            }
+        }
+        return tuples;
+    }
+    
+    private static long parseLong(Object raw) {
+        if (raw instanceof Number) return ((Number) raw).longValue();
+        try {
+            return Long.parseLong(raw.toString());
+        } catch (NumberFormatException ne) {
+            return Double.valueOf(raw.toString()).longValue();
+        }
+    }
+    
+    /**
+     * Returns the type a result expression produces. Numeric results map to primitive types, following the same
+     * rules as {@link ForceFetchFieldManager#fetchObjectField(AbstractMemberMetaData, Object)} and the aggregate
+     * handling in getDataForExpression. Everything else is {@code Object}.
+     */
+    private Class<?> getTupleColumnType(Expression expr) {
+        if (expr instanceof PrimaryExpression) {
+            // Only direct fields of an alias, relationship paths go through the regular expression handling
+            if (((PrimaryExpression) expr).getTuples().size() != 2) return Object.class;
+            ExpressionMetaData exprMetaData = getExpressionMetaData(expr);
+            AbstractMemberMetaData mmd = exprMetaData.getMemberMetaData();
+            AbstractClassMetaData cmd = exprMetaData.getClassMetaData();
+            if (mmd == null || cmd == null) return Object.class;
+            ColumnImpl column = ((ForceStoreManager) ec.getStoreManager()).getTable(cmd).getColumnFor(cmd, mmd);
+            if (column == null || column.getType() == null) return Object.class;
+            Class<?> type = mmd.getType();
+            switch (column.getType()) {
+            case _int:
+            case percent:
+                if (type == Long.class || type == long.class) return long.class;
+                if (type == Short.class || type == short.class) return short.class;
+                if (type == Float.class || type == float.class) return float.class;
+                if (type == Double.class || type == double.class) return double.class;
+                if (type == BigInteger.class) return Object.class;
+                return int.class;
+            case _double:
+                return type == Float.class || type == float.class ? float.class : double.class;
+            default:
+                return Object.class;
+            }
+        } else if (expr instanceof InvokeExpression) {
+            InvokeExpression ev = (InvokeExpression) expr;
+            String oper = ev.getOperation();
+            if ("COUNT".equals(oper)) {
+                return long.class;
+            } else if ("AVG".equals(oper)) {
+                return double.class;
+            } else if ("MAX".equals(oper) || "MIN".equals(oper)) {
+                return getTupleColumnType(ev.getArguments().get(0));
+            } else if ("SUM".equals(oper)) {
+                Class<?> argType = getTupleColumnType(ev.getArguments().get(0));
+                if (argType == int.class || argType == short.class || argType == long.class) return long.class;
+                if (argType == float.class || argType == double.class) return double.class;
+            }
+        }
+        return Object.class;
+    }
+
     private Collection<Object> readCreatorExpressionObjects(Class clazz, SObject[] sObjects, Expression[] exprs,
-            List<String> fieldNameList) throws ConnectionException, SQLException {
-        Collection<Object> res = readExpressionObjects(sObjects, exprs, fieldNameList);
+            List<String> fieldNameList, ForceManagedConnection conn) throws ConnectionException, SQLException {
+        Collection<Object> res = readExpressionObjects(sObjects, exprs, fieldNameList, conn);
         return new JDOQLResultClassMapper(clazz).map(res, toShortNameExpressions(exprs));
     }
 
@@ -551,7 +1316,7 @@ public class ForceQueryUtils {
     }
     
     private Object getDataForExpression(Map<String, ForceFetchFieldManager> ffms, SObject sObject, Expression expr,
-            String fieldName, Object valueOverride) throws ConnectionException, SQLException {
+            String fieldName, Object valueOverride, ForceManagedConnection conn) throws ConnectionException, SQLException {
         if (expr instanceof PrimaryExpression) {
             ExpressionMetaData exprMetaData = getExpressionMetaData(expr);
             if (exprMetaData != null) {
@@ -561,7 +1326,7 @@ public class ForceQueryUtils {
                     ForceFetchFieldManager ffm = ffms.get(cmd.getName());
                     if (ffm == null) {
                         ffm =
-                            new ForceFetchFieldManager(ec, cmd, (ForceStoreManager) ec.getStoreManager(), mconn, sObject, query);
+                            new ForceFetchFieldManager(ec, cmd, (ForceStoreManager) ec.getStoreManager(), conn, sObject, query);
                         ffms.put(cmd.getName(), ffm);
                     }
                     return ffm.fetchObjectField(mmd, valueOverride);
@@ -581,7 +1346,7 @@ public class ForceQueryUtils {
                 String alias = expr.getLeft().getSymbol().getQualifiedName();
                 Map<String, Object> childrenMap =
                     (Map) getDataForExpression(ffms, sObject,
-                            getPrimaryExpresionFromJoinAlias(query.getCompilation(), alias), fieldName, null);
+                            getPrimaryExpresionFromJoinAlias(query.getCompilation(), alias), fieldName, null, conn);
                 if ("mapKey".equals(oper)) {
                     return Collections.unmodifiableList(new ArrayList<String>(childrenMap.keySet()));
                 } else if ("mapValue".equals(oper)) {
@@ -599,7 +1364,7 @@ public class ForceQueryUtils {
                 if (value instanceof Date || value instanceof Calendar) {
                     return value;
                 }
-                return getDataForExpression(ffms, sObject, ev.getArguments().get(0), fieldName, value.toString());
+                return getDataForExpression(ffms, sObject, ev.getArguments().get(0), fieldName, value.toString(), conn);
             } else if ("SUM".equals(oper)) {
                 Object value = sObject.getField(fieldName);
                 if (value == null) return value;
@@ -615,7 +1380,7 @@ public class ForceQueryUtils {
                             || mmd.getType() == Long.TYPE || mmd.getType() == Long.class) {
                         return ((Double) value).longValue();
                     } else if (mmd.getType() == BigInteger.class || mmd.getType() == BigDecimal.class) {
-                        return getDataForExpression(ffms, sObject, ev.getArguments().get(0), fieldName, value.toString());
+                        return getDataForExpression(ffms, sObject, ev.getArguments().get(0), fieldName, value.toString(), conn);
                     }
                 }
             }
@@ -646,8 +1411,8 @@ public class ForceQueryUtils {
         return res;
     }
     
-    private Collection<Object> readNonEntityObjects(SObject[] sObjects, Expression[] exprs, Class resultClass)
-        throws ConnectionException, SQLException {
+    private Collection<Object> readNonEntityObjects(SObject[] sObjects, Expression[] exprs, Class resultClass,
+            ForceManagedConnection conn) throws ConnectionException, SQLException {
         
         // Create metadata first.
         // Assume the data comes back in the same order as the expressions and use first item to get the metadata
@@ -659,7 +1424,7 @@ public class ForceQueryUtils {
         // Now read the data based on the metadata
         if (createFieldNameExpressions) {
             if (exprs != null && exprs.length > 0) {
-                return readCreatorExpressionObjects(resultClass, sObjects, exprs, fieldNameList);
+                return readCreatorExpressionObjects(resultClass, sObjects, exprs, fieldNameList, conn);
             } else {
                 return new JDOQLResultClassMapper(resultClass).map(getResultAsCollection(sObjects, fieldNameList),
                                                                 fieldNameExprs.toArray(new Expression[fieldNameExprs.size()]));
@@ -668,9 +1433,9 @@ public class ForceQueryUtils {
             if (exprs[0] instanceof CreatorExpression) {
                 CreatorExpression ce = (CreatorExpression) exprs[0];
                 return readCreatorExpressionObjects(ce.getSymbol().getValueType(), sObjects,
-                                ce.getArguments().toArray(new Expression[ce.getArguments().size()]), fieldNameList);
+                                ce.getArguments().toArray(new Expression[ce.getArguments().size()]), fieldNameList, conn);
             } else {
-                return readExpressionObjects(sObjects, exprs, fieldNameList);
+                return readExpressionObjects(sObjects, exprs, fieldNameList, conn);
             }
         } else {
             return getResultAsCollection(sObjects, fieldNameList);
@@ -691,8 +1456,25 @@ public class ForceQueryUtils {
      */
     public String buildQueryWithPK(TableImpl table, AbstractClassMetaData acmd, int[] fieldNumbers,
                                    String pkValue, int fetchDepth) {
+        return buildQueryWithPKs(table, acmd, fieldNumbers, Collections.singletonList(pkValue), fetchDepth);
+    }
+    
+    /**
+     * This is used to fetch the same fields of several items by ID in one query, for example
+     * when lazily loaded fields are batched.
+     *
+     * @param table the table for the entity being queried
+     * @param acmd  the class metadata for the entity being queried
+     * @param fieldNumbers  the fields to fetch
+     * @param pkValues the ids of the objects being fetched
+     * @param fetchDepth the maximum depth that can be traversed
+     *          by a query involving relationships
+     * @return the SOQL query
+     */
+    public String buildQueryWithPKs(TableImpl table, AbstractClassMetaData acmd, int[] fieldNumbers,
+                                    Collection<String> pkValues, int fetchDepth) {
         ExpressionBuilderHelper helper =
-            new ExpressionBuilderHelper(this, fieldNumbers.length * 20 + 100, table, acmd,
+            new ExpressionBuilderHelper(this, fieldNumbers.length * 20 + pkValues.size() * 21 + 100, table, acmd,
                                             false, null, ec.getFetchPlan(), fetchDepth, null);
         helper.sb.append("select id");
         List<ColumnImpl> columns = new ArrayList<ColumnImpl>();
@@ -709,15 +1491,20 @@ public class ForceQueryUtils {
             }
         }
         helper.sb.append(" from ").append(table.getTableName().getForceApiName());
-        helper.sb.append(String.format(" where %s='%s'", table.getPKFieldName(acmd), pkValue));
+        helper.sb.append(" where ").append(table.getPKFieldName(acmd));
+        if (pkValues.size() == 1) {
+            SOQLLiteralWriter.appendValue(helper.sb.append('='), pkValues.iterator().next());
+        } else {
+            SOQLLiteralWriter.appendCollection(helper.sb.append(" IN "), pkValues);
+        }
         String ret = helper.sb.toString();
         if (LOGGER.isDebugEnabled()) {
-            LOGGER.debug("Fetch object: " + table.getTableName().getName() + " id: " + pkValue);
+            LOGGER.debug("Fetch object: " + table.getTableName().getName() + " id: " + pkValues);
         }
         if (LOGGER.isTraceEnabled()) {
             LOGGER.trace("Fetch query: " + ret);
         }
-        return helper.sb.toString();
+        return ret;
     }
     
     /**
@@ -736,8 +1523,14 @@ public class ForceQueryUtils {
      */
     public String buildQuery(TableImpl table, AbstractClassMetaData acmd, Set<Integer> fieldsToLoad, QueryCompilation compilation,
             boolean skipId, long maxLimit, FetchPlan fetchPlan, String tableName) {
+        return buildQuery(table, acmd, fieldsToLoad, compilation, skipId, maxLimit, fetchPlan, tableName, null);
+    }
+    
+    private String buildQuery(TableImpl table, AbstractClassMetaData acmd, Set<Integer> fieldsToLoad,
+            QueryCompilation compilation, boolean skipId, long maxLimit, FetchPlan fetchPlan, String tableName,
+            RangeClause range) {
         return buildQuery(table, acmd, fieldsToLoad, compilation, skipId, maxLimit, fetchPlan,
-                            0, tableName, true, false, null, null);
+                            0, tableName, true, false, null, null, range);
     }
     
     /**
@@ -764,6 +1557,21 @@ public class ForceQueryUtils {
     public String buildQuery(TableImpl table, AbstractClassMetaData acmd, Set<Integer> fieldsToLoad, QueryCompilation compilation,
                              boolean skipId, long maxLimit, FetchPlan fetchPlan, int fetchDepth,
                              String tableName, boolean isTopLevel, boolean isJoin, String joinAlias, ExpressionBuilderHelper parentHelper)  {
+    //CHECKSTYLE:ON
+        return buildQuery(table, acmd, fieldsToLoad, compilation, skipId, maxLimit, fetchPlan, fetchDepth,
+                            tableName, isTopLevel, isJoin, joinAlias, parentHelper, null);
+    }
+    
+    /**
+     * Builds a query for fetching multiple objects with a range restriction on the outermost query.
+     * Subqueries built from here never carry the range.
+     */
+    //CHECKSTYLE:OFF
+    private String buildQuery(TableImpl table, AbstractClassMetaData acmd, Set<Integer> fieldsToLoad,
+                              QueryCompilation compilation, boolean skipId, long maxLimit, FetchPlan fetchPlan,
+                              int fetchDepth, String tableName,
+                              boolean isTopLevel, boolean isJoin, String joinAlias, ExpressionBuilderHelper parentHelper,
+                              RangeClause range)  {
     //CHECKSTYLE:ON
         ExpressionBuilderHelper helper =
             new ExpressionBuilderHelper(this, (fieldsToLoad != null ? fieldsToLoad.size() : 3) * 20 + 100,
@@ -829,8 +1637,14 @@ public class ForceQueryUtils {
             }
             
             // Do any join processing for top level but not for Map/Collection joins
+            boolean hasWhere = filterExpression != null;
             if (isTopLevel && helper.relatedJoinAliases == null) {
-                processJoin(helper, compilation, fetchPlan, filterExpression != null);
+                hasWhere = processJoin(helper, compilation, fetchPlan, hasWhere);
+            }
+            
+            // Restrict to rows after the seek position, if any
+            if (range != null && range.seekPredicate != null) {
+                helper.sb.append(hasWhere ? " and (" : " where (").append(range.seekPredicate).append(")");
             }
 
             // Do the group by clause
@@ -855,6 +1669,8 @@ public class ForceQueryUtils {
             if (isTopLevel && compilation.getExprOrdering() != null) {
                 helper.sb.append(" order by ");
                 appendExpressionList(helper, compilation.getExprOrdering(), ec);
+            } else if (range != null && range.seekOrdering != null) {
+                helper.sb.append(" order by ").append(range.seekOrdering);
             }
         }
         // Add limit if needed
@@ -862,6 +1678,10 @@ public class ForceQueryUtils {
             helper.sb.append(" limit ");
             helper.sb.append(maxLimit);
         }
+        if (range != null && range.offset > 0) {
+            helper.sb.append(" offset ");
+            helper.sb.append(range.offset);
+        }
         String ret = helper.sb.toString();
         if (listeners != null && !listeners.isEmpty()) {
             for (QueryListener listener : listeners.values()) {
@@ -874,8 +1694,8 @@ public class ForceQueryUtils {
         return ret;
     }
     
-    private void processJoin(ExpressionBuilderHelper h, QueryCompilation compilation, FetchPlan fetchPlan, boolean hasWhere) {
-        if (compilation.getExprFrom() == null) return;
+    private boolean processJoin(ExpressionBuilderHelper h, QueryCompilation compilation, FetchPlan fetchPlan, boolean hasWhere) {
+        if (compilation.getExprFrom() == null) return hasWhere;
         for (Expression fromExpr : compilation.getExprFrom()) {
             if (!(fromExpr instanceof ClassExpression)) {
                 throw new NucleusDataStoreException("Unsupported from expression: " + fromExpr);
@@ -895,6 +1715,7 @@ public class ForceQueryUtils {
                 expr = expr.getRight();
             }
         }
+        return hasWhere;
     }
     
     /**
@@ -1156,7 +1977,7 @@ public class ForceQueryUtils {
             if (not) h.sb.append("NOT ");
             appendExpression(h, invocation.getLeft(), executionContext);
             h.sb.append(" like ");
-            appendExpression(h, invocation.getArguments().get(0), executionContext);
+            appendLikePattern(h, invocation.getArguments(), executionContext);
         } else if ("toLowerCase".equals(oper)) {
             //ignore toLowerCase since SFDC is case insensitive
             appendExpression(h, invocation.getLeft(), executionContext);
@@ -1207,6 +2028,36 @@ public class ForceQueryUtils {
         return done;
     }
     
+    /**
+     * Appends the pattern of a LIKE comparison. A pattern given as a literal or a parameter keeps its escaped
+     * wildcards, and the escape character of an ESCAPE clause is translated to the backslash used by SOQL.
+     */
+    private void appendLikePattern(ExpressionBuilderHelper h, List<Expression> arguments, ExecutionContext executionContext) {
+        Expression patternExpr = arguments.get(0);
+        char escape = '\\';
+        if (arguments.size() > 1) {
+            Object escapeValue = getLikeOperand(h, arguments.get(1), executionContext);
+            if (escapeValue == null || escapeValue.toString().length() != 1) {
+                throw new NucleusUserException("The ESCAPE clause of LIKE must be a single character: " + escapeValue);
+            }
+            escape = escapeValue.toString().charAt(0);
+        }
+        Object pattern = getLikeOperand(h, patternExpr, executionContext);
+        if (pattern instanceof String || pattern instanceof Character) {
+            SOQLLiteralWriter.appendLikePattern(h.sb, pattern.toString(), escape);
+        } else if (arguments.size() > 1) {
+            throw new NucleusUserException("ESCAPE is only supported with a LIKE pattern given as a literal or a parameter");
+        } else {
+            appendExpression(h, patternExpr, executionContext);
+        }
+    }
+    
+    private Object getLikeOperand(ExpressionBuilderHelper h, Expression expr, ExecutionContext executionContext) {
+        if (expr instanceof Literal) return ((Literal) expr).getLiteral();
+        if (expr instanceof ParameterExpression) return getParameterValue(h, (ParameterExpression) expr, executionContext);
+        return null;
+    }
+    
     private void appendContainsExpression(ExpressionBuilderHelper h, InvokeExpression expr, boolean not)  {
         PrimaryExpression pe = (PrimaryExpression) expr.getLeft();
         TupleName fieldName = new TupleName(pe.getTuples());
@@ -1250,21 +2101,10 @@ public class ForceQueryUtils {
     }
     
     private void appendValue(ExpressionBuilderHelper h, Object value) {
-    	Class clazz = null;
-    	if(value != null) {
-    		clazz = value.getClass();
-    	}
-        if (clazz == String.class || clazz == Character.class || clazz == URL.class
-                || clazz == Byte.class || clazz == byte.class) {
-            h.sb.append(String.format("'%s'", value));
-        } else if (clazz == Date.class || value instanceof Calendar) {
-            if (clazz == Date.class) {
-                h.sb.append(SOQLDateFormatUtil.getSOQLFormat((Date) value));
-            } else {
-                h.sb.append(SOQLDateFormatUtil.getSOQLFormat((Calendar) value));
-            }
+        if (value instanceof CollectionParameter) {
+            ((CollectionParameter) value).appendTo(h.sb);
         } else {
-            h.sb.append(value);
+            SOQLLiteralWriter.appendValue(h.sb, value);
         }
     }
     
@@ -1404,6 +2244,107 @@ public class ForceQueryUtils {
         }
     }
     
+    /**
+     * The SOQL queries that make up a query, together with what is needed to turn their rows into results.
+     * The queries can run on any thread. Merging and materializing must happen on the thread that owns
+     * the ExecutionContext.
+     *
+     * @author Fiaz Hossain
+     */
+    private final class QueryPlan {
+        private final AbstractClassMetaData acmd;
+        private final int[] fieldsLoaded;
+        private final Expression[] resultExpr;
+        private final List<String> soqlQueries;
+        private KeysetPagination keyset;
+        private Comparator<SObject> comparator;
+        private long maxLimit = Long.MAX_VALUE;
+        private boolean distinct;
+        private BulkQuery bulk;
+        
+        private QueryPlan(AbstractClassMetaData acmd, int[] fieldsLoaded, Expression[] resultExpr, List<String> soqlQueries) {
+            this.acmd = acmd;
+            this.fieldsLoaded = fieldsLoaded;
+            this.resultExpr = resultExpr;
+            this.soqlQueries = soqlQueries;
+        }
+        
+        private List<ConnectionTask<Iterator<QueryResult>>> getTasks() {
+            final QueryExecution taskExecution = getExecution();
+            List<ConnectionTask<Iterator<QueryResult>>> tasks =
+                new ArrayList<ConnectionTask<Iterator<QueryResult>>>(soqlQueries.size());
+            for (final String soqlQuery : soqlQueries) {
+                tasks.add(new ConnectionTask<Iterator<QueryResult>>() {
+                    @Override
+                    public Iterator<QueryResult> call(ForceManagedConnection taskConn) throws Exception {
+                        if (bulk != null) return bulk.execute(taskConn, soqlQuery, taskExecution);
+                        return Collections.singletonList(queryBatches((PartnerConnection) taskConn.getConnection(), soqlQuery,
+                                                                        maxLimit, taskExecution)).iterator();
+                    }
+                });
+            }
+            return tasks;
+        }
+        
+        private Iterator<QueryResult> merge(List<Iterator<QueryResult>> parts) {
+            if (parts.size() == 1) return parts.get(0);
+            // Only SOAP queries are partitioned, each partition has a single result
+            List<SObject[]> records = new ArrayList<SObject[]>(parts.size());
+            for (Iterator<QueryResult> part : parts) {
+                records.add(part.next().getRecords());
+            }
+            SObject[] merged = QueryPartitioner.merge(records, comparator, maxLimit, distinct);
+            QueryResult qr = new QueryResult();
+            qr.setRecords(merged);
+            qr.setSize(merged.length);
+            qr.setDone(true);
+            return Collections.singletonList(qr).iterator();
+        }
+        
+        /**
+         * Turns the rows into results. A bulk query job returns its rows one result file at a time, only the
+         * rows of the current file are held. Relationships of the results are loaded on the given connection.
+         */
+        private List<Object> materialize(Iterator<QueryResult> parts, QueryExecution partExecution, ForceManagedConnection conn)
+            throws ConnectionException, SQLException {
+            QueryResult qr = parts.hasNext() ? parts.next() : new QueryResult();
+            List<SObject> pageRecords = keyset != null ? new ArrayList<SObject>(Arrays.asList(qr.getRecords())) : null;
+            if (bulk != null) partExecution.batchReceived(qr.getRecords(), false);
+            List<Object> results = getResultFromQueryResult(acmd, fieldsLoaded, qr, resultExpr, conn);
+            if (parts.hasNext()) {
+                results = new ArrayList<Object>(results);
+                while (parts.hasNext()) {
+                    qr = parts.next();
+                    if (pageRecords != null) Collections.addAll(pageRecords, qr.getRecords());
+                    partExecution.batchReceived(qr.getRecords(), false);
+                    results.addAll(getResultFromQueryResult(acmd, fieldsLoaded, qr, resultExpr, conn));
+                }
+            }
+            if (keyset != null) {
+                return new KeysetResultList(results, keyset.getNextPageToken(pageRecords.toArray(new SObject[pageRecords.size()]),
+                                                                                query.getRangeToExcl()));
+            }
+            return results;
+        }
+    }
+    
+    /**
+     * Range restrictions that are pushed into the outermost SOQL query.
+     *
+     * @author Fiaz Hossain
+     */
+    private static final class RangeClause {
+        private final long offset;
+        private final String seekPredicate;
+        private final String seekOrdering;
+        
+        private RangeClause(long offset, String seekPredicate, String seekOrdering) {
+            this.offset = offset;
+            this.seekPredicate = seekPredicate;
+            this.seekOrdering = seekOrdering;
+        }
+    }
+    
     /**
      * Simple bean which stores JPA class and member metadata 
      * for a DataNucleus Expression.
@@ -36,6 +36,7 @@ import org.datanucleus.store.query.AbstractJDOQLQuery;
 import org.datanucleus.util.NucleusLogger;
 
 import com.force.sdk.jpa.ForceManagedConnection;
+import com.force.sdk.jpa.ForceObjectManagerImpl;
 import com.force.sdk.jpa.query.ForceQueryUtils.LimitType;
 
 /**
@@ -48,6 +49,7 @@ import com.force.sdk.jpa.query.ForceQueryUtils.LimitType;
 public class JDOQLQuery extends AbstractJDOQLQuery implements QueryNotifier {
 
     private Map<String, QueryListener> listeners = new HashMap<String, QueryListener>(4);
+    private final QueryExecution.Registry executions = new QueryExecution.Registry();
     
     /**
      * Constructs a JDOQL query with a {@code null} query.
@@ -83,6 +85,8 @@ public class JDOQLQuery extends AbstractJDOQLQuery implements QueryNotifier {
      */
     @Override
     protected Object performExecute(Map parameters) {
+        // Queries see the creates and updates queued in write-behind mode
+        ForceObjectManagerImpl.flushQueuedWrites(ec);
         ForceManagedConnection mconn = (ForceManagedConnection) ec.getStoreManager().getConnection(ec);
         try {
             long startTime = System.currentTimeMillis();
@@ -102,6 +106,7 @@ public class JDOQLQuery extends AbstractJDOQLQuery implements QueryNotifier {
             } else {
                 List<Object> rawResults =
                     new ForceQueryUtils(ec, mconn, this, parameters, listeners, getExtensions())
+                            .setExecution(executions.start(ec, getExtensions()))
                             .getObjectsOfCandidateType(compilation.getExprResult());
                 if (ForceQueryUtils.getLimitType(this) == LimitType.Java) {
                     // Apply any result restrictions to the results
@@ -131,6 +136,7 @@ public class JDOQLQuery extends AbstractJDOQLQuery implements QueryNotifier {
         } catch (Exception e) {
             throw new NucleusException(e.getMessage(), e);
         } finally {
+            executions.finish();
             mconn.release();
         }
     }
@@ -144,4 +150,28 @@ public class JDOQLQuery extends AbstractJDOQLQuery implements QueryNotifier {
     public void removeListener(String name) {
         listeners.remove(name);
     }
+
+    /**
+     * Cancels the executions of this query that are running. The threads waiting for them get a
+     * {@code QueryInterruptedException}.
+     */
+    @Override
+    public void cancel() {
+        executions.cancel();
+    }
+
+    /**
+     * Cancels the execution of this query that was started by the given thread.
+     * 
+     * @param thread the thread running the query
+     */
+    @Override
+    public void cancel(Thread thread) {
+        executions.cancel(thread);
+    }
+
+    @Override
+    protected void assertSupportsCancel() {
+        // Queries run their Force.com calls on worker threads and can always be cancelled
+    }
 }
@@ -27,8 +27,11 @@
 package com.force.sdk.jpa.query;
 
 import java.util.*;
+import java.util.concurrent.Future;
 
+import org.datanucleus.ExecutionContextImpl;
 import org.datanucleus.exceptions.NucleusException;
+import org.datanucleus.exceptions.NucleusUserException;
 import org.datanucleus.query.evaluator.JPQLEvaluator;
 import org.datanucleus.query.evaluator.JavaQueryEvaluator;
 import org.datanucleus.store.ExecutionContext;
@@ -36,7 +39,9 @@ import org.datanucleus.store.query.AbstractJPQLQuery;
 import org.datanucleus.util.NucleusLogger;
 
 import com.force.sdk.jpa.ForceManagedConnection;
+import com.force.sdk.jpa.ForceObjectManagerImpl;
 import com.force.sdk.jpa.query.ForceQueryUtils.LimitType;
+import com.force.sdk.jpa.query.ForceQueryUtils.ResultPostProcessor;
 
 /**
  * 
@@ -48,6 +53,7 @@ import com.force.sdk.jpa.query.ForceQueryUtils.LimitType;
 public class JPQLQuery extends AbstractJPQLQuery implements QueryNotifier {
 
     private Map<String, QueryListener> listeners = new HashMap<String, QueryListener>(4);
+    private final QueryExecution.Registry executions = new QueryExecution.Registry();
     
     /**
      * Constructs a JPQL query with a null query.
@@ -80,9 +86,8 @@ public class JPQLQuery extends AbstractJPQLQuery implements QueryNotifier {
 
     @Override
     protected Object performExecute(Map parameters) {
-        if (type == BULK_UPDATE) {
-            throw new NucleusException("Bulk Update is not yet supported");
-        }
+        // Queries see the creates and updates queued in write-behind mode
+        ForceObjectManagerImpl.flushQueuedWrites(ec);
         ForceManagedConnection mconn = (ForceManagedConnection) ec.getStoreManager().getConnection(ec);
         try {
             long startTime = System.currentTimeMillis();
@@ -92,20 +97,26 @@ public class JPQLQuery extends AbstractJPQLQuery implements QueryNotifier {
             Object results = null;
             if (type == BULK_DELETE) {
                 results =
-                    new ForceQueryUtils(ec, mconn, this, parameters, listeners, getExtensions())
+                    newQueryUtils(mconn, parameters)
+                            .setExecution(executions.start(ec, getExtensions()))
                             .deleteObjectsOfCandidateType(candidateClass != null ? candidateClass : getFrom());
+            } else if (type == BULK_UPDATE) {
+                try {
+                    results =
+                        newQueryUtils(mconn, parameters)
+                                .setExecution(executions.start(ec, getExtensions()))
+                                .updateObjectsOfCandidateType(candidateClass != null ? candidateClass : getFrom());
+                } finally {
+                    // Even a failed update may have changed some of the records
+                    evictUpdatedType();
+                }
             } else {
                 if (candidateCollection == null) {
                     List<Object> rawResults =
-                        new ForceQueryUtils(ec, mconn, this, parameters, listeners, getExtensions())
+                        newQueryUtils(mconn, parameters)
+                                .setExecution(executions.start(ec, getExtensions()))
                                 .getObjectsOfCandidateType(compilation.getExprResult());
-                    if (ForceQueryUtils.getLimitType(this) == LimitType.Java) {
-                        JavaQueryEvaluator resultMapper = new JPQLEvaluator(this, rawResults, compilation,
-                                parameters, ec.getClassLoaderResolver());
-                            results = resultMapper.execute(false, false, false, false, true);
-                    } else {
-                        results = rawResults;
-                    }
+                    results = applyRange(rawResults, parameters);
                 } else {
                     List candidates = new ArrayList(candidateCollection);
                     // Apply any result restrictions to the results
@@ -123,6 +134,88 @@ public class JPQLQuery extends AbstractJPQLQuery implements QueryNotifier {
             throw ne;
         } catch (Exception e) {
             throw new NucleusException(e.getMessage(), e);
+        } finally {
+            executions.finish();
+            mconn.release();
+        }
+    }
+
+    /**
+     * DataNucleus hands the parameters of an execution over as a raw map.
+     */
+    @SuppressWarnings("unchecked")
+    private ForceQueryUtils newQueryUtils(ForceManagedConnection mconn, Map<?, ?> parameters) {
+        return new ForceQueryUtils(ec, mconn, this, (Map<Object, Object>) parameters, listeners, getExtensions());
+    }
+
+    /**
+     * Evicts the objects of the updated type from the L1 and L2 caches, they may hold old field values.
+     */
+    private void evictUpdatedType() {
+        Class<?> updatedClass = candidateClass != null ? candidateClass : compilation.getCandidateClass();
+        if (updatedClass == null) return;
+        if (ec.getOMFContext().hasLevel2Cache()) {
+            ec.getOMFContext().getLevel2Cache().evictAll(updatedClass, true);
+        }
+        if (ec instanceof ExecutionContextImpl) {
+            ((ExecutionContextImpl) ec).getObjectManager().evictObjects(updatedClass, true);
+        }
+    }
+
+    /**
+     * Applies the range in memory when it could not be sent as part of the SOQL query.
+     */
+    private Object applyRange(List<Object> rawResults, Map<?, ?> parameters) {
+        if (ForceQueryUtils.getLimitType(this) == LimitType.Java) {
+            JavaQueryEvaluator resultMapper = new JPQLEvaluator(this, rawResults, compilation,
+                    parameters, ec.getClassLoaderResolver());
+            return resultMapper.execute(false, false, false, false, true);
+        }
+        return rawResults;
+    }
+    
+    /**
+     * Starts executing this query and returns without waiting for Force.com. The query runs on the
+     * worker threads of the store manager, each Force.com call on its own connection, so several
+     * queries can be in flight at the same time. Parameters and hints must be set before this call.
+     * <p>
+     * The result holds objects managed by the ExecutionContext of this query. Read it from the thread
+     * that owns the EntityManager; that is where the returned rows are turned into objects. Until then
+     * the query can be cancelled and its timeout applies.
+     * 
+     * @return the pending result list of the query
+     */
+    public Future<List<Object>> getResultListAsync() {
+        if (type != SELECT) {
+            throw new NucleusUserException("Only SELECT queries can be executed asynchronously");
+        }
+        final Map<Object, Object> parameters = new HashMap<Object, Object>();
+        if (implicitParameters != null) {
+            parameters.putAll((Map<?, ?>) implicitParameters);
+        }
+        compileInternal(parameters);
+        if (compilation != null) {
+            candidateClass = compilation.getCandidateClass();
+        }
+        if (candidateCollection != null) {
+            throw new NucleusUserException("Queries over a candidate collection cannot be executed asynchronously");
+        }
+        // Queries see the creates and updates queued in write-behind mode
+        ForceObjectManagerImpl.flushQueuedWrites(ec);
+        ForceManagedConnection mconn = (ForceManagedConnection) ec.getStoreManager().getConnection(ec);
+        try {
+            return new ForceQueryUtils(ec, mconn, this, parameters, listeners, getExtensions())
+                        .setExecution(executions.startAsync(ec, getExtensions()))
+                        .getObjectsOfCandidateTypeAsync(compilation.getExprResult(), new ResultPostProcessor() {
+                            @Override
+                            @SuppressWarnings("unchecked")
+                            public List<Object> process(List<Object> results) {
+                                // Keep result lists such as TupleResult as they are
+                                Object ranged = applyRange(results, parameters);
+                                return ranged instanceof List ? (List<Object>) ranged
+                                                              : new ArrayList<Object>((Collection<?>) ranged);
+                            }
+                        }, executions);
         } finally {
             mconn.release();
         }
@@ -138,4 +231,27 @@ public class JPQLQuery extends AbstractJPQLQuery implements QueryNotifier {
         listeners.remove(name);
     }
 
+    /**
+     * Cancels the executions of this query that are running. The threads waiting for them get a
+     * {@code QueryInterruptedException}.
+     */
+    @Override
+    public void cancel() {
+        executions.cancel();
+    }
+
+    /**
+     * Cancels the execution of this query that was started by the given thread.
+     * 
+     * @param thread the thread running the query
+     */
+    @Override
+    public void cancel(Thread thread) {
+        executions.cancel(thread);
+    }
+
+    @Override
+    protected void assertSupportsCancel() {
+        // Queries run their Force.com calls on worker threads and can always be cancelled
+    }
 }
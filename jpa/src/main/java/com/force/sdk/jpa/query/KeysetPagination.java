@@ -0,0 +1,261 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.force.sdk.jpa.query;
+
+import java.io.UnsupportedEncodingException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.regex.Pattern;
+
+import org.datanucleus.exceptions.NucleusUserException;
+import org.datanucleus.metadata.AbstractClassMetaData;
+
+import com.force.sdk.jpa.table.ColumnImpl;
+import com.force.sdk.jpa.table.TableImpl;
+import com.sforce.soap.partner.FieldType;
+import com.sforce.soap.partner.sobject.SObject;
+import com.sforce.ws.util.Base64;
+
+/**
+ * 
+ * Builds the SOQL pieces for keyset (seek) pagination. A page is ordered by the fields named in
+ * {@link QueryHints#KEYSET_ORDERING} and starts after the key held in the {@link QueryHints#KEYSET_AFTER} token,
+ * which turns an ordering of {@code createdDate, id} into
+ * {@code (CreatedDate > :d or (CreatedDate = :d and (Id > :id)))}.
+ * <p>
+ * The primary key is appended to the ordering when it is not already part of it, so that rows sharing
+ * the same values of the other fields are never skipped or repeated across pages.
+ *
+ * @author Fiaz Hossain
+ */
+final class KeysetPagination {
+
+    private static final String UTF8 = "UTF-8";
+    private static final Pattern DATE = Pattern.compile("\\d{4}-\\d{2}-\\d{2}");
+    private static final Pattern DATETIME =
+        Pattern.compile("\\d{4}-\\d{2}-\\d{2}T\\d{2}:\\d{2}:\\d{2}(\\.\\d{1,3})?(Z|[+-]\\d{2}:\\d{2})");
+    private static final Pattern NUMBER = Pattern.compile("-?\\d+(\\.\\d+)?([eE][+-]?\\d+)?");
+    private static final Pattern BOOLEAN = Pattern.compile("true|false");
+    
+    private final List<ColumnImpl> columns = new ArrayList<ColumnImpl>();
+    private final List<Boolean> descending = new ArrayList<Boolean>();
+    private final List<Integer> memberPositions = new ArrayList<Integer>();
+    private final String[] afterKey;
+    
+    private KeysetPagination(TableImpl table, AbstractClassMetaData acmd, String ordering, String afterToken) {
+        int pkPosition = acmd.getPKMemberPositions()[0];
+        boolean hasPk = false;
+        for (String item : ordering.split(",")) {
+            String[] parts = item.trim().split("\\s+");
+            if (parts.length == 0 || parts[0].length() == 0 || parts.length > 2) {
+                throw new NucleusUserException("Invalid keyset ordering: " + ordering);
+            }
+            boolean desc = false;
+            if (parts.length == 2) {
+                if ("desc".equalsIgnoreCase(parts[1])) {
+                    desc = true;
+                } else if (!"asc".equalsIgnoreCase(parts[1])) {
+                    throw new NucleusUserException("Invalid keyset ordering: " + ordering);
+                }
+            }
+            int pos = acmd.getAbsolutePositionOfMember(parts[0]);
+            if (pos < 0) {
+                throw new NucleusUserException("Keyset ordering field: " + parts[0] + " not found in entity: "
+                                                + acmd.getFullClassName());
+            }
+            ColumnImpl column = table.getColumnAt(acmd, pos);
+            if (column == null || column.getType() == FieldType.reference) {
+                throw new NucleusUserException("Keyset ordering field: " + parts[0]
+                                                + " must be a persistent, non relationship field");
+            }
+            hasPk |= pos == pkPosition;
+            add(column, desc, pos);
+        }
+        if (!hasPk) {
+            add(table.getColumnAt(acmd, pkPosition), descending.get(descending.size() - 1), pkPosition);
+        }
+        this.afterKey = afterToken != null ? decode(afterToken) : null;
+    }
+    
+    private void add(ColumnImpl column, boolean desc, int pos) {
+        columns.add(column);
+        descending.add(desc);
+        memberPositions.add(pos);
+    }
+    
+    /**
+     * Reads the keyset hints of a query.
+     * 
+     * @param utils the query utils holding the hints
+     * @param table the table of the entity being queried
+     * @param acmd the class metadata of the entity being queried
+     * @return the keyset pagination for the query or {@code null} if the query does not ask for it
+     */
+    static KeysetPagination forQuery(ForceQueryUtils utils, TableImpl table, AbstractClassMetaData acmd) {
+        Object ordering = utils.getHints(QueryHints.KEYSET_ORDERING);
+        if (ordering == null) return null;
+        Object after = utils.getHints(QueryHints.KEYSET_AFTER);
+        String token = after != null && after.toString().length() > 0 ? after.toString() : null;
+        return new KeysetPagination(table, acmd, ordering.toString(), token);
+    }
+    
+    /**
+     * Adds the ordering fields to the fields selected by the query so that the next page token can be read.
+     * 
+     * @param fieldsToLoad the fields selected by the query
+     */
+    void addFieldsToLoad(Set<Integer> fieldsToLoad) {
+        fieldsToLoad.addAll(memberPositions);
+    }
+    
+    /**
+     * Returns the SOQL ordering for the page.
+     * 
+     * @return the fields of the key in order, each with an explicit direction
+     */
+    String getOrdering() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < columns.size(); i++) {
+            if (i > 0) sb.append(", ");
+            sb.append(columns.get(i).getFieldName()).append(descending.get(i) ? " DESC" : " ASC");
+        }
+        return sb.toString();
+    }
+    
+    /**
+     * Returns the SOQL predicate that restricts the page to rows after the last seen key.
+     * 
+     * @return the predicate or {@code null} for the first page
+     */
+    String getSeekPredicate() {
+        if (afterKey == null) return null;
+        // Built from the innermost (last) field outwards: a > :a or (a = :a and (b > :b ...))
+        String predicate = null;
+        for (int i = columns.size() - 1; i >= 0; i--) {
+            String field = columns.get(i).getFieldName();
+            String value = toLiteral(columns.get(i), afterKey[i]);
+            StringBuilder sb = new StringBuilder();
+            sb.append(field).append(descending.get(i) ? " < " : " > ").append(value);
+            if (predicate != null) {
+                sb.append(" or (").append(field).append(" = ").append(value).append(" and (").append(predicate).append("))");
+            }
+            predicate = sb.toString();
+        }
+        return predicate;
+    }
+    
+    /**
+     * Creates the token of the page that follows the given rows.
+     * 
+     * @param records the rows of the current page
+     * @param pageSize the requested page size
+     * @return the token or {@code null} if the current page is the last one
+     */
+    String getNextPageToken(SObject[] records, long pageSize) {
+        if (records == null || records.length == 0 || pageSize == Long.MAX_VALUE || records.length < pageSize) {
+            return null;
+        }
+        SObject last = records[records.length - 1];
+        StringBuilder sb = new StringBuilder();
+        for (ColumnImpl column : columns) {
+            Object value = "id".equalsIgnoreCase(column.getFieldName()) ? last.getId() : last.getField(column.getFieldName());
+            if (value == null) {
+                throw new NucleusUserException("Keyset ordering field: " + column.getFieldName()
+                                                + " is null. Keyset pagination requires non null ordering fields");
+            }
+            String str = value instanceof Calendar ? formatDateTime((Calendar) value) : value.toString();
+            sb.append(str.length()).append(':').append(str);
+        }
+        return encode(sb.toString());
+    }
+    
+    private String toLiteral(ColumnImpl column, String value) {
+        FieldType type = column.getType();
+        Pattern pattern = null;
+        if (type == FieldType.date) {
+            pattern = DATE;
+        } else if (type == FieldType.datetime) {
+            pattern = DATETIME;
+        } else if (type == FieldType._int || type == FieldType._double
+                    || type == FieldType.currency || type == FieldType.percent) {
+            pattern = NUMBER;
+        } else if (type == FieldType._boolean) {
+            pattern = BOOLEAN;
+        }
+        if (pattern != null) {
+            // Unquoted literals come straight from the client so they must be well formed
+            if (!pattern.matcher(value).matches()) {
+                throw new NucleusUserException("Invalid keyset page token");
+            }
+            return value;
+        }
+        return SOQLLiteralWriter.appendString(new StringBuilder(value.length() + 2), value).toString();
+    }
+    
+    private static String formatDateTime(Calendar value) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(value.getTime());
+    }
+    
+    private static String encode(String key) {
+        try {
+            String token = new String(Base64.encode(key.getBytes(UTF8)), UTF8);
+            // Make the token safe to use as a URL query parameter
+            int end = token.length();
+            while (end > 0 && token.charAt(end - 1) == '=') end--;
+            return token.substring(0, end).replace('+', '-').replace('/', '_');
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    private String[] decode(String token) {
+        String[] key = new String[columns.size()];
+        try {
+            StringBuilder sb = new StringBuilder(token.replace('-', '+').replace('_', '/'));
+            while (sb.length() % 4 != 0) sb.append('=');
+            String decoded = new String(Base64.decode(sb.toString().getBytes(UTF8)), UTF8);
+            int pos = 0;
+            for (int i = 0; i < key.length; i++) {
+                int colon = decoded.indexOf(':', pos);
+                int len = Integer.parseInt(decoded.substring(pos, colon));
+                key[i] = decoded.substring(colon + 1, colon + 1 + len);
+                pos = colon + 1 + len;
+            }
+            if (pos != decoded.length()) {
+                throw new NucleusUserException("Invalid keyset page token: " + token);
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        } catch (RuntimeException e) {
+            if (e instanceof NucleusUserException) throw e;
+            throw new NucleusUserException("Invalid keyset page token: " + token, e);
+        }
+        return key;
+    }
+}
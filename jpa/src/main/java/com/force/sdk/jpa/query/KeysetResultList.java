@@ -0,0 +1,66 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.force.sdk.jpa.query;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * 
+ * Result list returned by queries that use keyset pagination (see {@link QueryHints#KEYSET_ORDERING}).
+ * Besides the rows of the current page it carries an opaque token that, passed back through
+ * {@link QueryHints#KEYSET_AFTER}, returns the page that follows. No server side cursor is kept
+ * between pages.
+ *
+ * @author Fiaz Hossain
+ */
+public class KeysetResultList extends ArrayList<Object> {
+
+    private static final long serialVersionUID = 1L;
+    
+    private final String nextPageToken;
+    
+    /**
+     * Creates a keyset result list.
+     * 
+     * @param rows the rows of the current page
+     * @param nextPageToken the token for the following page or {@code null} if this is the last page
+     */
+    public KeysetResultList(Collection<?> rows, String nextPageToken) {
+        super(rows);
+        this.nextPageToken = nextPageToken;
+    }
+    
+    /**
+     * Returns the token of the page that follows this one.
+     * 
+     * @return an opaque, URL safe token or {@code null} if this is the last page
+     */
+    public String getNextPageToken() {
+        return nextPageToken;
+    }
+}
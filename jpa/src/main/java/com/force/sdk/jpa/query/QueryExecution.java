@@ -0,0 +1,388 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.force.sdk.jpa.query;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.datanucleus.exceptions.NucleusException;
+import org.datanucleus.store.ExecutionContext;
+import org.datanucleus.store.query.QueryInterruptedException;
+import org.datanucleus.store.query.QueryTimeoutException;
+
+import com.force.sdk.jpa.ForceManagedConnection;
+import com.force.sdk.jpa.ForceTaskExecutor;
+import com.force.sdk.jpa.ForceTaskExecutor.ConnectionTask;
+
+/**
+ * 
+ * A single execution of a query. It bounds the time spent on the Force.com calls of the execution, including
+ * every {@code queryMore} round trip, and lets another thread cancel it.
+ * <p>
+ * A query made of a single call without a timeout runs on the calling thread and its connection, and a cancel
+ * takes effect before the next round trip. Partitioned queries and queries with a timeout run on the worker threads
+ * of the store manager, each call with a connection of its own, while the calling thread waits for them with the
+ * time left. On timeout or cancellation the waiting thread is released at once. The workers are interrupted, stop
+ * before their next round trip and close their connection instead of handing it back, so a connection with a call
+ * in an unknown state is never reused.
+ * <p>
+ * The execution also keeps the timings and row counts that are reported to {@link QueryExecutionListener}s.
+ *
+ * @author Fiaz Hossain
+ */
+final class QueryExecution {
+
+    /**
+     * Standard JPA hint, in milliseconds.
+     */
+    static final String JPA_TIMEOUT_HINT = "javax.persistence.query.timeout";
+    
+    /**
+     * Persistence unit property that {@code javax.persistence.query.timeout} is stored under.
+     */
+    static final String TIMEOUT_PROPERTY = "datanucleus.query.timeout";
+    
+    private final long timeoutMillis;
+    private final long started;
+    private final long deadline;
+    private volatile long planned;
+    private volatile long fetched;
+    private final AtomicLong firstBatch = new AtomicLong();
+    private final AtomicInteger queryMoreCalls = new AtomicInteger();
+    private final AtomicInteger rowsReturned = new AtomicInteger();
+    private final Set<Future<?>> calls = new CopyOnWriteArraySet<Future<?>>();
+    // The connection of the calling thread while a single call runs on it, closed by a cancel
+    private volatile ForceManagedConnection inlineConnection;
+    private volatile boolean cancelled;
+    
+    /**
+     * Starts an execution.
+     * 
+     * @param timeoutMillis the time allowed for the execution, 0 for no limit
+     */
+    QueryExecution(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+        this.started = System.nanoTime();
+        this.deadline = started + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+    
+    /**
+     * Reads the timeout of a query from its hints, {@link QueryHints#TIMEOUT} first, then the JPA hint. Without
+     * hints the {@code javax.persistence.query.timeout} property of the persistence unit applies.
+     * 
+     * @param ec the execution context of the query
+     * @param hints the hints of the query, may be {@code null}
+     * @return the timeout in milliseconds, 0 for no limit
+     */
+    static long getTimeoutMillis(ExecutionContext ec, Map<?, ?> hints) {
+        if (hints != null) {
+            Object timeout = hints.get(QueryHints.TIMEOUT);
+            if (timeout == null) timeout = hints.get(JPA_TIMEOUT_HINT);
+            if (timeout != null) return toMillis(timeout);
+        }
+        return ec.getOMFContext().getPersistenceConfiguration().getIntProperty(TIMEOUT_PROPERTY);
+    }
+    
+    static long toMillis(Object timeout) {
+        long millis;
+        try {
+            millis = timeout instanceof Number ? ((Number) timeout).longValue() : Long.parseLong(timeout.toString().trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Query timeout must be a number of milliseconds: " + timeout, e);
+        }
+        if (millis < 0) {
+            throw new IllegalArgumentException("Query timeout must not be negative: " + timeout);
+        }
+        return millis;
+    }
+    
+    long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+    
+    boolean isCancelled() {
+        return cancelled;
+    }
+    
+    /**
+     * Marks the end of the compile phase, the SOQL is about to be sent.
+     */
+    void planned() {
+        planned = System.nanoTime();
+    }
+    
+    /**
+     * Records a batch of rows received from Force.com. Called from the worker threads.
+     * 
+     * @param records the rows of the batch, may be {@code null}
+     * @param queryMore whether the batch was read with {@code queryMore}
+     */
+    void batchReceived(Object[] records, boolean queryMore) {
+        if (queryMore) {
+            queryMoreCalls.incrementAndGet();
+        } else {
+            firstBatch.compareAndSet(0, System.nanoTime());
+        }
+        if (records != null) rowsReturned.addAndGet(records.length);
+    }
+    
+    /**
+     * Marks the end of the fetch phase, all rows have been received.
+     */
+    void fetched() {
+        fetched = System.nanoTime();
+    }
+    
+    /**
+     * Reports this execution to the listeners. Failures of listeners are logged and ignored.
+     * 
+     * @param listeners the listeners of the persistence unit
+     * @param query the query as written by the application
+     * @param soqlQueries the SOQL sent to Force.com, may be {@code null}
+     * @param parameters the parameter values of the query, may be {@code null}
+     * @param rowsMaterialized the number of results handed to the application
+     * @param failure the failure of the execution, or {@code null}
+     */
+    void notify(List<QueryExecutionListener> listeners, String query, List<String> soqlQueries, Map<?, ?> parameters,
+            int rowsMaterialized, Throwable failure) {
+        if (listeners.isEmpty()) return;
+        long now = System.nanoTime();
+        long compileEnd = planned != 0 ? planned : now;
+        long fetchEnd = fetched != 0 ? fetched : now;
+        long first = firstBatch.get();
+        QueryExecutionStats stats = new QueryExecutionStats(query, soqlQueries, parameters, compileEnd - started,
+                                                            first != 0 ? first - compileEnd : 0,
+                                                            Math.max(fetchEnd - compileEnd, 0), queryMoreCalls.get(),
+                                                            rowsReturned.get(), rowsMaterialized, failure);
+        for (QueryExecutionListener listener : listeners) {
+            try {
+                listener.executed(stats);
+            } catch (RuntimeException e) {
+                ForceQueryUtils.LOGGER.warn("Query execution listener failed: " + listener, e);
+            }
+        }
+    }
+    
+    /**
+     * Cancels the execution. Safe to call from any thread. A call running on the calling thread has its
+     * connection closed, so that the connection is never used again.
+     */
+    void cancel() {
+        cancelled = true;
+        for (Future<?> call : calls) {
+            call.cancel(true);
+        }
+        ForceManagedConnection conn = inlineConnection;
+        if (conn != null) conn.close();
+    }
+    
+    /**
+     * Throws if the execution was cancelled, ran out of time, or if the current worker was interrupted.
+     * Called before each round trip.
+     */
+    void checkpoint() {
+        if (cancelled || Thread.currentThread().isInterrupted()) {
+            throw new QueryInterruptedException("Query was cancelled");
+        }
+        if (timeoutMillis > 0 && System.nanoTime() - deadline >= 0) {
+            throw new QueryTimeoutException("Query exceeded its timeout of " + timeoutMillis + " ms");
+        }
+    }
+    
+    /**
+     * Runs the tasks on the worker threads and waits for them with the time left. If any task fails, times out
+     * or is cancelled, the others are cancelled too. A single task without a timeout has nothing to overlap, so
+     * it runs on the calling thread with the given connection. A cancel closes that connection, so that it is
+     * dropped instead of reused with a call in an unknown state, and the task fails with a
+     * {@code QueryInterruptedException}; the blocked call itself returns at the latest when the socket read times
+     * out. On a worker thread the tasks run one after the other on that thread. In both cases the timeout and
+     * cancel are otherwise checked between round trips.
+     * 
+     * @param <T> the result type of the tasks
+     * @param executor the task executor of the store manager
+     * @param tasks the tasks to run
+     * @param mconn the connection of the calling thread
+     * @return the results in the same order as the tasks
+     */
+    <T> List<T> invokeAll(ForceTaskExecutor executor, List<? extends ConnectionTask<T>> tasks, ForceManagedConnection mconn) {
+        if (tasks.size() == 1 && timeoutMillis <= 0) {
+            inlineConnection = mconn;
+            try {
+                // A cancel that came before the connection was set did not close it
+                checkpoint();
+                List<T> result = Collections.singletonList(tasks.get(0).call(mconn));
+                checkpoint();
+                return result;
+            } catch (NucleusException e) {
+                if (cancelled) throw new QueryInterruptedException("Query was cancelled");
+                throw e;
+            } catch (Exception e) {
+                if (cancelled) throw new QueryInterruptedException("Query was cancelled");
+                throw new NucleusDataStoreException(e.getMessage(), e);
+            } finally {
+                inlineConnection = null;
+            }
+        }
+        checkpoint();
+        if (ForceTaskExecutor.isWorkerThread()) {
+            return executor.invokeAll(tasks);
+        }
+        List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+        try {
+            for (ConnectionTask<T> task : tasks) {
+                Future<T> future = executor.submit(task);
+                futures.add(future);
+                calls.add(future);
+            }
+            // A cancel that raced with the submission did not see the new calls
+            checkpoint();
+            List<T> results = new ArrayList<T>(futures.size());
+            for (Future<T> future : futures) {
+                results.add(await(future));
+            }
+            return results;
+        } finally {
+            for (Future<T> future : futures) {
+                future.cancel(true);
+            }
+            calls.removeAll(futures);
+        }
+    }
+    
+    /**
+     * Submits a call to the worker threads, to be cancelled with this execution. Wait for it with
+     * {@link #await(Future)}.
+     * 
+     * @param <T> the result type of the call
+     * @param executor the task executor of the store manager
+     * @param task the call to run
+     * @return the pending call
+     */
+    <T> Future<T> submit(ForceTaskExecutor executor, ConnectionTask<T> task) {
+        checkpoint();
+        Future<T> future = executor.submit(task);
+        calls.add(future);
+        if (cancelled) {
+            // A cancel that raced with the submission did not see the new call
+            future.cancel(true);
+            calls.remove(future);
+            checkpoint();
+        }
+        return future;
+    }
+    
+    /**
+     * Waits for a call with the time left and unwraps its failure.
+     * 
+     * @param <T> the result type of the call
+     * @param future the pending call
+     * @return the result of the call
+     */
+    <T> T await(Future<T> future) {
+        try {
+            if (timeoutMillis <= 0) return future.get();
+            return future.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            throw new QueryTimeoutException("Query exceeded its timeout of " + timeoutMillis + " ms");
+        } catch (CancellationException e) {
+            throw new QueryInterruptedException("Query was cancelled");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel();
+            throw new QueryInterruptedException("Query was cancelled");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof NucleusException) throw (NucleusException) cause;
+            throw new NucleusDataStoreException(cause.getMessage(), cause);
+        } finally {
+            calls.remove(future);
+        }
+    }
+    
+    /**
+     * The executions of a query that are running, by the thread that started them, and the asynchronous
+     * executions whose results have not been read yet.
+     *
+     * @author Fiaz Hossain
+     */
+    static final class Registry {
+        private final ConcurrentMap<Thread, QueryExecution> running = new ConcurrentHashMap<Thread, QueryExecution>(4);
+        private final Set<QueryExecution> pending = new CopyOnWriteArraySet<QueryExecution>();
+        
+        /**
+         * Starts an execution on the current thread.
+         * 
+         * @param ec the execution context of the query
+         * @param hints the hints of the query
+         * @return the execution
+         */
+        QueryExecution start(ExecutionContext ec, Map<?, ?> hints) {
+            QueryExecution execution = new QueryExecution(getTimeoutMillis(ec, hints));
+            running.put(Thread.currentThread(), execution);
+            return execution;
+        }
+        
+        void finish() {
+            running.remove(Thread.currentThread());
+        }
+        
+        /**
+         * Starts an execution that outlives the call that started it, until {@link #finish(QueryExecution)}.
+         * 
+         * @param ec the execution context of the query
+         * @param hints the hints of the query
+         * @return the execution
+         */
+        QueryExecution startAsync(ExecutionContext ec, Map<?, ?> hints) {
+            QueryExecution execution = new QueryExecution(getTimeoutMillis(ec, hints));
+            pending.add(execution);
+            return execution;
+        }
+        
+        void finish(QueryExecution execution) {
+            pending.remove(execution);
+        }
+        
+        void cancel() {
+            for (QueryExecution execution : running.values()) {
+                execution.cancel();
+            }
+            for (QueryExecution execution : pending) {
+                execution.cancel();
+            }
+        }
+        
+        void cancel(Thread thread) {
+            QueryExecution execution = running.get(thread);
+            if (execution != null) execution.cancel();
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.force.sdk.jpa.query;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 
+ * Statistics of a single query execution, as reported to a {@link QueryExecutionListener}.
+ * <p>
+ * The execution is split into two phases. Compiling translates the query into SOQL, including any calls
+ * needed to locate a range or to split the query into partitions. Fetching sends the SOQL and follows the
+ * query locators until every row has been read. Partitioned queries fetch concurrently, so their round
+ * trips and rows are the totals of all partitions.
+ *
+ * @author Fiaz Hossain
+ */
+public final class QueryExecutionStats {
+
+    private final String query;
+    private final List<String> soqlQueries;
+    private final Map<?, ?> parameters;
+    private final long compileNanos;
+    private final long firstBatchNanos;
+    private final long fetchNanos;
+    private final int queryMoreCalls;
+    private final int rowsReturned;
+    private final int rowsMaterialized;
+    private final Throwable failure;
+    
+    QueryExecutionStats(String query, List<String> soqlQueries, Map<?, ?> parameters, long compileNanos,
+            long firstBatchNanos, long fetchNanos, int queryMoreCalls, int rowsReturned, int rowsMaterialized,
+            Throwable failure) {
+        this.query = query;
+        this.soqlQueries = soqlQueries != null ? Collections.unmodifiableList(soqlQueries) : Collections.<String>emptyList();
+        this.parameters = parameters != null ? Collections.unmodifiableMap(parameters) : Collections.emptyMap();
+        this.compileNanos = compileNanos;
+        this.firstBatchNanos = firstBatchNanos;
+        this.fetchNanos = fetchNanos;
+        this.queryMoreCalls = queryMoreCalls;
+        this.rowsReturned = rowsReturned;
+        this.rowsMaterialized = rowsMaterialized;
+        this.failure = failure;
+    }
+    
+    /**
+     * Returns the query as written by the application, JPQL, JDOQL or SOQL.
+     * 
+     * @return the query as written by the application
+     */
+    public String getQuery() {
+        return query;
+    }
+    
+    /**
+     * Returns the SOQL sent to Force.com, one entry per partition, empty if no call was needed.
+     * 
+     * @return the SOQL sent to Force.com
+     */
+    public List<String> getSoqlQueries() {
+        return soqlQueries;
+    }
+    
+    /**
+     * Returns the values bound to the query parameters, by name or position.
+     * 
+     * @return the values bound to the query parameters
+     */
+    public Map<?, ?> getParameters() {
+        return parameters;
+    }
+    
+    /**
+     * Returns the time spent translating the query into SOQL.
+     * 
+     * @param unit the unit of the result
+     * @return the time in the given unit
+     */
+    public long getCompileTime(TimeUnit unit) {
+        return unit.convert(compileNanos, TimeUnit.NANOSECONDS);
+    }
+    
+    /**
+     * Returns the time from sending the SOQL to receiving the first batch of rows, 0 if no batch arrived.
+     * 
+     * @param unit the unit of the result
+     * @return the time in the given unit
+     */
+    public long getTimeToFirstBatch(TimeUnit unit) {
+        return unit.convert(firstBatchNanos, TimeUnit.NANOSECONDS);
+    }
+    
+    /**
+     * Returns the time from sending the SOQL to receiving the last batch of rows.
+     * 
+     * @param unit the unit of the result
+     * @return the time in the given unit
+     */
+    public long getFetchTime(TimeUnit unit) {
+        return unit.convert(fetchNanos, TimeUnit.NANOSECONDS);
+    }
+    
+    /**
+     * Returns the compile and fetch time together.
+     * 
+     * @param unit the unit of the result
+     * @return the time in the given unit
+     */
+    public long getTotalTime(TimeUnit unit) {
+        return unit.convert(compileNanos + fetchNanos, TimeUnit.NANOSECONDS);
+    }
+    
+    /**
+     * Returns the number of {@code queryMore} round trips.
+     * 
+     * @return the number of round trips
+     */
+    public int getQueryMoreCalls() {
+        return queryMoreCalls;
+    }
+    
+    /**
+     * Returns the number of rows returned by Force.com.
+     * 
+     * @return the number of rows
+     */
+    public int getRowsReturned() {
+        return rowsReturned;
+    }
+    
+    /**
+     * Returns the number of results built from the returned rows, before any range that is applied in memory.
+     * 
+     * @return the number of results
+     */
+    public int getRowsMaterialized() {
+        return rowsMaterialized;
+    }
+    
+    /**
+     * Returns the failure of the execution, or {@code null} if it succeeded.
+     * 
+     * @return the failure of the execution
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+    
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append(getTotalTime(TimeUnit.MILLISECONDS)).append(" ms (compile ").append(getCompileTime(TimeUnit.MILLISECONDS))
+          .append(" ms, first batch ").append(getTimeToFirstBatch(TimeUnit.MILLISECONDS))
+          .append(" ms, fetch ").append(getFetchTime(TimeUnit.MILLISECONDS))
+          .append(" ms), queryMore calls: ").append(queryMoreCalls)
+          .append(", rows returned: ").append(rowsReturned)
+          .append(", rows materialized: ").append(rowsMaterialized);
+        if (failure != null) {
+            sb.append(", failed: ").append(failure);
+        }
+        sb.append(", query: ").append(query);
+        for (String soqlQuery : soqlQueries) {
+            sb.append(", soql: ").append(soqlQuery);
+        }
+        return sb.toString();
+    }
+}
@@ -52,4 +52,52 @@ public final class QueryHints {
      *  Field name of child object to use for MEMBER OF queries, default "name".
      */
     public static final String MEMBER_OF_FIELD = "MEMBER_OF_FIELD";
+    /**
+     * Comma separated entity fields to page by with keyset pagination, e.g. "createdDate, id". Each field may
+     * be followed by ASC or DESC. The page size is set with setMaxResults and the query returns a
+     * {@link KeysetResultList}.
+     */
+    public static final String KEYSET_ORDERING = "KEYSET_ORDERING";
+    /**
+     * Next page token from a previous {@link KeysetResultList}. Omit it to read the first page.
+     */
+    public static final String KEYSET_AFTER = "KEYSET_AFTER";
+    /**
+     * Number of disjoint partitions an entity query is split into. The partitions run concurrently,
+     * each on its own connection, and their results are merged.
+     */
+    public static final String PARALLEL_PARTITIONS = "PARALLEL_PARTITIONS";
+    /**
+     * Entity field to partition on, either the id (default) or a date field.
+     */
+    public static final String PARTITION_FIELD = "PARTITION_FIELD";
+    /**
+     * Set to true to materialize entity results as plain, untracked instances. No state managers are
+     * created, the persistence context is bypassed and lifecycle callbacks do not fire.
+     */
+    public static final String READ_ONLY = "READ_ONLY";
+    /**
+     * Set to true to return projection and aggregate results as a {@link TupleResult}, which keeps
+     * numeric columns in primitive arrays.
+     */
+    public static final String COLUMNAR_RESULT = "COLUMNAR_RESULT";
+    /**
+     * Controls sharing of repeated String values in the results. By default picklist values and lookup ids
+     * are shared, set to true to share every text value or to false to turn sharing off for the query.
+     */
+    public static final String INTERN_VALUES = "INTERN_VALUES";
+    /**
+     * Set to true to run the query as a Bulk API query job instead of a SOAP query. Meant for very large
+     * extracts, the job is polled until it completes and its CSV results are read as they are downloaded.
+     */
+    public static final String BULK_QUERY = "BULK_QUERY";
+    /**
+     * Number of records per batch when a {@link #BULK_QUERY} should be split by ranges of ids (PK chunking).
+     */
+    public static final String BULK_PK_CHUNK_SIZE = "BULK_PK_CHUNK_SIZE";
+    /**
+     * Time in milliseconds the query may spend on Force.com calls, including every {@code queryMore} round trip.
+     * Takes precedence over the standard {@code javax.persistence.query.timeout} hint. 0 means no limit.
+     */
+    public static final String TIMEOUT = "TIMEOUT";
 }
@@ -0,0 +1,355 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.force.sdk.jpa.query;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+import org.datanucleus.exceptions.NucleusUserException;
+import org.datanucleus.metadata.AbstractClassMetaData;
+import org.datanucleus.query.expression.Expression;
+import org.datanucleus.query.expression.OrderExpression;
+import org.datanucleus.query.expression.PrimaryExpression;
+
+import com.force.sdk.jpa.table.ColumnImpl;
+import com.force.sdk.jpa.table.TableImpl;
+import com.sforce.soap.partner.FieldType;
+import com.sforce.soap.partner.PartnerConnection;
+import com.sforce.soap.partner.QueryResult;
+import com.sforce.soap.partner.sobject.SObject;
+import com.sforce.ws.ConnectionException;
+import com.sforce.ws.bind.CalendarCodec;
+
+/**
+ * 
+ * Splits a query into disjoint partitions over the Id or a date field of the candidate entity
+ * (see {@link QueryHints#PARALLEL_PARTITIONS}) and merges the partition results back together.
+ * <p>
+ * The boundaries are spread evenly between the lowest and highest value of the partition field. The first
+ * and last partitions are open ended, and the first one also holds the rows where the field is null, so every
+ * row falls in exactly one partition.
+ *
+ * @author Fiaz Hossain
+ */
+final class QueryPartitioner {
+
+    private static final String BASE62 = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+    private static final int ID_LENGTH = 15;
+    
+    private final ColumnImpl column;
+    private final String tableName;
+    private final int partitions;
+    
+    private QueryPartitioner(ColumnImpl column, String tableName, int partitions) {
+        this.column = column;
+        this.tableName = tableName;
+        this.partitions = partitions;
+    }
+    
+    /**
+     * Reads the partitioning hints of a query.
+     * 
+     * @param utils the query utils holding the hints
+     * @param table the table of the entity being queried
+     * @param acmd the class metadata of the entity being queried
+     * @return the partitioner for the query or {@code null} if the query should not be partitioned
+     */
+    static QueryPartitioner forQuery(ForceQueryUtils utils, TableImpl table, AbstractClassMetaData acmd) {
+        Object partitionHint = utils.getHints(QueryHints.PARALLEL_PARTITIONS);
+        if (partitionHint == null) return null;
+        int partitions;
+        try {
+            partitions = Integer.parseInt(partitionHint.toString().trim());
+        } catch (NumberFormatException e) {
+            throw new NucleusUserException("Invalid value for " + QueryHints.PARALLEL_PARTITIONS + ": " + partitionHint);
+        }
+        if (partitions < 2) return null;
+        
+        Object fieldHint = utils.getHints(QueryHints.PARTITION_FIELD);
+        int pos = fieldHint != null ? acmd.getAbsolutePositionOfMember(fieldHint.toString().trim())
+                                    : acmd.getPKMemberPositions()[0];
+        if (pos < 0) {
+            throw new NucleusUserException("Partition field: " + fieldHint + " not found in entity: " + acmd.getFullClassName());
+        }
+        ColumnImpl column = table.getColumnAt(acmd, pos);
+        FieldType type = column != null ? column.getType() : null;
+        if (type != FieldType.id && type != FieldType.date && type != FieldType.datetime) {
+            throw new NucleusUserException("Partition field: " + fieldHint + " must be the id or a date field");
+        }
+        return new QueryPartitioner(column, table.getTableName().getForceApiName(), partitions);
+    }
+    
+    /**
+     * Computes the partition predicates from the current range of values of the partition field.
+     * 
+     * @param service the connection to Force.com
+     * @return the predicates, a single {@code null} predicate if there is nothing to partition
+     * @throws ConnectionException if the range of values cannot be read
+     */
+    List<String> getPredicates(PartnerConnection service) throws ConnectionException {
+        String low = readBound(service, "ASC");
+        String high = readBound(service, "DESC");
+        List<String> bounds = low != null && high != null ? getBounds(low, high) : Collections.<String>emptyList();
+        if (bounds.isEmpty()) return Collections.singletonList(null);
+        
+        String field = column.getFieldName();
+        List<String> predicates = new ArrayList<String>(bounds.size() + 1);
+        predicates.add(field + " < " + bounds.get(0) + (column.getType() == FieldType.id ? "" : " or " + field + " = null"));
+        for (int i = 1; i < bounds.size(); i++) {
+            predicates.add(field + " >= " + bounds.get(i - 1) + " and " + field + " < " + bounds.get(i));
+        }
+        predicates.add(field + " >= " + bounds.get(bounds.size() - 1));
+        return predicates;
+    }
+    
+    private String readBound(PartnerConnection service, String direction) throws ConnectionException {
+        String field = column.getFieldName();
+        QueryResult qr = service.query(String.format("select %s from %s where %s != null order by %s %s limit 1",
+                                                        field, tableName, field, field, direction));
+        if (qr.getRecords() == null || qr.getRecords().length == 0) return null;
+        Object value = column.getType() == FieldType.id ? qr.getRecords()[0].getId() : qr.getRecords()[0].getField(field);
+        return value != null ? value.toString() : null;
+    }
+    
+    /**
+     * Returns the SOQL literals that split the range between the two values into even parts.
+     */
+    private List<String> getBounds(String low, String high) {
+        List<String> bounds = new ArrayList<String>(partitions - 1);
+        if (column.getType() == FieldType.id) {
+            BigInteger min = decodeId(low);
+            BigInteger span = decodeId(high).subtract(min);
+            for (int i = 1; i < partitions; i++) {
+                BigInteger offset = span.multiply(BigInteger.valueOf(i)).divide(BigInteger.valueOf(partitions));
+                String bound = "'" + encodeId(min.add(offset)) + "'";
+                addBound(bounds, bound);
+            }
+        } else {
+            boolean isDate = column.getType() == FieldType.date;
+            SimpleDateFormat format = new SimpleDateFormat(isDate ? "yyyy-MM-dd" : "yyyy-MM-dd'T'HH:mm:ss'Z'");
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            long min = parseTime(format, low, isDate);
+            long span = parseTime(format, high, isDate) - min;
+            for (int i = 1; i < partitions; i++) {
+                addBound(bounds, format.format(new Date(min + span / partitions * i)));
+            }
+        }
+        return bounds;
+    }
+    
+    private static void addBound(List<String> bounds, String bound) {
+        // Narrow ranges produce repeated bounds, which would only add empty partitions
+        if (bounds.isEmpty() || !bounds.get(bounds.size() - 1).equals(bound)) {
+            bounds.add(bound);
+        }
+    }
+    
+    private static long parseTime(SimpleDateFormat format, String value, boolean isDate) {
+        if (!isDate) {
+            return new CalendarCodec().deserialize(value).getTimeInMillis();
+        }
+        try {
+            return format.parse(value).getTime();
+        } catch (ParseException e) {
+            throw new NucleusUserException("Cannot partition on date value: " + value, e);
+        }
+    }
+    
+    static BigInteger decodeId(String id) {
+        BigInteger value = BigInteger.ZERO;
+        BigInteger radix = BigInteger.valueOf(BASE62.length());
+        for (int i = 0; i < ID_LENGTH; i++) {
+            value = value.multiply(radix).add(BigInteger.valueOf(BASE62.indexOf(id.charAt(i))));
+        }
+        return value;
+    }
+    
+    static String encodeId(BigInteger value) {
+        char[] id = new char[ID_LENGTH];
+        BigInteger radix = BigInteger.valueOf(BASE62.length());
+        for (int i = ID_LENGTH - 1; i >= 0; i--) {
+            BigInteger[] qr = value.divideAndRemainder(radix);
+            id[i] = BASE62.charAt(qr[1].intValue());
+            value = qr[0];
+        }
+        return new String(id);
+    }
+    
+    /**
+     * Creates a comparator that orders rows the way the query ordering does, so that sorted partitions
+     * can be merged. Only orderings on plain fields of the candidate entity are supported.
+     * 
+     * @param ordering the ordering of the query
+     * @param alias the candidate alias of the query
+     * @param table the table of the entity being queried
+     * @param acmd the class metadata of the entity being queried
+     * @param fieldsToLoad the fields selected by the query, the ordering fields are added to it
+     * @return the comparator or {@code null} if the ordering is not supported
+     */
+    static Comparator<SObject> createComparator(Expression[] ordering, String alias, TableImpl table,
+                                                AbstractClassMetaData acmd, Set<Integer> fieldsToLoad) {
+        List<ColumnImpl> columns = new ArrayList<ColumnImpl>(ordering.length);
+        List<String> sortOrders = new ArrayList<String>(ordering.length);
+        List<Integer> positions = new ArrayList<Integer>(ordering.length);
+        for (Expression expr : ordering) {
+            if (!(expr instanceof OrderExpression) || !(expr.getLeft() instanceof PrimaryExpression)) return null;
+            List<String> tuples = ((PrimaryExpression) expr.getLeft()).getTuples();
+            if (tuples.size() > 2 || tuples.size() == 2 && !tuples.get(0).equals(alias)) return null;
+            int pos = acmd.getAbsolutePositionOfMember(tuples.get(tuples.size() - 1));
+            if (pos < 0) return null;
+            ColumnImpl column = table.getColumnAt(acmd, pos);
+            if (column == null || column.getType() == null || column.getType() == FieldType.reference) return null;
+            columns.add(column);
+            sortOrders.add(((OrderExpression) expr).getSortOrder());
+            positions.add(pos);
+        }
+        fieldsToLoad.addAll(positions);
+        return createComparator(columns, sortOrders);
+    }
+    
+    /**
+     * Creates a comparator that orders rows by the given columns. A column is sorted in descending order only
+     * if its sort order is {@code "descending"}, no sort order means ascending as in SOQL.
+     * 
+     * @param columns the ordering columns
+     * @param sortOrders the sort order of each column, may hold {@code null}
+     * @return the comparator
+     */
+    static Comparator<SObject> createComparator(final List<ColumnImpl> columns, List<String> sortOrders) {
+        final boolean[] descending = new boolean[columns.size()];
+        for (int i = 0; i < descending.length; i++) {
+            descending[i] = "descending".equals(sortOrders.get(i));
+        }
+        return new Comparator<SObject>() {
+            @Override
+            public int compare(SObject o1, SObject o2) {
+                for (int i = 0; i < columns.size(); i++) {
+                    int c = compareValues(columns.get(i), getValue(columns.get(i), o1), getValue(columns.get(i), o2));
+                    if (c != 0) return descending[i] ? -c : c;
+                }
+                return 0;
+            }
+        };
+    }
+    
+    private static Object getValue(ColumnImpl column, SObject sobject) {
+        return column.getType() == FieldType.id ? sobject.getId() : sobject.getField(column.getFieldName());
+    }
+    
+    private static int compareValues(ColumnImpl column, Object v1, Object v2) {
+        // SOQL sorts nulls first in ascending order
+        if (v1 == null || v2 == null) return v1 == null ? (v2 == null ? 0 : -1) : 1;
+        switch (column.getType()) {
+        case _int:
+        case _double:
+        case currency:
+        case percent:
+            return new BigDecimal(v1.toString()).compareTo(new BigDecimal(v2.toString()));
+        case _boolean:
+            return Boolean.valueOf(v1.toString()).compareTo(Boolean.valueOf(v2.toString()));
+        case id:
+        case date:
+        case datetime:
+            return v1.toString().compareTo(v2.toString());
+        default:
+            return v1.toString().compareToIgnoreCase(v2.toString());
+        }
+    }
+    
+    /**
+     * Merges the partition results. Sorted partitions are merged k-way, others are concatenated.
+     * 
+     * @param parts the rows of each partition
+     * @param comparator the query ordering or {@code null} if the query is unordered
+     * @param maxLimit the maximum number of rows to keep
+     * @return the merged rows
+     */
+    static SObject[] merge(List<SObject[]> parts, Comparator<SObject> comparator, long maxLimit) {
+        return merge(parts, comparator, maxLimit, false);
+    }
+    
+    /**
+     * Merges the partition results, optionally dropping rows whose id was already merged. Overlapping
+     * parts come from queries that were split on an IN list, where a row may match more than one chunk.
+     * 
+     * @param parts the rows of each partition
+     * @param comparator the query ordering or {@code null} if the query is unordered
+     * @param maxLimit the maximum number of rows to keep
+     * @param distinct whether rows with the same id should be kept only once
+     * @return the merged rows
+     */
+    static SObject[] merge(List<SObject[]> parts, Comparator<SObject> comparator, long maxLimit, boolean distinct) {
+        int total = 0;
+        for (SObject[] part : parts) {
+            total += part != null ? part.length : 0;
+        }
+        SObject[] merged = new SObject[(int) Math.min(total, maxLimit)];
+        Set<String> mergedIds = distinct ? new HashSet<String>() : null;
+        int count = 0;
+        if (comparator == null) {
+            for (SObject[] part : parts) {
+                if (part == null) continue;
+                if (mergedIds == null) {
+                    int n = Math.min(part.length, merged.length - count);
+                    System.arraycopy(part, 0, merged, count, n);
+                    count += n;
+                } else {
+                    for (int i = 0; i < part.length && count < merged.length; i++) {
+                        if (isFirstOccurrence(mergedIds, part[i])) {
+                            merged[count++] = part[i];
+                        }
+                    }
+                }
+            }
+        } else {
+            int[] next = new int[parts.size()];
+            while (count < merged.length) {
+                int best = -1;
+                for (int p = 0; p < parts.size(); p++) {
+                    SObject[] part = parts.get(p);
+                    if (part == null || next[p] >= part.length) continue;
+                    if (best < 0 || comparator.compare(part[next[p]], parts.get(best)[next[best]]) < 0) {
+                        best = p;
+                    }
+                }
+                if (best < 0) break;
+                SObject row = parts.get(best)[next[best]++];
+                if (mergedIds == null || isFirstOccurrence(mergedIds, row)) {
+                    merged[count++] = row;
+                }
+            }
+        }
+        return count == merged.length ? merged : Arrays.copyOf(merged, count);
+    }
+    
+    private static boolean isFirstOccurrence(Set<String> mergedIds, SObject row) {
+        return row.getId() == null || mergedIds.add(row.getId());
+    }
+}
@@ -0,0 +1,194 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.force.sdk.jpa.query;
+
+import java.math.BigDecimal;
+import java.util.*;
+
+/**
+ * 
+ * Writes Java values as SOQL literals straight into a query buffer. Strings are quoted and escaped
+ * so that quotes, backslashes and control characters in the value cannot end the literal early.
+ *
+ * @author Fiaz Hossain
+ */
+public final class SOQLLiteralWriter {
+
+    private SOQLLiteralWriter() {  }
+    
+    /**
+     * Appends a value as a SOQL literal.
+     * 
+     * <ul>
+     *   <li>Strings, characters, bytes and URLs are quoted and escaped.</li>
+     *   <li>Numbers are written in plain notation, never with an exponent.</li>
+     *   <li>{@code java.util.Date} values are written as SOQL dates and {@code Calendar} values as
+     *       SOQL dateTimes (see {@link SOQLDateFormatUtil}).</li>
+     *   <li>Collections are written as a parenthesized list, {@code (NULL)} when empty.</li>
+     *   <li>{@code null} is written as {@code null}, anything else as its {@code toString()}.</li>
+     * </ul>
+     * 
+     * @param sb the query buffer
+     * @param value the value to write
+     * @return the query buffer
+     */
+    public static StringBuilder appendValue(StringBuilder sb, Object value) {
+        if (value == null) {
+            return sb.append("null");
+        }
+        Class<?> clazz = value.getClass();
+        if (clazz == String.class) {
+            return appendString(sb, (String) value);
+        } else if (clazz == Integer.class || clazz == Long.class || clazz == Short.class) {
+            return sb.append(((Number) value).longValue());
+        } else if (clazz == Double.class || clazz == Float.class) {
+            return appendDouble(sb, ((Number) value).doubleValue());
+        } else if (clazz == BigDecimal.class) {
+            return sb.append(((BigDecimal) value).toPlainString());
+        } else if (clazz == Boolean.class) {
+            return sb.append(((Boolean) value).booleanValue());
+        } else if (clazz == Character.class || clazz == Byte.class || clazz == java.net.URL.class) {
+            return appendString(sb, value.toString());
+        } else if (value instanceof Date) {
+            return sb.append(SOQLDateFormatUtil.getSOQLFormat((Date) value));
+        } else if (value instanceof Calendar) {
+            return sb.append(SOQLDateFormatUtil.getSOQLFormat((Calendar) value));
+        } else if (value instanceof Collection<?>) {
+            return appendCollection(sb, (Collection<?>) value);
+        }
+        return sb.append(value);
+    }
+    
+    /**
+     * Appends a quoted string literal. Quotes and backslashes are escaped with a backslash, and so are the
+     * control characters that SOQL has escape sequences for.
+     * 
+     * @param sb the query buffer
+     * @param value the string to write
+     * @return the query buffer
+     */
+    public static StringBuilder appendString(StringBuilder sb, CharSequence value) {
+        int length = value.length();
+        sb.ensureCapacity(sb.length() + length + 2);
+        sb.append('\'');
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            char escaped = getEscape(value.charAt(i));
+            if (escaped == 0) continue;
+            // Copy the run of plain characters in one go
+            sb.append(value, start, i).append('\\').append(escaped);
+            start = i + 1;
+        }
+        return sb.append(value, start, length).append('\'');
+    }
+    
+    /**
+     * Appends a quoted LIKE pattern. The {@code %} and {@code _} wildcards are kept. The escape character,
+     * {@code \} unless the query has an ESCAPE clause, makes the wildcard that follows it a plain character,
+     * written as {@code \%} or {@code \_}, and two escape characters stand for one. Any other character is
+     * escaped as in {@link #appendString(StringBuilder, CharSequence)}.
+     * 
+     * @param sb the query buffer
+     * @param pattern the pattern to write
+     * @param escape the escape character of the pattern
+     * @return the query buffer
+     */
+    public static StringBuilder appendLikePattern(StringBuilder sb, CharSequence pattern, char escape) {
+        int length = pattern.length();
+        sb.ensureCapacity(sb.length() + length + 2);
+        sb.append('\'');
+        for (int i = 0; i < length; i++) {
+            char c = pattern.charAt(i);
+            if (c == escape && i + 1 < length) {
+                char next = pattern.charAt(i + 1);
+                if (next == '%' || next == '_') {
+                    sb.append('\\').append(next);
+                    i++;
+                    continue;
+                } else if (next == escape) {
+                    i++;
+                }
+            }
+            char escaped = getEscape(c);
+            if (escaped != 0) {
+                sb.append('\\').append(escaped);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('\'');
+    }
+    
+    /**
+     * Returns the character that follows the backslash in the escape sequence of a character.
+     * 
+     * @return the escape character or 0 if the character is written as is
+     */
+    private static char getEscape(char c) {
+        switch (c) {
+        case '\'': return '\'';
+        case '\\': return '\\';
+        case '"': return '"';
+        case '\n': return 'n';
+        case '\r': return 'r';
+        case '\t': return 't';
+        case '\b': return 'b';
+        case '\f': return 'f';
+        default: return 0;
+        }
+    }
+    
+    /**
+     * Appends a parenthesized, comma separated list of literals. An empty collection is written as
+     * {@code (NULL)}, which SOQL accepts for any type.
+     * 
+     * @param sb the query buffer
+     * @param values the values to write
+     * @return the query buffer
+     */
+    public static StringBuilder appendCollection(StringBuilder sb, Collection<?> values) {
+        if (values.isEmpty()) {
+            return sb.append("(NULL)");
+        }
+        sb.append('(');
+        boolean pastFirst = false;
+        for (Object value : values) {
+            if (pastFirst) {
+                sb.append(',');
+            }
+            appendValue(sb, value);
+            pastFirst = true;
+        }
+        return sb.append(')');
+    }
+    
+    private static StringBuilder appendDouble(StringBuilder sb, double value) {
+        String str = Double.toString(value);
+        // SOQL does not accept exponent notation
+        return sb.append(str.indexOf('E') < 0 ? str : new BigDecimal(str).toPlainString());
+    }
+}
@@ -27,8 +27,10 @@
 package com.force.sdk.jpa.query;
 
 import java.util.*;
+import java.util.concurrent.Future;
 
 import org.datanucleus.exceptions.NucleusException;
+import org.datanucleus.exceptions.NucleusUserException;
 import org.datanucleus.metadata.QueryResultMetaData;
 import org.datanucleus.query.compiler.QueryCompilation;
 import org.datanucleus.query.evaluator.JPQLEvaluator;
@@ -38,7 +40,9 @@ import org.datanucleus.store.query.AbstractJavaQuery;
 import org.datanucleus.util.NucleusLogger;
 
 import com.force.sdk.jpa.ForceManagedConnection;
+import com.force.sdk.jpa.ForceObjectManagerImpl;
 import com.force.sdk.jpa.query.ForceQueryUtils.LimitType;
+import com.force.sdk.jpa.query.ForceQueryUtils.ResultPostProcessor;
 
 /**
  * 
@@ -50,6 +54,7 @@ public class SOQLQuery extends AbstractJavaQuery {
 
     private String soqlQuery;
     private QueryResultMetaData resultMetadata;
+    private final QueryExecution.Registry executions = new QueryExecution.Registry();
     
     /**
      * Creates a query object for SOQL queries.
@@ -103,6 +108,8 @@ public class SOQLQuery extends AbstractJavaQuery {
             throw new NucleusException("Bind parameters not supported on native SOQL query");
         }
 
+        // Queries see the creates and updates queued in write-behind mode
+        ForceObjectManagerImpl.flushQueuedWrites(ec);
         ForceManagedConnection mconn = (ForceManagedConnection) ec.getStoreManager().getConnection(ec);
         try {
             long startTime = System.currentTimeMillis();
@@ -112,14 +119,10 @@ public class SOQLQuery extends AbstractJavaQuery {
             Object results = null;
             if (candidateCollection == null) {
                 List<Object> rawResults =
-                    new ForceQueryUtils(ec, mconn, this, parameters, null, null).getObjectsOfCandidateType(null);
-                if (ForceQueryUtils.getLimitType(this) == LimitType.Java) {
-                    JavaQueryEvaluator resultMapper = new JPQLEvaluator(this, rawResults, newDummyQueryCompilation(),
-                            parameters, ec.getClassLoaderResolver());
-                        results = resultMapper.execute(false, false, false, false, true);
-                } else {
-                    results = rawResults;
-                }
+                    new ForceQueryUtils(ec, mconn, this, parameters, null, getExtensions())
+                            .setExecution(executions.start(ec, getExtensions()))
+                            .getObjectsOfCandidateType(null);
+                results = applyRange(rawResults, parameters);
             } else {
                 List candidates = new ArrayList(candidateCollection);
                 // Apply any result restrictions to the results
@@ -137,10 +140,62 @@ public class SOQLQuery extends AbstractJavaQuery {
         } catch (Exception e) {
             throw new NucleusException(e.getMessage(), e);
         } finally {
+            executions.finish();
             mconn.release();
         }
     }
 
+    /**
+     * Applies the range in memory, since native SOQL is sent as is.
+     */
+    private Object applyRange(List<Object> rawResults, Map<?, ?> parameters) {
+        if (ForceQueryUtils.getLimitType(this) == LimitType.Java) {
+            JavaQueryEvaluator resultMapper = new JPQLEvaluator(this, rawResults, newDummyQueryCompilation(),
+                    parameters, ec.getClassLoaderResolver());
+            return resultMapper.execute(false, false, false, false, true);
+        }
+        return rawResults;
+    }
+    
+    /**
+     * Starts executing this query and returns without waiting for Force.com. The query runs on the
+     * worker threads of the store manager on a connection of its own.
+     * <p>
+     * The result holds objects managed by the ExecutionContext of this query. Read it from the thread
+     * that owns the EntityManager; that is where the returned rows are turned into objects. Until then
+     * the query can be cancelled and its timeout applies.
+     * 
+     * @return the pending result list of the query
+     */
+    public Future<List<Object>> getResultListAsync() {
+        if (candidateCollection != null) {
+            throw new NucleusUserException("Queries over a candidate collection cannot be executed asynchronously");
+        }
+        final Map<Object, Object> parameters = new HashMap<Object, Object>();
+        if (implicitParameters != null && implicitParameters.size() > 0) {
+            throw new NucleusException("Bind parameters not supported on native SOQL query");
+        }
+        // Queries see the creates and updates queued in write-behind mode
+        ForceObjectManagerImpl.flushQueuedWrites(ec);
+        ForceManagedConnection mconn = (ForceManagedConnection) ec.getStoreManager().getConnection(ec);
+        try {
+            return new ForceQueryUtils(ec, mconn, this, parameters, null, getExtensions())
+                        .setExecution(executions.startAsync(ec, getExtensions()))
+                        .getObjectsOfCandidateTypeAsync(null, new ResultPostProcessor() {
+                            @Override
+                            @SuppressWarnings("unchecked")
+                            public List<Object> process(List<Object> results) {
+                                // Keep result lists such as TupleResult as they are
+                                Object ranged = applyRange(results, parameters);
+                                return ranged instanceof List ? (List<Object>) ranged
+                                                              : new ArrayList<Object>((Collection<?>) ranged);
+                            }
+                        }, executions);
+        } finally {
+            mconn.release();
+        }
+    }
+    
     private QueryCompilation newDummyQueryCompilation() {
         return new QueryCompilation(getCandidateClass(), null, null, null, null, null, null, null, null, null);
     }
@@ -149,4 +204,28 @@ public class SOQLQuery extends AbstractJavaQuery {
     public String getLanguage() {
         return "SOQL";
     }
+
+    /**
+     * Cancels the executions of this query that are running. The threads waiting for them get a
+     * {@code QueryInterruptedException}.
+     */
+    @Override
+    public void cancel() {
+        executions.cancel();
+    }
+
+    /**
+     * Cancels the execution of this query that was started by the given thread.
+     * 
+     * @param thread the thread running the query
+     */
+    @Override
+    public void cancel(Thread thread) {
+        executions.cancel(thread);
+    }
+
+    @Override
+    protected void assertSupportsCancel() {
+        // Queries run their Force.com calls on worker threads and can always be cancelled
+    }
 }
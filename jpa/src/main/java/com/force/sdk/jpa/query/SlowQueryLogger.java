@@ -0,0 +1,70 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.force.sdk.jpa.query;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 
+ * Logs query executions that take longer than a threshold, with their timings, row counts and SOQL.
+ * Enabled with the {@code force.slowQueryThresholdMillis} property. Entries are logged at WARN level to
+ * the {@code com.force.sdk.jpa.query.SlowQueryLogger} logger, with the bound parameters added at DEBUG level.
+ *
+ * @author Fiaz Hossain
+ */
+public class SlowQueryLogger implements QueryExecutionListener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SlowQueryLogger.class);
+    
+    private final long thresholdMillis;
+    
+    /**
+     * Creates a logger for queries slower than the threshold.
+     * 
+     * @param thresholdMillis the total time in milliseconds above which a query is logged
+     */
+    public SlowQueryLogger(long thresholdMillis) {
+        this.thresholdMillis = thresholdMillis;
+    }
+    
+    public long getThresholdMillis() {
+        return thresholdMillis;
+    }
+    
+    @Override
+    public void executed(QueryExecutionStats stats) {
+        if (stats.getTotalTime(TimeUnit.MILLISECONDS) < thresholdMillis || !LOGGER.isWarnEnabled()) return;
+        LOGGER.warn("Slow query: " + stats);
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Slow query parameters: " + stats.getParameters());
+        }
+    }
+}
@@ -0,0 +1,278 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.force.sdk.jpa.query;
+
+import java.util.AbstractList;
+import java.util.BitSet;
+
+/**
+ * 
+ * Columnar result returned by projection and aggregate queries that use the
+ * {@link QueryHints#COLUMNAR_RESULT} hint. Integral and floating point columns are kept in
+ * primitive arrays and can be read without boxing through {@link #getLong(int, int)} and
+ * {@link #getDouble(int, int)}. The list view returns the same values as a regular result
+ * list, a single value per row for one column and an {@code Object[]} otherwise, boxing them
+ * as they are read.
+ *
+ * @author Fiaz Hossain
+ */
+public final class TupleResult extends AbstractList<Object> {
+
+    private final String[] columnNames;
+    private final Class<?>[] columnTypes;
+    private final long[][] longColumns;
+    private final double[][] doubleColumns;
+    private final Object[][] objectColumns;
+    private final BitSet[] nulls;
+    private final int rowCount;
+    
+    /**
+     * Creates an empty result with room for the given number of rows. Columns with a primitive
+     * type are stored in primitive arrays, all other columns hold objects.
+     * 
+     * @param columnNames the Force.com field names of the columns
+     * @param columnTypes the Java type of each column, for example {@code long.class} or {@code String.class}
+     * @param rowCount the number of rows
+     */
+    TupleResult(String[] columnNames, Class<?>[] columnTypes, int rowCount) {
+        this.columnNames = columnNames;
+        this.columnTypes = columnTypes;
+        this.rowCount = rowCount;
+        this.longColumns = new long[columnTypes.length][];
+        this.doubleColumns = new double[columnTypes.length][];
+        this.objectColumns = new Object[columnTypes.length][];
+        this.nulls = new BitSet[columnTypes.length];
+        for (int col = 0; col < columnTypes.length; col++) {
+            if (isIntegral(columnTypes[col])) {
+                longColumns[col] = new long[rowCount];
+            } else if (isFloatingPoint(columnTypes[col])) {
+                doubleColumns[col] = new double[rowCount];
+            } else {
+                objectColumns[col] = new Object[rowCount];
+            }
+            nulls[col] = new BitSet(rowCount);
+        }
+    }
+    
+    static boolean isIntegral(Class<?> type) {
+        return type == long.class || type == int.class || type == short.class || type == byte.class;
+    }
+    
+    static boolean isFloatingPoint(Class<?> type) {
+        return type == double.class || type == float.class;
+    }
+    
+    void setLong(int col, int row, long value) {
+        longColumns[col][row] = value;
+    }
+    
+    void setDouble(int col, int row, double value) {
+        doubleColumns[col][row] = value;
+    }
+    
+    void setObject(int col, int row, Object value) {
+        objectColumns[col][row] = value;
+    }
+    
+    void setNull(int col, int row) {
+        nulls[col].set(row);
+    }
+    
+    /**
+     * Returns the number of columns.
+     * 
+     * @return the number of columns
+     */
+    public int getColumnCount() {
+        return columnTypes.length;
+    }
+    
+    /**
+     * Returns the number of rows, same as {@link #size()}.
+     * 
+     * @return the number of rows
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+    
+    /**
+     * Returns the Force.com field name of a column, for example {@code expr0} for an aggregate.
+     * 
+     * @param col the column index
+     * @return the field name
+     */
+    public String getColumnName(int col) {
+        return columnNames[col];
+    }
+    
+    /**
+     * Returns the Java type of a column. Columns kept in primitive arrays report their primitive type.
+     * 
+     * @param col the column index
+     * @return the column type
+     */
+    public Class<?> getColumnType(int col) {
+        return columnTypes[col];
+    }
+    
+    /**
+     * Checks whether a value is null. Primitive getters return 0 for null values.
+     * 
+     * @param col the column index
+     * @param row the row index
+     * @return {@code true} if the value is null
+     */
+    public boolean isNull(int col, int row) {
+        checkRow(row);
+        return nulls[col].get(row);
+    }
+    
+    /**
+     * Returns a value as a long. Floating point values are truncated.
+     * 
+     * @param col the column index
+     * @param row the row index
+     * @return the value or 0 if it is null
+     * @throws IllegalStateException if the column does not hold numbers
+     */
+    public long getLong(int col, int row) {
+        checkRow(row);
+        if (longColumns[col] != null) {
+            return longColumns[col][row];
+        } else if (doubleColumns[col] != null) {
+            return (long) doubleColumns[col][row];
+        }
+        Object value = objectColumns[col][row];
+        if (value == null) return 0L;
+        if (value instanceof Number) return ((Number) value).longValue();
+        throw new IllegalStateException("Column " + columnNames[col] + " of type " + columnTypes[col].getName()
+                                        + " is not numeric");
+    }
+    
+    /**
+     * Returns a value as an int. See {@link #getLong(int, int)}.
+     * 
+     * @param col the column index
+     * @param row the row index
+     * @return the value or 0 if it is null
+     */
+    public int getInt(int col, int row) {
+        return (int) getLong(col, row);
+    }
+    
+    /**
+     * Returns a value as a double.
+     * 
+     * @param col the column index
+     * @param row the row index
+     * @return the value or 0 if it is null
+     * @throws IllegalStateException if the column does not hold numbers
+     */
+    public double getDouble(int col, int row) {
+        checkRow(row);
+        if (doubleColumns[col] != null) {
+            return doubleColumns[col][row];
+        } else if (longColumns[col] != null) {
+            return longColumns[col][row];
+        }
+        Object value = objectColumns[col][row];
+        if (value == null) return 0d;
+        if (value instanceof Number) return ((Number) value).doubleValue();
+        throw new IllegalStateException("Column " + columnNames[col] + " of type " + columnTypes[col].getName()
+                                        + " is not numeric");
+    }
+    
+    /**
+     * Returns a value as a string.
+     * 
+     * @param col the column index
+     * @param row the row index
+     * @return the string form of the value or {@code null} if it is null
+     */
+    public String getString(int col, int row) {
+        checkRow(row);
+        if (nulls[col].get(row)) return null;
+        if (longColumns[col] != null) {
+            return Long.toString(longColumns[col][row]);
+        } else if (doubleColumns[col] != null) {
+            return Double.toString(doubleColumns[col][row]);
+        }
+        Object value = objectColumns[col][row];
+        return value != null ? value.toString() : null;
+    }
+    
+    /**
+     * Returns a value boxed into the same type a regular result list would hold.
+     * 
+     * @param col the column index
+     * @param row the row index
+     * @return the value or {@code null}
+     */
+    public Object getObject(int col, int row) {
+        checkRow(row);
+        if (nulls[col].get(row)) return null;
+        Class<?> type = columnTypes[col];
+        if (type == long.class) {
+            return longColumns[col][row];
+        } else if (type == int.class) {
+            return (int) longColumns[col][row];
+        } else if (type == short.class) {
+            return (short) longColumns[col][row];
+        } else if (type == byte.class) {
+            return (byte) longColumns[col][row];
+        } else if (type == double.class) {
+            return doubleColumns[col][row];
+        } else if (type == float.class) {
+            return (float) doubleColumns[col][row];
+        }
+        return objectColumns[col][row];
+    }
+    
+    @Override
+    public Object get(int row) {
+        if (columnTypes.length == 1) {
+            return getObject(0, row);
+        }
+        Object[] values = new Object[columnTypes.length];
+        for (int col = 0; col < values.length; col++) {
+            values[col] = getObject(col, row);
+        }
+        return values;
+    }
+    
+    @Override
+    public int size() {
+        return rowCount;
+    }
+    
+    private void checkRow(int row) {
+        if (row < 0 || row >= rowCount) {
+            throw new IndexOutOfBoundsException("Row: " + row + ", Rows: " + rowCount);
+        }
+    }
+}
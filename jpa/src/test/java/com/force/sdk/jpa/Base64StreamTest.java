@@ -0,0 +1,139 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.force.sdk.jpa;
+
+import static org.testng.Assert.*;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.xml.namespace.QName;
+
+import org.testng.annotations.Test;
+
+import com.sforce.soap.partner.sobject.SObject;
+import com.sforce.ws.bind.TypeMapper;
+import com.sforce.ws.parser.XmlOutputStream;
+import com.sforce.ws.util.Base64;
+
+/**
+ * Tests for streaming base64 field values.
+ *
+ * @author Fiaz Hossain
+ */
+public class Base64StreamTest {
+
+    @Test
+    public void testDecodeMatchesBase64() throws IOException {
+        Random random = new Random(42);
+        for (int size : new int[] {0, 1, 2, 3, 4, 5, 100, Base64StreamField.CHUNK_SIZE + 1}) {
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+            String encoded = new String(Base64.encode(data), "US-ASCII");
+            assertEquals(readFully(new Base64DecodingInputStream(encoded)), data, "Unexpected bytes for size " + size);
+        }
+    }
+    
+    @Test
+    public void testDecodeSkipsWhitespace() throws IOException {
+        assertEquals(readFully(new Base64DecodingInputStream("aGVs\nbG8g\r\nd29y bGQ=")), "hello world".getBytes("US-ASCII"));
+    }
+    
+    @Test
+    public void testDecodeRejectsTruncatedValue() {
+        try {
+            readFully(new Base64DecodingInputStream("aGVsbG8"));
+            fail("A truncated base64 value should not decode");
+        } catch (IOException expected) {
+            assertEquals(expected.getMessage(), "Truncated base64 value");
+        }
+    }
+    
+    @Test
+    public void testEncodeInChunks() throws IOException {
+        Random random = new Random(7);
+        for (int size : new int[] {0, 1, Base64StreamField.CHUNK_SIZE, Base64StreamField.CHUNK_SIZE * 2 + 2}) {
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            XmlOutputStream out = new XmlOutputStream(bytes, false);
+            // Return short reads to make sure chunks are filled before they are encoded
+            Base64StreamField.writeEncoded(new FilterInputStream(new ByteArrayInputStream(data)) {
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    return super.read(b, off, Math.min(len, 1000));
+                }
+            }, out);
+            out.flush();
+            assertEquals(readFully(new Base64DecodingInputStream(bytes.toString("US-ASCII"))), data,
+                    "Unexpected bytes for size " + size);
+        }
+    }
+    
+    @Test
+    public void testStreamIsNotResent() throws IOException {
+        InputStream in = new ByteArrayInputStream("hello world".getBytes("US-ASCII"));
+        Base64StreamField field = new Base64StreamField(in);
+        SObject record = new SObject();
+        record.setType("Document__c");
+        record.addField("Body__c", field);
+        assertTrue(Base64StreamField.holdsStream(record), "The record should hold a streamed field");
+        
+        QName element = new QName("urn:sobject.partner.soap.sforce.com", "Body__c");
+        field.write(element, new XmlOutputStream(new ByteArrayOutputStream(), false), new TypeMapper());
+        assertTrue(Base64StreamField.isSent(in), "The stream should be marked as sent");
+        try {
+            // A resend, such as after a session renewal, must not send an empty value
+            field.write(element, new XmlOutputStream(new ByteArrayOutputStream(), false), new TypeMapper());
+            fail("A stream should not be sent twice");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains("cannot be resent"), "Unexpected message " + expected.getMessage());
+        }
+    }
+    
+    @Test
+    public void testRecordWithoutStream() {
+        SObject record = new SObject();
+        record.setType("Document__c");
+        record.addField("Name", "doc");
+        assertFalse(Base64StreamField.holdsStream(record), "The record should not hold a streamed field");
+    }
+    
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[777];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            out.write(buf, 0, n);
+        }
+        int b = in.read();
+        assertEquals(b, -1, "Stream should stay at its end");
+        return Arrays.copyOf(out.toByteArray(), out.size());
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.force.sdk.jpa;
+
+import static org.testng.Assert.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+
+import com.sforce.async.*;
+import com.sforce.ws.ConnectorConfig;
+
+/**
+ * Tests for waiting on Bulk API jobs.
+ *
+ * @author Fiaz Hossain
+ */
+public class BulkJobsTest {
+
+    /**
+     * A job whose single batch never completes.
+     */
+    private static final class PendingJobConnection extends BulkConnection {
+        
+        private final AtomicInteger polls = new AtomicInteger();
+        
+        PendingJobConnection() throws AsyncApiException {
+            super(config());
+        }
+        
+        private static ConnectorConfig config() {
+            ConnectorConfig config = new ConnectorConfig();
+            config.setRestEndpoint("https://localhost/services/async/22.0");
+            config.setSessionId("session");
+            return config;
+        }
+        
+        @Override
+        public BatchInfoList getBatchInfoList(String jobId) {
+            polls.incrementAndGet();
+            BatchInfo batch = new BatchInfo();
+            batch.setId("batch");
+            batch.setState(BatchStateEnum.InProgress);
+            BatchInfoList list = new BatchInfoList();
+            list.setBatchInfo(new BatchInfo[] {batch});
+            return list;
+        }
+    }
+    
+    @Test
+    public void testCheckpointStopsTheWait() throws Exception {
+        PendingJobConnection bulk = new PendingJobConnection();
+        final AtomicInteger checks = new AtomicInteger();
+        long start = System.nanoTime();
+        try {
+            BulkJobs.awaitBatches(bulk, "job", new Runnable() {
+                @Override
+                public void run() {
+                    // Runs before and after the first delay, then twice during the second one
+                    if (checks.incrementAndGet() > 3) throw new IllegalStateException("cancelled");
+                }
+            });
+            fail("The checkpoint should stop the wait");
+        } catch (IllegalStateException expected) {
+            assertEquals(expected.getMessage(), "cancelled");
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        assertEquals(bulk.polls.get(), 1, "The job should not be polled once the checkpoint throws");
+        // The second delay is one second, the wait stops half way through it
+        assertTrue(elapsedMillis < 1500, "The wait should stop within one slice, took " + elapsedMillis + " ms");
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.force.sdk.jpa;
+
+import static org.testng.Assert.*;
+
+import org.testng.annotations.Test;
+
+import com.sforce.soap.partner.FieldType;
+
+/**
+ * Tests for sharing repeated field values.
+ *
+ * @author Fiaz Hossain
+ */
+public class FieldValueInternerTest {
+
+    @Test
+    public void testEqualValuesAreShared() {
+        FieldValueInterner interner = new FieldValueInterner(16);
+        String first = interner.intern(new String("Closed Won"));
+        String second = interner.intern(new String("Closed Won"));
+        assertEquals(second, "Closed Won");
+        assertSame(second, first, "Equal values should share one instance");
+        assertNull(interner.intern(null));
+    }
+    
+    @Test
+    public void testLongValuesAreNotShared() {
+        FieldValueInterner interner = new FieldValueInterner(16);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i <= FieldValueInterner.MAX_VALUE_LENGTH; i++) {
+            sb.append('x');
+        }
+        String first = interner.intern(sb.toString());
+        assertNotSame(interner.intern(sb.toString()), first, "Long values should not be held");
+    }
+    
+    @Test
+    public void testCollisionsReplaceSlot() {
+        // A single slot only ever holds the last value
+        FieldValueInterner interner = new FieldValueInterner(1);
+        String a = interner.intern(new String("a"));
+        interner.intern(new String("b"));
+        assertNotSame(interner.intern(new String("a")), a);
+        assertEquals(interner.intern(new String("a")), "a");
+    }
+    
+    @Test
+    public void testColumnTypes() {
+        assertTrue(FieldValueInterner.isInternedByDefault(FieldType.picklist));
+        assertTrue(FieldValueInterner.isInternedByDefault(FieldType.reference));
+        assertFalse(FieldValueInterner.isInternedByDefault(FieldType.string));
+        assertFalse(FieldValueInterner.isInternedByDefault(FieldType.id));
+        assertTrue(FieldValueInterner.isText(FieldType.string));
+        assertFalse(FieldValueInterner.isText(FieldType._double));
+        assertFalse(FieldValueInterner.isText(null));
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.force.sdk.jpa;
+
+import static org.testng.Assert.*;
+
+import java.util.*;
+
+import org.testng.annotations.Test;
+
+import com.sforce.soap.partner.sobject.SObject;
+
+/**
+ * Tests for ordering and splitting queued writes.
+ *
+ * @author Fiaz Hossain
+ */
+public class FlushOrderTest {
+
+    @Test
+    public void testChildrenAreAboveTheirParents() {
+        SObject account = record("Account", "extId__c", "a1");
+        SObject contact = record("Contact", "extId__c", "c1");
+        contact.setField("Account", reference("Account", "extId__c", "a1"));
+        SObject task = record("Task__c", "extId__c", "t1");
+        task.setField("Contact__r", reference("Contact", "ExtId__c", "c1"));
+        SObject other = record("Account", "extId__c", "a2");
+        // A reference to a record that is not queued does not raise the level
+        SObject orphan = record("Contact", "extId__c", "c2");
+        orphan.setField("Account", reference("Account", "extId__c", "missing"));
+        
+        int[] levels = FlushOrder.levels(Arrays.asList(account, contact, task, other, orphan));
+        assertEquals(levels, new int[] {0, 1, 2, 0, 0});
+        
+        List<Map<String, List<Integer>>> groups = FlushOrder.groupByLevel(Arrays.asList(account, contact, task, other, orphan));
+        assertEquals(groups.size(), 3);
+        assertEquals(groups.get(0).get("Account"), Arrays.asList(0, 3));
+        assertEquals(groups.get(0).get("Contact"), Arrays.asList(4));
+        assertEquals(groups.get(1).get("Contact"), Arrays.asList(1));
+        assertEquals(groups.get(2).get("Task__c"), Arrays.asList(2));
+    }
+    
+    @Test
+    public void testChunksHoldOneLevelAndType() {
+        List<SObject> records = new ArrayList<SObject>();
+        for (int i = 0; i < 5; i++) {
+            records.add(record("Account", "extId__c", "a" + i));
+        }
+        SObject contact = record("Contact", "extId__c", "c1");
+        contact.setField("Account", reference("Account", "extId__c", "a4"));
+        records.add(contact);
+        
+        records.add(record("Contact", "extId__c", "c2"));
+        
+        List<Map<String, List<Integer>>> levels = FlushOrder.groupByLevel(records);
+        List<List<Integer>> chunks = FlushOrder.chunks(levels.get(0), 2);
+        assertEquals(chunks.size(), 4);
+        assertEquals(chunks.get(0), Arrays.asList(0, 1));
+        assertEquals(chunks.get(1), Arrays.asList(2, 3));
+        assertEquals(chunks.get(2), Arrays.asList(4));
+        assertEquals(chunks.get(3), Arrays.asList(6));
+        assertEquals(FlushOrder.chunks(levels.get(1), 2), Collections.singletonList(Arrays.asList(5)));
+    }
+    
+    @Test
+    public void testParentReferencesAreResolvedLevelByLevel() {
+        SObject account = record("Account", "Name", "a1");
+        SObject contact = record("Contact", "LastName", "c1");
+        contact.setField("AccountId", new FlushOrder.ParentReference(account));
+        SObject task = record("Task__c", "Name", "t1");
+        task.setField("Contact__c", new FlushOrder.ParentReference(contact));
+        SObject other = record("Contact", "LastName", "c2");
+        other.setField("AccountId", new FlushOrder.ParentReference(account));
+        List<SObject> records = Arrays.asList(account, contact, task, other);
+        
+        assertTrue(FlushOrder.hasParentReferences(records.toArray(new SObject[records.size()])));
+        assertFalse(FlushOrder.hasParentReferences(new SObject[] {account}));
+        List<Map<String, List<Integer>>> levels = FlushOrder.groupByLevel(records);
+        assertEquals(levels.size(), 3);
+        assertEquals(levels.get(1).get("Contact"), Arrays.asList(1, 3), "Siblings should share a chunk");
+        
+        account.setId("001000000000001");
+        assertTrue(FlushOrder.resolveLevel(levels.get(1), records).isEmpty());
+        assertEquals(contact.getField("AccountId"), "001000000000001");
+        assertEquals(other.getField("AccountId"), "001000000000001");
+        
+        // The contact was not created, the task cannot be sent
+        assertEquals(FlushOrder.resolveLevel(levels.get(2), records), Arrays.asList(2));
+        assertTrue(levels.get(2).isEmpty());
+    }
+    
+    @Test
+    public void testBulkRecordConversion() throws Exception {
+        SObject contact = record("Contact", "LastName", "Smith");
+        contact.setField("Amount__c", 0.00001d);
+        contact.setField("Birthdate", null);
+        contact.setField("Account", reference("Account", "extId__c", "a1"));
+        
+        com.sforce.async.SObject bulkRecord = BulkFlush.toBulkRecord(contact);
+        assertEquals(bulkRecord.getField("LastName"), "Smith");
+        assertEquals(bulkRecord.getField("Amount__c"), "0.000010");
+        assertFalse(bulkRecord.getFieldNames().contains("type"), "The type is given by the job");
+        assertTrue(bulkRecord.getFieldNames().contains("Birthdate"), "Null values should be sent to clear the field");
+        assertEquals(BulkFlush.toBulkValue(new byte[] {1, 2, 3}), "AQID");
+    }
+    
+    private static SObject record(String type, String field, String value) {
+        SObject record = new SObject();
+        record.setType(type);
+        record.setField(field, value);
+        return record;
+    }
+    
+    private static SObject reference(String type, String field, String value) {
+        return record(type, field, value);
+    }
+}
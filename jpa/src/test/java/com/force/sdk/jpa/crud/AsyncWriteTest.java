@@ -0,0 +1,230 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.force.sdk.jpa.crud;
+
+import static org.testng.Assert.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.persistence.*;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.force.sdk.jpa.AsyncWriteHandler;
+import com.force.sdk.jpa.ForceEntityManager;
+import com.force.sdk.jpa.entities.QueryTestEntity;
+import com.sforce.soap.partner.sobject.SObject;
+
+/**
+ * Tests for the background writer of {@link ForceEntityManager#persistAsync(Object)}
+ * and {@link ForceEntityManager#commitAsync()}.
+ *
+ * @author Fiaz Hossain
+ */
+public class AsyncWriteTest extends BaseJPACrudTest {
+    
+    private static final long RETRY_BACKOFF_MILLIS = 50;
+    private static final long TIMEOUT_SECONDS = 10;
+    private static final String ID = "a01x00000000000001";
+    
+    /**
+     * Retries a failed write until it has been sent three times, except for
+     * the entity named "fatal", and keeps what it was called with.
+     *
+     * @author Fiaz Hossain
+     */
+    public static class RecordingHandler implements AsyncWriteHandler {
+        
+        static final int MAX_ATTEMPTS = 3;
+        static final List<Integer> RETRIED_ATTEMPTS = Collections.synchronizedList(new ArrayList<Integer>());
+        static final List<String> DEAD_LETTERS = Collections.synchronizedList(new ArrayList<String>());
+        
+        @Override
+        public boolean retry(Object entity, int attempts, PersistenceException error) {
+            RETRIED_ATTEMPTS.add(attempts);
+            return attempts < MAX_ATTEMPTS && !"fatal".equals(((QueryTestEntity) entity).getName());
+        }
+        
+        @Override
+        public void deadLetter(Object entity, PersistenceException error) {
+            DEAD_LETTERS.add(((QueryTestEntity) entity).getName());
+        }
+    }
+    
+    @Override
+    protected Map<String, Object> getPersistenceProperties() {
+        Map<String, Object> properties = super.getPersistenceProperties();
+        properties.put("force.asyncWriteHandler", RecordingHandler.class.getName());
+        properties.put("force.asyncWriteRetryBackoffMillis", String.valueOf(RETRY_BACKOFF_MILLIS));
+        return properties;
+    }
+    
+    @BeforeMethod
+    public void clearHandler() {
+        RecordingHandler.RETRIED_ATTEMPTS.clear();
+        RecordingHandler.DEAD_LETTERS.clear();
+    }
+    
+    @Test
+    public void testWriteReturnsIdOfCreatedRecord() throws Exception {
+        Future<String> id = persistAsync(em, "one");
+        
+        assertNotNull(id.get(TIMEOUT_SECONDS, TimeUnit.SECONDS), "The future should hold the id of the record");
+        assertEquals(mockCrudConn.getCreatedRecords().size(), 1, "Unexpected number of created records");
+        assertEquals(mockCrudConn.getCreatedRecords().get(0).getField("Name"), "one", "Unexpected record created");
+        assertTrue(RecordingHandler.RETRIED_ATTEMPTS.isEmpty(), "A successful write should not reach the handler");
+    }
+    
+    @Test
+    public void testFailedRecordDoesNotFailOtherWrites() throws Exception {
+        mockCrudConn.failWritesOf("fatal");
+        Future<String> fatal = persistAsync(em, "fatal");
+        Future<String> one = persistAsync(em, "one");
+        
+        assertNotNull(one.get(TIMEOUT_SECONDS, TimeUnit.SECONDS), "The write that succeeded should hold its id");
+        assertWriteFailed(fatal);
+        assertEquals(RecordingHandler.RETRIED_ATTEMPTS, Arrays.asList(1), "The handler should be asked once");
+        assertEquals(RecordingHandler.DEAD_LETTERS, Arrays.asList("fatal"), "The failed write should be given up");
+        assertEquals(mockCrudConn.getFailedRecords().size(), 1, "A write that is not retried should be sent once");
+    }
+    
+    @Test
+    public void testRetriesStopWhenHandlerGivesUp() throws Exception {
+        mockCrudConn.failWritesOf("flaky");
+        long start = System.nanoTime();
+        Future<String> flaky = persistAsync(em, "flaky");
+        
+        assertWriteFailed(flaky);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertEquals(RecordingHandler.RETRIED_ATTEMPTS, Arrays.asList(1, 2, 3), "Unexpected attempts passed to the handler");
+        assertEquals(RecordingHandler.DEAD_LETTERS, Arrays.asList("flaky"),
+                        "The write should be given up after the last attempt");
+        assertEquals(mockCrudConn.getFailedRecords().size(), RecordingHandler.MAX_ATTEMPTS, "Unexpected number of attempts");
+        // The second retry waits twice as long as the first one
+        assertTrue(elapsedMillis >= 3 * RETRY_BACKOFF_MILLIS,
+                    "Retries should wait for the backoff, took " + elapsedMillis + " ms");
+    }
+    
+    @Test
+    public void testCloseSendsQueuedWrites() throws Exception {
+        // Writes would wait for a full batch, only closing the factory sends them
+        Map<String, Object> properties = getPersistenceProperties();
+        properties.put("force.asyncWriteLingerMillis", "60000");
+        EntityManagerFactory lingeringEmf = Persistence.createEntityManagerFactory("jpaCrudUnitTest", properties);
+        List<Future<String>> ids = new ArrayList<Future<String>>();
+        EntityManager lingeringEm = lingeringEmf.createEntityManager();
+        try {
+            for (String name : Arrays.asList("one", "two", "three")) {
+                ids.add(persistAsync(lingeringEm, name));
+            }
+        } finally {
+            lingeringEm.close();
+        }
+        long start = System.nanoTime();
+        lingeringEmf.close();
+        
+        assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) < TIMEOUT_SECONDS,
+                    "Closing should not wait for the batch to linger");
+        for (Future<String> id : ids) {
+            assertTrue(id.isDone(), "Every queued write should be sent before the factory is closed");
+            assertNotNull(id.get(), "The future should hold the id of the record");
+        }
+        List<String> names = new ArrayList<String>();
+        for (SObject record : mockCrudConn.getCreatedRecords()) {
+            names.add((String) record.getField("Name"));
+        }
+        assertEquals(names, Arrays.asList("one", "two", "three"), "Unexpected records created");
+    }
+    
+    @Test
+    public void testCommitAsyncSetsIdOfNewEntity() throws Exception {
+        QueryTestEntity entity = new QueryTestEntity();
+        entity.setName("one");
+        em.getTransaction().begin();
+        em.persist(entity);
+        Future<Map<Object, String>> ids = ((ForceEntityManager) em).commitAsync();
+        
+        assertFalse(em.getTransaction().isActive(), "The transaction should end without waiting for the writes");
+        Map<Object, String> written = ids.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull(written.get(entity), "The future should hold the id of the created record");
+        assertEquals(entity.getId(), written.get(entity), "Reading the future should set the id of the new entity");
+        assertTrue(em.contains(entity), "The entity should stay managed");
+        assertEquals(mockCrudConn.getCreatedRecords().size(), 1, "Unexpected number of created records");
+    }
+    
+    @Test
+    public void testCommitAsyncSendsUpdatesAndDeletes() throws Exception {
+        SObject record = new SObject();
+        record.setType("QueryTestEntity__c");
+        record.setId(ID);
+        record.setField("Name", "one");
+        mockCrudConn.addQueriedRecord(record);
+        em.getTransaction().begin();
+        QueryTestEntity entity = em.find(QueryTestEntity.class, ID);
+        entity.setName("two");
+        Future<Map<Object, String>> updated = ((ForceEntityManager) em).commitAsync();
+        
+        assertEquals(updated.get(TIMEOUT_SECONDS, TimeUnit.SECONDS).get(entity), ID, "Unexpected id of the updated record");
+        assertEquals(mockCrudConn.getUpdatedRecords().size(), 1, "Unexpected number of updated records");
+        assertEquals(mockCrudConn.getUpdatedRecords().get(0).getField("Name"), "two", "The changed field should be sent");
+        
+        em.getTransaction().begin();
+        em.remove(entity);
+        Future<Map<Object, String>> deleted = ((ForceEntityManager) em).commitAsync();
+        
+        assertEquals(deleted.get(TIMEOUT_SECONDS, TimeUnit.SECONDS).get(entity), ID, "Unexpected id of the deleted record");
+        assertEquals(mockCrudConn.getDeletedIds(), Arrays.asList(ID), "The removed entity should be deleted");
+    }
+    
+    @Test
+    public void testCommitAsyncWithoutTransaction() {
+        try {
+            ((ForceEntityManager) em).commitAsync();
+            fail("An asynchronous commit needs an active transaction");
+        } catch (IllegalStateException expected) {
+            // Nothing to commit
+        }
+    }
+    
+    private Future<String> persistAsync(EntityManager entityManager, String name) {
+        QueryTestEntity entity = new QueryTestEntity();
+        entity.setName(name);
+        return ((ForceEntityManager) entityManager).persistAsync(entity);
+    }
+    
+    private void assertWriteFailed(Future<String> write) throws Exception {
+        try {
+            write.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            fail("The write should have failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof PersistenceException, "Unexpected failure: " + e.getCause());
+        }
+    }
+}
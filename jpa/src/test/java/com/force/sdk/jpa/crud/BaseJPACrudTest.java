@@ -0,0 +1,317 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.force.sdk.jpa.crud;
+
+import java.io.IOException;
+import java.util.*;
+
+import javax.persistence.*;
+
+import mockit.*;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+
+import com.force.sdk.jpa.mock.*;
+import com.sforce.soap.partner.*;
+import com.sforce.soap.partner.sobject.SObject;
+
+/**
+ * Base class for Force.com JPA create, update and delete tests.
+ * <p>
+ * As in the query tests, schema creation and loading are
+ * stubbed out. Each test has a mocked PartnerConnection which
+ * serves the records read by the test and keeps the records
+ * that are written, so that a test can assert what was sent
+ * to Force.com.
+ *
+ * @author Fiaz Hossain
+ */
+public abstract class BaseJPACrudTest {
+    
+    /**
+     * A mock PartnerConnection class.
+     * <p>
+     * Queries return the registered records. Writes succeed,
+     * unless the record has a name registered to fail, and
+     * are kept in the order they were sent. Writes may come
+     * from the worker threads.
+     * 
+     * @author Fiaz Hossain
+     */
+    @MockClass(realClass = PartnerConnection.class, instantiation = Instantiation.PerMockSetup)
+    protected static class MockCrudPartnerConnection {
+
+        private final List<SObject> queriedRecords = new ArrayList<SObject>();
+        private final List<String> executedQueries = Collections.synchronizedList(new ArrayList<String>());
+        private final List<SObject> createdRecords = Collections.synchronizedList(new ArrayList<SObject>());
+        private final List<SObject> updatedRecords = Collections.synchronizedList(new ArrayList<SObject>());
+        private final List<SObject> failedRecords = Collections.synchronizedList(new ArrayList<SObject>());
+        private final List<SObject> upsertedRecords = Collections.synchronizedList(new ArrayList<SObject>());
+        private final List<String> deletedIds = Collections.synchronizedList(new ArrayList<String>());
+        private final List<String> upsertExternalIdFields = Collections.synchronizedList(new ArrayList<String>());
+        private final Set<String> failingNames = Collections.synchronizedSet(new HashSet<String>());
+        private final List<ConditionalRequestHeader_element> conditionalHeaders =
+            Collections.synchronizedList(new ArrayList<ConditionalRequestHeader_element>());
+        private final GetUpdatedResult updatedResult = new GetUpdatedResult();
+        private final GetDeletedResult deletedResult = new GetDeletedResult();
+        private int nextId;
+        
+        @Mock
+        public QueryResult query(String queryString) {
+            executedQueries.add(queryString);
+            QueryResult qr = new QueryResult();
+            qr.setDone(true);
+            qr.setRecords(queriedRecords.toArray(new SObject[queriedRecords.size()]));
+            qr.setSize(queriedRecords.size());
+            return qr;
+        }
+        
+        @Mock
+        public SaveResult[] create(SObject[] sobjects) {
+            SaveResult[] results = new SaveResult[sobjects.length];
+            for (int i = 0; i < sobjects.length; i++) {
+                if (failingNames.contains(sobjects[i].getField("Name"))) {
+                    failedRecords.add(sobjects[i]);
+                    results[i] = failure("FIELD_CUSTOM_VALIDATION_EXCEPTION: " + sobjects[i].getField("Name"));
+                } else {
+                    createdRecords.add(sobjects[i]);
+                    results[i] = success(newId());
+                }
+            }
+            return results;
+        }
+        
+        @Mock
+        public SaveResult[] update(SObject[] sobjects) {
+            SaveResult[] results = new SaveResult[sobjects.length];
+            for (int i = 0; i < sobjects.length; i++) {
+                updatedRecords.add(sobjects[i]);
+                results[i] = success(sobjects[i].getId());
+            }
+            return results;
+        }
+        
+        @Mock
+        public UpsertResult[] upsert(String externalIdFieldName, SObject[] sobjects) {
+            UpsertResult[] results = new UpsertResult[sobjects.length];
+            for (int i = 0; i < sobjects.length; i++) {
+                upsertedRecords.add(sobjects[i]);
+                upsertExternalIdFields.add(externalIdFieldName);
+                results[i] = new UpsertResult();
+                results[i].setId(newId());
+                results[i].setSuccess(true);
+                results[i].setCreated(true);
+            }
+            return results;
+        }
+        
+        @Mock
+        public DeleteResult[] delete(String[] ids) {
+            DeleteResult[] results = new DeleteResult[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                deletedIds.add(ids[i]);
+                results[i] = new DeleteResult();
+                results[i].setId(ids[i]);
+                results[i].setSuccess(true);
+            }
+            return results;
+        }
+        
+        @Mock
+        public GetServerTimestampResult getServerTimestamp() {
+            GetServerTimestampResult result = new GetServerTimestampResult();
+            result.setTimestamp(Calendar.getInstance());
+            return result;
+        }
+        
+        @Mock
+        public GetUpdatedResult getUpdated(String sObjectType, Calendar startDate, Calendar endDate) {
+            return updatedResult;
+        }
+        
+        @Mock
+        public GetDeletedResult getDeleted(String sObjectType, Calendar startDate, Calendar endDate) {
+            return deletedResult;
+        }
+        
+        @Mock
+        public void __setConditionalRequestHeader(ConditionalRequestHeader_element header) {
+            conditionalHeaders.add(header);
+        }
+        
+        @Mock
+        public void clearConditionalRequestHeader() {
+            // Headers are kept for the assertions of the test
+        }
+        
+        public void addQueriedRecord(SObject sobject) {
+            queriedRecords.add(sobject);
+        }
+        
+        public void clearQueriedRecords() {
+            queriedRecords.clear();
+        }
+        
+        // The ids returned by getUpdated, changed up to the given time
+        public void setUpdatedIds(Calendar latestDateCovered, String... ids) {
+            updatedResult.setIds(ids);
+            updatedResult.setLatestDateCovered(latestDateCovered);
+        }
+        
+        // The ids returned by getDeleted, deleted up to the given time
+        public void setDeletedIds(Calendar latestDateCovered, String... ids) {
+            DeletedRecord[] records = new DeletedRecord[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                records[i] = new DeletedRecord();
+                records[i].setId(ids[i]);
+            }
+            deletedResult.setDeletedRecords(records);
+            deletedResult.setLatestDateCovered(latestDateCovered);
+        }
+        
+        // Creates of records with this name fail
+        public void failWritesOf(String name) {
+            failingNames.add(name);
+        }
+        
+        public List<String> getExecutedQueries() {
+            return executedQueries;
+        }
+        
+        public List<SObject> getCreatedRecords() {
+            return createdRecords;
+        }
+        
+        public List<SObject> getUpdatedRecords() {
+            return updatedRecords;
+        }
+        
+        public List<SObject> getUpsertedRecords() {
+            return upsertedRecords;
+        }
+        
+        public List<String> getDeletedIds() {
+            return deletedIds;
+        }
+        
+        public List<String> getUpsertExternalIdFields() {
+            return upsertExternalIdFields;
+        }
+        
+        public List<SObject> getFailedRecords() {
+            return failedRecords;
+        }
+        
+        public List<ConditionalRequestHeader_element> getConditionalHeaders() {
+            return conditionalHeaders;
+        }
+        
+        private synchronized String newId() {
+            return String.format("a01x%014d", ++nextId);
+        }
+        
+        private static SaveResult success(String id) {
+            SaveResult result = new SaveResult();
+            result.setId(id);
+            result.setSuccess(true);
+            return result;
+        }
+        
+        private static SaveResult failure(String message) {
+            com.sforce.soap.partner.Error error = new com.sforce.soap.partner.Error();
+            error.setMessage(message);
+            SaveResult result = new SaveResult();
+            result.setErrors(new com.sforce.soap.partner.Error[] {error});
+            return result;
+        }
+    }
+    
+    protected EntityManagerFactory emf;
+    
+    // The EntityManager used to execute Force.com JPA operations
+    protected EntityManager em;
+    
+    // Schema handler which stores table and field names
+    protected MockForceStoreSchemaHandler mockSchemaHandler;
+    
+    // The mocked connection which keeps the records sent by a test
+    // see MockCrudPartnerConnection class above
+    protected MockCrudPartnerConnection mockCrudConn;
+    
+    @BeforeClass
+    public void classSetUp() throws IOException, ClassNotFoundException {
+        // Register all of our JPA entities.
+        // This would normally be done by PersistenceUtils in createSchema or loadSchema
+        mockSchemaHandler = new MockForceStoreSchemaHandler();
+        mockSchemaHandler.registerAllTables();
+        
+        Mockit.setUpMocks(MockForceTableMetaData.class, MockForceColumnMetaData.class,
+                            MockForceManagedConnection.class, mockSchemaHandler, MockForceSchemaWriter.class);
+
+        emf = Persistence.createEntityManagerFactory("jpaCrudUnitTest", getPersistenceProperties());
+    }
+    
+    // Properties added to the persistence unit of the test class
+    protected Map<String, Object> getPersistenceProperties() {
+        return new HashMap<String, Object>();
+    }
+    
+    @AfterClass(alwaysRun = true)
+    public void classTearDown() {
+        emf.close();
+        Mockit.tearDownMocks();
+    }
+    
+    @BeforeMethod
+    public void methodSetUp() {
+        // Each test method gets its own mocked PartnerConnection and EntityManager
+        mockCrudConn = new MockCrudPartnerConnection();
+        Mockit.setUpMock(PartnerConnection.class, mockCrudConn);
+        em = emf.createEntityManager();
+    }
+    
+    @AfterMethod(alwaysRun = true)
+    public void methodTearDown() {
+        if (em.getTransaction().isActive()) {
+            em.getTransaction().rollback();
+        }
+        em.close();
+    }
+    
+    // Convenience method to help construct the records read by a test
+    protected SObject createSObject(String type, String id) {
+        // Type must go first and then Id second (see ForceQUeryUtils.getFieldNameList)
+        SObject sobject = new SObject();
+        sobject.setType(type);
+        sobject.setId(id);
+        
+        return sobject;
+    }
+}
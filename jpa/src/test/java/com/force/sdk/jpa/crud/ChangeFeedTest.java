@@ -0,0 +1,148 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.force.sdk.jpa.crud;
+
+import static org.testng.Assert.*;
+
+import java.util.*;
+
+import org.testng.annotations.Test;
+
+import com.force.sdk.jpa.ChangeSet;
+import com.force.sdk.jpa.ForceEntityManager;
+import com.force.sdk.jpa.entities.QueryTestEntity;
+import com.sforce.soap.partner.sobject.SObject;
+
+/**
+ * Tests for reading the changes of an entity with getUpdated and getDeleted.
+ *
+ * @author Fiaz Hossain
+ */
+public class ChangeFeedTest extends BaseJPACrudTest {
+    
+    private static final String ID = "a01x00000000000001";
+    
+    @Test
+    public void testChangesSince() {
+        Calendar updatedCovered = time(10);
+        Calendar deletedCovered = time(5);
+        mockCrudConn.setUpdatedIds(updatedCovered, ID);
+        mockCrudConn.setDeletedIds(deletedCovered, "a01x00000000000002");
+        mockCrudConn.addQueriedRecord(record(ID, "changed"));
+        
+        ChangeSet<QueryTestEntity> changes = getChangesSince();
+        assertEquals(changes.getUpdated().size(), 1, "Unexpected number of updated entities");
+        assertEquals(changes.getUpdated().get(0).getId(), ID, "Unexpected updated entity");
+        assertEquals(changes.getUpdated().get(0).getName(), "changed", "Unexpected value of the updated entity");
+        assertEquals(changes.getDeletedIds(), Collections.singletonList("a01x00000000000002"), "Unexpected deleted ids");
+        assertEquals(changes.getLatestDateCovered(), deletedCovered,
+                        "The changes are only covered up to the earlier of the two calls");
+    }
+    
+    @Test
+    public void testNoChanges() {
+        mockCrudConn.setUpdatedIds(time(10));
+        mockCrudConn.setDeletedIds(time(10));
+        
+        ChangeSet<QueryTestEntity> changes = getChangesSince();
+        assertTrue(changes.getUpdated().isEmpty(), "There should be no updated entities");
+        assertTrue(changes.getDeletedIds().isEmpty(), "There should be no deleted ids");
+        assertTrue(mockCrudConn.getExecutedQueries().isEmpty(), "Nothing should be retrieved without changes");
+    }
+    
+    @Test
+    public void testUpdatedIdsAreRetrievedInBatches() {
+        String[] ids = new String[250];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = String.format("a01x%014d", i + 1);
+        }
+        mockCrudConn.setUpdatedIds(time(10), ids);
+        mockCrudConn.setDeletedIds(time(10));
+        
+        getChangesSince();
+        List<String> queries = mockCrudConn.getExecutedQueries();
+        assertEquals(queries.size(), 2, "250 ids should be retrieved by 2 queries");
+        for (String id : ids) {
+            int found = 0;
+            for (String query : queries) {
+                if (query.contains("'" + id + "'")) found++;
+            }
+            assertEquals(found, 1, "Id " + id + " should be retrieved by a single query");
+        }
+    }
+    
+    @Test
+    public void testManagedEntityIsRefreshed() {
+        mockCrudConn.addQueriedRecord(record(ID, "before"));
+        em.getTransaction().begin();
+        QueryTestEntity managed = em.find(QueryTestEntity.class, ID);
+        
+        mockCrudConn.setUpdatedIds(time(10), ID);
+        mockCrudConn.setDeletedIds(time(10));
+        mockCrudConn.clearQueriedRecords();
+        mockCrudConn.addQueriedRecord(record(ID, "after"));
+        
+        ChangeSet<QueryTestEntity> changes = getChangesSince();
+        assertSame(changes.getUpdated().get(0), managed, "The managed entity should be returned");
+        assertEquals(managed.getName(), "after", "The managed entity should be refreshed");
+    }
+    
+    @Test
+    public void testManagedEntityKeepsChangesNotFlushed() {
+        mockCrudConn.addQueriedRecord(record(ID, "before"));
+        em.getTransaction().begin();
+        QueryTestEntity managed = em.find(QueryTestEntity.class, ID);
+        managed.setName("local");
+        
+        mockCrudConn.setUpdatedIds(time(10), ID);
+        mockCrudConn.setDeletedIds(time(10));
+        mockCrudConn.clearQueriedRecords();
+        mockCrudConn.addQueriedRecord(record(ID, "after"));
+        
+        ChangeSet<QueryTestEntity> changes = getChangesSince();
+        assertSame(changes.getUpdated().get(0), managed, "The managed entity should be returned");
+        assertEquals(managed.getName(), "local", "A change that was not flushed should not be overwritten");
+    }
+    
+    private ChangeSet<QueryTestEntity> getChangesSince() {
+        return ((ForceEntityManager) em).getChangesSince(QueryTestEntity.class, time(0));
+    }
+    
+    private SObject record(String id, String name) {
+        SObject sobject = createSObject("QueryTestEntity__c", id);
+        sobject.setField("Name", name);
+        return sobject;
+    }
+    
+    private static Calendar time(int minutes) {
+        Calendar time = Calendar.getInstance();
+        time.clear();
+        time.set(2011, Calendar.MARCH, 1, 10, minutes);
+        return time;
+    }
+}
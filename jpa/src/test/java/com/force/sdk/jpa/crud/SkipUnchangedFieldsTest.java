@@ -0,0 +1,126 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.force.sdk.jpa.crud;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Calendar;
+
+import org.testng.annotations.Test;
+
+import com.force.sdk.jpa.entities.QueryTestEntity;
+import com.force.sdk.jpa.entities.VersionedTestEntity;
+import com.sforce.soap.partner.ConditionalRequestHeader_element;
+import com.sforce.soap.partner.sobject.SObject;
+import com.sforce.ws.bind.CalendarCodec;
+
+/**
+ * Tests that an update only sends the fields whose value changed
+ * since the entity was read (force.skipUnchangedFields).
+ *
+ * @author Fiaz Hossain
+ */
+public class SkipUnchangedFieldsTest extends BaseJPACrudTest {
+    
+    private static final String ID = "a01x00000000000001";
+    private static final String VERSION = "2011-03-01T10:00:00.000Z";
+    
+    @Test
+    public void testUnchangedFieldIsNotSent() {
+        em.getTransaction().begin();
+        QueryTestEntity entity = findQueryTestEntity("one", "AAA");
+        entity.setName("one");
+        em.getTransaction().commit();
+        
+        assertTrue(mockCrudConn.getUpdatedRecords().isEmpty(), "An entity without changes should not be updated");
+    }
+    
+    @Test
+    public void testChangedFieldIsSent() {
+        em.getTransaction().begin();
+        QueryTestEntity entity = findQueryTestEntity("one", "AAA");
+        entity.setName("two");
+        entity.setEntityType("AAA");
+        em.getTransaction().commit();
+        
+        assertEquals(mockCrudConn.getUpdatedRecords().size(), 1, "Unexpected number of updated records");
+        SObject updated = mockCrudConn.getUpdatedRecords().get(0);
+        assertEquals(updated.getId(), ID, "Unexpected id of the updated record");
+        assertEquals(updated.getField("Name"), "two", "The changed field should be sent");
+        assertNull(updated.getField("entityType__c"), "The field set to the value it had should not be sent");
+    }
+    
+    @Test
+    public void testNullFieldSetToValueIsSent() {
+        em.getTransaction().begin();
+        QueryTestEntity entity = findQueryTestEntity("one", null);
+        entity.setEntityType("AAA");
+        em.getTransaction().commit();
+        
+        assertEquals(mockCrudConn.getUpdatedRecords().size(), 1, "Unexpected number of updated records");
+        assertEquals(mockCrudConn.getUpdatedRecords().get(0).getField("entityType__c"), "AAA",
+                        "A field read as null and then set should be sent");
+    }
+    
+    @Test
+    public void testUnchangedVersionedEntityIsUpdatedWithIdOnly() {
+        SObject sobject = createSObject("VersionedTestEntity__c", ID);
+        sobject.setField("Name", "one");
+        sobject.setField("LastModifiedDate", VERSION);
+        mockCrudConn.addQueriedRecord(sobject);
+        
+        em.getTransaction().begin();
+        VersionedTestEntity entity = em.find(VersionedTestEntity.class, ID);
+        entity.setName("one");
+        em.getTransaction().commit();
+        
+        // The update is still sent so that a stale entity fails its version check
+        assertEquals(mockCrudConn.getUpdatedRecords().size(), 1, "A versioned entity should always be updated");
+        SObject updated = mockCrudConn.getUpdatedRecords().get(0);
+        assertEquals(updated.getId(), ID, "Unexpected id of the updated record");
+        assertNull(updated.getField("Name"), "The field set to the value it had should not be sent");
+        
+        assertFalse(mockCrudConn.getConditionalHeaders().isEmpty(), "The version of the entity should be checked");
+        ConditionalRequestHeader_element header = mockCrudConn.getConditionalHeaders().get(0);
+        Calendar expected = new CalendarCodec().deserialize(VERSION);
+        assertEquals(header.getIfModifiedBeforeArray()[0].getTimeInMillis(), expected.getTimeInMillis(),
+                        "Unexpected version checked");
+    }
+    
+    private QueryTestEntity findQueryTestEntity(String name, String entityType) {
+        SObject sobject = createSObject("QueryTestEntity__c", ID);
+        sobject.setField("Name", name);
+        if (entityType != null) {
+            sobject.setField("entityType__c", entityType);
+        }
+        mockCrudConn.addQueriedRecord(sobject);
+        return em.find(QueryTestEntity.class, ID);
+    }
+}
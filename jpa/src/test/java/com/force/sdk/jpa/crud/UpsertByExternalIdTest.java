@@ -0,0 +1,77 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.force.sdk.jpa.crud;
+
+import static org.testng.Assert.*;
+
+import org.testng.annotations.Test;
+
+import com.force.sdk.jpa.entities.ExternalIdTestEntity;
+import com.sforce.soap.partner.sobject.SObject;
+
+/**
+ * Tests that new entities merged with an external id are
+ * upserted instead of created.
+ *
+ * @author Fiaz Hossain
+ */
+public class UpsertByExternalIdTest extends BaseJPACrudTest {
+    
+    @Test
+    public void testMergedEntityWithExternalIdIsUpserted() {
+        em.getTransaction().begin();
+        ExternalIdTestEntity merged = em.merge(newEntity("one", "EXT-1"));
+        em.merge(newEntity("two", "EXT-2"));
+        em.getTransaction().commit();
+        
+        assertTrue(mockCrudConn.getCreatedRecords().isEmpty(), "Entities with an external id should not be created");
+        assertEquals(mockCrudConn.getUpsertedRecords().size(), 2, "Unexpected number of upserted records");
+        assertEquals(mockCrudConn.getUpsertExternalIdFields().get(0), "extId__c", "Unexpected external id field");
+        SObject upserted = mockCrudConn.getUpsertedRecords().get(0);
+        assertEquals(upserted.getField("extId__c"), "EXT-1", "The external id should be sent");
+        assertEquals(upserted.getField("Name"), "one", "Unexpected record upserted");
+        assertNotNull(merged.getId(), "The id of the upserted record should be set");
+    }
+    
+    @Test
+    public void testMergedEntityWithoutExternalIdIsCreated() {
+        em.getTransaction().begin();
+        em.merge(newEntity("one", null));
+        em.getTransaction().commit();
+        
+        assertTrue(mockCrudConn.getUpsertedRecords().isEmpty(), "An entity without an external id cannot be upserted");
+        assertEquals(mockCrudConn.getCreatedRecords().size(), 1, "Unexpected number of created records");
+    }
+    
+    private ExternalIdTestEntity newEntity(String name, String extId) {
+        ExternalIdTestEntity entity = new ExternalIdTestEntity();
+        entity.setName(name);
+        entity.setExtId(extId);
+        return entity;
+    }
+}
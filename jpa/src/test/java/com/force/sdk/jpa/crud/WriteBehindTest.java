@@ -0,0 +1,94 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.force.sdk.jpa.crud;
+
+import static org.testng.Assert.*;
+
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+import com.force.sdk.jpa.entities.QueryTestEntity;
+
+/**
+ * Tests for write-behind mode, which queues creates and updates
+ * made outside of a transaction (force.writeBehindSize).
+ *
+ * @author Fiaz Hossain
+ */
+public class WriteBehindTest extends BaseJPACrudTest {
+    
+    private static final int WRITE_BEHIND_SIZE = 3;
+    private static final long MAX_DELAY_MILLIS = 200;
+    
+    @Override
+    protected Map<String, Object> getPersistenceProperties() {
+        Map<String, Object> properties = super.getPersistenceProperties();
+        properties.put("force.writeBehindSize", String.valueOf(WRITE_BEHIND_SIZE));
+        properties.put("force.writeBehindMaxDelayMillis", String.valueOf(MAX_DELAY_MILLIS));
+        return properties;
+    }
+    
+    @Test
+    public void testFullQueueIsSentRightAway() {
+        QueryTestEntity[] entities = new QueryTestEntity[WRITE_BEHIND_SIZE];
+        for (int i = 0; i < entities.length; i++) {
+            entities[i] = persist("entity" + i);
+        }
+        
+        assertEquals(mockCrudConn.getCreatedRecords().size(), WRITE_BEHIND_SIZE, "A full queue should be sent");
+        for (QueryTestEntity entity : entities) {
+            assertNotNull(entity.id, "The id should be set once the create has been sent");
+        }
+    }
+    
+    @Test
+    public void testOverdueWritesAreSentOnNextCall() throws InterruptedException {
+        QueryTestEntity one = persist("one");
+        QueryTestEntity two = persist("two");
+        assertEquals(mockCrudConn.getCreatedRecords().size(), 0, "The writes should wait to be batched");
+        
+        // Nothing is sent in the background, the next call on the EntityManager sends the overdue writes
+        Thread.sleep(MAX_DELAY_MILLIS + 50);
+        assertEquals(mockCrudConn.getCreatedRecords().size(), 0, "The writes should only be sent by the EntityManager");
+        QueryTestEntity three = persist("three");
+        
+        assertEquals(mockCrudConn.getCreatedRecords().size(), 2, "The overdue writes should have been sent");
+        assertEquals(mockCrudConn.getCreatedRecords().get(0).getField("Name"), "one", "Unexpected record created first");
+        assertNotNull(one.id, "The id should be set once the create has been sent");
+        assertNotNull(two.id, "The id should be set once the create has been sent");
+        assertNull(three.id, "The write queued after the overdue ones should wait to be batched");
+    }
+    
+    private QueryTestEntity persist(String name) {
+        QueryTestEntity entity = new QueryTestEntity();
+        entity.setName(name);
+        em.persist(entity);
+        return entity;
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.force.sdk.jpa.exception;
+
+import static org.testng.Assert.*;
+
+import javax.persistence.OptimisticLockException;
+import javax.persistence.PersistenceException;
+
+import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.datanucleus.exceptions.NucleusOptimisticException;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for mapping flush failures to JPA exceptions.
+ *
+ * @author Fiaz Hossain
+ */
+public class ForceApiExceptionMapTest {
+
+    @Test
+    public void testEachConflictHoldsItsEntity() {
+        Object first = new Object();
+        Object second = new Object();
+        NucleusOptimisticException ne = new NucleusOptimisticException("2 of 3 records failed", new Throwable[] {
+            new NucleusOptimisticException("modified", first),
+            new NucleusDataStoreException("required field missing", "a00000000000001"),
+            new NucleusOptimisticException("modified", second),
+        });
+        PersistenceException pe = ForceApiExceptionMap.mapToJPAException(ne);
+        assertTrue(pe instanceof ForceOptimisticLockException, "Unexpected exception: " + pe);
+        ForceOptimisticLockException fole = (ForceOptimisticLockException) pe;
+        assertEquals(fole.getConflicts().size(), 2, "Only conflicts should be reported");
+        assertSame(fole.getConflicts().get(0).getEntity(), first);
+        assertSame(fole.getConflicts().get(1).getEntity(), second);
+        assertSame(fole.getEntity(), first);
+    }
+    
+    @Test
+    public void testSingleConflict() {
+        Object entity = new Object();
+        PersistenceException pe = ForceApiExceptionMap.mapToJPAException(new NucleusOptimisticException("modified", entity));
+        assertTrue(pe instanceof OptimisticLockException, "Unexpected exception: " + pe);
+        assertFalse(pe instanceof ForceOptimisticLockException);
+        assertSame(((OptimisticLockException) pe).getEntity(), entity);
+    }
+}
@@ -29,7 +29,7 @@ package com.force.sdk.jpa.query;
 import static org.testng.Assert.assertEquals;
 
 import java.io.IOException;
-import java.util.List;
+import java.util.*;
 
 import javax.persistence.*;
 
@@ -40,8 +40,8 @@ import org.testng.annotations.BeforeClass;
 import org.testng.annotations.BeforeMethod;
 
 import com.force.sdk.jpa.mock.*;
-import com.sforce.soap.partner.PartnerConnection;
-import com.sforce.soap.partner.QueryResult;
+import com.sforce.soap.partner.*;
+import com.sforce.soap.partner.Error;
 import com.sforce.soap.partner.sobject.SObject;
 import com.sforce.ws.ConnectionException;
 
@@ -72,9 +72,18 @@ public abstract class BaseJPAQueryTest {
         private String expectedSoqlQuery;
         private QueryResult returnedQueryResult;
         private ConnectionException thrownConnectionException;
+        private final List<String> executedSoqlQueries = new ArrayList<String>();
+        private final LinkedList<QueryResult> queuedQueryResults = new LinkedList<QueryResult>();
+        private final Map<String, QueryResult> resultsByQueryPart = new LinkedHashMap<String, QueryResult>();
+        private final Map<String, QueryResult> resultsByLocator = new HashMap<String, QueryResult>();
+        private int queryMoreCalls;
+        private final List<String> deleteCalls = Collections.synchronizedList(new ArrayList<String>());
+        private final Map<String, String> failingDeletes = new HashMap<String, String>();
         
         @Mock
-        public QueryResult query(String queryString) throws ConnectionException {
+        public synchronized QueryResult query(String queryString) throws ConnectionException {
+            executedSoqlQueries.add(queryString);
+            
             // Assert any expected SOQL query
             if (expectedSoqlQuery != null) {
                 assertEquals(queryString, this.expectedSoqlQuery);
@@ -85,11 +94,54 @@ public abstract class BaseJPAQueryTest {
                 throw thrownConnectionException;
             }
             
-            // Return any registered results
+            // Return any registered results, the ones of a matching query first, then queued ones
+            for (Map.Entry<String, QueryResult> result : resultsByQueryPart.entrySet()) {
+                if (queryString.contains(result.getKey())) return result.getValue();
+            }
+            if (!queuedQueryResults.isEmpty()) return queuedQueryResults.removeFirst();
             if (returnedQueryResult != null) return returnedQueryResult;
             return new QueryResult();
         }
         
+        @Mock
+        public synchronized QueryResult queryMore(String queryLocator) {
+            queryMoreCalls++;
+            if (resultsByLocator.containsKey(queryLocator)) return resultsByLocator.get(queryLocator);
+            return !queuedQueryResults.isEmpty() ? queuedQueryResults.removeFirst() : new QueryResult();
+        }
+        
+        @Mock
+        public DeleteResult[] delete(String[] ids) {
+            deleteCalls.add("delete " + Arrays.toString(ids));
+            DeleteResult[] results = new DeleteResult[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                results[i] = new DeleteResult();
+                results[i].setId(ids[i]);
+                String failure = failingDeletes.get(ids[i]);
+                if (failure != null) {
+                    Error error = new Error();
+                    error.setStatusCode(StatusCode.ENTITY_IS_DELETED);
+                    error.setMessage(failure);
+                    results[i].setErrors(new Error[] {error});
+                } else {
+                    results[i].setSuccess(true);
+                }
+            }
+            return results;
+        }
+        
+        @Mock
+        public EmptyRecycleBinResult[] emptyRecycleBin(String[] ids) {
+            deleteCalls.add("emptyRecycleBin " + Arrays.toString(ids));
+            EmptyRecycleBinResult[] results = new EmptyRecycleBinResult[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                results[i] = new EmptyRecycleBinResult();
+                results[i].setId(ids[i]);
+                results[i].setSuccess(true);
+            }
+            return results;
+        }
+        
         public void setExpectedSoqlQuery(String expectedSoqlQuery) {
             this.expectedSoqlQuery = expectedSoqlQuery;
         }
@@ -110,6 +162,59 @@ public abstract class BaseJPAQueryTest {
         public void setThrownConnectionException(ConnectionException thrownConnectionException) {
             this.thrownConnectionException = thrownConnectionException;
         }
+        
+        // Queues a batch of records. Queued batches are returned in order
+        // by query and queryMore, before any registered result
+        public void queueQueryResult(List<SObject> sobjects, String queryLocator) {
+            QueryResult qr = new QueryResult();
+            qr.setDone(queryLocator == null);
+            qr.setQueryLocator(queryLocator);
+            qr.setRecords(sobjects.toArray(new SObject[sobjects.size()]));
+            qr.setSize(sobjects.size());
+            queuedQueryResults.add(qr);
+        }
+        
+        // Registers the batches returned for every query that contains the given text,
+        // the first by query and the others by queryMore. Queries can run on any thread
+        public synchronized void setBatchesForQuery(String queryPart, List<List<SObject>> batches) {
+            QueryResult previous = null;
+            for (int i = 0; i < batches.size(); i++) {
+                QueryResult qr = new QueryResult();
+                qr.setRecords(batches.get(i).toArray(new SObject[batches.get(i).size()]));
+                qr.setSize(qr.getRecords().length);
+                qr.setDone(true);
+                if (previous == null) {
+                    resultsByQueryPart.put(queryPart, qr);
+                } else {
+                    String locator = queryPart + "-" + i;
+                    previous.setDone(false);
+                    previous.setQueryLocator(locator);
+                    resultsByLocator.put(locator, qr);
+                }
+                previous = qr;
+            }
+        }
+        
+        public synchronized List<String> getExecutedSoqlQueries() {
+            return new ArrayList<String>(executedSoqlQueries);
+        }
+        
+        public synchronized int getQueryMoreCalls() {
+            return queryMoreCalls;
+        }
+        
+        // Makes the delete of a record fail with the given message
+        public void failDeleteOf(String id, String message) {
+            failingDeletes.put(id, message);
+        }
+        
+        // The delete and emptyRecycleBin calls in the order they were made,
+        // each with the ids it was given
+        public List<String> getDeleteCalls() {
+            synchronized (deleteCalls) {
+                return new ArrayList<String>(deleteCalls);
+            }
+        }
     }
     
     // The EntityManager used to execute Force.com JPA queries
@@ -0,0 +1,87 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.force.sdk.jpa.query;
+
+import static org.testng.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import com.sforce.soap.partner.sobject.SObject;
+import com.sforce.ws.bind.XmlObject;
+
+/**
+ * Tests for reading Bulk API query results.
+ *
+ * @author Fiaz Hossain
+ */
+public class BulkQueryTest {
+
+    @Test
+    public void testReadRecords() throws IOException {
+        List<SObject> records = read("\"Id\",\"Name\",\"Owner.Name\",\"Owner.Manager.Name\"\n"
+                                        + "\"a01000000000001\",\"First, \"\"quoted\"\"\",\"Jane\",\"\"\n"
+                                        + "\"a01000000000002\",\"\",\"\",\"\"\n");
+        assertEquals(records.size(), 2);
+        
+        SObject first = records.get(0);
+        assertEquals(first.getType(), "Account");
+        assertEquals(first.getId(), "a01000000000001");
+        assertEquals(first.getField("Name"), "First, \"quoted\"");
+        XmlObject owner = first.getChild("Owner");
+        assertEquals(owner.getField("Name"), "Jane");
+        assertNotNull(owner.getChild("Manager"), "Empty relationship should still be present");
+        assertNull(owner.getField("Manager"), "Relationship without values should be null");
+        
+        SObject second = records.get(1);
+        assertNull(second.getField("Name"));
+        assertNull(second.getField("Owner"), "Relationship without values should be null");
+    }
+    
+    @Test
+    public void testReadNoRecords() throws IOException {
+        assertTrue(read(BulkQuery.NO_RECORDS + "\n").isEmpty());
+    }
+    
+    @Test
+    public void testObjectName() {
+        assertEquals(BulkQuery.getObjectName("select id, Name from Account__c o where Name = 'from x'"), "Account__c");
+        assertEquals(BulkQuery.getObjectName("SELECT Id, (SELECT Id FROM Contacts) FROM Account"), "Account");
+        assertEquals(BulkQuery.getObjectName("select fromDate__c from\nEvent__c"), "Event__c");
+    }
+    
+    private static List<SObject> read(String csv) throws IOException {
+        List<SObject> records = new ArrayList<SObject>();
+        BulkQuery.readRecords(new ByteArrayInputStream(csv.getBytes("UTF-8")), "Account", records);
+        return records;
+    }
+}
@@ -40,8 +40,11 @@ import org.testng.annotations.Test;
 
 import com.force.sdk.jpa.entities.FetchTypeOverrideEntity;
 import com.force.sdk.jpa.entities.FetchTypeTestEntity;
+import com.google.inject.internal.Lists;
+import com.sforce.soap.partner.sobject.SObject;
 
 import java.util.Collections;
+import java.util.List;
 
 /**
  * Tests for supported fetch types.
@@ -81,6 +84,33 @@ public class FetchTypeTest extends BaseJPAQueryTest {
         q.getResultList();
     }
 
+    @Test
+    public void testLazyFieldsLoadedInOneQuery() {
+        SObject first = createSObject("FetchTypeTestEntity__c", "a00000000000001AAA");
+        first.setField("Name", "FetchTypeTestEntity1");
+        SObject second = createSObject("FetchTypeTestEntity__c", "a00000000000002AAA");
+        second.setField("Name", "FetchTypeTestEntity2");
+        mockQueryConn.setSObjectsForQueryResult(Lists.newArrayList(first, second));
+        List<FetchTypeTestEntity> results =
+            em.createQuery("select o from " + FetchTypeTestEntity.class.getSimpleName() + " o", FetchTypeTestEntity.class)
+                .getResultList();
+        assertEquals(results.size(), 2, "Unexpected number of results");
+        
+        // Reading the lazy field of the first entity loads it for both
+        first = createSObject("FetchTypeTestEntity__c", "a00000000000001AAA");
+        first.setField("lazyFetchField__c", "lazy1");
+        second = createSObject("FetchTypeTestEntity__c", "a00000000000002AAA");
+        second.setField("lazyFetchField__c", "lazy2");
+        mockQueryConn.setSObjectsForQueryResult(Lists.newArrayList(first, second));
+        mockQueryConn.setExpectedSoqlQuery("select id, lazyFetchField__c from fetchtypetestentity__c "
+                + "where Id IN ('a00000000000001AAA','a00000000000002AAA')");
+        assertEquals(results.get(0).getLazyFetchField(), "lazy1", "Unexpected lazy field value");
+        
+        // No further query is needed for the second entity
+        mockQueryConn.setExpectedSoqlQuery("no query expected");
+        assertEquals(results.get(1).getLazyFetchField(), "lazy2", "Unexpected lazy field value");
+    }
+
     @DataProvider
     public Object[][] fetchDepthQueries()  {
         Object [][] params = new Object[][]{
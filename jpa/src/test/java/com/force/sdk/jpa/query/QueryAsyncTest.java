@@ -0,0 +1,111 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.force.sdk.jpa.query;
+
+import static org.testng.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.*;
+
+import org.testng.annotations.Test;
+
+import com.force.sdk.jpa.ForceEntityManager;
+import com.force.sdk.jpa.entities.QueryTestEntity;
+import com.google.inject.internal.Lists;
+import com.sforce.soap.partner.sobject.SObject;
+
+/**
+ * Tests for executing Force.com JPA queries asynchronously.
+ *
+ * @author Fiaz Hossain
+ */
+public class QueryAsyncTest extends BaseJPAQueryTest {
+
+    @Test
+    public void testJPQLQueryAsync() throws Exception {
+        SObject sobject = createSObject("QueryTestEntity__c", "a00000000000000AAA");
+        sobject.setField("Name", "QueryTestEntity1");
+        mockQueryConn.setSObjectsForQueryResult(Lists.newArrayList(sobject));
+        mockQueryConn.setExpectedSoqlQuery("select id, date__c, entityType__c, Name, number__c from querytestentity__c o ");
+        
+        String query = "select o from " + QueryTestEntity.class.getSimpleName() + " o";
+        Future<List<QueryTestEntity>> future =
+            ((ForceEntityManager) em).getResultListAsync(em.createQuery(query, QueryTestEntity.class));
+        
+        List<QueryTestEntity> results = future.get();
+        assertEquals(results.size(), 1, "Unexpected number of results for query " + query);
+        assertEquals(results.get(0).getId(), "a00000000000000AAA", "Unexpected first result for query " + query);
+        assertEquals(future.get(), results, "Reading the result twice should return the same objects");
+    }
+    
+    @Test
+    public void testResultIsFirstReadByOwningThread() throws Exception {
+        SObject sobject = createSObject("QueryTestEntity__c", "a00000000000000AAA");
+        sobject.setField("Name", "QueryTestEntity1");
+        mockQueryConn.setSObjectsForQueryResult(Lists.newArrayList(sobject));
+        
+        String query = "select o from " + QueryTestEntity.class.getSimpleName() + " o";
+        final Future<List<QueryTestEntity>> future =
+            ((ForceEntityManager) em).getResultListAsync(em.createQuery(query, QueryTestEntity.class));
+        Callable<List<QueryTestEntity>> read = new Callable<List<QueryTestEntity>>() {
+            @Override
+            public List<QueryTestEntity> call() throws Exception {
+                return future.get();
+            }
+        };
+        
+        ExecutorService otherThread = Executors.newSingleThreadExecutor();
+        try {
+            try {
+                otherThread.submit(read).get();
+                fail("Another thread should not be able to turn the rows into entities");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException, "Unexpected failure " + e.getCause());
+            }
+            List<QueryTestEntity> results = future.get();
+            assertEquals(results.size(), 1, "Unexpected number of results for query " + query);
+            assertEquals(otherThread.submit(read).get(), results, "Once read, the result can be shared");
+        } finally {
+            otherThread.shutdown();
+        }
+    }
+    
+    @Test
+    public void testNativeQueryAsync() throws Exception {
+        SObject sobject = createSObject("QueryTestEntity__c", "a00000000000000AAA");
+        sobject.setField("entityType__c", "AAA");
+        mockQueryConn.setSObjectsForQueryResult(Lists.newArrayList(sobject));
+        
+        String nativeQuery = "select id, entityType__c from querytestentity__c";
+        mockQueryConn.setExpectedSoqlQuery(nativeQuery);
+        Future<List<SObject>> future = ((ForceEntityManager) em).getResultListAsync(em.createNativeQuery(nativeQuery));
+        
+        List<SObject> results = future.get();
+        assertEquals(results.size(), 1, "Unexpected number of results for native query " + nativeQuery);
+        assertEquals(results.get(0).getField("entityType__c"), "AAA", "Unexpected entityType for native query " + nativeQuery);
+    }
+}
@@ -0,0 +1,262 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.force.sdk.jpa.query;
+
+import static org.testng.Assert.*;
+
+import java.util.*;
+
+import javax.persistence.*;
+
+import mockit.*;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.force.sdk.jpa.entities.QueryTestEntity;
+import com.sforce.async.*;
+import com.sforce.async.Error;
+import com.sforce.soap.partner.sobject.SObject;
+import com.sforce.ws.transport.JdkHttpTransport;
+
+/**
+ * Tests for bulk delete queries. Chunks of ids are deleted on worker threads while the
+ * next ones are read, above {@code force.bulkDeleteThreshold} they go in a Bulk API job.
+ *
+ * @author Fiaz Hossain
+ */
+public class QueryDeleteTest extends BaseJPAQueryTest {
+
+    private static final String DELETE_QUERY = "delete from " + QueryTestEntity.class.getSimpleName() + " o";
+    
+    /**
+     * A mock BulkConnection class that runs every batch at once.
+     * <p>
+     * This class records the operation and the ids of each job, and fails
+     * the rows of registered ids.
+     */
+    @MockClass(realClass = BulkConnection.class, instantiation = Instantiation.PerMockSetup)
+    public static class MockBulkConnection {
+        
+        private final List<OperationEnum> operations = new ArrayList<OperationEnum>();
+        private final Map<String, List<String>> batches = new LinkedHashMap<String, List<String>>();
+        private final Map<String, String> failingRows = new HashMap<String, String>();
+        private List<String> batchIds;
+        
+        @Mock
+        public JobInfo createJob(JobInfo job) {
+            operations.add(job.getOperation());
+            job.setId("750" + operations.size());
+            return job;
+        }
+        
+        @Mock
+        public JobInfo closeJob(String jobId) {
+            return new JobInfo();
+        }
+        
+        @Mock
+        public JobInfo abortJob(String jobId) {
+            return new JobInfo();
+        }
+        
+        @Mock
+        public BatchRequest createBatch(JobInfo job) throws Exception {
+            batchIds = new ArrayList<String>();
+            batches.put("751" + batches.size(), batchIds);
+            return new BatchRequest(null, null);
+        }
+        
+        @Mock
+        public BatchInfoList getBatchInfoList(String jobId) {
+            List<BatchInfo> infos = new ArrayList<BatchInfo>();
+            for (String batchId : batches.keySet()) {
+                BatchInfo info = new BatchInfo();
+                info.setId(batchId);
+                info.setJobId(jobId);
+                info.setState(BatchStateEnum.Completed);
+                infos.add(info);
+            }
+            BatchInfoList list = new BatchInfoList();
+            list.setBatchInfo(infos.toArray(new BatchInfo[infos.size()]));
+            return list;
+        }
+        
+        @Mock
+        public BatchResult getBatchResult(String jobId, String batchId) {
+            List<String> ids = batches.get(batchId);
+            Result[] results = new Result[ids.size()];
+            for (int i = 0; i < results.length; i++) {
+                results[i] = new Result();
+                results[i].setId(ids.get(i));
+                String failure = failingRows.get(ids.get(i));
+                if (failure != null) {
+                    Error error = new Error();
+                    error.setStatusCode(StatusCode.ENTITY_IS_DELETED);
+                    error.setMessage(failure);
+                    results[i].setErrors(new Error[] {error});
+                } else {
+                    results[i].setSuccess(true);
+                }
+            }
+            BatchResult batchResult = new BatchResult();
+            batchResult.setResult(results);
+            return batchResult;
+        }
+        
+        void addIds(com.sforce.async.SObject[] records) {
+            for (com.sforce.async.SObject record : records) {
+                batchIds.add(record.getField("Id"));
+            }
+        }
+    }
+    
+    /**
+     * A mock BatchRequest class that hands the ids of its records to the mock BulkConnection.
+     */
+    @MockClass(realClass = BatchRequest.class)
+    public static class MockBatchRequest {
+        
+        private final MockBulkConnection bulk;
+        
+        public MockBatchRequest(MockBulkConnection bulk) {
+            this.bulk = bulk;
+        }
+        
+        @Mock
+        public void $init(JdkHttpTransport transport, java.io.OutputStream out) {
+        }
+        
+        @Mock
+        public void addSObjects(com.sforce.async.SObject[] records) {
+            bulk.addIds(records);
+        }
+        
+        @Mock
+        public BatchInfo completeRequest() {
+            BatchInfo info = new BatchInfo();
+            info.setId("751" + (bulk.batches.size() - 1));
+            return info;
+        }
+    }
+    
+    private EntityManager bulkEm;
+    
+    @BeforeClass
+    public void bulkSetUp() {
+        bulkEm = Persistence.createEntityManagerFactory("jpaQueryUnitTest",
+                                    Collections.singletonMap("force.bulkDeleteThreshold", "100")).createEntityManager();
+    }
+    
+    @Test
+    public void testDeleteChunksInOrder() {
+        List<String> ids = queueIds(550, 450);
+        
+        int deleted = em.createQuery(DELETE_QUERY).setHint(QueryHints.EMPTY_RECYCLE_BIN, true).executeUpdate();
+        assertEquals(deleted, 550, "Unexpected number of deleted objects");
+        
+        List<String> calls = mockQueryConn.getDeleteCalls();
+        assertEquals(calls.size(), 8, "Each chunk should be deleted and then purged: " + calls);
+        // Chunks of 200 follow the batches read, the queryMore batch is not merged with the first one
+        int[][] chunks = {{0, 200}, {200, 400}, {400, 450}, {450, 550}};
+        for (int[] chunk : chunks) {
+            String chunkIds = ids.subList(chunk[0], chunk[1]).toString();
+            int delete = calls.indexOf("delete " + chunkIds);
+            int purge = calls.indexOf("emptyRecycleBin " + chunkIds);
+            assertTrue(delete >= 0, "Ids " + chunk[0] + " to " + chunk[1] + " were not deleted in one call");
+            assertTrue(purge > delete, "Ids " + chunk[0] + " to " + chunk[1] + " were purged before they were deleted");
+        }
+    }
+    
+    @Test
+    public void testDeleteWithoutPurge() {
+        queueIds(150, 150);
+        
+        assertEquals(em.createQuery(DELETE_QUERY).executeUpdate(), 150, "Unexpected number of deleted objects");
+        for (String call : mockQueryConn.getDeleteCalls()) {
+            assertTrue(call.startsWith("delete "), "The recycle bin should only be emptied when asked for: " + call);
+        }
+    }
+    
+    @Test
+    public void testDeletePartialFailure() {
+        List<String> ids = queueIds(450, 450);
+        mockQueryConn.failDeleteOf(ids.get(250), "entity is deleted");
+        
+        try {
+            em.createQuery(DELETE_QUERY).setHint(QueryHints.EMPTY_RECYCLE_BIN, true).executeUpdate();
+            fail("A failed row should fail the delete query");
+        } catch (PersistenceException e) {
+            assertEquals(e.getMessage(), "entity is deleted", "Unexpected failure");
+        }
+        assertFalse(mockQueryConn.getDeleteCalls().contains("emptyRecycleBin " + ids.subList(200, 400)),
+                    "A chunk that failed to delete should not be purged");
+    }
+    
+    @Test
+    public void testBulkDeletePartialFailure() throws Exception {
+        MockBulkConnection bulk = new MockBulkConnection();
+        Mockit.setUpMocks(bulk, new MockBatchRequest(bulk));
+        try {
+            List<String> ids = queueIds(150, 100);
+            bulk.failingRows.put(ids.get(120), "entity is deleted");
+            
+            try {
+                bulkEm.createQuery(DELETE_QUERY).setHint(QueryHints.EMPTY_RECYCLE_BIN, true).executeUpdate();
+                fail("A failed row should fail the delete query");
+            } catch (PersistenceException e) {
+                assertEquals(e.getMessage(), "Bulk API hardDelete failed for 1 of 150 records, "
+                                                + "first failure: ENTITY_IS_DELETED: entity is deleted");
+            }
+            assertEquals(bulk.operations, Collections.singletonList(OperationEnum.hardDelete),
+                            "Emptying the recycle bin should hard delete in a single job");
+            assertEquals(bulk.batches.size(), 1, "Unexpected number of batches");
+            assertEquals(bulk.batches.values().iterator().next(), ids, "Ids should be sent in the order they were read");
+            assertTrue(mockQueryConn.getDeleteCalls().isEmpty(), "The SOAP API should not be used above the threshold");
+        } finally {
+            Mockit.tearDownMocks(BulkConnection.class, BatchRequest.class);
+        }
+    }
+    
+    // Queues the ids of a number of records, the first batch holding firstBatch
+    // of them and the rest returned by queryMore
+    private List<String> queueIds(int count, int firstBatch) {
+        List<String> ids = new ArrayList<String>(count);
+        List<SObject> batch = new ArrayList<SObject>();
+        for (int i = 0; i < count; i++) {
+            String id = String.format("a00%012dAAA", i);
+            ids.add(id);
+            batch.add(createSObject("QueryTestEntity__c", id));
+            if (i + 1 == firstBatch || i + 1 == count) {
+                mockQueryConn.queueQueryResult(batch, i + 1 < count ? "01g000000000001-" + (i + 1) : null);
+                batch = new ArrayList<SObject>();
+            }
+        }
+        return ids;
+    }
+}
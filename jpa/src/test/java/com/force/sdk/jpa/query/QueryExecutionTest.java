@@ -0,0 +1,203 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.force.sdk.jpa.query;
+
+import static org.testng.Assert.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.datanucleus.store.query.QueryInterruptedException;
+import org.datanucleus.store.query.QueryTimeoutException;
+import org.testng.annotations.Test;
+
+import com.force.sdk.connector.ForceServiceConnector;
+import com.force.sdk.jpa.ForceManagedConnection;
+import com.force.sdk.jpa.ForceTaskExecutor.ConnectionTask;
+
+/**
+ * Tests for query timeouts, cancellation and execution statistics.
+ *
+ * @author Fiaz Hossain
+ */
+public class QueryExecutionTest {
+
+    @Test
+    public void testTimeoutReleasesWaitingThread() {
+        QueryExecution execution = new QueryExecution(50);
+        long start = System.currentTimeMillis();
+        try {
+            execution.await(new FutureTask<Object>(new NeverCalled()));
+            fail("Expected the query to time out");
+        } catch (QueryTimeoutException expected) {
+            assertTrue(System.currentTimeMillis() - start < 5000, "Waited far past the timeout");
+        }
+        try {
+            execution.checkpoint();
+            fail("Expected no further round trips after the timeout");
+        } catch (QueryTimeoutException expected) {
+            // expected
+        }
+    }
+    
+    @Test
+    public void testCancelledCall() {
+        QueryExecution execution = new QueryExecution(0);
+        FutureTask<Object> call = new FutureTask<Object>(new NeverCalled());
+        call.cancel(true);
+        try {
+            execution.await(call);
+            fail("Expected the query to be cancelled");
+        } catch (QueryInterruptedException expected) {
+            // expected
+        }
+    }
+    
+    @Test
+    public void testCancelStopsRoundTrips() {
+        QueryExecution execution = new QueryExecution(0);
+        execution.checkpoint();
+        execution.cancel();
+        assertTrue(execution.isCancelled());
+        try {
+            execution.checkpoint();
+            fail("Expected the query to be cancelled");
+        } catch (QueryInterruptedException expected) {
+            // expected
+        }
+    }
+    
+    @Test
+    public void testCancelClosesConnectionOfCallingThread() throws InterruptedException {
+        final QueryExecution execution = new QueryExecution(0);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch closed = new CountDownLatch(1);
+        ForceManagedConnection mconn = new ForceManagedConnection(new ForceServiceConnector()) {
+            @Override
+            public void close() {
+                closed.countDown();
+                super.close();
+            }
+        };
+        ConnectionTask<Object> blockedCall = new ConnectionTask<Object>() {
+            @Override
+            public Object call(ForceManagedConnection conn) throws Exception {
+                started.countDown();
+                // Like a socket read, the call only returns once its connection is closed
+                assertTrue(closed.await(10, TimeUnit.SECONDS), "The connection should have been closed");
+                return new Object();
+            }
+        };
+        Thread canceller = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    started.await();
+                    execution.cancel();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        canceller.start();
+        try {
+            execution.invokeAll(null, Collections.singletonList(blockedCall), mconn);
+            fail("Expected the query to be cancelled");
+        } catch (QueryInterruptedException expected) {
+            assertEquals(closed.getCount(), 0, "The connection of the calling thread should be closed");
+        } finally {
+            canceller.join();
+        }
+    }
+    
+    @Test
+    public void testTimeoutValues() {
+        assertEquals(QueryExecution.toMillis(Integer.valueOf(1500)), 1500);
+        assertEquals(QueryExecution.toMillis(" 250 "), 250);
+        try {
+            QueryExecution.toMillis("soon");
+            fail("Expected a non numeric timeout to be rejected");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+        try {
+            QueryExecution.toMillis(-1);
+            fail("Expected a negative timeout to be rejected");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+    
+    @Test
+    public void testExecutionStats() {
+        QueryExecution execution = new QueryExecution(0);
+        execution.planned();
+        execution.batchReceived(new Object[2000], false);
+        execution.batchReceived(new Object[2000], true);
+        execution.batchReceived(new Object[500], true);
+        execution.fetched();
+        
+        final List<QueryExecutionStats> reported = new ArrayList<QueryExecutionStats>();
+        List<QueryExecutionListener> listeners = new ArrayList<QueryExecutionListener>();
+        listeners.add(new QueryExecutionListener() {
+            @Override
+            public void executed(QueryExecutionStats stats) {
+                throw new IllegalStateException("A failing listener must not fail the query");
+            }
+        });
+        listeners.add(new QueryExecutionListener() {
+            @Override
+            public void executed(QueryExecutionStats stats) {
+                reported.add(stats);
+            }
+        });
+        execution.notify(listeners, "select o from Opportunity o where o.stage = :stage",
+                         Collections.singletonList("select id from Opportunity where stageName = 'Won'"),
+                         Collections.singletonMap("stage", "Won"), 4500, null);
+        
+        assertEquals(reported.size(), 1);
+        QueryExecutionStats stats = reported.get(0);
+        assertEquals(stats.getQuery(), "select o from Opportunity o where o.stage = :stage");
+        assertEquals(stats.getSoqlQueries(), Collections.singletonList("select id from Opportunity where stageName = 'Won'"));
+        assertEquals(stats.getParameters().get("stage"), "Won");
+        assertEquals(stats.getQueryMoreCalls(), 2);
+        assertEquals(stats.getRowsReturned(), 4500);
+        assertEquals(stats.getRowsMaterialized(), 4500);
+        assertNull(stats.getFailure());
+        assertTrue(stats.getTimeToFirstBatch(TimeUnit.NANOSECONDS) <= stats.getFetchTime(TimeUnit.NANOSECONDS));
+        assertEquals(stats.getTotalTime(TimeUnit.NANOSECONDS),
+                     stats.getCompileTime(TimeUnit.NANOSECONDS) + stats.getFetchTime(TimeUnit.NANOSECONDS));
+    }
+    
+    private static final class NeverCalled implements Callable<Object> {
+        @Override
+        public Object call() {
+            throw new AssertionError("Not expected to run");
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.force.sdk.jpa.query;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import com.force.sdk.jpa.entities.QueryTestEntity;
+import com.sforce.soap.partner.sobject.SObject;
+
+/**
+ * Tests for queries that run as several SOQL queries on the worker threads, either
+ * one per partition (PARALLEL_PARTITIONS) or one per chunk of a large IN list.
+ *
+ * @author Fiaz Hossain
+ */
+public class QueryPartitionTest extends BaseJPAQueryTest {
+
+    private static final String ENTITY_QUERY = "select o from " + QueryTestEntity.class.getSimpleName() + " o";
+    
+    @Test
+    public void testPartitionsReadEveryBatch() {
+        setPartitionBounds();
+        mockQueryConn.setBatchesForQuery(" < '", batches(rows(1, 3), rows(5)));
+        mockQueryConn.setBatchesForQuery(" >= '", batches(rows(2), rows(4, 6)));
+        
+        List<QueryTestEntity> results = em.createQuery(ENTITY_QUERY, QueryTestEntity.class)
+                                            .setHint(QueryHints.PARALLEL_PARTITIONS, 2).getResultList();
+        assertEquals(names(results), Arrays.asList("n1", "n3", "n5", "n2", "n4", "n6"),
+                        "Every batch of each partition should be read, in partition order");
+        assertEquals(mockQueryConn.getQueryMoreCalls(), 2, "Each partition should follow its query locator");
+    }
+    
+    @Test
+    public void testOrderedPartitionsMergeEveryBatch() {
+        setPartitionBounds();
+        mockQueryConn.setBatchesForQuery(" < '", batches(rows(1, 3), rows(5)));
+        mockQueryConn.setBatchesForQuery(" >= '", batches(rows(2), rows(4, 6)));
+        
+        List<QueryTestEntity> results = em.createQuery(ENTITY_QUERY + " order by o.name", QueryTestEntity.class)
+                                            .setHint(QueryHints.PARALLEL_PARTITIONS, 2).getResultList();
+        assertEquals(names(results), Arrays.asList("n1", "n2", "n3", "n4", "n5", "n6"),
+                        "The merge should see the rows of every batch");
+    }
+    
+    @Test
+    public void testInListChunksReadEveryBatch() {
+        List<String> values = new ArrayList<String>(3000);
+        for (int i = 0; i < 3000; i++) {
+            values.add(String.format("n%05d", i));
+        }
+        // Each name only appears in the query of the chunk it was put in
+        mockQueryConn.setBatchesForQuery("'n00000'", batches(rows(1, 3), rows(5)));
+        mockQueryConn.setBatchesForQuery("'n02999'", batches(rows(2), rows(4, 6)));
+        
+        List<QueryTestEntity> results = em.createQuery(ENTITY_QUERY + " where o.name in :names", QueryTestEntity.class)
+                                            .setParameter("names", values).getResultList();
+        assertEquals(mockQueryConn.getExecutedSoqlQueries().size(), 2, "The IN list should be split into two queries");
+        assertEquals(names(results), Arrays.asList("n1", "n3", "n5", "n2", "n4", "n6"),
+                        "Every batch of each chunk should be read, in chunk order");
+        assertEquals(mockQueryConn.getQueryMoreCalls(), 2, "Each chunk should follow its query locator");
+    }
+    
+    private void setPartitionBounds() {
+        mockQueryConn.setBatchesForQuery("ASC limit 1",
+                                            Collections.singletonList(Arrays.asList(bound("a00000000000000AAA"))));
+        mockQueryConn.setBatchesForQuery("DESC limit 1",
+                                            Collections.singletonList(Arrays.asList(bound("a00000000000100AAA"))));
+    }
+    
+    private static List<List<SObject>> batches(List<SObject> first, List<SObject> second) {
+        List<List<SObject>> batches = new ArrayList<List<SObject>>(2);
+        batches.add(first);
+        batches.add(second);
+        return batches;
+    }
+    
+    private SObject[] bound(String id) {
+        return new SObject[] {row(id, 0)};
+    }
+    
+    private List<SObject> rows(int... numbers) {
+        List<SObject> rows = new ArrayList<SObject>(numbers.length);
+        for (int number : numbers) {
+            rows.add(row(String.format("a00000000000%03dAAA", number), number));
+        }
+        return rows;
+    }
+    
+    private SObject row(String id, int number) {
+        SObject sobject = createSObject("QueryTestEntity__c", id);
+        sobject.setField("Name", "n" + number);
+        return sobject;
+    }
+    
+    private static List<String> names(List<QueryTestEntity> entities) {
+        List<String> names = new ArrayList<String>(entities.size());
+        for (QueryTestEntity entity : entities) {
+            names.add(entity.getName());
+        }
+        return names;
+    }
+}
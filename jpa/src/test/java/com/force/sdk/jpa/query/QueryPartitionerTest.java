@@ -0,0 +1,162 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.force.sdk.jpa.query;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.*;
+
+import org.testng.annotations.Test;
+
+import com.force.sdk.jpa.table.ColumnImpl;
+import com.sforce.soap.partner.Field;
+import com.sforce.soap.partner.FieldType;
+import com.sforce.soap.partner.sobject.SObject;
+
+/**
+ * Tests for merging the results of partitioned and split queries.
+ *
+ * @author Fiaz Hossain
+ */
+public class QueryPartitionerTest {
+
+    private static final Comparator<SObject> BY_ID = new Comparator<SObject>() {
+        @Override
+        public int compare(SObject o1, SObject o2) {
+            return o1.getId().compareTo(o2.getId());
+        }
+    };
+    
+    @Test
+    public void testOrderedMerge() {
+        List<SObject[]> parts = Arrays.asList(rows("a1", "a4", "a7"), rows("a2", "a5"), rows(), rows("a3", "a6", "a8"));
+        assertEquals(ids(QueryPartitioner.merge(parts, BY_ID, Long.MAX_VALUE)),
+                Arrays.asList("a1", "a2", "a3", "a4", "a5", "a6", "a7", "a8"));
+    }
+    
+    @Test
+    public void testOrderedMergeWithLimit() {
+        List<SObject[]> parts = Arrays.asList(rows("a1", "a4", "a7"), rows("a2", "a5"), rows("a3", "a6", "a8"));
+        assertEquals(ids(QueryPartitioner.merge(parts, BY_ID, 4)), Arrays.asList("a1", "a2", "a3", "a4"));
+    }
+    
+    @Test
+    public void testUnorderedMergeWithLimit() {
+        List<SObject[]> parts = Arrays.asList(rows("a7", "a1"), rows("a5", "a2"), rows("a3"));
+        assertEquals(ids(QueryPartitioner.merge(parts, null, 3)), Arrays.asList("a7", "a1", "a5"));
+        assertEquals(QueryPartitioner.merge(parts, null, Long.MAX_VALUE).length, 5);
+    }
+    
+    @Test
+    public void testDistinctMergeDropsRepeatedIds() {
+        List<SObject[]> parts = Arrays.asList(rows("a1", "a3", "a5"), rows("a1", "a2", "a5"), rows("a4", "a5"));
+        assertEquals(ids(QueryPartitioner.merge(parts, BY_ID, Long.MAX_VALUE, true)),
+                Arrays.asList("a1", "a2", "a3", "a4", "a5"));
+        assertEquals(ids(QueryPartitioner.merge(parts, BY_ID, 3, true)), Arrays.asList("a1", "a2", "a3"));
+        assertEquals(ids(QueryPartitioner.merge(parts, null, Long.MAX_VALUE, true)),
+                Arrays.asList("a1", "a3", "a5", "a2", "a4"));
+    }
+    
+    @Test
+    public void testOrderedMergeWithoutSortOrderIsAscending() {
+        List<ColumnImpl> columns = Collections.singletonList(new ColumnImpl("Name", stringField("Name")));
+        List<SObject[]> parts = Arrays.asList(named("a1", "alpha", "a4", "delta"), named("a2", "bravo", "a3", "charlie"));
+        assertEquals(ids(QueryPartitioner.merge(parts, QueryPartitioner.createComparator(columns,
+                                                            Collections.<String>singletonList(null)), Long.MAX_VALUE)),
+                Arrays.asList("a1", "a2", "a3", "a4"));
+        assertEquals(ids(QueryPartitioner.merge(parts, QueryPartitioner.createComparator(columns,
+                                                            Collections.singletonList("ascending")), Long.MAX_VALUE)),
+                Arrays.asList("a1", "a2", "a3", "a4"));
+        
+        parts = Arrays.asList(named("a4", "delta", "a1", "alpha"), named("a3", "charlie", "a2", "bravo"));
+        assertEquals(ids(QueryPartitioner.merge(parts, QueryPartitioner.createComparator(columns,
+                                                            Collections.singletonList("descending")), Long.MAX_VALUE)),
+                Arrays.asList("a4", "a3", "a2", "a1"));
+    }
+    
+    @Test
+    public void testSplitInListFitsMaxLength() {
+        List<String> values = new ArrayList<String>();
+        for (int i = 0; i < 1000; i++) {
+            values.add("a0" + i);
+        }
+        values.add("a00");
+        List<Collection<?>> chunks = new CollectionParameter(values).split(100);
+        int total = 0;
+        for (Collection<?> chunk : chunks) {
+            assertEquals(new CollectionParameter(chunk).toString().length() <= 100, true, "Chunk too long: " + chunk);
+            total += chunk.size();
+        }
+        assertEquals(total, 1000, "Every distinct value should be in exactly one chunk");
+        assertEquals(new CollectionParameter(values).split(5), null, "A value longer than the limit cannot be split");
+    }
+    
+    @Test
+    public void testIdEncodingKeepsOrder() {
+        String low = "001D000000IqhSL";
+        String high = "001D000000JaXbz";
+        assertEquals(QueryPartitioner.encodeId(QueryPartitioner.decodeId(low)), low);
+        assertEquals(QueryPartitioner.encodeId(QueryPartitioner.decodeId(high)), high);
+        String mid = QueryPartitioner.encodeId(QueryPartitioner.decodeId(low).add(QueryPartitioner.decodeId(high)).shiftRight(1));
+        assertEquals(Integer.signum(low.compareTo(mid)), -1);
+        assertEquals(Integer.signum(mid.compareTo(high)), -1);
+    }
+    
+    private static SObject[] rows(String... ids) {
+        SObject[] rows = new SObject[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            rows[i] = new SObject();
+            rows[i].setId(ids[i]);
+        }
+        return rows;
+    }
+    
+    private static SObject[] named(String... idsAndNames) {
+        SObject[] rows = new SObject[idsAndNames.length / 2];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = new SObject();
+            rows[i].setId(idsAndNames[2 * i]);
+            rows[i].setField("Name", idsAndNames[2 * i + 1]);
+        }
+        return rows;
+    }
+    
+    private static Field stringField(String name) {
+        Field field = new Field();
+        field.setName(name);
+        field.setType(FieldType.string);
+        return field;
+    }
+    
+    private static List<String> ids(SObject[] rows) {
+        List<String> ids = new ArrayList<String>(rows.length);
+        for (SObject row : rows) {
+            ids.add(row.getId());
+        }
+        return ids;
+    }
+}
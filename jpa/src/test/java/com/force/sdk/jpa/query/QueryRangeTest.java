@@ -0,0 +1,195 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.force.sdk.jpa.query;
+
+import static org.testng.Assert.*;
+
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import com.force.sdk.jpa.entities.QueryTestEntity;
+import com.google.inject.internal.Lists;
+import com.sforce.soap.partner.sobject.SObject;
+
+/**
+ * Tests for pushing Force.com JPA query ranges (setFirstResult/setMaxResults) into SOQL
+ * and for keyset pagination.
+ * 
+ * @author Fiaz Hossain
+ */
+public class QueryRangeTest extends BaseJPAQueryTest {
+
+    private static final String QUERY_BASE = "select o.id from " + QueryTestEntity.class.getSimpleName() + " o ";
+    private static final String EXPECTED_QUERY_BASE = "select o.Id from querytestentity__c o ";
+    private static final String ENTITY_QUERY = "select o from " + QueryTestEntity.class.getSimpleName() + " o";
+    private static final String EXPECTED_ENTITY_QUERY_BASE =
+        "select id, date__c, entityType__c, Name, number__c from querytestentity__c o ";
+    
+    @Test
+    public void testMaxResults() {
+        mockQueryConn.setExpectedSoqlQuery(EXPECTED_QUERY_BASE + " limit 5");
+        em.createQuery(QUERY_BASE).setMaxResults(5).getResultList();
+    }
+    
+    @Test
+    public void testFirstResultWithMaxResults() {
+        mockQueryConn.setExpectedSoqlQuery(EXPECTED_QUERY_BASE + " order by o.Name ASC  limit 5 offset 10");
+        em.createQuery(QUERY_BASE + "order by o.name").setFirstResult(10).setMaxResults(5).getResultList();
+    }
+    
+    @Test
+    public void testFirstResultWithoutMaxResults() {
+        mockQueryConn.setExpectedSoqlQuery(EXPECTED_QUERY_BASE + " where (o.Name = 'five') offset 2000");
+        em.createQuery(QUERY_BASE + "where o.name='five'").setFirstResult(2000).getResultList();
+    }
+    
+    @Test
+    public void testDeepFirstResultWithUnseekableOrderingIsAppliedInMemory() {
+        // Ordering is not by id so the whole range is fetched and sliced after the query
+        mockQueryConn.setExpectedSoqlQuery(EXPECTED_QUERY_BASE + " order by o.Name ASC  limit 2505");
+        em.createQuery(QUERY_BASE + "order by o.name").setFirstResult(2500).setMaxResults(5).getResultList();
+    }
+    
+    @Test
+    public void testDeepFirstResultSeeksPastOffsetById() {
+        // 4500 rows are skipped in three hops of at most 2001 rows, each reading the id of its last row
+        mockQueryConn.queueQueryResult(Lists.newArrayList(createSObject("QueryTestEntity__c", rowId(2000))), null);
+        mockQueryConn.queueQueryResult(Lists.newArrayList(createSObject("QueryTestEntity__c", rowId(4001))), null);
+        mockQueryConn.queueQueryResult(Lists.newArrayList(createSObject("QueryTestEntity__c", rowId(4499))), null);
+        List<SObject> page = Lists.newArrayList();
+        for (int i = 4500; i < 4505; i++) {
+            page.add(createSObject("QueryTestEntity__c", rowId(i)));
+        }
+        mockQueryConn.queueQueryResult(page, null);
+        
+        List<QueryTestEntity> results = em.createQuery(ENTITY_QUERY, QueryTestEntity.class)
+                                            .setFirstResult(4500).setMaxResults(5).getResultList();
+        
+        List<String> queries = mockQueryConn.getExecutedSoqlQueries();
+        assertEquals(queries.size(), 4, "Unexpected number of round trips for " + queries);
+        assertEquals(queries.get(0), "select id from querytestentity__c o  order by id limit 1 offset 2000");
+        assertEquals(queries.get(1), "select id from querytestentity__c o  where (id > '" + rowId(2000)
+                                        + "') order by id limit 1 offset 2000");
+        assertEquals(queries.get(2), "select id from querytestentity__c o  where (id > '" + rowId(4001)
+                                        + "') order by id limit 1 offset 497");
+        assertEquals(queries.get(3), EXPECTED_ENTITY_QUERY_BASE + " where (id > '" + rowId(4499) + "') order by id limit 5");
+        
+        // The page starts right after the last skipped row
+        assertEquals(results.size(), 5);
+        assertEquals(results.get(0).getId(), rowId(4500), "Unexpected first row of the page");
+        assertEquals(results.get(4).getId(), rowId(4504), "Unexpected last row of the page");
+    }
+    
+    @Test
+    public void testDeepFirstResultPastTheEndReturnsNothing() {
+        mockQueryConn.queueQueryResult(Lists.newArrayList(createSObject("QueryTestEntity__c", rowId(2000))), null);
+        mockQueryConn.queueQueryResult(Lists.<SObject>newArrayList(), null);
+        
+        List<QueryTestEntity> results = em.createQuery(ENTITY_QUERY, QueryTestEntity.class)
+                                            .setFirstResult(4500).setMaxResults(5).getResultList();
+        assertTrue(results.isEmpty(), "A range past the end of the results should be empty");
+        assertEquals(mockQueryConn.getExecutedSoqlQueries().size(), 2, "The seek should stop at the end of the results");
+    }
+    
+    @Test
+    public void testRangeLargerThanBatchReadsOnlyTheBatchesItNeeds() {
+        mockQueryConn.queueQueryResult(Lists.newArrayList(createSObject("QueryTestEntity__c", rowId(0)),
+                                                            createSObject("QueryTestEntity__c", rowId(1))), "locator-1");
+        mockQueryConn.queueQueryResult(Lists.newArrayList(createSObject("QueryTestEntity__c", rowId(2)),
+                                                            createSObject("QueryTestEntity__c", rowId(3))), "locator-2");
+        mockQueryConn.queueQueryResult(Lists.newArrayList(createSObject("QueryTestEntity__c", rowId(4))), null);
+        
+        List<QueryTestEntity> results = em.createQuery(ENTITY_QUERY, QueryTestEntity.class)
+                                            .setMaxResults(3).getResultList();
+        assertEquals(mockQueryConn.getQueryMoreCalls(), 1, "Only the batches the range needs should be read");
+        assertEquals(results.get(0).getId(), rowId(0), "Unexpected first row of the page");
+        assertEquals(results.get(2).getId(), rowId(2), "Unexpected row read with queryMore");
+    }
+    
+    @Test
+    public void testQueryWithoutRangeReadsEveryBatch() {
+        mockQueryConn.queueQueryResult(Lists.newArrayList(createSObject("QueryTestEntity__c", rowId(0))), "locator-1");
+        mockQueryConn.queueQueryResult(Lists.newArrayList(createSObject("QueryTestEntity__c", rowId(1))), "locator-2");
+        mockQueryConn.queueQueryResult(Lists.newArrayList(createSObject("QueryTestEntity__c", rowId(2))), null);
+        
+        List<QueryTestEntity> results = em.createQuery(ENTITY_QUERY, QueryTestEntity.class).getResultList();
+        assertEquals(mockQueryConn.getQueryMoreCalls(), 2, "A query without a range should follow every query locator");
+        assertEquals(results.size(), 3, "Every batch should be in the result");
+        assertEquals(results.get(2).getId(), rowId(2), "Unexpected row of the last batch");
+    }
+    
+    @Test
+    public void testKeysetPagination() {
+        mockQueryConn.setExpectedSoqlQuery(EXPECTED_ENTITY_QUERY_BASE + " order by date__c ASC, Id ASC limit 2");
+        mockQueryConn.setSObjectsForQueryResult(Lists.newArrayList(
+                createKeysetSObject("a00000000000000AAA", "2011-05-01T10:00:00.000Z"),
+                createKeysetSObject("a00000000000001AAA", "2011-05-02T10:00:00.000Z")));
+        List<?> firstPage = em.createQuery(ENTITY_QUERY).setHint(QueryHints.KEYSET_ORDERING, "date")
+                                .setMaxResults(2).getResultList();
+        assertEquals(firstPage.size(), 2);
+        String token = ((KeysetResultList) firstPage).getNextPageToken();
+        assertNotNull(token, "A full page should carry a next page token");
+        
+        mockQueryConn.setExpectedSoqlQuery(EXPECTED_ENTITY_QUERY_BASE
+                + " where (date__c > 2011-05-02T10:00:00.000Z or (date__c = 2011-05-02T10:00:00.000Z"
+                + " and (Id > 'a00000000000001AAA'))) order by date__c ASC, Id ASC limit 2");
+        mockQueryConn.setSObjectsForQueryResult(Lists.newArrayList(
+                createKeysetSObject("a00000000000002AAA", "2011-05-03T10:00:00.000Z")));
+        List<?> lastPage = em.createQuery(ENTITY_QUERY).setHint(QueryHints.KEYSET_ORDERING, "date")
+                                .setHint(QueryHints.KEYSET_AFTER, token).setMaxResults(2).getResultList();
+        assertEquals(lastPage.size(), 1);
+        assertNull(((KeysetResultList) lastPage).getNextPageToken(), "A partial page is the last page");
+    }
+    
+    @Test
+    public void testKeysetPaginationDescending() {
+        mockQueryConn.setExpectedSoqlQuery(EXPECTED_ENTITY_QUERY_BASE + " order by Name DESC, Id DESC limit 10");
+        em.createQuery(ENTITY_QUERY).setHint(QueryHints.KEYSET_ORDERING, "name desc").setMaxResults(10).getResultList();
+    }
+    
+    @Test
+    public void testKeysetPaginationRejectsTamperedToken() {
+        try {
+            em.createQuery(ENTITY_QUERY).setHint(QueryHints.KEYSET_ORDERING, "date")
+                .setHint(QueryHints.KEYSET_AFTER, "bm90IGEgdG9rZW4").setMaxResults(2).getResultList();
+            fail("Expected an invalid keyset token to be rejected");
+        } catch (Exception expected) {
+            // Exception expected
+        }
+    }
+    
+    private static String rowId(int row) {
+        return String.format("a00%012dAAA", row);
+    }
+    
+    private SObject createKeysetSObject(String id, String date) {
+        SObject sobject = createSObject("QueryTestEntity__c", id);
+        sobject.setField("date__c", date);
+        return sobject;
+    }
+}
@@ -132,6 +132,28 @@ public class QueryResultTest extends BaseJPAQueryTest {
         }
     }
     
+    @Test
+    public void testReadOnlyQueryReturnsUntrackedEntities() {
+        SObject sobject = createSObject("QueryTestEntity__c", "a00000000000000AAA");
+        sobject.setField("Name", "QueryTestEntity1");
+        sobject.setField("entityType__c", "AAA");
+        sobject.setField("number__c", "1.0");
+        
+        mockQueryConn.setSObjectsForQueryResult(Lists.newArrayList(sobject));
+        mockQueryConn.setExpectedSoqlQuery("select id, date__c, entityType__c, Name, number__c from querytestentity__c o ");
+        
+        String query = "select o from " + QueryTestEntity.class.getSimpleName() + " o";
+        List<QueryTestEntity> results = em.createQuery(query, QueryTestEntity.class)
+                                            .setHint(QueryHints.READ_ONLY, true).getResultList();
+        assertEquals(results.size(), 1, "Unexpected number of results for read only query " + query);
+        
+        QueryTestEntity result = results.get(0);
+        assertEquals(result.getId(), "a00000000000000AAA", "Unexpected id for read only query " + query);
+        assertEquals(result.getName(), "QueryTestEntity1", "Unexpected name for read only query " + query);
+        assertEquals(result.getEntityType(), "AAA", "Unexpected entityType for read only query " + query);
+        Assert.assertFalse(em.contains(result), "Read only query results should not be managed");
+    }
+    
     @SuppressWarnings("unchecked")
     @Test
     public void testNativeQueryWithSObjectResult() {
@@ -224,12 +246,14 @@ public class QueryResultTest extends BaseJPAQueryTest {
     
     @Test
     public void testFirstResult() {
+        // First result is controlled at the SOQL query level, so Force.com only returns the rows after the offset
         ArrayList<SObject> sobjects =
             Lists.newArrayList(
-                createSObject("QueryTestEntity__c", "a00000000000000AAA"),
                 createSObject("QueryTestEntity__c", "a00000000000001AAA"),
                 createSObject("QueryTestEntity__c", "a00000000000002AAA"));
         
+        mockQueryConn.setExpectedSoqlQuery("select id, date__c, entityType__c, Name, number__c "
+                                            + "from querytestentity__c o  offset 1");
         mockQueryConn.setSObjectsForQueryResult(sobjects);
         
         String query = "select o from " + QueryTestEntity.class.getSimpleName() + " o";
@@ -27,6 +27,7 @@
 package com.force.sdk.jpa.query;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
 
 import java.math.BigDecimal;
 import java.math.BigInteger;
@@ -167,4 +168,48 @@ public class QueryReturnTypeAggregateFunctionTest extends BaseJPAQueryTest {
         Object result = em.createQuery(query).getSingleResult();
         assertEquals(result.getClass(), expectedReturnType, "Unexpected return type for query: " + query);
     }
+    
+    @Test
+    public void testColumnarAggregateResult() {
+        SObject first = createSObject("AggregateResult");
+        first.setField("stringObject__c", "AAA");
+        first.setField("expr0", 3.0d);
+        first.setField("expr1", 1.5d);
+        SObject second = createSObject("AggregateResult");
+        second.setField("stringObject__c", "BBB");
+        second.setField("expr0", null);
+        second.setField("expr1", 2.5d);
+        
+        mockQueryConn.setSObjectsForQueryResult(Lists.newArrayList(first, second));
+        
+        String query = "select o.stringObject, sum(o.longType), avg(o.doubleType) from "
+                        + DataTypesTestEntity.class.getSimpleName() + " o group by o.stringObject";
+        TupleResult result =
+            (TupleResult) em.createQuery(query).setHint(QueryHints.COLUMNAR_RESULT, true).getResultList();
+        assertEquals(result.getRowCount(), 2, "Unexpected number of rows for query: " + query);
+        assertEquals(result.getColumnCount(), 3, "Unexpected number of columns for query: " + query);
+        assertEquals(result.getString(0, 1), "BBB", "Unexpected string value for query: " + query);
+        assertEquals(result.getLong(1, 0), 3L, "Unexpected sum for query: " + query);
+        assertTrue(result.isNull(1, 1), "Expected a null sum for query: " + query);
+        assertEquals(result.getDouble(2, 1), 2.5d, "Unexpected average for query: " + query);
+        
+        // The list view boxes values the same way a regular result list does
+        Object[] row = (Object[]) result.get(0);
+        assertEquals(row[1].getClass(), Long.class, "Unexpected sum return type for query: " + query);
+        assertEquals(row[2].getClass(), Double.class, "Unexpected avg return type for query: " + query);
+    }
+    
+    @Test
+    public void testColumnarCountResult() {
+        QueryResult qr = new QueryResult();
+        qr.setDone(true);
+        qr.setSize(2); // Count queries return a size, but no results
+        
+        mockQueryConn.setReturnedQueryResult(qr);
+        
+        String query = "select count(o.intType) from " + DataTypesTestEntity.class.getSimpleName() + " o";
+        TupleResult result =
+            (TupleResult) em.createQuery(query).setHint(QueryHints.COLUMNAR_RESULT, true).getResultList();
+        assertEquals(result.getLong(0, 0), 2L, "Unexpected count for query: " + query);
+    }
 }
@@ -0,0 +1,225 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.force.sdk.jpa.query;
+
+import static org.testng.Assert.*;
+
+import java.math.BigDecimal;
+import java.util.*;
+
+import org.testng.annotations.Test;
+
+/**
+ * Property based tests for {@link SOQLLiteralWriter}. Random values, biased towards characters that
+ * need escaping, are written as literals and read back with a minimal SOQL string lexer.
+ *
+ * @author Fiaz Hossain
+ */
+public class SOQLLiteralWriterTest {
+
+    private static final int ITERATIONS = 2000;
+    private static final char[] ALPHABET = {'\'', '\\', '"', '\n', '\r', '\t', '\b', '\f', '%', '_', ' ', 'a', 'Z', '0',
+                                            '\u00e9', '\u4e2d', ',', ')', '('};
+    
+    @Test
+    public void testStringLiteralRoundTrips() {
+        Random random = new Random(20111019L);
+        for (int i = 0; i < ITERATIONS; i++) {
+            String value = randomString(random);
+            String literal = SOQLLiteralWriter.appendString(new StringBuilder(), value).toString();
+            assertEquals(readStringLiteral(literal), value, "Literal does not read back as its value: " + literal);
+        }
+    }
+    
+    @Test
+    public void testStringLiteralKeepsSurroundingQuery() {
+        Random random = new Random(42L);
+        for (int i = 0; i < ITERATIONS; i++) {
+            String value = randomString(random);
+            StringBuilder sb = new StringBuilder("select Id from Account where Name = ");
+            int start = sb.length();
+            SOQLLiteralWriter.appendValue(sb, value).append(" limit 1");
+            // The literal must end exactly where the writer stopped, leaving the rest of the query intact
+            int end = sb.length() - " limit 1".length();
+            assertEquals(readStringLiteral(sb.substring(start, end)), value);
+            assertTrue(sb.toString().startsWith("select Id from Account where Name = "));
+        }
+    }
+    
+    @Test
+    public void testNumbersAreWrittenInPlainNotation() {
+        Random random = new Random(7L);
+        for (int i = 0; i < ITERATIONS; i++) {
+            double d = Double.longBitsToDouble(random.nextLong());
+            if (Double.isNaN(d) || Double.isInfinite(d)) continue;
+            String literal = SOQLLiteralWriter.appendValue(new StringBuilder(), d).toString();
+            assertFalse(literal.contains("E"), "Exponent in literal: " + literal);
+            assertEquals(new BigDecimal(literal).doubleValue(), d, "Literal does not read back as its value: " + literal);
+            
+            long l = random.nextLong();
+            assertEquals(SOQLLiteralWriter.appendValue(new StringBuilder(), l).toString(), Long.toString(l));
+        }
+    }
+    
+    @Test
+    public void testCollectionLiteral() {
+        Random random = new Random(11L);
+        for (int i = 0; i < ITERATIONS / 10; i++) {
+            List<String> values = new ArrayList<String>();
+            for (int n = random.nextInt(5); n >= 0; n--) {
+                values.add(randomString(random));
+            }
+            String literal = SOQLLiteralWriter.appendCollection(new StringBuilder(), values).toString();
+            assertEquals(readStringList(literal), values, "List does not read back as its values: " + literal);
+        }
+        assertEquals(SOQLLiteralWriter.appendCollection(new StringBuilder(), Collections.emptyList()).toString(), "(NULL)");
+        assertEquals(new CollectionParameter(Arrays.asList(1, 2, 3)).toString(), "(1,2,3)");
+    }
+    
+    @Test
+    public void testLikePatternKeepsWildcardsAndEscapes() {
+        Random random = new Random(1019L);
+        char[] escapes = {'\\', '!', '#'};
+        for (int i = 0; i < ITERATIONS; i++) {
+            char escape = escapes[random.nextInt(escapes.length)];
+            // Tokens are "%" or "_" for a wildcard and "=" followed by the character for a plain character
+            List<String> tokens = new ArrayList<String>();
+            StringBuilder pattern = new StringBuilder();
+            for (int n = random.nextInt(12); n > 0; n--) {
+                int kind = random.nextInt(4);
+                if (kind == 0) {
+                    char wildcard = random.nextBoolean() ? '%' : '_';
+                    tokens.add(String.valueOf(wildcard));
+                    pattern.append(wildcard);
+                } else {
+                    char c = kind == 1 ? escape : ALPHABET[random.nextInt(ALPHABET.length)];
+                    tokens.add("=" + c);
+                    if (c == '%' || c == '_' || c == escape) pattern.append(escape);
+                    pattern.append(c);
+                }
+            }
+            String literal = SOQLLiteralWriter.appendLikePattern(new StringBuilder(), pattern, escape).toString();
+            assertEquals(readLikePattern(literal), tokens, "Pattern does not read back as its tokens: " + literal);
+        }
+        assertEquals(SOQLLiteralWriter.appendLikePattern(new StringBuilder(), "50\\%", '\\').toString(), "'50\\%'");
+        assertEquals(SOQLLiteralWriter.appendLikePattern(new StringBuilder(), "a!_b%", '!').toString(), "'a\\_b%'");
+        assertEquals(SOQLLiteralWriter.appendLikePattern(new StringBuilder(), "O'B\\\\", '\\').toString(), "'O\\'B\\\\'");
+    }
+    
+    @Test
+    public void testOtherLiterals() {
+        assertEquals(SOQLLiteralWriter.appendValue(new StringBuilder(), null).toString(), "null");
+        assertEquals(SOQLLiteralWriter.appendValue(new StringBuilder(), true).toString(), "true");
+        assertEquals(SOQLLiteralWriter.appendValue(new StringBuilder(), 'x').toString(), "'x'");
+        assertEquals(SOQLLiteralWriter.appendValue(new StringBuilder(), new BigDecimal("1E+3")).toString(), "1000");
+    }
+    
+    private static String randomString(Random random) {
+        char[] chars = new char[random.nextInt(12)];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = random.nextInt(4) == 0 ? (char) (32 + random.nextInt(95)) : ALPHABET[random.nextInt(ALPHABET.length)];
+        }
+        return new String(chars);
+    }
+    
+    /**
+     * Reads a quoted SOQL string literal, failing if it ends before the last character.
+     */
+    private static String readStringLiteral(String literal) {
+        int[] end = new int[1];
+        String value = readStringLiteral(literal, 0, end);
+        assertEquals(end[0], literal.length(), "Literal ends early: " + literal);
+        return value;
+    }
+    
+    private static String readStringLiteral(String s, int start, int[] end) {
+        assertEquals(s.charAt(start), '\'', "Literal must start with a quote: " + s);
+        StringBuilder value = new StringBuilder();
+        for (int i = start + 1; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\'') {
+                end[0] = i + 1;
+                return value.toString();
+            } else if (c == '\\') {
+                char e = s.charAt(++i);
+                switch (e) {
+                case 'n': value.append('\n'); break;
+                case 'r': value.append('\r'); break;
+                case 't': value.append('\t'); break;
+                case 'b': value.append('\b'); break;
+                case 'f': value.append('\f'); break;
+                case '\'': case '"': case '\\': value.append(e); break;
+                default: fail("Invalid escape sequence \\" + e + " in " + s);
+                }
+            } else {
+                assertFalse(c == '\n' || c == '\r', "Unescaped line break in " + s);
+                value.append(c);
+            }
+        }
+        fail("Unterminated literal: " + s);
+        return null;
+    }
+    
+    /**
+     * Reads a quoted SOQL LIKE pattern into wildcard and plain character tokens.
+     */
+    private static List<String> readLikePattern(String s) {
+        assertEquals(s.charAt(0), '\'', "Pattern must start with a quote: " + s);
+        List<String> tokens = new ArrayList<String>();
+        for (int i = 1; i < s.length() - 1; i++) {
+            char c = s.charAt(i);
+            if (c == '%' || c == '_') {
+                tokens.add(String.valueOf(c));
+            } else if (c == '\\' && (s.charAt(i + 1) == '%' || s.charAt(i + 1) == '_')) {
+                tokens.add("=" + s.charAt(++i));
+            } else if (c == '\\') {
+                int[] end = new int[1];
+                tokens.add("=" + readStringLiteral("'" + s.substring(i, i + 2) + "'", 0, end));
+                i++;
+            } else {
+                assertFalse(c == '\'' || c == '\n' || c == '\r', "Unescaped character in " + s);
+                tokens.add("=" + c);
+            }
+        }
+        assertEquals(s.charAt(s.length() - 1), '\'', "Pattern must end with a quote: " + s);
+        return tokens;
+    }
+    
+    private static List<String> readStringList(String s) {
+        assertEquals(s.charAt(0), '(');
+        List<String> values = new ArrayList<String>();
+        int[] end = {1};
+        while (true) {
+            values.add(readStringLiteral(s, end[0], end));
+            char c = s.charAt(end[0]++);
+            if (c == ')') break;
+            assertEquals(c, ',', "Expected a separator in " + s);
+        }
+        assertEquals(end[0], s.length(), "List ends early: " + s);
+        return values;
+    }
+}
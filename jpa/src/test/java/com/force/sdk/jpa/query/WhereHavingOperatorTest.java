@@ -77,6 +77,8 @@ public class WhereHavingOperatorTest extends BaseJPAQueryTest {
                     EXPECTED_QUERY_BASE + " where (o.Name like 'six')"},
                 {QUERY_BASE, WHERE, FIELD_ALPHA, "LIKE", "'%'",
                     EXPECTED_QUERY_BASE + " where (o.Name like '%')"},
+                {QUERY_BASE, WHERE, FIELD_ALPHA, "LIKE", "'50!%' ESCAPE '!'",
+                    EXPECTED_QUERY_BASE + " where (o.Name like '50\\%')"},
                 {QUERY_BASE, WHERE, FIELD_ALPHA, "NOT LIKE", "'six'",
                     EXPECTED_QUERY_BASE + " where (NOT o.Name like 'six')"},
                 {QUERY_BASE, WHERE, FIELD_ALPHA, "NOT LIKE", "'%'",